@@ -0,0 +1,137 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted direct buffer chunk handed out by a
+ * <code>SlabAllocator</code>.
+ * <p>
+ * The holder of the first reference owns the buffer and may write it. Read
+ * only slices can be shared with other consumers, each one keeping the chunk
+ * alive with <code>retain()</code> until it calls <code>release()</code>. The
+ * chunk returns to its allocator when no references are left and its bytes
+ * must not be used anymore.
+ *
+ * @author Marius
+ */
+public final class Chunk {
+
+    /* Owner */
+    private final SlabAllocator allocator;
+
+    /* Size class index, -1 if not pooled */
+    final int sizeClass;
+
+    /* Chunk bytes */
+    private final ByteBuffer buffer;
+
+    /* Reference count */
+    private final AtomicInteger refs = new AtomicInteger();
+
+    /* Charged stream account */
+    private MemoryAccount account;
+
+    Chunk(SlabAllocator allocator, int sizeClass, ByteBuffer buffer) {
+        this.allocator = allocator;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Hand out the chunk with one reference.
+     *
+     * @param account Stream account to charge, may be null
+     */
+    void open(MemoryAccount account) {
+        this.account = account;
+        if (account != null) {
+            account.charge(buffer.capacity());
+        }
+        buffer.clear();
+        refs.set(1);
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Get the chunk buffer. Position and limit belong to the owner.
+     *
+     * @return Direct buffer
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Get a read only view of a range of the chunk.
+     *
+     * @param offset Start offset
+     * @param length Bytes count
+     * @return Bytes view
+     */
+    public ByteBuffer slice(int offset, int length) {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.limit(offset + length);
+        view.position(offset);
+        return view;
+    }
+
+    /**
+     * Add a reference.
+     *
+     * @return This object
+     */
+    public Chunk retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Release a reference, the chunk returns to its allocator when no
+     * references are left.
+     */
+    public void release() {
+        int left = refs.decrementAndGet();
+        if (left == 0) {
+            if (account != null) {
+                account.credit(buffer.capacity());
+                account = null;
+            }
+            allocator.recycle(this);
+        } else if (left < 0) {
+            throw new IllegalStateException("Chunk released twice");
+        }
+    }
+
+    /**
+     * Get number of references.
+     *
+     * @return References count
+     */
+    public int refCount() {
+        return refs.get();
+    }
+}
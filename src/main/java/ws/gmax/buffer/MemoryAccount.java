@@ -0,0 +1,103 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.buffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap memory used by a stream. Chunks allocated for an account are
+ * charged with their capacity until released.
+ *
+ * @author Marius
+ */
+public final class MemoryAccount {
+
+    /* Stream name */
+    private final String name;
+
+    /* Bytes held */
+    private final AtomicLong used = new AtomicLong();
+
+    /* Max bytes held */
+    private final AtomicLong peak = new AtomicLong();
+
+    /* Chunks allocated */
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param name Stream name
+     */
+    public MemoryAccount(String name) {
+        this.name = name;
+    }
+
+    void charge(int bytes) {
+        allocations.incrementAndGet();
+        long now = used.addAndGet(bytes);
+        long max;
+        while (now > (max = peak.get()) && !peak.compareAndSet(max, now)) {
+            // retry
+        }
+    }
+
+    void credit(int bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get off-heap bytes currently held by the stream.
+     *
+     * @return Used bytes
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Get max off-heap bytes held by the stream.
+     *
+     * @return Peak bytes
+     */
+    public long getPeak() {
+        return peak.get();
+    }
+
+    /**
+     * Get number of chunks allocated for the stream.
+     *
+     * @return Allocations count
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: used=%d peak=%d allocations=%d",
+                name, getUsed(), getPeak(), getAllocations());
+    }
+}
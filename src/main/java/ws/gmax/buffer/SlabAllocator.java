@@ -0,0 +1,208 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap allocator of direct buffer chunks.
+ * <p>
+ * Requests are rounded up to a power of two size class from 512 bytes to the
+ * max class size. Chunks of a class are carved from direct slabs and kept in a
+ * free list when released, so buffered media never lands on the Java heap and
+ * no direct memory is returned to the system once reserved. Requests above the
+ * max class get a dedicated direct buffer which is not pooled.
+ *
+ * @author Marius
+ */
+public final class SlabAllocator {
+
+    /* Smallest size class shift (512 bytes) */
+    private static final int MIN_SHIFT = 9;
+
+    /* Default largest size class shift (1 MB) */
+    private static final int DEFAULT_MAX_SHIFT = 20;
+
+    /* Default slab size */
+    private static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    /* Shared instance */
+    private static final SlabAllocator SHARED = new SlabAllocator(DEFAULT_SLAB_SIZE,
+            1 << DEFAULT_MAX_SHIFT);
+
+    /* Slab size */
+    private final int slabSize;
+
+    /* Free chunks by size class */
+    private final ArrayDeque<Chunk>[] free;
+
+    /* Direct bytes reserved by slabs */
+    private final AtomicLong reserved = new AtomicLong();
+
+    /* Bytes handed out */
+    private final AtomicLong used = new AtomicLong();
+
+    /* Oversized allocations */
+    private final AtomicLong oversized = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param slabSize     Size of the direct buffers chunks are carved from
+     * @param maxChunkSize Largest pooled chunk size, rounded up to a power of
+     *                     two
+     */
+    @SuppressWarnings("unchecked")
+    public SlabAllocator(int slabSize, int maxChunkSize) {
+        if (slabSize <= 0 || maxChunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid slab or chunk size");
+        }
+        this.slabSize = slabSize;
+        this.free = (ArrayDeque<Chunk>[]) new ArrayDeque<?>[sizeClass(maxChunkSize) + 1];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Get the shared allocator (1 MB slabs, chunks up to 1 MB).
+     *
+     * @return Shared allocator
+     */
+    public static SlabAllocator shared() {
+        return SHARED;
+    }
+
+    /**
+     * Get the size class of a request.
+     *
+     * @param size Requested size
+     * @return Size class index
+     */
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Allocate a chunk not charged to any stream.
+     *
+     * @param size Min capacity in bytes
+     * @return Chunk with one reference
+     */
+    public Chunk allocate(int size) {
+        return allocate(size, null);
+    }
+
+    /**
+     * Allocate a chunk.
+     *
+     * @param size    Min capacity in bytes
+     * @param account Stream account charged with the chunk capacity, may be
+     *                null
+     * @return Chunk with one reference
+     */
+    public Chunk allocate(int size, MemoryAccount account) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid size " + size);
+        }
+        int sizeClass = sizeClass(size);
+        Chunk chunk;
+        if (sizeClass >= free.length) {
+            oversized.incrementAndGet();
+            chunk = new Chunk(this, -1, ByteBuffer.allocateDirect(size));
+        } else {
+            ArrayDeque<Chunk> list = free[sizeClass];
+            synchronized (list) {
+                if (list.isEmpty()) {
+                    carve(sizeClass, list);
+                }
+                chunk = list.poll();
+            }
+        }
+        used.addAndGet(chunk.capacity());
+        chunk.open(account);
+        return chunk;
+    }
+
+    /**
+     * Carve a new slab into chunks of a size class.
+     *
+     * @param sizeClass Size class index
+     * @param list      Free list of the class
+     */
+    private void carve(int sizeClass, ArrayDeque<Chunk> list) {
+        int chunkSize = 1 << (sizeClass + MIN_SHIFT);
+        ByteBuffer slab = ByteBuffer.allocateDirect(Math.max(slabSize, chunkSize));
+        reserved.addAndGet(slab.capacity());
+        for (int pos = 0; pos + chunkSize <= slab.capacity(); pos += chunkSize) {
+            slab.limit(pos + chunkSize);
+            slab.position(pos);
+            list.add(new Chunk(this, sizeClass, slab.slice()));
+        }
+    }
+
+    /**
+     * Return a chunk with no references left.
+     *
+     * @param chunk Chunk
+     */
+    void recycle(Chunk chunk) {
+        used.addAndGet(-chunk.capacity());
+        if (chunk.sizeClass >= 0) {
+            ArrayDeque<Chunk> list = free[chunk.sizeClass];
+            synchronized (list) {
+                list.add(chunk);
+            }
+        }
+    }
+
+    /**
+     * Get direct memory reserved by slabs, oversized chunks not included.
+     *
+     * @return Reserved bytes
+     */
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    /**
+     * Get capacity of the chunks in use.
+     *
+     * @return Used bytes
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Get number of allocations above the max size class.
+     *
+     * @return Oversized allocations
+     */
+    public long getOversized() {
+        return oversized.get();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.hls;
+
+import ws.gmax.http.HttpConnection;
+import ws.gmax.http.HttpHandler;
+import ws.gmax.http.HttpRequest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serve LL-HLS streams:
+ * <p>
+ * /hls/stream/index.m3u8[?_HLS_msn=N[&amp;_HLS_part=M]]<br>
+ * /hls/stream/init.mp4<br>
+ * /hls/stream/seg-N.m4s<br>
+ * /hls/stream/part-N-M.m4s
+ * <p>
+ * Playlist requests with _HLS_msn and requests of the hinted part block
+ * until available.
+ *
+ * @author Marius
+ */
+public final class HlsHandler implements HttpHandler {
+
+    /* Path prefix */
+    public static final String PREFIX = "/hls/";
+
+    /* Max blocking time of a request, in part targets */
+    private static final int BLOCK_PARTS = 15;
+
+    /* Header lines */
+    private static final String CORS = "Access-Control-Allow-Origin: *\r\n";
+    private static final String NO_CACHE = CORS + "Cache-Control: no-cache\r\n";
+    private static final String CACHE = CORS + "Cache-Control: max-age=60\r\n";
+
+    /* Streams by name */
+    private final Map<String, HlsPackager> streams = new ConcurrentHashMap<>();
+
+    /**
+     * Publish a stream.
+     *
+     * @param name     Stream name
+     * @param packager Packager of the stream
+     */
+    public void register(String name, HlsPackager packager) {
+        streams.put(name, packager);
+    }
+
+    /**
+     * Remove a stream, waiting requests are released.
+     *
+     * @param name Stream name
+     */
+    public void unregister(String name) {
+        HlsPackager packager = streams.remove(name);
+        if (packager != null) {
+            packager.close();
+        }
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpConnection connection) throws IOException {
+        String path = request.getPath().substring(PREFIX.length());
+        int slash = path.indexOf('/');
+        HlsPackager packager = slash == -1 ? null : streams.get(path.substring(0, slash));
+        if (packager == null) {
+            connection.sendError(404);
+            return;
+        }
+        String file = path.substring(slash + 1);
+        long timeout = packager.getPartTarget() * BLOCK_PARTS;
+        try {
+            if ("index.m3u8".equals(file)) {
+                long msn = request.getParameter("_HLS_msn", -1);
+                int part = (int) request.getParameter("_HLS_part", -1);
+                if (msn >= 0) {
+                    if (msn > packager.getSequence() + 2) {
+                        connection.sendError(400);
+                        return;
+                    }
+                    packager.await(msn, part, timeout);
+                }
+                String playlist = packager.getPlaylist();
+                if (playlist == null) {
+                    connection.sendError(404);
+                    return;
+                }
+                send(request, connection, "application/vnd.apple.mpegurl",
+                        ByteBuffer.wrap(playlist.getBytes(StandardCharsets.UTF_8)), NO_CACHE);
+            } else if ("init.mp4".equals(file)) {
+                send(request, connection, "video/mp4", packager.getInit(), CACHE);
+            } else if (file.startsWith("seg-") && file.endsWith(".m4s")) {
+                long msn = Long.parseLong(file.substring(4, file.length() - 4));
+                send(request, connection, "video/iso.segment", packager.getSegment(msn), CACHE);
+            } else if (file.startsWith("part-") && file.endsWith(".m4s")) {
+                String[] ids = file.substring(5, file.length() - 4).split("-");
+                long msn = Long.parseLong(ids[0]);
+                int index = Integer.parseInt(ids[1]);
+                if (msn <= packager.getSequence() + 1) {
+                    packager.await(msn, index, timeout);
+                }
+                send(request, connection, "video/iso.segment", packager.getPart(msn, index), CACHE);
+            } else {
+                connection.sendError(404);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            connection.sendError(400);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void send(HttpRequest request, HttpConnection connection, String type,
+                             ByteBuffer body, String headers) throws IOException {
+        if (body == null) {
+            connection.sendError(404);
+        } else if ("HEAD".equals(request.getMethod())) {
+            connection.sendHead(200, type, body.remaining(), headers);
+        } else {
+            connection.send(200, type, body, headers);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.hls;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.mp4.Fmp4Muxer;
+import ws.gmax.mp4.Fmp4Sink;
+import ws.gmax.rtp.AccessUnit;
+import ws.gmax.rtp.AccessUnitListener;
+import ws.gmax.rtp.RtpTimestampUnwrapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Low latency HLS packager of one live video stream.
+ * <p>
+ * Access units are muxed into CMAF partial segments with
+ * <code>Fmp4Muxer.cut()</code> before the access unit that would make the
+ * part longer than the part target, segments start on the first keyframe
+ * after the segment target. The target duration is fixed from the segment
+ * target, a segment about to exceed it is cut without a keyframe. Parts,
+ * segments and the media playlist are kept in memory, the bytes of every
+ * part and segment are built once and shared by all viewers. Playlist
+ * requests may block until a given part is available (blocking playlist
+ * reload).
+ *
+ * @author Marius
+ */
+public final class HlsPackager implements AccessUnitListener, Fmp4Sink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HlsPackager.class);
+
+    /* Defaults (ms) */
+    public static final int DEFAULT_PART_TARGET = 200;
+    public static final int DEFAULT_SEGMENT_TARGET = 2000;
+    public static final int DEFAULT_WINDOW = 6;
+
+    /* Complete segments listing their parts */
+    private static final int PART_SEGMENTS = 2;
+
+    /**
+     * Partial segment.
+     */
+    static final class Part {
+
+        final ByteBuffer data;
+        final double duration;
+        final boolean independent;
+
+        Part(ByteBuffer data, double duration, boolean independent) {
+            this.data = data;
+            this.duration = duration;
+            this.independent = independent;
+        }
+    }
+
+    /**
+     * Media segment, complete once the next one starts.
+     */
+    static final class Segment {
+
+        final long sequence;
+        final List<Part> parts = new ArrayList<>();
+        double duration;
+        ByteBuffer data;
+
+        Segment(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void complete() {
+            int size = 0;
+            for (Part part : parts) {
+                size += part.data.remaining();
+            }
+            ByteBuffer whole = ByteBuffer.allocate(size);
+            for (Part part : parts) {
+                whole.put(part.data.duplicate());
+            }
+            whole.flip();
+            data = whole.asReadOnlyBuffer();
+        }
+    }
+
+    /* Muxer, cut by the packager only */
+    private final Fmp4Muxer muxer = new Fmp4Muxer(this);
+
+    /* Targets (90 kHz) */
+    private final long partTarget;
+    private final long segmentTarget;
+
+    /* Complete segments kept */
+    private final int window;
+
+    /* Complete segments, oldest first, and the segment in progress */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private Segment current;
+
+    /* Initialization segment */
+    private ByteBuffer init;
+
+    /* Part and segment in progress starts, last access unit (90 kHz) */
+    private final RtpTimestampUnwrapper unwrapper = new RtpTimestampUnwrapper();
+    private long partStart = -1, segmentStart = -1, last;
+
+    /* Max segment duration, in seconds and 90 kHz */
+    private final int targetDuration;
+    private final long maxSegment;
+
+    private boolean closed;
+
+    /**
+     * Constructor with default targets.
+     */
+    public HlsPackager() {
+        this(DEFAULT_PART_TARGET, DEFAULT_SEGMENT_TARGET, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param partTarget    Part duration (ms)
+     * @param segmentTarget Min segment duration (ms)
+     * @param window        Complete segments kept in the playlist
+     */
+    public HlsPackager(int partTarget, int segmentTarget, int window) {
+        if (partTarget <= 0 || segmentTarget < partTarget || window < 1) {
+            throw new IllegalArgumentException("Invalid HLS targets");
+        }
+        this.partTarget = partTarget * (long) Fmp4Muxer.TIMESCALE / 1000;
+        this.segmentTarget = segmentTarget * (long) Fmp4Muxer.TIMESCALE / 1000;
+        this.window = window;
+        this.targetDuration = (segmentTarget + 999) / 1000;
+        this.maxSegment = targetDuration * (long) Fmp4Muxer.TIMESCALE;
+        muxer.setFragmentOnKeyframe(false);
+    }
+
+    @Override
+    public void onAccessUnit(AccessUnit unit) {
+        try {
+            write(unit);
+        } catch (IOException ex) {
+            LOGGER.error("Error", ex);
+        }
+    }
+
+    /**
+     * Cut parts and segments, then mux an access unit. The access unit is
+     * expected to last as long as the previous one, a part or segment it
+     * would stretch beyond its limit is cut before it.
+     *
+     * @param unit Access unit
+     * @throws IOException on error
+     */
+    private synchronized void write(AccessUnit unit) throws IOException {
+        long time = unwrapper.unwrap(unit.getTimestamp());
+        if (init == null && !unit.isKeyframe()) {
+            return;
+        }
+        if (partStart == -1) {
+            partStart = segmentStart = time;
+        } else if (time > partStart) {
+            long end = time + Math.max(0, time - last);
+            if ((unit.isKeyframe() && time - segmentStart >= segmentTarget)
+                    || end - segmentStart > maxSegment) {
+                muxer.cut();
+                nextSegment();
+                partStart = segmentStart = time;
+            } else if (end - partStart > partTarget) {
+                muxer.cut();
+                partStart = time;
+            }
+        }
+        last = time;
+        muxer.write(unit);
+    }
+
+    /**
+     * Complete the current segment and start the next one.
+     */
+    private void nextSegment() {
+        if (current == null || current.parts.isEmpty()) {
+            return;
+        }
+        current.complete();
+        segments.addLast(current);
+        while (segments.size() > window) {
+            segments.removeFirst();
+        }
+        current = new Segment(current.sequence + 1);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void writeInit(ByteBuffer segment) {
+        ByteBuffer copy = ByteBuffer.allocate(segment.remaining());
+        copy.put(segment).flip();
+        init = copy.asReadOnlyBuffer();
+        current = new Segment(0);
+    }
+
+    @Override
+    public synchronized void writeFragment(ByteBuffer fragment, long decodeTime, long duration,
+                                           boolean independent) {
+        ByteBuffer copy = ByteBuffer.allocate(fragment.remaining());
+        copy.put(fragment).flip();
+        double seconds = duration / (double) Fmp4Muxer.TIMESCALE;
+        current.parts.add(new Part(copy.asReadOnlyBuffer(), seconds, independent));
+        current.duration += seconds;
+        notifyAll();
+    }
+
+    /**
+     * Stop the stream and release waiting requests.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Check if a part is available.
+     *
+     * @param msn  Media sequence number
+     * @param part Part index, -1 for the whole segment
+     */
+    private boolean available(long msn, int part) {
+        if (current == null) {
+            return false;
+        }
+        if (msn < current.sequence) {
+            return true;
+        }
+        return msn == current.sequence && part >= 0 && part < current.parts.size();
+    }
+
+    /**
+     * Wait for a part or a segment.
+     *
+     * @param msn     Media sequence number
+     * @param part    Part index, -1 for the whole segment
+     * @param timeout Max wait (ms)
+     * @return <code>true</code> if available
+     * @throws InterruptedException if interrupted
+     */
+    synchronized boolean await(long msn, int part, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!available(msn, part) && !closed) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return available(msn, part);
+    }
+
+    /**
+     * Get the sequence number of the segment in progress.
+     *
+     * @return Media sequence number, -1 before the first keyframe
+     */
+    public synchronized long getSequence() {
+        return current == null ? -1 : current.sequence;
+    }
+
+    /**
+     * Get the initialization segment.
+     *
+     * @return Read only buffer or <code>null</code> before the first keyframe
+     */
+    synchronized ByteBuffer getInit() {
+        return init == null ? null : init.duplicate();
+    }
+
+    /**
+     * Get a complete segment.
+     *
+     * @param msn Media sequence number
+     * @return Read only buffer or <code>null</code> if not in the window
+     */
+    synchronized ByteBuffer getSegment(long msn) {
+        for (Segment segment : segments) {
+            if (segment.sequence == msn) {
+                return segment.data.duplicate();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get a part.
+     *
+     * @param msn   Media sequence number
+     * @param index Part index
+     * @return Read only buffer or <code>null</code> if not available
+     */
+    synchronized ByteBuffer getPart(long msn, int index) {
+        Segment segment = current != null && current.sequence == msn ? current : null;
+        if (segment == null) {
+            for (Segment s : segments) {
+                if (s.sequence == msn) {
+                    segment = s;
+                }
+            }
+        }
+        return segment == null || index < 0 || index >= segment.parts.size() ? null
+                : segment.parts.get(index).data.duplicate();
+    }
+
+    /**
+     * Build the media playlist.
+     *
+     * @return Playlist or <code>null</code> before the first part
+     */
+    synchronized String getPlaylist() {
+        if (current == null || (segments.isEmpty() && current.parts.isEmpty())) {
+            return null;
+        }
+        double part = partTarget / (double) Fmp4Muxer.TIMESCALE;
+        StringBuilder m3u8 = new StringBuilder(1024);
+        m3u8.append("#EXTM3U\n#EXT-X-VERSION:9\n");
+        m3u8.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+        m3u8.append(String.format(Locale.US,
+                "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=%.3f\n", part * 3));
+        m3u8.append(String.format(Locale.US, "#EXT-X-PART-INF:PART-TARGET=%.3f\n", part));
+        long first = segments.isEmpty() ? current.sequence : segments.getFirst().sequence;
+        m3u8.append("#EXT-X-MEDIA-SEQUENCE:").append(first).append('\n');
+        m3u8.append("#EXT-X-MAP:URI=\"init.mp4\"\n");
+        int index = 0;
+        for (Segment segment : segments) {
+            if (index++ >= segments.size() - PART_SEGMENTS) {
+                parts(m3u8, segment);
+            }
+            m3u8.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.duration));
+            m3u8.append("seg-").append(segment.sequence).append(".m4s\n");
+        }
+        parts(m3u8, current);
+        m3u8.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"part-").append(current.sequence)
+                .append('-').append(current.parts.size()).append(".m4s\"\n");
+        return m3u8.toString();
+    }
+
+    private static void parts(StringBuilder m3u8, Segment segment) {
+        for (int i = 0; i < segment.parts.size(); i++) {
+            Part part = segment.parts.get(i);
+            m3u8.append(String.format(Locale.US, "#EXT-X-PART:DURATION=%.3f,URI=\"part-%d-%d.m4s\"%s\n",
+                    part.duration, segment.sequence, i, part.independent ? ",INDEPENDENT=YES" : ""));
+        }
+    }
+
+    /**
+     * Get the part target.
+     *
+     * @return Part target (ms)
+     */
+    public long getPartTarget() {
+        return partTarget * 1000 / Fmp4Muxer.TIMESCALE;
+    }
+
+    public String getCodecs() {
+        return muxer.getCodecs();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Client connection of the HTTP server, responses are written directly to
+ * the socket channel.
+ *
+ * @author Marius
+ */
+public final class HttpConnection {
+
+    /* Socket */
+    private final SocketChannel channel;
+
+    /* Keep the connection after the response */
+    private boolean keepAlive;
+
+    /* Connection taken over by the handler */
+    private boolean detached;
+
+    HttpConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive && !detached;
+    }
+
+    /**
+     * Take the connection over, the server stops reading requests from it
+     * and leaves closing it to the handler.
+     */
+    public void detach() {
+        detached = true;
+    }
+
+    boolean isDetached() {
+        return detached;
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 101:
+                return "Switching Protocols";
+            case 200:
+                return "OK";
+            case 206:
+                return "Partial Content";
+            case 304:
+                return "Not Modified";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 416:
+                return "Range Not Satisfiable";
+            case 426:
+                return "Upgrade Required";
+            default:
+                return status < 500 ? "Error" : "Internal Server Error";
+        }
+    }
+
+    private static String date() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date());
+    }
+
+    /**
+     * Send a response head.
+     *
+     * @param status      Status code
+     * @param contentType Content type, <code>null</code> for none
+     * @param length      Content length, -1 for none
+     * @param headers     Extra header lines, each terminated by CRLF
+     * @throws IOException on error
+     */
+    public void sendHead(int status, String contentType, long length, String headers)
+            throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+        head.append("Date: ").append(date()).append("\r\n");
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (length >= 0) {
+            head.append("Content-Length: ").append(length).append("\r\n");
+        }
+        if (status != 101) {
+            head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        }
+        if (headers != null) {
+            head.append(headers);
+        }
+        head.append("\r\n");
+        write(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Send a complete response.
+     *
+     * @param status      Status code
+     * @param contentType Content type
+     * @param body        Body bytes between position and limit, consumed
+     * @param headers     Extra header lines, each terminated by CRLF
+     * @throws IOException on error
+     */
+    public void send(int status, String contentType, ByteBuffer body, String headers)
+            throws IOException {
+        sendHead(status, contentType, body.remaining(), headers);
+        write(body);
+    }
+
+    /**
+     * Send an empty error response.
+     *
+     * @param status Status code
+     * @throws IOException on error
+     */
+    public void sendError(int status) throws IOException {
+        sendHead(status, null, 0, null);
+    }
+
+    /**
+     * Write bytes to the socket.
+     *
+     * @param buffer Bytes between position and limit, consumed
+     * @throws IOException on error
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Send a file region, the kernel copies it to the socket.
+     *
+     * @param file     File
+     * @param position Region offset
+     * @param count    Region size
+     * @throws IOException on error
+     */
+    public void transfer(FileChannel file, long position, long count) throws IOException {
+        while (count > 0) {
+            long sent = file.transferTo(position, count, channel);
+            if (sent <= 0) {
+                throw new IOException("Short transfer");
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.http;
+
+import java.io.IOException;
+
+/**
+ * Handler of requests under a path prefix.
+ *
+ * @author Marius
+ */
+public interface HttpHandler {
+
+    /**
+     * Answer a request. The handler must send exactly one response on the
+     * connection unless it detaches it.
+     *
+     * @param request    Request
+     * @param connection Client connection
+     * @throws IOException on error writing the response
+     */
+    void handle(HttpRequest request, HttpConnection connection) throws IOException;
+}
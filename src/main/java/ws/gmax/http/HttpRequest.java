@@ -0,0 +1,168 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.http;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Parsed HTTP request head.
+ *
+ * @author Marius
+ */
+public final class HttpRequest {
+
+    /* Request line */
+    private final String method;
+    private final String path;
+    private final String version;
+
+    /* Query parameters */
+    private final Map<String, String> query;
+
+    /* Case insensitive headers */
+    private final Map<String, String> headers;
+
+    private HttpRequest(String method, String path, String version, Map<String, String> query,
+                        Map<String, String> headers) {
+        this.method = method;
+        this.path = path;
+        this.version = version;
+        this.query = query;
+        this.headers = headers;
+    }
+
+    /**
+     * Parse a request head.
+     *
+     * @param head Request line and headers, without the empty line
+     * @return Request or <code>null</code> if malformed
+     */
+    static HttpRequest parse(String head) {
+        String[] lines = head.split("\r\n");
+        String[] parts = lines[0].split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+            return null;
+        }
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim(),
+                        lines[i].substring(colon + 1).trim());
+            }
+        }
+        String target = parts[1];
+        int mark = target.indexOf('?');
+        Map<String, String> query = new LinkedHashMap<>();
+        if (mark != -1) {
+            for (String param : target.substring(mark + 1).split("&")) {
+                int eq = param.indexOf('=');
+                query.put(decode(eq == -1 ? param : param.substring(0, eq)),
+                        eq == -1 ? "" : decode(param.substring(eq + 1)));
+            }
+            target = target.substring(0, mark);
+        }
+        return new HttpRequest(parts[0], decode(target), parts[2],
+                Collections.unmodifiableMap(query), Collections.unmodifiableMap(headers));
+    }
+
+    private static String decode(String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            return text;
+        }
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Get a query parameter.
+     *
+     * @param name Parameter name
+     * @return Parameter value or <code>null</code> if not present
+     */
+    public String getParameter(String name) {
+        return query.get(name);
+    }
+
+    /**
+     * Get a long query parameter.
+     *
+     * @param name         Parameter name
+     * @param defaultValue Value returned if missing or invalid
+     * @return Parameter value
+     */
+    public long getParameter(String name, long defaultValue) {
+        String value = query.get(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException ex) {
+                // use default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Get a header.
+     *
+     * @param name Header name, case insensitive
+     * @return Header value or <code>null</code> if not present
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Check if the connection is kept open after the response.
+     *
+     * @return <code>true</code> for persistent connections
+     */
+    public boolean isKeepAlive() {
+        String connection = headers.get("Connection");
+        if ("HTTP/1.0".equals(version)) {
+            return "keep-alive".equalsIgnoreCase(connection);
+        }
+        return !"close".equalsIgnoreCase(connection);
+    }
+
+    @Override
+    public String toString() {
+        return method + ' ' + path + ' ' + version;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server for GET and HEAD requests.
+ * <p>
+ * Connections are served by blocking socket channels on daemon threads, so
+ * handlers can send file regions with <code>transferTo</code> and the
+ * payload never reaches the heap. Requests are routed to the handler with
+ * the longest matching path prefix.
+ *
+ * @author Marius
+ */
+public final class HttpServer implements Closeable, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpServer.class);
+
+    /* Max request head */
+    private static final int MAX_HEAD = 8192;
+
+    /* Listening socket */
+    private final ServerSocketChannel server;
+
+    /* Handlers by path prefix, longest first */
+    private final Map<String, HttpHandler> handlers =
+            new ConcurrentSkipListMap<>((a, b) -> a.length() != b.length()
+                    ? b.length() - a.length() : a.compareTo(b));
+
+    /* Connection threads */
+    private final ExecutorService executor;
+
+    /* Statistics */
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private Thread acceptor;
+
+    /**
+     * Constructor.
+     *
+     * @param address Listening address, port 0 for any
+     * @throws IOException on error
+     */
+    public HttpServer(InetSocketAddress address) throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "http-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Register a handler.
+     *
+     * @param prefix  Path prefix
+     * @param handler Request handler
+     */
+    public void addHandler(String prefix, HttpHandler handler) {
+        handlers.put(prefix, handler);
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Start accepting connections.
+     */
+    public synchronized void start() {
+        if (acceptor == null) {
+            acceptor = new Thread(this, "http-accept-" + getPort());
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel channel = server.accept();
+                connections.incrementAndGet();
+                executor.execute(() -> serve(channel));
+            } catch (IOException ex) {
+                if (server.isOpen()) {
+                    LOGGER.error("Error", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serve requests of a connection until closed.
+     *
+     * @param channel Client socket
+     */
+    private void serve(SocketChannel channel) {
+        HttpConnection connection = new HttpConnection(channel);
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEAD);
+        try {
+            do {
+                String head = readHead(channel, buffer);
+                if (head == null) {
+                    break;
+                }
+                HttpRequest request = HttpRequest.parse(head);
+                if (request == null) {
+                    connection.setKeepAlive(false);
+                    connection.sendError(400);
+                    break;
+                }
+                requests.incrementAndGet();
+                connection.setKeepAlive(request.isKeepAlive());
+                dispatch(request, connection);
+            } while (connection.isKeepAlive());
+        } catch (IOException ex) {
+            LOGGER.debug("Connection closed: {}", ex.getMessage());
+        } finally {
+            if (!connection.isDetached()) {
+                close(channel);
+            }
+        }
+    }
+
+    private void dispatch(HttpRequest request, HttpConnection connection) throws IOException {
+        if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+            connection.setKeepAlive(false);
+            connection.sendHead(405, null, 0, "Allow: GET, HEAD\r\n");
+            return;
+        }
+        for (Map.Entry<String, HttpHandler> entry : handlers.entrySet()) {
+            if (request.getPath().startsWith(entry.getKey())) {
+                entry.getValue().handle(request, connection);
+                return;
+            }
+        }
+        connection.sendError(404);
+    }
+
+    /**
+     * Read a request head. Bytes following it are kept in the buffer.
+     *
+     * @param channel Client socket
+     * @param buffer  Read buffer, in write mode
+     * @return Head without the empty line or <code>null</code> at end of
+     * stream or if the head is too large
+     * @throws IOException on error
+     */
+    private static String readHead(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        int scanned = 0;
+        while (true) {
+            byte[] bytes = buffer.array();
+            for (int i = Math.max(scanned, 3); i < buffer.position(); i++) {
+                if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n'
+                        && bytes[i - 3] == '\r') {
+                    String head = new String(bytes, 0, i - 3, StandardCharsets.ISO_8859_1);
+                    buffer.flip();
+                    buffer.position(i + 1);
+                    buffer.compact();
+                    return head;
+                }
+            }
+            scanned = buffer.position();
+            if (!buffer.hasRemaining() || channel.read(buffer) < 0) {
+                return null;
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        executor.shutdownNow();
+    }
+}
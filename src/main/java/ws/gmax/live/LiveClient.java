@@ -0,0 +1,223 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.live;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * WebSocket viewer of a live stream.
+ * <p>
+ * Messages are shared read only buffers, the client only keeps its own
+ * position in them. When more than <code>maxQueued</code> bytes wait to be
+ * sent the queued media fragments are dropped, except the one being written,
+ * and the client resumes on the next keyframe. Type, initialization and
+ * control messages are always kept.
+ *
+ * @author Marius
+ */
+final class LiveClient {
+
+    /* Close frame */
+    private static final byte[] CLOSE = {(byte) 0x88, 0};
+
+    /* Socket */
+    final SocketChannel channel;
+    SelectionKey key;
+
+    /* Stream watched */
+    final LiveStream stream;
+
+    /**
+     * Queued message.
+     */
+    private static final class Message {
+
+        final ByteBuffer buffer;
+        final boolean media;
+
+        Message(ByteBuffer buffer, boolean media) {
+            this.buffer = buffer;
+            this.media = media;
+        }
+    }
+
+    /* Queued messages, the head may be partially sent */
+    private final Deque<Message> queue = new ArrayDeque<>();
+    private long queued;
+    private final long maxQueued;
+
+    /* Waiting for a keyframe to resume */
+    private boolean waitKeyframe = true;
+
+    /* Scheduled for writing */
+    final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /* Received frames */
+    private final ByteBuffer input = ByteBuffer.allocate(256);
+
+    /* Statistics */
+    private long sent, dropped;
+
+    LiveClient(SocketChannel channel, LiveStream stream, long maxQueued) {
+        this.channel = channel;
+        this.stream = stream;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Queue a message.
+     *
+     * @param message  Shared message
+     * @param keyframe Message starts a keyframe, <code>false</code> for
+     *                 messages sent unconditionally
+     * @param media    Message is a media fragment
+     * @return <code>true</code> if queued
+     */
+    synchronized boolean offer(ByteBuffer message, boolean keyframe, boolean media) {
+        if (media) {
+            if (waitKeyframe && !keyframe) {
+                dropped++;
+                return false;
+            }
+            waitKeyframe = false;
+            if (queued + message.remaining() > maxQueued) {
+                // slow client, drop the media fragments not being written
+                Message head = queue.peekFirst();
+                Iterator<Message> it = queue.iterator();
+                while (it.hasNext()) {
+                    Message queuedMessage = it.next();
+                    if (queuedMessage.media && (queuedMessage != head
+                            || queuedMessage.buffer.position() == 0)) {
+                        it.remove();
+                        queued -= queuedMessage.buffer.remaining();
+                        dropped++;
+                    }
+                }
+                dropped++;
+                waitKeyframe = true;
+                return !queue.isEmpty();
+            }
+        }
+        queue.add(new Message(message.duplicate(), media));
+        queued += message.remaining();
+        return true;
+    }
+
+    /**
+     * Write queued messages without blocking.
+     *
+     * @return <code>true</code> if the queue is empty
+     * @throws IOException on error
+     */
+    synchronized boolean flush() throws IOException {
+        Message message;
+        while ((message = queue.peekFirst()) != null) {
+            ByteBuffer head = message.buffer;
+            int written = channel.write(head);
+            sent += written;
+            queued -= written;
+            if (head.hasRemaining()) {
+                return false;
+            }
+            queue.pollFirst();
+        }
+        return true;
+    }
+
+    /**
+     * Consume frames sent by the browser, answer pings and close frames.
+     *
+     * @return <code>false</code> if the client closed or sent a data frame
+     * @throws IOException on error
+     */
+    boolean read() throws IOException {
+        if (channel.read(input) < 0) {
+            return false;
+        }
+        input.flip();
+        try {
+            while (input.remaining() >= 2) {
+                int opcode = input.get(input.position()) & 0x0F;
+                int length = input.get(input.position() + 1) & 0x7F;
+                if (length > 125) {
+                    // viewers send only control frames
+                    return false;
+                }
+                if (input.remaining() < 6 + length) {
+                    break;
+                }
+                input.position(input.position() + 2);
+                byte[] mask = new byte[4];
+                input.get(mask);
+                byte[] payload = new byte[length];
+                input.get(payload);
+                for (int i = 0; i < length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+                if (opcode == 0x8) {
+                    synchronized (this) {
+                        // keep the message being written, the frames must stay whole
+                        Message head = queue.peekFirst();
+                        queue.clear();
+                        queued = 0;
+                        if (head != null && head.buffer.position() > 0) {
+                            queue.add(head);
+                            queued = head.buffer.remaining();
+                        }
+                        queue.add(new Message(ByteBuffer.wrap(CLOSE), false));
+                        queued += CLOSE.length;
+                        flush();
+                    }
+                    return false;
+                } else if (opcode == 0x9) {
+                    ByteBuffer pong = ByteBuffer.allocate(2 + length);
+                    pong.put((byte) 0x8A).put((byte) length).put(payload).flip();
+                    synchronized (this) {
+                        queue.add(new Message(pong, false));
+                        queued += pong.remaining();
+                    }
+                }
+            }
+        } finally {
+            input.compact();
+        }
+        return true;
+    }
+
+    synchronized long getQueued() {
+        return queued;
+    }
+
+    synchronized long getSent() {
+        return sent;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
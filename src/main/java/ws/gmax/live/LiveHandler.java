@@ -0,0 +1,139 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.live;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.http.HttpConnection;
+import ws.gmax.http.HttpHandler;
+import ws.gmax.http.HttpRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WebSocket endpoint /live/stream pushing live fMP4 to MSE players.
+ *
+ * @author Marius
+ */
+public final class LiveHandler implements HttpHandler, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LiveHandler.class);
+
+    /* Path prefix */
+    public static final String PREFIX = "/live/";
+
+    /* Default bytes queued per viewer before dropping to the next keyframe */
+    public static final long DEFAULT_MAX_QUEUED = 2 * 1024 * 1024;
+
+    /* RFC 6455 accept key suffix */
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /* Streams by name */
+    private final Map<String, LiveStream> streams = new ConcurrentHashMap<>();
+
+    /* Shared writer thread */
+    private final LiveWriter writer;
+
+    /* Per viewer queue limit */
+    private final long maxQueued;
+
+    public LiveHandler() throws IOException {
+        this(DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxQueued Bytes queued per viewer before dropping
+     * @throws IOException on error opening the selector
+     */
+    public LiveHandler(long maxQueued) throws IOException {
+        this.maxQueued = maxQueued;
+        this.writer = new LiveWriter();
+    }
+
+    /**
+     * Get or create a stream, feed it with access units.
+     *
+     * @param name Stream name
+     * @return Live stream
+     */
+    public LiveStream getStream(String name) {
+        return streams.computeIfAbsent(name, key -> new LiveStream(key, writer));
+    }
+
+    /**
+     * Remove a stream and disconnect its viewers.
+     *
+     * @param name Stream name
+     */
+    public void removeStream(String name) {
+        LiveStream stream = streams.remove(name);
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpConnection connection) throws IOException {
+        LiveStream stream = streams.get(request.getPath().substring(PREFIX.length()));
+        String key = request.getHeader("Sec-WebSocket-Key");
+        String upgrade = request.getHeader("Upgrade");
+        if (stream == null) {
+            connection.sendError(404);
+            return;
+        }
+        if (key == null || !"websocket".equalsIgnoreCase(upgrade)) {
+            connection.sendHead(426, null, 0, "Upgrade: websocket\r\n");
+            return;
+        }
+        connection.sendHead(101, null, -1, "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept(key) + "\r\n");
+        connection.detach();
+        stream.add(new LiveClient(connection.getChannel(), stream, maxQueued));
+        LOGGER.debug("Viewer of {}: {}", stream.getName(), stream.getViewers());
+    }
+
+    private static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (String name : streams.keySet()) {
+            removeStream(name);
+        }
+        writer.close();
+    }
+}
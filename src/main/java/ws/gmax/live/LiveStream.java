@@ -0,0 +1,208 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.live;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.mp4.Fmp4Muxer;
+import ws.gmax.mp4.Fmp4Sink;
+import ws.gmax.rtp.AccessUnit;
+import ws.gmax.rtp.AccessUnitListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Live fMP4 stream pushed to WebSocket viewers for MSE playback.
+ * <p>
+ * Every access unit is muxed as one fragment and framed once as a binary
+ * WebSocket message, the same buffer is queued to every viewer. A new
+ * viewer first receives a text message with the MSE type
+ * (video/mp4; codecs="...") and the initialization segment, then media
+ * from the next keyframe.
+ *
+ * @author Marius
+ */
+public final class LiveStream implements AccessUnitListener, Fmp4Sink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LiveStream.class);
+
+    /* Stream name */
+    private final String name;
+
+    /* One fragment per access unit */
+    private final Fmp4Muxer muxer = new Fmp4Muxer(this);
+
+    /* Writer thread of the viewers */
+    private final LiveWriter writer;
+
+    /* Viewers */
+    private final List<LiveClient> clients = new CopyOnWriteArrayList<>();
+
+    /* Type and initialization messages */
+    private volatile ByteBuffer type, init;
+
+    /* Statistics */
+    private long fragments, bytes;
+
+    LiveStream(String name, LiveWriter writer) {
+        this.name = name;
+        this.writer = writer;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void onAccessUnit(AccessUnit unit) {
+        try {
+            muxer.write(unit);
+            muxer.cut();
+        } catch (IOException ex) {
+            LOGGER.error("Error", ex);
+        }
+    }
+
+    /**
+     * Frame a message.
+     *
+     * @param opcode  WebSocket opcode
+     * @param payload Payload bytes between position and limit
+     * @return Read only message
+     */
+    static ByteBuffer frame(int opcode, ByteBuffer payload) {
+        int length = payload.remaining();
+        int header = length < 126 ? 2 : length < 65536 ? 4 : 10;
+        ByteBuffer message = ByteBuffer.allocate(header + length);
+        message.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            message.put((byte) length);
+        } else if (length < 65536) {
+            message.put((byte) 126).putShort((short) length);
+        } else {
+            message.put((byte) 127).putLong(length);
+        }
+        message.put(payload).flip();
+        return message.asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized void writeInit(ByteBuffer segment) {
+        type = frame(0x1, ByteBuffer.wrap(("video/mp4; codecs=\"" + muxer.getCodecs() + '"')
+                .getBytes(StandardCharsets.US_ASCII)));
+        init = frame(0x2, segment);
+        for (LiveClient client : clients) {
+            start(client);
+        }
+        writer.wakeup();
+    }
+
+    @Override
+    public void writeFragment(ByteBuffer fragment, long decodeTime, long duration,
+                              boolean independent) {
+        ByteBuffer message = frame(0x2, fragment);
+        fragments++;
+        bytes += message.remaining();
+        boolean scheduled = false;
+        for (LiveClient client : clients) {
+            if (client.offer(message, independent, true)) {
+                writer.schedule(client);
+                scheduled = true;
+            }
+        }
+        if (scheduled) {
+            writer.wakeup();
+        }
+    }
+
+    /**
+     * Queue the type and initialization messages.
+     */
+    private void start(LiveClient client) {
+        ByteBuffer t = type, i = init;
+        if (t != null && i != null) {
+            client.offer(t, false, false);
+            client.offer(i, false, false);
+            writer.schedule(client);
+        }
+    }
+
+    /**
+     * Add a viewer. The type and initialization messages are queued before
+     * the viewer is published to the muxer thread, so no fragment gets
+     * ahead of them, a viewer added before the initialization segment gets
+     * it from <code>writeInit</code>.
+     *
+     * @param client Handshaken client
+     */
+    void add(LiveClient client) {
+        synchronized (this) {
+            start(client);
+            clients.add(client);
+        }
+        writer.add(client);
+        writer.wakeup();
+    }
+
+    void remove(LiveClient client) {
+        clients.remove(client);
+    }
+
+    @Override
+    public void close() {
+        for (LiveClient client : clients) {
+            try {
+                client.channel.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    public int getViewers() {
+        return clients.size();
+    }
+
+    public long getFragments() {
+        return fragments;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get fragments dropped for slow viewers.
+     *
+     * @return Dropped fragments
+     */
+    public long getDropped() {
+        long dropped = 0;
+        for (LiveClient client : clients) {
+            dropped += client.getDropped();
+        }
+        return dropped;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.live;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread writing to all WebSocket viewers with non blocking sockets.
+ * <p>
+ * Producers only queue shared messages and schedule the clients, the
+ * writer flushes them and waits for socket space of the slow ones.
+ *
+ * @author Marius
+ */
+final class LiveWriter implements Closeable, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LiveWriter.class);
+
+    private final Selector selector;
+
+    /* Clients to register and clients with new messages */
+    private final Queue<LiveClient> added = new ConcurrentLinkedQueue<>();
+    private final Queue<LiveClient> ready = new ConcurrentLinkedQueue<>();
+
+    private final Thread thread;
+
+    LiveWriter() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "live-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start serving a client.
+     *
+     * @param client Handshaken client
+     */
+    void add(LiveClient client) {
+        added.add(client);
+        schedule(client);
+    }
+
+    /**
+     * Schedule a client with new messages, the selector is woken up by
+     * <code>wakeup()</code>.
+     *
+     * @param client Client
+     */
+    void schedule(LiveClient client) {
+        if (client.scheduled.compareAndSet(false, true)) {
+            ready.add(client);
+        }
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                LiveClient client;
+                while ((client = added.poll()) != null) {
+                    try {
+                        client.channel.configureBlocking(false);
+                        client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+                    } catch (IOException ex) {
+                        close(client);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    client = (LiveClient) key.attachment();
+                    if (key.isValid() && key.isReadable() && !client.read()) {
+                        close(client);
+                    } else if (key.isValid()) {
+                        flush(client);
+                    }
+                }
+                while ((client = ready.poll()) != null) {
+                    client.scheduled.set(false);
+                    if (client.key != null && client.key.isValid()) {
+                        flush(client);
+                    }
+                }
+            } catch (IOException ex) {
+                if (selector.isOpen()) {
+                    LOGGER.error("Error", ex);
+                }
+            }
+        }
+    }
+
+    private void flush(LiveClient client) {
+        try {
+            boolean empty = client.flush();
+            client.key.interestOps(empty ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException ex) {
+            close(client);
+        }
+    }
+
+    private void close(LiveClient client) {
+        client.stream.remove(client);
+        if (client.key != null) {
+            client.key.cancel();
+        }
+        try {
+            client.channel.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+}
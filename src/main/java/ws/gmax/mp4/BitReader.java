@@ -0,0 +1,133 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.mp4;
+
+/**
+ * Bit reader over a NAL unit RBSP, emulation prevention bytes removed.
+ *
+ * @author Marius
+ */
+final class BitReader {
+
+    /* RBSP bytes */
+    private final byte[] data;
+
+    /* RBSP size */
+    private final int length;
+
+    /* Bit position */
+    private int pos;
+
+    /**
+     * Constructor.
+     *
+     * @param nal NAL unit bytes
+     * @param off Offset of the first byte after the NAL unit header
+     */
+    BitReader(byte[] nal, int off) {
+        data = new byte[nal.length];
+        int n = 0;
+        int zeros = 0;
+        for (int i = off; i < nal.length; i++) {
+            int b = nal[i] & 0xFF;
+            if (zeros >= 2 && b == 0x03) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            data[n++] = (byte) b;
+        }
+        length = n;
+    }
+
+    /**
+     * Read an unsigned bit field.
+     *
+     * @param n Bits count (up to 32)
+     * @return Field value
+     */
+    int u(int n) {
+        int value = 0;
+        for (int i = 0; i < n; i++) {
+            value = (value << 1) | bit();
+        }
+        return value;
+    }
+
+    /**
+     * Read a single bit.
+     *
+     * @return Bit value
+     */
+    int bit() {
+        if (pos >= length * 8) {
+            throw new RuntimeException("Truncated NAL unit.");
+        }
+        int value = (data[pos >>> 3] >>> (7 - (pos & 7))) & 1;
+        pos++;
+        return value;
+    }
+
+    /**
+     * Skip bits.
+     *
+     * @param n Bits count
+     */
+    void skip(int n) {
+        pos += n;
+    }
+
+    /**
+     * Read an unsigned Exp-Golomb code.
+     *
+     * @return Value
+     */
+    int ue() {
+        int zeros = 0;
+        while (bit() == 0) {
+            zeros++;
+            if (zeros > 31) {
+                throw new RuntimeException("Invalid Exp-Golomb code.");
+            }
+        }
+        return (int) ((1L << zeros) - 1 + (zeros == 0 ? 0 : u(zeros) & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Read a signed Exp-Golomb code.
+     *
+     * @return Value
+     */
+    int se() {
+        int k = ue();
+        return (k & 1) != 0 ? (k + 1) / 2 : -(k / 2);
+    }
+
+    /**
+     * Get RBSP byte.
+     *
+     * @param index Byte index
+     * @return Byte value
+     */
+    int byteAt(int index) {
+        return data[index] & 0xFF;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a fragmented MP4 recording. Every fragment is appended with a single
+ * write, the file is playable up to the last complete fragment at any time.
+ *
+ * @author Marius
+ */
+public class Fmp4FileWriter implements Fmp4Sink {
+
+    /* Output file */
+    private final FileChannel channel;
+
+    /* Statistics */
+    private long fragments, bytes;
+
+    /**
+     * Constructor. Existing files are truncated.
+     *
+     * @param path File path
+     * @throws IOException on error
+     */
+    public Fmp4FileWriter(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public void writeInit(ByteBuffer segment) throws IOException {
+        write(segment);
+    }
+
+    @Override
+    public void writeFragment(ByteBuffer fragment, long decodeTime, long duration,
+                              boolean independent) throws IOException {
+        write(fragment);
+        fragments++;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            bytes += channel.write(buffer);
+        }
+    }
+
+    public long getFragments() {
+        return fragments;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
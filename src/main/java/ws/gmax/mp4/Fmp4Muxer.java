@@ -0,0 +1,515 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.mp4;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.rtp.AccessUnit;
+import ws.gmax.rtp.AccessUnitListener;
+import ws.gmax.rtp.Codec;
+import ws.gmax.rtp.RtpTimestampUnwrapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming fragmented MP4 (CMAF) muxer for one H.264 or H.265 video track.
+ * <p>
+ * The initialization segment is built from the parameter sets of the first
+ * keyframe. Access units are then collected and written as one moof/mdat
+ * fragment per GOP, or on demand with <code>cut()</code>. The moof layout is
+ * fixed, its size is computed from the sample count before writing so no box
+ * is ever patched or rewritten.
+ *
+ * @author Marius
+ */
+public class Fmp4Muxer implements AccessUnitListener {
+
+    /* Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Fmp4Muxer.class);
+
+    /* Media timescale, same as the RTP video clock */
+    public static final int TIMESCALE = 90000;
+
+    /* Track ID */
+    private static final int TRACK_ID = 1;
+
+    /* Box header size */
+    private static final int BOX_HEADER = 8;
+
+    // moof layout:
+    //    moof            8
+    //      mfhd         16
+    //      traf          8
+    //        tfhd       16  (default-base-is-moof)
+    //        tfdt       20  (version 1)
+    //        trun       20  + 12 per sample (duration, size, flags)
+
+    /* moof size without trun samples */
+    private static final int MOOF_SIZE = 88;
+
+    /* trun sample size */
+    private static final int SAMPLE_SIZE = 12;
+
+    /* trun flags: data-offset, sample-duration, sample-size, sample-flags */
+    private static final int TRUN_FLAGS = 0x000701;
+
+    /* Sample flags */
+    private static final int SYNC_SAMPLE = 0x02000000;
+    private static final int NON_SYNC_SAMPLE = 0x01010000;
+
+    /* Default sample duration before the frame rate is known (25 fps) */
+    private static final int DEFAULT_DURATION = TIMESCALE / 25;
+
+    /* Output sink */
+    private final Fmp4Sink sink;
+
+    /* Timestamps unwrapper */
+    private final RtpTimestampUnwrapper unwrapper = new RtpTimestampUnwrapper();
+
+    /* Access units of the fragment in progress */
+    private final List<AccessUnit> pending = new ArrayList<>();
+
+    /* Extended timestamps of pending access units */
+    private long[] times = new long[64];
+
+    /* Reusable fragment buffer */
+    private ByteBuffer fragment = ByteBuffer.allocateDirect(512 * 1024);
+
+    /* Track configuration, set by the first keyframe */
+    private Codec codec;
+    private Sps sps;
+    private String codecs;
+    private ByteBuffer init;
+
+    /* First extended timestamp */
+    private long first = -1;
+
+    /* Fragment sequence number */
+    private int sequence = 1;
+
+    /* Last sample duration */
+    private long lastDuration = DEFAULT_DURATION;
+
+    /* Start a new fragment on every keyframe */
+    private boolean fragmentOnKeyframe = true;
+
+    /* Statistics */
+    private long fragments, skipped;
+
+    /**
+     * Constructor.
+     *
+     * @param sink Fragments sink
+     */
+    public Fmp4Muxer(Fmp4Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Enable or disable fragmentation on keyframes. When disabled fragments
+     * are produced only by <code>cut()</code>.
+     *
+     * @param fragmentOnKeyframe Fragment on keyframes
+     */
+    public void setFragmentOnKeyframe(boolean fragmentOnKeyframe) {
+        this.fragmentOnKeyframe = fragmentOnKeyframe;
+    }
+
+    /**
+     * Access unit listener, errors are logged.
+     *
+     * @param unit Access unit
+     */
+    @Override
+    public void onAccessUnit(AccessUnit unit) {
+        try {
+            write(unit);
+        } catch (IOException ex) {
+            LOGGER.error("Error", ex);
+        }
+    }
+
+    /**
+     * Add an access unit. Access units before the first keyframe are skipped.
+     *
+     * @param unit Access unit
+     * @throws IOException on error
+     */
+    public synchronized void write(AccessUnit unit) throws IOException {
+        if (init == null) {
+            if (!unit.isKeyframe() || !initialize(unit)) {
+                skipped++;
+                return;
+            }
+            sink.writeInit(init.duplicate());
+        }
+        long time = unwrapper.unwrap(unit.getTimestamp());
+        if (first == -1) {
+            first = time;
+        }
+        if (unit.isKeyframe() && fragmentOnKeyframe && !pending.isEmpty()) {
+            emit(time);
+        }
+        if (pending.size() == times.length) {
+            times = Arrays.copyOf(times, times.length * 2);
+        }
+        times[pending.size()] = time;
+        pending.add(unit.retain());
+    }
+
+    /**
+     * Write the pending access units as a fragment now.
+     *
+     * @throws IOException on error
+     */
+    public synchronized void cut() throws IOException {
+        if (!pending.isEmpty()) {
+            emit(-1);
+        }
+    }
+
+    /**
+     * Write pending access units and close the sink.
+     *
+     * @throws IOException on error
+     */
+    public synchronized void close() throws IOException {
+        try {
+            cut();
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * Get the initialization segment.
+     *
+     * @return Initialization segment or <code>null</code> before the first keyframe
+     */
+    public synchronized ByteBuffer getInit() {
+        return init == null ? null : init.duplicate();
+    }
+
+    /**
+     * Get the RFC 6381 codecs parameter of the track.
+     *
+     * @return Codecs or <code>null</code> before the first keyframe
+     */
+    public synchronized String getCodecs() {
+        return codecs;
+    }
+
+    public synchronized int getWidth() {
+        return sps == null ? 0 : sps.width;
+    }
+
+    public synchronized int getHeight() {
+        return sps == null ? 0 : sps.height;
+    }
+
+    public long getFragments() {
+        return fragments;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Check for NAL units not stored in samples (AUD and parameter sets, the
+     * latter live in the sample entry).
+     */
+    private static boolean skipNal(Codec codec, byte header) {
+        if (codec == Codec.H265) {
+            int type = (header >> 1) & 0x3F;
+            return type >= 32 && type <= 35;
+        }
+        int type = header & 0x1F;
+        return type == 7 || type == 8 || type == 9;
+    }
+
+    /**
+     * Compute a sample size in AVCC format (4 bytes length prefixes).
+     */
+    private static int sampleSize(AccessUnit unit) {
+        int size = 0;
+        for (int i = 0; i < unit.getNalCount(); i++) {
+            if (!skipNal(unit.getCodec(), unit.get(unit.getNalOffset(i)))) {
+                size += 4 + unit.getNalLength(i);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Write pending access units as a fragment.
+     *
+     * @param next Extended timestamp of the next access unit or -1
+     */
+    private void emit(long next) throws IOException {
+        int count = pending.size();
+        int data = 0;
+        for (AccessUnit unit : pending) {
+            data += sampleSize(unit);
+        }
+        int moof = MOOF_SIZE + SAMPLE_SIZE * count;
+        int total = moof + BOX_HEADER + data;
+        if (fragment.capacity() < total) {
+            fragment = ByteBuffer.allocateDirect(Math.max(total, fragment.capacity() * 2));
+        }
+        ByteBuffer b = fragment;
+        b.clear();
+
+        long decodeTime = times[0] - first;
+        // moof
+        b.putInt(moof).put(type("moof"));
+        b.putInt(16).put(type("mfhd")).putInt(0).putInt(sequence);
+        b.putInt(moof - 24).put(type("traf"));
+        b.putInt(16).put(type("tfhd")).putInt(0x020000).putInt(TRACK_ID);
+        b.putInt(20).put(type("tfdt")).putInt(0x01000000).putLong(decodeTime);
+        b.putInt(20 + SAMPLE_SIZE * count).put(type("trun")).putInt(TRUN_FLAGS)
+                .putInt(count).putInt(moof + BOX_HEADER);
+        long duration = 0;
+        for (int i = 0; i < count; i++) {
+            AccessUnit unit = pending.get(i);
+            long d = (i + 1 < count) ? times[i + 1] - times[i]
+                    : (next >= 0 ? next - times[i] : lastDuration);
+            if (d <= 0 || d > TIMESCALE * 10L) {
+                d = lastDuration;
+            }
+            lastDuration = d;
+            duration += d;
+            b.putInt((int) d);
+            b.putInt(sampleSize(unit));
+            b.putInt(unit.isKeyframe() ? SYNC_SAMPLE : NON_SYNC_SAMPLE);
+        }
+        // mdat
+        b.putInt(BOX_HEADER + data).put(type("mdat"));
+        for (AccessUnit unit : pending) {
+            for (int i = 0; i < unit.getNalCount(); i++) {
+                if (!skipNal(unit.getCodec(), unit.get(unit.getNalOffset(i)))) {
+                    b.putInt(unit.getNalLength(i));
+                    b.put(unit.nal(i));
+                }
+            }
+        }
+        b.flip();
+
+        boolean independent = pending.get(0).isKeyframe();
+        for (AccessUnit unit : pending) {
+            unit.release();
+        }
+        pending.clear();
+        sequence++;
+        fragments++;
+        sink.writeFragment(b, decodeTime, duration, independent);
+    }
+
+    /**
+     * Build the initialization segment from the parameter sets of a keyframe.
+     *
+     * @return <code>true</code> if all parameter sets were found
+     */
+    private boolean initialize(AccessUnit unit) {
+        Codec c = unit.getCodec();
+        byte[] vps = null, spsNal = null, pps = null;
+        boolean hevc = c == Codec.H265;
+        for (int i = 0; i < unit.getNalCount(); i++) {
+            byte header = unit.get(unit.getNalOffset(i));
+            int type = hevc ? (header >> 1) & 0x3F : header & 0x1F;
+            if (hevc && type == 32) {
+                vps = copyNal(unit, i);
+            } else if (type == (hevc ? 33 : 7)) {
+                spsNal = copyNal(unit, i);
+            } else if (type == (hevc ? 34 : 8)) {
+                pps = copyNal(unit, i);
+            }
+        }
+        if (spsNal == null || pps == null || (hevc && vps == null)) {
+            return false;
+        }
+        try {
+            sps = hevc ? Sps.h265(spsNal) : Sps.h264(spsNal);
+        } catch (RuntimeException ex) {
+            LOGGER.error("Invalid SPS", ex);
+            return false;
+        }
+        codec = c;
+        codecs = sps.codecs(hevc);
+        init = buildInit(vps, spsNal, pps);
+        return true;
+    }
+
+    private static byte[] copyNal(AccessUnit unit, int index) {
+        byte[] nal = new byte[unit.getNalLength(index)];
+        unit.nal(index).get(nal);
+        return nal;
+    }
+
+    /**
+     * Build ftyp and moov boxes.
+     */
+    private ByteBuffer buildInit(byte[] vps, byte[] spsNal, byte[] pps) {
+        Boxes b = new Boxes(1024 + spsNal.length + pps.length + (vps == null ? 0 : vps.length));
+        b.open("ftyp").put("iso6").putInt(0).put("iso6").put("cmfc").put("mp41").close();
+        b.open("moov");
+        b.open("mvhd").putInt(0).putInt(0).putInt(0).putInt(1000).putInt(0)
+                .putInt(0x00010000).putShort(0x0100).zeros(10).matrix().zeros(24)
+                .putInt(TRACK_ID + 1).close();
+        b.open("trak");
+        b.open("tkhd").putInt(0x000003).putInt(0).putInt(0).putInt(TRACK_ID).putInt(0)
+                .putInt(0).zeros(8).putShort(0).putShort(0).putShort(0).putShort(0)
+                .matrix().putInt(sps.width << 16).putInt(sps.height << 16).close();
+        b.open("mdia");
+        b.open("mdhd").putInt(0).putInt(0).putInt(0).putInt(TIMESCALE).putInt(0)
+                .putShort(0x55C4).putShort(0).close();
+        b.open("hdlr").putInt(0).putInt(0).put("vide").zeros(12)
+                .put("VideoHandler").zeros(1).close();
+        b.open("minf");
+        b.open("vmhd").putInt(1).zeros(8).close();
+        b.open("dinf").open("dref").putInt(0).putInt(1)
+                .open("url ").putInt(1).close().close().close();
+        b.open("stbl");
+        b.open("stsd").putInt(0).putInt(1);
+        b.open(codec == Codec.H265 ? "hvc1" : "avc1").zeros(6).putShort(1).zeros(16)
+                .putShort(sps.width).putShort(sps.height)
+                .putInt(0x00480000).putInt(0x00480000).putInt(0).putShort(1)
+                .zeros(32).putShort(0x0018).putShort(0xFFFF);
+        if (codec == Codec.H265) {
+            hvcC(b, vps, spsNal, pps);
+        } else {
+            avcC(b, spsNal, pps);
+        }
+        b.close().close();
+        b.open("stts").putInt(0).putInt(0).close();
+        b.open("stsc").putInt(0).putInt(0).close();
+        b.open("stsz").putInt(0).putInt(0).putInt(0).close();
+        b.open("stco").putInt(0).putInt(0).close();
+        b.close().close().close().close();
+        b.open("mvex").open("trex").putInt(0).putInt(TRACK_ID).putInt(1)
+                .putInt(0).putInt(0).putInt(0).close().close();
+        b.close();
+        return b.finish();
+    }
+
+    private void avcC(Boxes b, byte[] spsNal, byte[] pps) {
+        b.open("avcC").putByte(1).putByte(sps.profile).putByte(sps.compatibility)
+                .putByte(sps.level).putByte(0xFF).putByte(0xE1)
+                .putShort(spsNal.length).put(spsNal)
+                .putByte(1).putShort(pps.length).put(pps).close();
+    }
+
+    private void hvcC(Boxes b, byte[] vps, byte[] spsNal, byte[] pps) {
+        b.open("hvcC").putByte(1).put(sps.profileTierLevel)
+                .putShort(0xF000).putByte(0xFC).putByte(0xFC | sps.chromaFormat)
+                .putByte(0xF8 | (sps.bitDepthLuma - 8)).putByte(0xF8 | (sps.bitDepthChroma - 8))
+                .putShort(0)
+                .putByte((sps.temporalLayers << 3) | (sps.temporalIdNested ? 0x04 : 0) | 0x03)
+                .putByte(3);
+        int[] types = {32, 33, 34};
+        byte[][] nals = {vps, spsNal, pps};
+        for (int i = 0; i < 3; i++) {
+            b.putByte(0x80 | types[i]).putShort(1).putShort(nals[i].length).put(nals[i]);
+        }
+        b.close();
+    }
+
+    private static byte[] type(String type) {
+        return type.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Box writer used for the initialization segment, box sizes are patched
+     * when a box is closed.
+     */
+    private static final class Boxes {
+
+        private final ByteBuffer buffer;
+        private final int[] stack = new int[16];
+        private int depth;
+
+        Boxes(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        Boxes open(String type) {
+            stack[depth++] = buffer.position();
+            buffer.putInt(0).put(type(type));
+            return this;
+        }
+
+        Boxes close() {
+            int start = stack[--depth];
+            buffer.putInt(start, buffer.position() - start);
+            return this;
+        }
+
+        Boxes put(String text) {
+            buffer.put(type(text));
+            return this;
+        }
+
+        Boxes put(byte[] bytes) {
+            buffer.put(bytes);
+            return this;
+        }
+
+        Boxes putInt(int value) {
+            buffer.putInt(value);
+            return this;
+        }
+
+        Boxes putShort(int value) {
+            buffer.putShort((short) value);
+            return this;
+        }
+
+        Boxes putByte(int value) {
+            buffer.put((byte) value);
+            return this;
+        }
+
+        Boxes zeros(int count) {
+            for (int i = 0; i < count; i++) {
+                buffer.put((byte) 0);
+            }
+            return this;
+        }
+
+        Boxes matrix() {
+            int[] unity = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+            for (int value : unity) {
+                buffer.putInt(value);
+            }
+            return this;
+        }
+
+        ByteBuffer finish() {
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+}
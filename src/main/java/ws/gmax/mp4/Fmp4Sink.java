@@ -0,0 +1,54 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.mp4;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of fragmented MP4 segments produced by <code>Fmp4Muxer</code>.
+ * Buffers are reused after the calls return.
+ *
+ * @author Marius
+ */
+public interface Fmp4Sink extends Closeable {
+
+    /**
+     * Write the initialization segment (ftyp, moov).
+     *
+     * @param segment Initialization segment
+     * @throws IOException on error
+     */
+    void writeInit(ByteBuffer segment) throws IOException;
+
+    /**
+     * Write a media fragment (moof, mdat).
+     *
+     * @param fragment    Media fragment
+     * @param decodeTime  Decode time of the first sample (90 kHz)
+     * @param duration    Fragment duration (90 kHz)
+     * @param independent Fragment starts with a keyframe
+     * @throws IOException on error
+     */
+    void writeFragment(ByteBuffer fragment, long decodeTime, long duration,
+                       boolean independent) throws IOException;
+}
@@ -0,0 +1,219 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.mp4;
+
+/**
+ * Sequence parameter set fields needed by the sample entries (avcC, hvcC).
+ *
+ * @author Marius
+ */
+final class Sps {
+
+    /* Picture size after cropping */
+    int width, height;
+
+    /* H.264 profile_idc, constraint flags, level_idc */
+    int profile, compatibility, level;
+
+    /* H.265 general profile_tier_level (12 bytes) */
+    final byte[] profileTierLevel = new byte[12];
+
+    /* H.265 chroma format and bit depths */
+    int chromaFormat = 1, bitDepthLuma = 8, bitDepthChroma = 8;
+
+    /* H.265 temporal layers */
+    int temporalLayers = 1;
+    boolean temporalIdNested;
+
+    private Sps() {
+    }
+
+    /**
+     * Parse a H.264 SPS.
+     *
+     * @param nal SPS NAL unit including header
+     * @return SPS fields
+     */
+    static Sps h264(byte[] nal) {
+        Sps sps = new Sps();
+        BitReader r = new BitReader(nal, 1);
+        sps.profile = r.u(8);
+        sps.compatibility = r.u(8);
+        sps.level = r.u(8);
+        r.ue();
+        int chroma = 1;
+        boolean separateColourPlane = false;
+        int p = sps.profile;
+        if (p == 100 || p == 110 || p == 122 || p == 244 || p == 44 || p == 83
+                || p == 86 || p == 118 || p == 128 || p == 138 || p == 139
+                || p == 134 || p == 135) {
+            chroma = r.ue();
+            if (chroma == 3) {
+                separateColourPlane = r.bit() != 0;
+            }
+            sps.bitDepthLuma = r.ue() + 8;
+            sps.bitDepthChroma = r.ue() + 8;
+            r.bit();
+            if (r.bit() != 0) {
+                for (int i = 0; i < (chroma != 3 ? 8 : 12); i++) {
+                    if (r.bit() != 0) {
+                        skipScalingList(r, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        sps.chromaFormat = chroma;
+        r.ue();
+        int pocType = r.ue();
+        if (pocType == 0) {
+            r.ue();
+        } else if (pocType == 1) {
+            r.bit();
+            r.se();
+            r.se();
+            int cycle = r.ue();
+            for (int i = 0; i < cycle; i++) {
+                r.se();
+            }
+        }
+        r.ue();
+        r.bit();
+        int widthMbs = r.ue() + 1;
+        int heightMapUnits = r.ue() + 1;
+        int frameMbsOnly = r.bit();
+        if (frameMbsOnly == 0) {
+            r.bit();
+        }
+        r.bit();
+        int left = 0, right = 0, top = 0, bottom = 0;
+        if (r.bit() != 0) {
+            left = r.ue();
+            right = r.ue();
+            top = r.ue();
+            bottom = r.ue();
+        }
+        int arrayType = separateColourPlane ? 0 : chroma;
+        int cropX = arrayType == 0 ? 1 : (arrayType == 3 ? 1 : 2);
+        int cropY = (arrayType == 0 ? 1 : (arrayType == 1 ? 2 : 1)) * (2 - frameMbsOnly);
+        sps.width = widthMbs * 16 - cropX * (left + right);
+        sps.height = (2 - frameMbsOnly) * heightMapUnits * 16 - cropY * (top + bottom);
+        return sps;
+    }
+
+    private static void skipScalingList(BitReader r, int size) {
+        int last = 8, next = 8;
+        for (int j = 0; j < size; j++) {
+            if (next != 0) {
+                next = (last + r.se() + 256) % 256;
+            }
+            last = next == 0 ? last : next;
+        }
+    }
+
+    /**
+     * Parse a H.265 SPS.
+     *
+     * @param nal SPS NAL unit including header
+     * @return SPS fields
+     */
+    static Sps h265(byte[] nal) {
+        Sps sps = new Sps();
+        BitReader r = new BitReader(nal, 2);
+        r.u(4);
+        int maxSubLayersMinus1 = r.u(3);
+        sps.temporalLayers = maxSubLayersMinus1 + 1;
+        sps.temporalIdNested = r.bit() != 0;
+        // general profile_tier_level starts byte aligned at byte 1
+        for (int i = 0; i < 12; i++) {
+            sps.profileTierLevel[i] = (byte) r.byteAt(1 + i);
+        }
+        r.skip(96);
+        sps.profile = sps.profileTierLevel[0] & 0x1F;
+        sps.level = sps.profileTierLevel[11] & 0xFF;
+        boolean[] profilePresent = new boolean[8];
+        boolean[] levelPresent = new boolean[8];
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            profilePresent[i] = r.bit() != 0;
+            levelPresent[i] = r.bit() != 0;
+        }
+        if (maxSubLayersMinus1 > 0) {
+            r.skip(2 * (8 - maxSubLayersMinus1));
+        }
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            if (profilePresent[i]) {
+                r.skip(88);
+            }
+            if (levelPresent[i]) {
+                r.skip(8);
+            }
+        }
+        r.ue();
+        int chroma = r.ue();
+        if (chroma == 3) {
+            r.bit();
+        }
+        sps.chromaFormat = chroma;
+        int width = r.ue();
+        int height = r.ue();
+        if (r.bit() != 0) {
+            int subWidth = (chroma == 1 || chroma == 2) ? 2 : 1;
+            int subHeight = chroma == 1 ? 2 : 1;
+            width -= subWidth * (r.ue() + r.ue());
+            height -= subHeight * (r.ue() + r.ue());
+        }
+        sps.width = width;
+        sps.height = height;
+        sps.bitDepthLuma = r.ue() + 8;
+        sps.bitDepthChroma = r.ue() + 8;
+        return sps;
+    }
+
+    /**
+     * Build the RFC 6381 codecs parameter (avc1.42C01E, hvc1.1.6.L93.B0).
+     *
+     * @param hevc H.265 SPS
+     * @return Codecs string
+     */
+    String codecs(boolean hevc) {
+        if (!hevc) {
+            return String.format("avc1.%02X%02X%02X", profile, compatibility, level);
+        }
+        int space = (profileTierLevel[0] >> 6) & 0x03;
+        boolean tier = (profileTierLevel[0] & 0x20) != 0;
+        int flags = ((profileTierLevel[1] & 0xFF) << 24) | ((profileTierLevel[2] & 0xFF) << 16)
+                | ((profileTierLevel[3] & 0xFF) << 8) | (profileTierLevel[4] & 0xFF);
+        StringBuilder sb = new StringBuilder("hvc1.");
+        if (space > 0) {
+            sb.append((char) ('A' + space - 1));
+        }
+        sb.append(profile).append('.')
+                .append(Integer.toHexString(Integer.reverse(flags)).toUpperCase())
+                .append('.').append(tier ? 'H' : 'L').append(level);
+        int last = 10;
+        while (last >= 5 && profileTierLevel[last] == 0) {
+            last--;
+        }
+        for (int i = 5; i <= last; i++) {
+            sb.append(String.format(".%02X", profileTierLevel[i] & 0xFF));
+        }
+        return sb.toString();
+    }
+}
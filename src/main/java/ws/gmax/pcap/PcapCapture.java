@@ -0,0 +1,349 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.pcap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capture tap writing received datagrams to rotating pcap files.
+ * <p>
+ * The receive thread only copies the datagram into a preallocated record
+ * taken from a bounded free list and queues it, a background thread writes
+ * the records. When the writer falls behind records are dropped and
+ * counted, capture never blocks the receive thread.
+ * <p>
+ * Files use nanosecond timestamps and the raw IP link type, each datagram is
+ * written behind synthetic IPv4 and UDP headers so the capture opens in
+ * packet analyzers and replays with <code>PcapReplay</code>.
+ *
+ * @author Marius
+ */
+public class PcapCapture implements Closeable, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PcapCapture.class);
+
+    /* Defaults */
+    public static final long DEFAULT_FILE_SIZE = 64L << 20;
+    public static final int DEFAULT_FILES = 4;
+    public static final int DEFAULT_BUFFER = 1024;
+
+    /* Max captured datagram size */
+    private static final int SNAP_LENGTH = 8192;
+
+    /* pcap nanosecond magic and raw IP link type */
+    private static final int PCAP_NANO = 0xA1B23C4D;
+    private static final int LINKTYPE_RAW = 101;
+
+    /* Record and synthetic IPv4 + UDP header sizes */
+    private static final int RECORD_HEADER = 16;
+    private static final int IP_UDP_HEADER = 28;
+
+    /**
+     * Captured datagram.
+     */
+    private static class Record {
+
+        final byte[] data = new byte[SNAP_LENGTH];
+        final byte[] source = new byte[4];
+        final byte[] destination = new byte[4];
+        int length;
+        int captured;
+        int sourcePort;
+        int destinationPort;
+        long timestamp;
+    }
+
+    /* Output directory and file name prefix */
+    private final Path directory;
+    private final String prefix;
+
+    /* Rotation */
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    /* Free and filled records */
+    private final BlockingQueue<Record> free;
+    private final BlockingQueue<Record> filled;
+
+    /* Written files, oldest first */
+    private final ArrayDeque<Path> files = new ArrayDeque<>();
+
+    /* Wallclock of the nanoTime origin */
+    private final long epoch = System.currentTimeMillis() * 1_000_000L;
+    private final long origin = System.nanoTime();
+
+    /* Current file */
+    private FileChannel channel;
+    private long fileSize;
+    private int sequence;
+
+    /* Write buffer */
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+
+    /* Writer thread */
+    private Thread writer;
+    private volatile boolean closed;
+
+    /* Statistics */
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Constructor using default rotation and buffer size.
+     *
+     * @param directory Output directory
+     * @param prefix    File name prefix
+     */
+    public PcapCapture(Path directory, String prefix) {
+        this(directory, prefix, DEFAULT_FILE_SIZE, DEFAULT_FILES, DEFAULT_BUFFER);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param directory   Output directory
+     * @param prefix      File name prefix
+     * @param maxFileSize File size rotating to a new file
+     * @param maxFiles    Number of files kept, older files are deleted
+     * @param buffer      Number of datagrams buffered for the writer
+     */
+    public PcapCapture(Path directory, String prefix, long maxFileSize,
+                       int maxFiles, int buffer) {
+        if (maxFiles < 1 || buffer < 1) {
+            throw new IllegalArgumentException("Invalid capture files/buffer: "
+                    + maxFiles + "/" + buffer);
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.free = new ArrayBlockingQueue<>(buffer);
+        this.filled = new ArrayBlockingQueue<>(buffer);
+        for (int i = 0; i < buffer; i++) {
+            free.add(new Record());
+        }
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public synchronized void start() {
+        if (writer == null) {
+            writer = new Thread(this, "pcap-" + prefix);
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Queue a received datagram. Called by the receive thread, never blocks.
+     *
+     * @param packet      Received datagram
+     * @param destination Local or group address
+     * @param port        Local or group port
+     * @return <code>false</code> if dropped
+     */
+    public boolean offer(DatagramPacket packet, InetAddress destination, int port) {
+        Record record;
+        if (closed || (record = free.poll()) == null) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        record.timestamp = epoch + System.nanoTime() - origin;
+        record.length = packet.getLength();
+        record.captured = Math.min(record.length, SNAP_LENGTH);
+        System.arraycopy(packet.getData(), packet.getOffset(), record.data, 0, record.captured);
+        address(packet.getAddress(), record.source);
+        address(destination, record.destination);
+        record.sourcePort = packet.getPort();
+        record.destinationPort = port;
+        filled.add(record);
+        return true;
+    }
+
+    private static void address(InetAddress address, byte[] dst) {
+        if (address instanceof Inet4Address) {
+            System.arraycopy(address.getAddress(), 0, dst, 0, 4);
+        } else {
+            dst[0] = dst[1] = dst[2] = dst[3] = 0;
+        }
+    }
+
+    /**
+     * Write queued records until closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!closed || !filled.isEmpty()) {
+                Record record = filled.poll(100, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    write(record);
+                    free.add(record);
+                }
+                if (filled.isEmpty()) {
+                    flush();
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Capture {} failed", prefix, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeFile();
+            closed = true;
+        }
+    }
+
+    /**
+     * Write a record, rotating the file when full.
+     *
+     * @param record Record
+     * @throws IOException On I/O error
+     */
+    private void write(Record record) throws IOException {
+        int size = RECORD_HEADER + IP_UDP_HEADER + record.captured;
+        if (channel == null || fileSize + size > maxFileSize) {
+            rotate();
+        }
+        if (out.remaining() < size) {
+            flush();
+        }
+        long seconds = record.timestamp / 1_000_000_000L;
+        out.putInt((int) seconds);
+        out.putInt((int) (record.timestamp - seconds * 1_000_000_000L));
+        out.putInt(IP_UDP_HEADER + record.captured);
+        out.putInt(IP_UDP_HEADER + record.length);
+
+        int start = out.position();
+        out.put((byte) 0x45).put((byte) 0).putShort((short) (IP_UDP_HEADER + record.length));
+        out.putShort((short) 0).putShort((short) 0x4000);
+        out.put((byte) 64).put((byte) 17).putShort((short) 0);
+        out.put(record.source).put(record.destination);
+        int sum = 0;
+        for (int i = start; i < start + 20; i += 2) {
+            sum += out.getShort(i) & 0xFFFF;
+        }
+        sum = (sum & 0xFFFF) + (sum >> 16);
+        sum += sum >> 16;
+        out.putShort(start + 10, (short) ~sum);
+
+        out.putShort((short) record.sourcePort).putShort((short) record.destinationPort);
+        out.putShort((short) (8 + record.length)).putShort((short) 0);
+        out.put(record.data, 0, record.captured);
+        fileSize += size;
+        captured.incrementAndGet();
+    }
+
+    /**
+     * Start a new file, deleting the oldest one beyond the kept count.
+     *
+     * @throws IOException On I/O error
+     */
+    private void rotate() throws IOException {
+        flush();
+        closeFile();
+        Path file = directory.resolve(String.format("%s-%05d.pcap", prefix, sequence++));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        files.add(file);
+        while (files.size() > maxFiles) {
+            Files.deleteIfExists(files.poll());
+        }
+        out.putInt(PCAP_NANO).putShort((short) 2).putShort((short) 4);
+        out.putInt(0).putInt(0).putInt(SNAP_LENGTH + IP_UDP_HEADER).putInt(LINKTYPE_RAW);
+        fileSize = 24;
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Capture {} close failed", prefix, ex);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Stop capturing. Queued records are written before the file is closed.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = writer;
+        }
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get number of datagrams written.
+     *
+     * @return Captured datagrams
+     */
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    /**
+     * Get number of datagrams dropped because the buffer was full.
+     *
+     * @return Dropped datagrams
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
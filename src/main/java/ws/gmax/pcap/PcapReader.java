@@ -0,0 +1,525 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.pcap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory mapped pcap and pcapng reader returning the UDP datagrams of a
+ * capture.
+ * <p>
+ * The file is mapped in windows of up to 1 GB so captures of any size are
+ * read without copying them to the heap. Ethernet (with VLAN tags), Linux
+ * cooked (SLL, SLL2), raw IP and BSD loopback link types are decoded, IPv4
+ * and IPv6 fragments are skipped. Datagrams may be filtered by UDP port and
+ * by RTP/RTCP SSRC.
+ *
+ * @author Marius
+ */
+public class PcapReader implements Closeable {
+
+    /* pcap magic numbers */
+    private static final int PCAP_MICRO = 0xA1B2C3D4;
+    private static final int PCAP_NANO = 0xA1B23C4D;
+
+    /* pcapng block types */
+    private static final int SHB = 0x0A0D0D0A;
+    private static final int IDB = 1;
+    private static final int PB = 2;
+    private static final int SPB = 3;
+    private static final int EPB = 6;
+
+    /* pcapng byte order magic */
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+    /* Link types */
+    private static final int LINKTYPE_NULL = 0;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW_OLD = 12;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int LINKTYPE_SLL = 113;
+    private static final int LINKTYPE_IPV4 = 228;
+    private static final int LINKTYPE_IPV6 = 229;
+    private static final int LINKTYPE_SLL2 = 276;
+
+    /* Max mapped window */
+    private static final long WINDOW = 1L << 30;
+
+    /* File */
+    private final FileChannel channel;
+    private final long size;
+
+    /* Current window and its file offset */
+    private MappedByteBuffer map;
+    private long mapOffset;
+
+    /* File offset of the next record */
+    private long position;
+
+    /* pcapng file */
+    private final boolean ng;
+
+    /* Byte order of the file or current section */
+    private ByteOrder order;
+
+    /* pcap link type and nanoseconds per timestamp fraction unit */
+    private int linkType;
+    private long fraction;
+
+    /* pcapng interfaces: link type and if_tsresol */
+    private final List<int[]> interfaces = new ArrayList<>();
+
+    /* Current datagram */
+    private long timestamp;
+    private int payload, length;
+    private int sourcePort, destinationPort;
+
+    /* Filters, empty or -1 to accept all */
+    private int[] ports = new int[0];
+    private long ssrc = -1;
+
+    /* Statistics */
+    private long records, datagrams;
+
+    /**
+     * Open a capture file.
+     *
+     * @param file pcap or pcapng file
+     * @throws IOException On I/O error or unknown format
+     */
+    public PcapReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        size = channel.size();
+        try {
+            if (!window(0, 24)) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            map.order(ByteOrder.BIG_ENDIAN);
+            int magic = map.getInt(0);
+            if (magic == SHB) {
+                ng = true;
+                position = 0;
+            } else {
+                ng = false;
+                order = magic == PCAP_MICRO || magic == PCAP_NANO
+                        ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                map.order(order);
+                magic = map.getInt(0);
+                if (magic != PCAP_MICRO && magic != PCAP_NANO) {
+                    throw new IOException("Not a capture file: " + file);
+                }
+                fraction = magic == PCAP_NANO ? 1 : 1000;
+                linkType = map.getInt(20) & 0x0FFFFFFF;
+                position = 24;
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Only return datagrams from or to the given UDP ports.
+     *
+     * @param ports UDP ports, none to accept all
+     */
+    public void setPorts(int... ports) {
+        this.ports = ports.clone();
+    }
+
+    /**
+     * Only return RTP and RTCP packets of a given source.
+     *
+     * @param ssrc SSRC, -1 to accept all
+     */
+    public void setSsrc(long ssrc) {
+        this.ssrc = ssrc;
+    }
+
+    /**
+     * Map the window holding a file range.
+     *
+     * @param offset File offset
+     * @param len    Range length
+     * @return <code>false</code> if the range is past the end of file
+     * @throws IOException On I/O error
+     */
+    private boolean window(long offset, long len) throws IOException {
+        if (offset + len > size) {
+            return false;
+        }
+        if (map == null || offset < mapOffset || offset + len > mapOffset + map.capacity()) {
+            long count = Math.min(Math.max(WINDOW, len), size - offset);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, offset, count);
+            map.order(order == null ? ByteOrder.BIG_ENDIAN : order);
+            mapOffset = offset;
+        }
+        return true;
+    }
+
+    /**
+     * Advance to the next UDP datagram accepted by the filters.
+     *
+     * @return <code>false</code> at end of file
+     * @throws IOException On I/O error
+     */
+    public boolean next() throws IOException {
+        while (ng ? nextBlock() : nextRecord()) {
+            if (datagram()) {
+                datagrams++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a pcap record.
+     *
+     * @return <code>false</code> at end of file
+     * @throws IOException On I/O error
+     */
+    private boolean nextRecord() throws IOException {
+        if (!window(position, 16)) {
+            return false;
+        }
+        int base = (int) (position - mapOffset);
+        long seconds = map.getInt(base) & 0xFFFFFFFFL;
+        long fractions = map.getInt(base + 4) & 0xFFFFFFFFL;
+        int captured = map.getInt(base + 8);
+        if (captured < 0 || !window(position, 16L + captured)) {
+            return false;
+        }
+        base = (int) (position - mapOffset);
+        timestamp = seconds * 1_000_000_000L + fractions * fraction;
+        payload = base + 16;
+        length = captured;
+        position += 16L + captured;
+        records++;
+        return frame(linkType);
+    }
+
+    /**
+     * Read pcapng blocks up to the next packet block.
+     *
+     * @return <code>false</code> at end of file
+     * @throws IOException On I/O error
+     */
+    private boolean nextBlock() throws IOException {
+        while (window(position, 12)) {
+            int base = (int) (position - mapOffset);
+            map.order(ByteOrder.BIG_ENDIAN);
+            // the section header type reads the same in both byte orders
+            if (map.getInt(base) == SHB) {
+                order = map.getInt(base + 8) == BYTE_ORDER_MAGIC
+                        ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                interfaces.clear();
+            }
+            map.order(order);
+            int type = map.getInt(base);
+            long total = map.getInt(base + 4) & 0xFFFFFFFFL;
+            if (total < 12 || !window(position, total)) {
+                return false;
+            }
+            base = (int) (position - mapOffset);
+            long block = position;
+            position += total;
+            switch (type) {
+                case IDB:
+                    interfaces.add(new int[]{map.getShort(base + 8) & 0xFFFF,
+                            resolution(base + 16, base + (int) total - 4)});
+                    break;
+                case EPB:
+                case PB:
+                    int id = type == EPB ? map.getInt(base + 8) : map.getShort(base + 8) & 0xFFFF;
+                    if (id < 0 || id >= interfaces.size()) {
+                        break;
+                    }
+                    int[] nif = interfaces.get(id);
+                    long ticks = ((map.getInt(base + 12) & 0xFFFFFFFFL) << 32)
+                            | (map.getInt(base + 16) & 0xFFFFFFFFL);
+                    timestamp = nanos(ticks, nif[1]);
+                    length = Math.min(map.getInt(base + 20), (int) total - 32);
+                    payload = base + 28;
+                    records++;
+                    if (length >= 0 && frame(nif[0])) {
+                        return true;
+                    }
+                    break;
+                case SPB:
+                    if (interfaces.isEmpty()) {
+                        break;
+                    }
+                    length = Math.min(map.getInt(base + 8), (int) total - 16);
+                    payload = base + 12;
+                    records++;
+                    if (length >= 0 && frame(interfaces.get(0)[0])) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (position <= block) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the if_tsresol option of an interface description block.
+     *
+     * @param pos Options start
+     * @param end Options end
+     * @return Timestamp resolution, 6 (microseconds) by default
+     */
+    private int resolution(int pos, int end) {
+        while (pos + 4 <= end) {
+            int code = map.getShort(pos) & 0xFFFF;
+            int len = map.getShort(pos + 2) & 0xFFFF;
+            if (code == 0) {
+                break;
+            }
+            if (code == 9 && len >= 1) {
+                return map.get(pos + 4) & 0xFF;
+            }
+            pos += 4 + ((len + 3) & ~3);
+        }
+        return 6;
+    }
+
+    /**
+     * Convert pcapng timestamp ticks to nanoseconds.
+     *
+     * @param ticks      Timestamp
+     * @param resolution if_tsresol value
+     * @return Nanoseconds since 1970
+     */
+    private static long nanos(long ticks, int resolution) {
+        int exponent = resolution & 0x7F;
+        if ((resolution & 0x80) != 0) {
+            long seconds = ticks >>> exponent;
+            long rest = ticks & ((1L << exponent) - 1);
+            return seconds * 1_000_000_000L + (long) (rest * 1e9 / (1L << exponent));
+        }
+        long nanos = ticks;
+        for (int i = exponent; i < 9; i++) {
+            nanos *= 10;
+        }
+        for (int i = 9; i < exponent; i++) {
+            nanos /= 10;
+        }
+        return nanos;
+    }
+
+    /**
+     * Find the IP packet of a link layer frame.
+     *
+     * @param link Link type
+     * @return <code>false</code> if not an IP packet
+     */
+    private boolean frame(int link) {
+        int off;
+        switch (link) {
+            case LINKTYPE_ETHERNET:
+                off = 12;
+                int type;
+                while (off + 2 <= length && ((type = u16(payload + off)) == 0x8100 || type == 0x88A8)) {
+                    off += 4;
+                }
+                off += 2;
+                break;
+            case LINKTYPE_NULL:
+                off = 4;
+                break;
+            case LINKTYPE_SLL:
+                off = 16;
+                break;
+            case LINKTYPE_SLL2:
+                off = 20;
+                break;
+            case LINKTYPE_RAW:
+            case LINKTYPE_RAW_OLD:
+            case LINKTYPE_IPV4:
+            case LINKTYPE_IPV6:
+                off = 0;
+                break;
+            default:
+                return false;
+        }
+        if (off >= length) {
+            return false;
+        }
+        payload += off;
+        length -= off;
+        return true;
+    }
+
+    /**
+     * Decode the IP and UDP headers of the current packet.
+     *
+     * @return <code>true</code> if a datagram accepted by the filters
+     */
+    private boolean datagram() {
+        int version = (map.get(payload) & 0xF0) >> 4;
+        int off;
+        if (version == 4) {
+            if (length < 20) {
+                return false;
+            }
+            off = (map.get(payload) & 0x0F) * 4;
+            if (map.get(payload + 9) != 17 || (u16(payload + 6) & 0x3FFF) != 0) {
+                // not UDP or fragmented
+                return false;
+            }
+            length = Math.min(length, u16(payload + 2));
+        } else if (version == 6) {
+            if (length < 40) {
+                return false;
+            }
+            int next = map.get(payload + 6) & 0xFF;
+            length = Math.min(length, 40 + u16(payload + 4));
+            off = 40;
+            while (next == 0 || next == 43 || next == 60) {
+                if (off + 8 > length) {
+                    return false;
+                }
+                next = map.get(payload + off) & 0xFF;
+                off += ((map.get(payload + off + 1) & 0xFF) + 1) * 8;
+            }
+            if (next != 17) {
+                // not UDP or fragmented
+                return false;
+            }
+        } else {
+            return false;
+        }
+        if (off + 8 > length) {
+            return false;
+        }
+        sourcePort = u16(payload + off);
+        destinationPort = u16(payload + off + 2);
+        int udp = u16(payload + off + 4);
+        payload += off + 8;
+        length = Math.min(length - off - 8, udp - 8);
+        return length >= 0 && accept();
+    }
+
+    /**
+     * Apply the filters.
+     *
+     * @return <code>true</code> if accepted
+     */
+    private boolean accept() {
+        if (ports.length > 0) {
+            boolean match = false;
+            for (int port : ports) {
+                match |= port == sourcePort || port == destinationPort;
+            }
+            if (!match) {
+                return false;
+            }
+        }
+        if (ssrc != -1) {
+            if (length < 12 || (map.get(payload) & 0xC0) != 0x80) {
+                return false;
+            }
+            int type = map.get(payload + 1) & 0xFF;
+            // RTCP packet types 192-223 carry the sender SSRC first
+            int at = type >= 192 && type <= 223 ? 4 : 8;
+            return u32(payload + at) == ssrc;
+        }
+        return true;
+    }
+
+    private int u16(int index) {
+        return ((map.get(index) & 0xFF) << 8) | (map.get(index + 1) & 0xFF);
+    }
+
+    private long u32(int index) {
+        return ((long) u16(index) << 16) | u16(index + 2);
+    }
+
+    /**
+     * Copy the current datagram payload.
+     *
+     * @param dst Destination, at least <code>getLength()</code> bytes
+     * @return Payload length
+     */
+    public int read(byte[] dst) {
+        map.position(payload);
+        map.get(dst, 0, length);
+        return length;
+    }
+
+    /**
+     * Get capture time of the current datagram.
+     *
+     * @return Nanoseconds since 1970
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    public int getDestinationPort() {
+        return destinationPort;
+    }
+
+    /**
+     * Get number of capture records read.
+     *
+     * @return Records count
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Get number of datagrams returned.
+     *
+     * @return Datagrams count
+     */
+    public long getDatagrams() {
+        return datagrams;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
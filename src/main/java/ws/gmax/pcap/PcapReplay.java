@@ -0,0 +1,228 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.pcap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.rtp.RtpPlayer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replay the RTP stream of a capture file into a player.
+ * <p>
+ * Datagrams on the RTP port are delivered to <code>onReceiveData</code> and
+ * datagrams on the next port to <code>onReceiveRtcp</code>, exactly as read
+ * from the sockets. In <code>FAST</code> mode the file is replayed as fast
+ * as the player consumes it, which makes it a deterministic throughput
+ * benchmark of the receive path. In <code>REALTIME</code> mode packets are
+ * paced by their capture timestamps, optionally scaled by a speed factor.
+ *
+ * @author Marius
+ */
+public class PcapReplay {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PcapReplay.class);
+
+    /**
+     * Replay pacing.
+     */
+    public enum Pacing {
+        FAST, REALTIME
+    }
+
+    /* Sleep only if ahead by more than this (ns) */
+    private static final long MIN_SLEEP = 200_000;
+
+    /* Max datagram size */
+    private static final int MAX_DATAGRAM = 65536;
+
+    /* Capture file */
+    private final Path file;
+
+    /* Target player */
+    private final RtpPlayer player;
+
+    /* Pacing mode and speed factor */
+    private Pacing pacing = Pacing.FAST;
+    private double speed = 1.0;
+
+    /* RTP port, -1 for any */
+    private int port = -1;
+
+    /* SSRC, -1 for any */
+    private long ssrc = -1;
+
+    /* Statistics of the last replay */
+    private volatile long packets, rtcpPackets, bytes, elapsed;
+
+    /* Stop flag */
+    private volatile boolean stopped;
+
+    /**
+     * Constructor.
+     *
+     * @param file   pcap or pcapng file
+     * @param player Target player
+     */
+    public PcapReplay(Path file, RtpPlayer player) {
+        this.file = file;
+        this.player = player;
+    }
+
+    public void setPacing(Pacing pacing) {
+        this.pacing = pacing;
+    }
+
+    /**
+     * Set real time speed factor.
+     *
+     * @param speed Speed factor, 2.0 replays twice as fast
+     */
+    public void setSpeed(double speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Invalid replay speed: " + speed);
+        }
+        this.speed = speed;
+    }
+
+    /**
+     * Replay only the flow of a RTP port, RTCP is taken from the next port.
+     * Without a port all UDP datagrams are delivered as RTP.
+     *
+     * @param port UDP port, -1 for any
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Replay only the packets of a given source.
+     *
+     * @param ssrc SSRC, -1 for any
+     */
+    public void setSsrc(long ssrc) {
+        this.ssrc = ssrc;
+    }
+
+    /**
+     * Stop a replay in progress.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Replay the file in the calling thread.
+     *
+     * @return Number of RTP packets delivered
+     * @throws IOException On I/O error
+     */
+    public long replay() throws IOException {
+        stopped = false;
+        packets = rtcpPackets = bytes = 0;
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        long start = System.nanoTime();
+        long first = -1;
+        try (PcapReader reader = new PcapReader(file)) {
+            if (port != -1) {
+                reader.setPorts(port, port + 1);
+            }
+            reader.setSsrc(ssrc);
+            while (!stopped && reader.next()) {
+                if (pacing == Pacing.REALTIME) {
+                    if (first == -1) {
+                        first = reader.getTimestamp();
+                    }
+                    long due = start + (long) ((reader.getTimestamp() - first) / speed);
+                    long ahead = due - System.nanoTime();
+                    if (ahead > MIN_SLEEP) {
+                        LockSupport.parkNanos(ahead);
+                    }
+                }
+                int len = reader.read(buffer);
+                bytes += len;
+                if (port != -1 && reader.getDestinationPort() != port
+                        && reader.getSourcePort() != port) {
+                    rtcpPackets++;
+                    player.onReceiveRtcp(buffer, len);
+                } else {
+                    packets++;
+                    player.onReceiveData(buffer, len);
+                }
+            }
+        } finally {
+            elapsed = System.nanoTime() - start;
+        }
+        LOGGER.info("Replayed {}: {} RTP, {} RTCP, {} bytes in {} ms ({} packets/s)", file,
+                packets, rtcpPackets, bytes, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                getPacketRate());
+        return packets;
+    }
+
+    /**
+     * Get number of RTP packets delivered.
+     *
+     * @return RTP packets
+     */
+    public long getPackets() {
+        return packets;
+    }
+
+    /**
+     * Get number of RTCP packets delivered.
+     *
+     * @return RTCP packets
+     */
+    public long getRtcpPackets() {
+        return rtcpPackets;
+    }
+
+    /**
+     * Get number of payload bytes delivered.
+     *
+     * @return Bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get duration of the last replay.
+     *
+     * @return Nanoseconds
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Get delivery rate of the last replay.
+     *
+     * @return Packets per second
+     */
+    public long getPacketRate() {
+        return elapsed == 0 ? 0 : (packets + rtcpPackets) * 1_000_000_000L / elapsed;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.record;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.rtp.AccessUnit;
+import ws.gmax.rtp.AccessUnitListener;
+import ws.gmax.rtp.RtpTimestampUnwrapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Records a live stream into a chunk store.
+ * <p>
+ * Access units are collected from keyframe to keyframe, every
+ * <code>batch</code> chunks are hashed and stored on the store's pool, in
+ * order, so the receiving thread only copies bytes.
+ *
+ * @author Marius
+ */
+public final class ChunkRecorder implements AccessUnitListener, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkRecorder.class);
+
+    /* Defaults */
+    public static final int DEFAULT_BATCH = 8;
+    private static final int INITIAL_SIZE = 256 * 1024;
+
+    /* Store and stream name */
+    private final ChunkStore store;
+    private final String stream;
+    private final int batch;
+
+    /* Chunk being collected */
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int size;
+    private long pts, wallclock;
+
+    /* Chunks waiting for the batch */
+    private List<ChunkStore.Chunk> pending = new ArrayList<>();
+
+    /* Last batch stored, batches are chained to keep the manifest order */
+    private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+
+    private final RtpTimestampUnwrapper unwrapper = new RtpTimestampUnwrapper();
+
+    public ChunkRecorder(ChunkStore store, String stream) {
+        this(store, stream, DEFAULT_BATCH);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param store  Chunk store
+     * @param stream Stream name
+     * @param batch  Chunks hashed at once
+     */
+    public ChunkRecorder(ChunkStore store, String stream, int batch) {
+        this.store = store;
+        this.stream = stream;
+        this.batch = batch;
+    }
+
+    @Override
+    public synchronized void onAccessUnit(AccessUnit unit) {
+        long timestamp = unwrapper.unwrap(unit.getTimestamp());
+        if (unit.isKeyframe()) {
+            cut();
+            pts = timestamp;
+            wallclock = System.currentTimeMillis();
+        } else if (size == 0) {
+            // wait for the first keyframe
+            return;
+        }
+        int length = unit.length();
+        if (size + length > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, size + length)];
+            System.arraycopy(buffer, 0, grown, 0, size);
+            buffer = grown;
+        }
+        unit.data().get(buffer, size, length);
+        size += length;
+    }
+
+    /**
+     * Close the chunk being collected.
+     */
+    private void cut() {
+        if (size > 0) {
+            byte[] data = new byte[size];
+            System.arraycopy(buffer, 0, data, 0, size);
+            pending.add(new ChunkStore.Chunk(ByteBuffer.wrap(data), pts, wallclock));
+            size = 0;
+            if (pending.size() >= batch) {
+                flush();
+            }
+        }
+    }
+
+    private void flush() {
+        final List<ChunkStore.Chunk> chunks = pending;
+        pending = new ArrayList<>(batch);
+        last = last.thenRunAsync(() -> {
+            try {
+                store.store(stream, chunks);
+            } catch (IOException ex) {
+                LOGGER.error("Error storing {}", stream, ex);
+            }
+        }, store.getPool());
+    }
+
+    /**
+     * Store the last chunk and wait for the pending batches.
+     */
+    @Override
+    public void close() {
+        CompletableFuture<Void> done;
+        synchronized (this) {
+            cut();
+            flush();
+            done = last;
+        }
+        done.join();
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.record;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content addressed chunk store.
+ * <p>
+ * Recordings are split in chunks at keyframes, each chunk is stored once
+ * under its SHA-256 hash in chunks/xx/hash and every stream keeps a text
+ * manifest manifests/stream listing its chunks in order, one line per
+ * chunk: hash, length, pts and wallclock. Chunks of static scenes and of
+ * streams recorded twice are stored only once.
+ * <p>
+ * Chunks are hashed in parallel on a fork join pool.
+ *
+ * @author Marius
+ */
+public final class ChunkStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkStore.class);
+
+    /* Chunks hashed by one task */
+    private static final int THRESHOLD = 2;
+
+    /* Hex digits */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Chunk to store, a keyframe and the frames depending on it.
+     */
+    public static final class Chunk {
+
+        final ByteBuffer data;
+        final long pts;
+        final long wallclock;
+        String hash;
+
+        /**
+         * Constructor.
+         *
+         * @param data      Chunk bytes between position and limit
+         * @param pts       Presentation time of the keyframe
+         * @param wallclock Wallclock time of the keyframe (ms)
+         */
+        public Chunk(ByteBuffer data, long pts, long wallclock) {
+            this.data = data;
+            this.pts = pts;
+            this.wallclock = wallclock;
+        }
+    }
+
+    /**
+     * Manifest line.
+     */
+    public static final class Entry {
+
+        private final String hash;
+        private final int length;
+        private final long pts;
+        private final long wallclock;
+
+        Entry(String hash, int length, long pts, long wallclock) {
+            this.hash = hash;
+            this.length = length;
+            this.pts = pts;
+            this.wallclock = wallclock;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public long getPts() {
+            return pts;
+        }
+
+        public long getWallclock() {
+            return wallclock;
+        }
+
+        @Override
+        public String toString() {
+            return hash + ' ' + length + ' ' + pts + ' ' + wallclock;
+        }
+    }
+
+    /**
+     * Hash a range of chunks, splitting it while larger than the threshold.
+     */
+    private static final class HashTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Chunk> chunks;
+        private final int from, to;
+
+        HashTask(List<Chunk> chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                MessageDigest digest = sha256();
+                for (int i = from; i < to; i++) {
+                    Chunk chunk = chunks.get(i);
+                    digest.update(chunk.data.duplicate());
+                    chunk.hash = hex(digest.digest());
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new HashTask(chunks, from, mid), new HashTask(chunks, mid, to));
+            }
+        }
+    }
+
+    /* Store directories */
+    private final Path chunks, manifests;
+
+    /* Hashing pool */
+    private final ForkJoinPool pool;
+
+    /* Statistics */
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong unique = new AtomicLong();
+    private final AtomicLong logicalBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong hashNanos = new AtomicLong();
+
+    /**
+     * Constructor hashing on the common pool.
+     *
+     * @param root Store directory
+     * @throws IOException on error
+     */
+    public ChunkStore(Path root) throws IOException {
+        this(root, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param root Store directory
+     * @param pool Hashing pool
+     * @throws IOException on error
+     */
+    public ChunkStore(Path root, ForkJoinPool pool) throws IOException {
+        this.chunks = Files.createDirectories(root.resolve("chunks"));
+        this.manifests = Files.createDirectories(root.resolve("manifests"));
+        this.pool = pool;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0x0F];
+            chars[2 * i + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    private Path chunkPath(String hash) {
+        return chunks.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Store chunks of a stream and append them to its manifest.
+     *
+     * @param stream Stream name
+     * @param batch  Chunks in stream order
+     * @throws IOException on error
+     */
+    public void store(String stream, List<Chunk> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        pool.invoke(new HashTask(batch, 0, batch.size()));
+        hashNanos.addAndGet(System.nanoTime() - start);
+
+        StringBuilder lines = new StringBuilder();
+        for (Chunk chunk : batch) {
+            int length = chunk.data.remaining();
+            if (put(chunk)) {
+                unique.incrementAndGet();
+                storedBytes.addAndGet(length);
+            }
+            stored.incrementAndGet();
+            logicalBytes.addAndGet(length);
+            lines.append(new Entry(chunk.hash, length, chunk.pts, chunk.wallclock)).append('\n');
+        }
+        ByteBuffer text = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.US_ASCII));
+        synchronized (this) {
+            try (FileChannel manifest = FileChannel.open(manifests.resolve(stream),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                while (text.hasRemaining()) {
+                    manifest.write(text);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a chunk unless already stored.
+     *
+     * @param chunk Hashed chunk
+     * @return <code>true</code> if the chunk was new
+     * @throws IOException on error
+     */
+    private boolean put(Chunk chunk) throws IOException {
+        Path path = chunkPath(chunk.hash);
+        if (Files.exists(path)) {
+            return false;
+        }
+        Path dir = Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(dir, chunk.hash, ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer data = chunk.data.duplicate();
+                while (data.hasRemaining()) {
+                    out.write(data);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (FileAlreadyExistsException ex) {
+            // stored concurrently
+            return false;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Split the records of a DVR ring at keyframes and store the chunks
+     * closed by a following keyframe. The group still being written is left
+     * for the next call, which resumes from the returned position, so calling
+     * it periodically appends every chunk to the manifest once.
+     *
+     * @param stream Stream name
+     * @param ring   DVR ring
+     * @param from   Position returned by the previous call, -1 to start at
+     *               the oldest keyframe
+     * @param batch  Chunks hashed at once
+     * @return Position to resume from, -1 if the ring holds no keyframe
+     * @throws IOException on error
+     */
+    public long store(String stream, DvrRing ring, long from, int batch) throws IOException {
+        DvrRing.Frame frame = new DvrRing.Frame();
+        List<Chunk> pending = new ArrayList<>(batch);
+        List<Long> positions = new ArrayList<>();
+        long position = from;
+        if (from < ring.getTail()) {
+            if (from >= 0) {
+                LOGGER.warn("Records of {} overwritten before stored", stream);
+            }
+            position = ring.seek(Long.MIN_VALUE);
+        }
+        while (position >= 0) {
+            if (!ring.readFrame(position, frame)) {
+                break;
+            }
+            if (frame.keyframe && !positions.isEmpty()) {
+                Chunk chunk = read(ring, positions);
+                positions.clear();
+                if (chunk == null) {
+                    LOGGER.warn("Records of {} overwritten while stored", stream);
+                    position = ring.seek(Long.MIN_VALUE);
+                    continue;
+                }
+                pending.add(chunk);
+                if (pending.size() == batch) {
+                    store(stream, pending);
+                    pending = new ArrayList<>(batch);
+                }
+            }
+            if (frame.keyframe || !positions.isEmpty()) {
+                positions.add(position);
+            }
+            position = frame.next();
+        }
+        store(stream, pending);
+        return positions.isEmpty() ? position : positions.get(0);
+    }
+
+    /**
+     * Copy the payload of DVR records into a chunk.
+     *
+     * @param ring      DVR ring
+     * @param positions Records of the chunk, the first one is a keyframe
+     * @return Chunk or <code>null</code> if the records were overwritten
+     */
+    private static Chunk read(DvrRing ring, List<Long> positions) {
+        DvrRing.Frame frame = new DvrRing.Frame();
+        long first = positions.get(0);
+        long last = positions.get(positions.size() - 1);
+        if (!ring.readFrame(last, frame)) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) (frame.next() - first));
+        long pts = 0, wallclock = 0;
+        for (long position : positions) {
+            if (!ring.readFrame(position, frame)) {
+                return null;
+            }
+            if (position == first) {
+                pts = frame.pts;
+                wallclock = frame.wallclock;
+            }
+            ByteBuffer payload = data.slice();
+            payload.limit(frame.length);
+            ring.read(position + DvrRing.RECORD_HEADER, payload);
+            data.position(data.position() + frame.length);
+        }
+        if (first < ring.getTail()) {
+            return null;
+        }
+        data.flip();
+        return new Chunk(data, pts, wallclock);
+    }
+
+    /**
+     * Read the manifest of a stream.
+     *
+     * @param stream Stream name
+     * @return Chunks in stream order, empty if the stream is unknown
+     * @throws IOException on error
+     */
+    public List<Entry> getManifest(String stream) throws IOException {
+        Path path = manifests.resolve(stream);
+        if (!Files.exists(path)) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.US_ASCII)) {
+            String[] parts = line.split(" ");
+            if (parts.length == 4) {
+                entries.add(new Entry(parts[0], Integer.parseInt(parts[1]),
+                        Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get the file of a stored chunk.
+     *
+     * @param entry Manifest entry
+     * @return Chunk file
+     */
+    public Path getChunk(Entry entry) {
+        return chunkPath(entry.hash);
+    }
+
+    /**
+     * Rebuild a stream recording.
+     *
+     * @param stream Stream name
+     * @param target Destination channel
+     * @return Bytes written
+     * @throws IOException on error
+     */
+    public long restore(String stream, WritableByteChannel target) throws IOException {
+        long bytes = 0;
+        for (Entry entry : getManifest(stream)) {
+            try (FileChannel in = FileChannel.open(chunkPath(entry.hash),
+                    StandardOpenOption.READ)) {
+                for (long pos = 0; pos < entry.length; ) {
+                    pos += in.transferTo(pos, entry.length - pos, target);
+                }
+            }
+            bytes += entry.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the hashing pool.
+     *
+     * @return Fork join pool
+     */
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Get number of chunks stored, duplicates included.
+     *
+     * @return Chunks count
+     */
+    public long getChunks() {
+        return stored.get();
+    }
+
+    /**
+     * Get number of chunks written to disk.
+     *
+     * @return Unique chunks count
+     */
+    public long getUniqueChunks() {
+        return unique.get();
+    }
+
+    public long getLogicalBytes() {
+        return logicalBytes.get();
+    }
+
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Get ratio of bytes recorded to bytes written to disk.
+     *
+     * @return Dedup ratio, 1 if nothing was stored
+     */
+    public double getDedupRatio() {
+        long bytes = storedBytes.get();
+        return bytes == 0 ? 1 : (double) logicalBytes.get() / bytes;
+    }
+
+    /**
+     * Get hashing throughput.
+     *
+     * @return Bytes hashed per second
+     */
+    public long getHashThroughput() {
+        long nanos = hashNanos.get();
+        return nanos == 0 ? 0 : (long) (logicalBytes.get() * 1e9 / nanos);
+    }
+
+    /**
+     * Log the dedup ratio and the hashing throughput.
+     */
+    public void report() {
+        LOGGER.info("{}", this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d chunks, %d unique, %d/%d bytes, dedup %.2f, hash %d MB/s",
+                stored.get(), unique.get(), storedBytes.get(), logicalBytes.get(),
+                getDedupRatio(), getHashThroughput() >> 20);
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.record;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.rtp.AccessUnit;
+import ws.gmax.rtp.AccessUnitListener;
+import ws.gmax.rtp.Codec;
+import ws.gmax.rtp.RtpTimestampUnwrapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fixed size circular recording of a camera.
+ * <p>
+ * The ring is a preallocated file: a header with the head and tail
+ * positions and a keyframe index, followed by the data area, memory mapped
+ * in segments. Access units are appended as records and wrap around, the
+ * oldest records are evicted by moving the tail, so retention costs nothing
+ * and disk usage never changes. Positions are logical byte offsets growing
+ * forever, the physical offset is the position modulo the capacity.
+ * <p>
+ * Record: length (4), flags (4, keyframe bit and codec), pts (8, 90 kHz
+ * unwrapped), wallclock (8, ms) and the Annex B access unit bytes.
+ * <p>
+ * One thread writes. Readers may read concurrently and must check the read
+ * position is still at or after the tail once done, older bytes may have
+ * been overwritten.
+ *
+ * @author Marius
+ */
+public final class DvrRing implements AccessUnitListener, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DvrRing.class);
+
+    /* Defaults */
+    public static final int DEFAULT_INDEX_CAPACITY = 16384;
+
+    /* Header layout */
+    private static final int MAGIC = 0x44565231; // DVR1
+    private static final int VERSION = 1;
+    private static final int CAPACITY = 8;
+    private static final int HEAD = 16;
+    private static final int TAIL = 24;
+    private static final int RECORDS = 32;
+    private static final int INDEX_CAPACITY = 40;
+    private static final int INDEX_NEXT = 44;
+    private static final int INDEX_COUNT = 48;
+    private static final int INDEX = 64;
+    private static final int INDEX_ENTRY = 24;
+
+    /* Record header size and keyframe flag */
+    public static final int RECORD_HEADER = 24;
+    private static final int KEYFRAME = 1;
+    private static final int CODEC_SHIFT = 8;
+
+    /* Max mapped segment */
+    private static final int SEGMENT = 1 << 30;
+
+    /* Alignment of the data area */
+    private static final int PAGE = 4096;
+
+    /**
+     * Record header.
+     */
+    public static final class Frame {
+
+        public long position;
+        public int length;
+        public boolean keyframe;
+        public Codec codec;
+        public long pts;
+        public long wallclock;
+
+        /**
+         * Get position of the next record.
+         *
+         * @return Logical position
+         */
+        public long next() {
+            return position + RECORD_HEADER + length;
+        }
+    }
+
+    /* File */
+    private final Path path;
+    private final FileChannel channel;
+
+    /* Header and data segments */
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+
+    /* Data area offset and size */
+    private final long dataStart;
+    private final long capacity;
+
+    /* Keyframe index size */
+    private final int indexCapacity;
+
+    /* Positions */
+    private volatile long head, tail;
+
+    /* Writer state */
+    private final RtpTimestampUnwrapper unwrapper = new RtpTimestampUnwrapper();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER);
+    private long records;
+    private int indexNext, indexCount;
+    private long rejected;
+
+    /**
+     * Open a ring with the default keyframe index size.
+     *
+     * @param path     Ring file
+     * @param capacity Data area size
+     * @throws IOException on error
+     */
+    public DvrRing(Path path, long capacity) throws IOException {
+        this(path, capacity, DEFAULT_INDEX_CAPACITY);
+    }
+
+    /**
+     * Open a ring. An existing ring of the same capacity is resumed, any
+     * other file is replaced by a new preallocated ring.
+     *
+     * @param path          Ring file
+     * @param capacity      Data area size
+     * @param indexCapacity Max keyframes indexed
+     * @throws IOException on error
+     */
+    public DvrRing(Path path, long capacity, int indexCapacity) throws IOException {
+        if (capacity < PAGE || indexCapacity < 1) {
+            throw new IllegalArgumentException("Invalid DVR capacity " + capacity);
+        }
+        this.path = path;
+        this.capacity = capacity;
+        this.indexCapacity = indexCapacity;
+        this.dataStart = (INDEX + (long) INDEX_ENTRY * indexCapacity + PAGE - 1) / PAGE * PAGE;
+        boolean exists = Files.exists(path);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            boolean resume = exists && channel.size() == dataStart + capacity && valid();
+            if (!resume) {
+                preallocate();
+            }
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataStart);
+            segments = new MappedByteBuffer[(int) ((capacity + SEGMENT - 1) / SEGMENT)];
+            for (int i = 0; i < segments.length; i++) {
+                long offset = (long) i * SEGMENT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, dataStart + offset,
+                        Math.min(SEGMENT, capacity - offset));
+            }
+            if (resume) {
+                head = header.getLong(HEAD);
+                tail = header.getLong(TAIL);
+                records = header.getLong(RECORDS);
+                indexNext = header.getInt(INDEX_NEXT);
+                indexCount = header.getInt(INDEX_COUNT);
+                LOGGER.info("Resumed DVR ring {}: {} records", path, records);
+            } else {
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putLong(CAPACITY, capacity);
+                header.putInt(INDEX_CAPACITY, indexCapacity);
+                writeHeader();
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Check the header of an existing ring file.
+     *
+     * @return <code>true</code> if the ring can be resumed
+     * @throws IOException on error
+     */
+    private boolean valid() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(INDEX);
+        channel.read(buf, 0);
+        return buf.getInt(0) == MAGIC && buf.getInt(4) == VERSION
+                && buf.getLong(CAPACITY) == capacity && buf.getInt(INDEX_CAPACITY) == indexCapacity;
+    }
+
+    /**
+     * Write the whole file once so its blocks are allocated up front.
+     *
+     * @throws IOException on error
+     */
+    private void preallocate() throws IOException {
+        channel.truncate(0);
+        ByteBuffer zeros = ByteBuffer.allocateDirect(1 << 20);
+        long size = dataStart + capacity;
+        for (long pos = 0; pos < size; ) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), size - pos));
+            pos += channel.write(zeros, pos);
+        }
+    }
+
+    /**
+     * Append an access unit.
+     *
+     * @param unit Access unit
+     */
+    @Override
+    public void onAccessUnit(AccessUnit unit) {
+        write(unit.data(), unit.getCodec(), unit.isKeyframe(),
+                unwrapper.unwrap(unit.getTimestamp()), System.currentTimeMillis());
+    }
+
+    /**
+     * Append a record, evicting the oldest records to make room.
+     *
+     * @param data      Record bytes between position and limit
+     * @param codec     Codec, <code>null</code> if unknown
+     * @param keyframe  Record starts a random access point
+     * @param pts       Presentation time
+     * @param wallclock Wallclock time (ms)
+     * @return <code>false</code> if the record is larger than the ring
+     */
+    public synchronized boolean write(ByteBuffer data, Codec codec, boolean keyframe, long pts,
+                                      long wallclock) {
+        int length = data.remaining();
+        long size = RECORD_HEADER + (long) length;
+        if (size > capacity) {
+            rejected++;
+            return false;
+        }
+        long newTail = tail;
+        while (head + size - newTail > capacity) {
+            newTail += RECORD_HEADER + readInt(newTail);
+            records--;
+        }
+        if (newTail != tail) {
+            // publish the eviction before overwriting
+            tail = newTail;
+            header.putLong(TAIL, newTail);
+            header.putLong(RECORDS, records);
+            evictIndex();
+        }
+        record.clear();
+        int flags = keyframe ? KEYFRAME : 0;
+        if (codec != null) {
+            flags |= (codec.ordinal() + 1) << CODEC_SHIFT;
+        }
+        record.putInt(length).putInt(flags).putLong(pts).putLong(wallclock);
+        record.flip();
+        long position = head;
+        put(position, record);
+        put(position + RECORD_HEADER, data);
+        if (keyframe) {
+            int entry = INDEX + INDEX_ENTRY * indexNext;
+            header.putLong(entry, position);
+            header.putLong(entry + 8, pts);
+            header.putLong(entry + 16, wallclock);
+            indexNext = (indexNext + 1) % indexCapacity;
+            indexCount = Math.min(indexCount + 1, indexCapacity);
+        }
+        records++;
+        head = position + size;
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * Drop index entries of evicted records.
+     */
+    private void evictIndex() {
+        while (indexCount > 0 && indexPosition(0) < tail) {
+            indexCount--;
+        }
+    }
+
+    /**
+     * Get the position of a keyframe index entry.
+     *
+     * @param index Entry, 0 for the oldest
+     * @return Logical position
+     */
+    private long indexPosition(int index) {
+        return header.getLong(indexEntry(index));
+    }
+
+    private int indexEntry(int index) {
+        int slot = (indexNext - indexCount + index + indexCapacity) % indexCapacity;
+        return INDEX + INDEX_ENTRY * slot;
+    }
+
+    private void writeHeader() {
+        header.putLong(TAIL, tail);
+        header.putLong(RECORDS, records);
+        header.putInt(INDEX_NEXT, indexNext);
+        header.putInt(INDEX_COUNT, indexCount);
+        header.putLong(HEAD, head);
+    }
+
+    /**
+     * Copy bytes into the data area, wrapping around.
+     *
+     * @param position Logical position
+     * @param src      Bytes between position and limit, consumed
+     */
+    private void put(long position, ByteBuffer src) {
+        while (src.hasRemaining()) {
+            long physical = position % capacity;
+            MappedByteBuffer segment = segments[(int) (physical / SEGMENT)];
+            int offset = (int) (physical % SEGMENT);
+            int count = Math.min(src.remaining(), segment.capacity() - offset);
+            ByteBuffer view = segment.duplicate();
+            view.position(offset);
+            int limit = src.limit();
+            src.limit(src.position() + count);
+            view.put(src);
+            src.limit(limit);
+            position += count;
+        }
+    }
+
+    /**
+     * Copy bytes from the data area, wrapping around.
+     *
+     * @param position Logical position
+     * @param dst      Destination, filled up to its limit
+     */
+    public void read(long position, ByteBuffer dst) {
+        while (dst.hasRemaining()) {
+            long physical = position % capacity;
+            MappedByteBuffer segment = segments[(int) (physical / SEGMENT)];
+            int offset = (int) (physical % SEGMENT);
+            int count = Math.min(dst.remaining(), segment.capacity() - offset);
+            ByteBuffer view = segment.duplicate();
+            view.position(offset);
+            view.limit(offset + count);
+            dst.put(view);
+            position += count;
+        }
+    }
+
+    private int readInt(long position) {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        read(position, buf);
+        return buf.getInt(0);
+    }
+
+    /**
+     * Read a record header.
+     *
+     * @param position Logical position of the record
+     * @param frame    Decoded header
+     * @return <code>false</code> if the position is outside the ring
+     */
+    public boolean readFrame(long position, Frame frame) {
+        if (position < tail || position + RECORD_HEADER > head) {
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER);
+        read(position, buf);
+        frame.position = position;
+        frame.length = buf.getInt(0);
+        int flags = buf.getInt(4);
+        int codec = (flags >> CODEC_SHIFT) & 0xFF;
+        frame.keyframe = (flags & KEYFRAME) != 0;
+        frame.codec = codec > 0 && codec <= Codec.values().length
+                ? Codec.values()[codec - 1] : null;
+        frame.pts = buf.getLong(8);
+        frame.wallclock = buf.getLong(16);
+        return position >= tail;
+    }
+
+    /**
+     * Transfer bytes of the data area to a channel without copying them to
+     * the heap.
+     *
+     * @param position Logical position
+     * @param count    Bytes count
+     * @param target   Destination channel
+     * @return Bytes transferred
+     * @throws IOException on error
+     */
+    public long transferTo(long position, long count, WritableByteChannel target)
+            throws IOException {
+        long done = 0;
+        while (done < count) {
+            long physical = (position + done) % capacity;
+            long chunk = Math.min(count - done, capacity - physical);
+            long sent = channel.transferTo(dataStart + physical, chunk, target);
+            if (sent <= 0) {
+                break;
+            }
+            done += sent;
+        }
+        return done;
+    }
+
+    /**
+     * Find the keyframe to start playing a given time from.
+     *
+     * @param wallclock Wallclock time (ms)
+     * @return Position of the last keyframe at or before the time, of the
+     * oldest keyframe if the time is older, -1 if no keyframe is kept
+     */
+    public synchronized long seek(long wallclock) {
+        int low = 0;
+        int high = indexCount - 1;
+        long found = indexCount > 0 ? indexPosition(0) : -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = indexEntry(mid);
+            if (header.getLong(entry + 16) <= wallclock) {
+                found = header.getLong(entry);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Flush the mapped file to disk.
+     */
+    public synchronized void sync() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        header.force();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the position after the newest record.
+     *
+     * @return Logical position
+     */
+    public long getHead() {
+        return head;
+    }
+
+    /**
+     * Get the position of the oldest record.
+     *
+     * @return Logical position
+     */
+    public long getTail() {
+        return tail;
+    }
+
+    /**
+     * Get number of records kept.
+     *
+     * @return Records count
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Get number of keyframes indexed.
+     *
+     * @return Keyframes count
+     */
+    public synchronized int getKeyframes() {
+        return indexCount;
+    }
+
+    /**
+     * Get number of records larger than the ring.
+     *
+     * @return Rejected records
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        channel.close();
+    }
+}
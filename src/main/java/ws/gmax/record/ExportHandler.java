@@ -0,0 +1,172 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.record;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.http.HttpConnection;
+import ws.gmax.http.HttpHandler;
+import ws.gmax.http.HttpRequest;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Export recorded time ranges over HTTP.
+ * <p>
+ * GET /export/camera?from=ms&amp;to=ms answers the chunks of the camera
+ * stream covering the wallclock range, starting at a keyframe, as one
+ * Annex B byte stream. Single byte ranges are honored. Chunk files are
+ * sent with <code>transferTo</code> so the export does not go through the
+ * heap.
+ *
+ * @author Marius
+ */
+public final class ExportHandler implements HttpHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExportHandler.class);
+
+    /* Path prefix */
+    public static final String PREFIX = "/export/";
+
+    /* Chunk store */
+    private final ChunkStore store;
+
+    public ExportHandler(ChunkStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Select the chunks overlapping a wallclock range.
+     *
+     * @param camera Stream name
+     * @param from   Range start (ms)
+     * @param to     Range end (ms)
+     * @return Chunks in stream order
+     * @throws IOException on error reading the manifest
+     */
+    public List<ChunkStore.Entry> resolve(String camera, long from, long to) throws IOException {
+        List<ChunkStore.Entry> manifest = store.getManifest(camera);
+        List<ChunkStore.Entry> clip = new ArrayList<>();
+        for (int i = 0; i < manifest.size(); i++) {
+            ChunkStore.Entry entry = manifest.get(i);
+            long end = i + 1 < manifest.size() ? manifest.get(i + 1).getWallclock() : Long.MAX_VALUE;
+            if (entry.getWallclock() < to && end > from) {
+                clip.add(entry);
+            }
+        }
+        return clip;
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpConnection connection) throws IOException {
+        String camera = request.getPath().substring(PREFIX.length());
+        if (camera.isEmpty() || camera.startsWith(".") || camera.indexOf('/') != -1
+                || camera.indexOf('\\') != -1) {
+            connection.sendError(400);
+            return;
+        }
+        long from = request.getParameter("from", 0);
+        long to = request.getParameter("to", Long.MAX_VALUE);
+        List<ChunkStore.Entry> clip = resolve(camera, from, to);
+        if (clip.isEmpty()) {
+            connection.sendError(404);
+            return;
+        }
+        long total = 0;
+        for (ChunkStore.Entry entry : clip) {
+            total += entry.getLength();
+        }
+
+        long start = 0;
+        long end = total - 1;
+        int status = 200;
+        String headers = "Accept-Ranges: bytes\r\n"
+                + "Content-Disposition: attachment; filename=\"" + camera + '-' + from + ".bin\"\r\n";
+        String range = request.getHeader("Range");
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') == -1) {
+            long[] bounds = parseRange(range.substring(6).trim(), total);
+            if (bounds == null) {
+                connection.sendHead(416, null, 0, "Content-Range: bytes */" + total + "\r\n");
+                return;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            status = 206;
+            headers += "Content-Range: bytes " + start + '-' + end + '/' + total + "\r\n";
+        }
+        connection.sendHead(status, "application/octet-stream", end - start + 1, headers);
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+
+        long offset = 0;
+        for (ChunkStore.Entry entry : clip) {
+            long chunkEnd = offset + entry.getLength();
+            if (chunkEnd > start && offset <= end) {
+                long position = Math.max(start - offset, 0);
+                long count = Math.min(end + 1, chunkEnd) - offset - position;
+                try (FileChannel file = FileChannel.open(store.getChunk(entry),
+                        StandardOpenOption.READ)) {
+                    connection.transfer(file, position, count);
+                }
+            }
+            offset = chunkEnd;
+        }
+        LOGGER.debug("Exported {} bytes of {}", end - start + 1, camera);
+    }
+
+    /**
+     * Parse a single byte range.
+     *
+     * @param spec  first-last, first- or -suffix
+     * @param total Content size
+     * @return First and last byte or <code>null</code> if not satisfiable
+     */
+    private static long[] parseRange(String spec, long total) {
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start, end;
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(total - suffix, 0);
+                end = total - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? total - 1 : Math.min(Long.parseLong(last), total - 1);
+            }
+            return start < total && start <= end ? new long[]{start, end} : null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.record;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.buffer.Chunk;
+import ws.gmax.buffer.SlabAllocator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recording writer committing the writes of many streams from one I/O
+ * thread.
+ * <p>
+ * Streams copy their data into off-heap chunks and queue them, the receive
+ * threads never wait for the disk. The I/O thread drains every queued chunk,
+ * groups them by file and writes each group with a single gathering write,
+ * so a busy recorder issues a few large writes instead of one small write
+ * per access unit. Files are synced every <code>fsyncInterval</code>. When
+ * more than <code>maxPending</code> bytes are queued, writers wait for the
+ * disk instead of losing data.
+ *
+ * @author Marius
+ */
+public final class GroupCommitWriter implements Closeable, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    /* Defaults */
+    public static final long DEFAULT_FSYNC_INTERVAL = 1000;
+    public static final int DEFAULT_MAX_PENDING = 64 << 20;
+
+    /* Max buffers per gathering write (IOV_MAX) */
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * Queued write or close request.
+     */
+    static final class Entry {
+
+        final RecordingStream stream;
+        final Chunk chunk;
+        final int length;
+        final long queued;
+
+        Entry(RecordingStream stream, Chunk chunk, int length) {
+            this.stream = stream;
+            this.chunk = chunk;
+            this.length = length;
+            this.queued = System.nanoTime();
+        }
+    }
+
+    /* Chunk allocator */
+    private final SlabAllocator allocator;
+
+    /* Sync interval (ms), 0 to sync after every batch */
+    private final long fsyncInterval;
+
+    /* Queued bytes limit */
+    private final int maxPending;
+    private final Semaphore pending;
+
+    /* Queued entries */
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+
+    /* Streams written since the last sync */
+    private final Set<RecordingStream> dirty = new LinkedHashSet<>();
+
+    /* I/O thread */
+    private Thread thread;
+    private volatile boolean closed;
+
+    /* Statistics */
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public GroupCommitWriter() {
+        this(DEFAULT_FSYNC_INTERVAL, DEFAULT_MAX_PENDING, SlabAllocator.shared());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fsyncInterval Sync interval (ms), 0 to sync after every batch
+     * @param maxPending    Max queued bytes before writers wait
+     * @param allocator     Chunk allocator
+     */
+    public GroupCommitWriter(long fsyncInterval, int maxPending, SlabAllocator allocator) {
+        if (fsyncInterval < 0 || maxPending <= 0) {
+            throw new IllegalArgumentException("Invalid sync interval or pending limit");
+        }
+        this.fsyncInterval = fsyncInterval;
+        this.maxPending = maxPending;
+        this.pending = new Semaphore(maxPending);
+        this.allocator = allocator;
+    }
+
+    /**
+     * Open a recording file, truncating an existing file.
+     *
+     * @param path File path
+     * @return Recording stream
+     * @throws IOException on error
+     */
+    public RecordingStream open(Path path) throws IOException {
+        if (closed) {
+            throw new IOException("Writer closed");
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        synchronized (this) {
+            if (thread == null) {
+                thread = new Thread(this, "group-commit");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        return new RecordingStream(this, path, channel);
+    }
+
+    /**
+     * Copy and queue bytes of a stream.
+     *
+     * @param stream Recording stream
+     * @param data   Bytes between position and limit, consumed
+     * @throws IOException if the writer is closed or interrupted
+     */
+    void enqueue(RecordingStream stream, ByteBuffer data) throws IOException {
+        if (closed) {
+            throw new IOException("Writer closed");
+        }
+        int length = data.remaining();
+        int permits = Math.min(length, maxPending);
+        try {
+            pending.acquire(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the disk", ex);
+        }
+        Chunk chunk = allocator.allocate(length);
+        ByteBuffer buffer = chunk.buffer();
+        buffer.clear();
+        buffer.put(data);
+        synchronized (this) {
+            // checked with close() so the I/O thread drains every queued entry
+            if (!closed) {
+                queue.add(new Entry(stream, chunk, length));
+                return;
+            }
+        }
+        chunk.release();
+        pending.release(permits);
+        throw new IOException("Writer closed");
+    }
+
+    /**
+     * Queue the close of a stream after its pending writes.
+     *
+     * @param stream Recording stream
+     */
+    synchronized void enqueueClose(RecordingStream stream) {
+        if (closed) {
+            // the I/O thread is gone, close the file here
+            try {
+                stream.channel.close();
+            } catch (IOException ex) {
+                stream.fail(ex);
+            }
+            stream.closed();
+        } else {
+            queue.add(new Entry(stream, null, 0));
+        }
+    }
+
+    /**
+     * Write queued entries in batches until closed.
+     */
+    @Override
+    public void run() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        Map<RecordingStream, List<Entry>> groups = new LinkedHashMap<>();
+        long synced = System.nanoTime();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(Math.max(1, fsyncInterval), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    batches.incrementAndGet();
+                    for (Entry entry : batch) {
+                        groups.computeIfAbsent(entry.stream, key -> new ArrayList<>()).add(entry);
+                    }
+                    for (Map.Entry<RecordingStream, List<Entry>> group : groups.entrySet()) {
+                        try {
+                            commit(group.getKey(), group.getValue());
+                        } catch (RuntimeException ex) {
+                            abort(group.getKey(), ex);
+                        }
+                    }
+                    batch.clear();
+                    groups.clear();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            long now = System.nanoTime();
+            if (now - synced >= TimeUnit.MILLISECONDS.toNanos(fsyncInterval)) {
+                sync();
+                synced = now;
+            }
+        }
+        sync();
+    }
+
+    /**
+     * Write the entries of a stream with gathering writes, then process a
+     * queued close.
+     *
+     * @param stream  Recording stream
+     * @param entries Entries in queue order
+     */
+    private void commit(RecordingStream stream, List<Entry> entries) {
+        try {
+            write(stream, entries);
+        } finally {
+            for (Entry entry : entries) {
+                if (entry.chunk != null) {
+                    entry.chunk.release();
+                    pending.release(Math.min(entry.length, maxPending));
+                }
+            }
+        }
+        for (Entry entry : entries) {
+            if (entry.chunk == null) {
+                dirty.remove(stream);
+                try {
+                    stream.channel.force(false);
+                    syncs.incrementAndGet();
+                    stream.channel.close();
+                } catch (IOException ex) {
+                    stream.fail(ex);
+                }
+                stream.closed();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write the entries of a stream with a gathering write.
+     *
+     * @param stream  Recording stream
+     * @param entries Entries in queue order
+     */
+    private void write(RecordingStream stream, List<Entry> entries) {
+        List<ByteBuffer> buffers = new ArrayList<>(entries.size());
+        long size = 0;
+        for (Entry entry : entries) {
+            if (entry.chunk != null) {
+                buffers.add(entry.chunk.slice(0, entry.length));
+                size += entry.length;
+            }
+        }
+        if (!buffers.isEmpty() && stream.getFailure() == null) {
+            ByteBuffer[] srcs = buffers.toArray(new ByteBuffer[0]);
+            try {
+                int calls = 0;
+                long written = 0;
+                while (written < size) {
+                    written += stream.channel.write(srcs);
+                    calls++;
+                }
+                writes.addAndGet(calls);
+                bytes.addAndGet(size);
+                long now = System.nanoTime();
+                for (Entry entry : entries) {
+                    if (entry.chunk != null) {
+                        stream.written(entry.length, now - entry.queued);
+                    }
+                }
+                stream.committed(calls);
+                dirty.add(stream);
+            } catch (IOException ex) {
+                LOGGER.error("Recording {} failed", stream.getPath(), ex);
+                stream.fail(ex);
+            }
+        }
+    }
+
+    /**
+     * Fail a stream after an unexpected error, closing its file and
+     * releasing a waiting close. The I/O thread goes on with the other
+     * streams.
+     *
+     * @param stream Recording stream
+     * @param ex     Error
+     */
+    private void abort(RecordingStream stream, RuntimeException ex) {
+        LOGGER.error("Recording {} failed", stream.getPath(), ex);
+        stream.fail(new IOException("Recording " + stream.getPath() + " failed", ex));
+        dirty.remove(stream);
+        try {
+            stream.channel.close();
+        } catch (IOException e) {
+            // already failed
+        }
+        stream.closed();
+    }
+
+    /**
+     * Sync the files written since the last sync.
+     */
+    private void sync() {
+        for (RecordingStream stream : dirty) {
+            try {
+                stream.channel.force(false);
+                syncs.incrementAndGet();
+            } catch (IOException ex) {
+                LOGGER.error("Recording {} sync failed", stream.getPath(), ex);
+                stream.fail(ex);
+            }
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Get number of write system calls.
+     *
+     * @return Writes count
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Get number of bytes written.
+     *
+     * @return Bytes count
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Get average bytes per write system call, the batching efficiency.
+     *
+     * @return Bytes per write
+     */
+    public long getBytesPerWrite() {
+        long count = writes.get();
+        return count == 0 ? 0 : bytes.get() / count;
+    }
+
+    /**
+     * Get number of file syncs.
+     *
+     * @return Syncs count
+     */
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    /**
+     * Get number of drained batches.
+     *
+     * @return Batches count
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Get number of bytes queued and not yet written.
+     *
+     * @return Pending bytes
+     */
+    public int getPending() {
+        return maxPending - pending.availablePermits();
+    }
+
+    /**
+     * Write the queued data, sync and stop the I/O thread. Streams still open
+     * are not closed.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = this.thread;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
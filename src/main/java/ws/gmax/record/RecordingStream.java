@@ -0,0 +1,210 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.record;
+
+import ws.gmax.mp4.Fmp4Sink;
+import ws.gmax.ts.TsSink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Recording file written by a <code>GroupCommitWriter</code>. Usable as the
+ * sink of a TS or fragmented MP4 muxer.
+ *
+ * @author Marius
+ */
+public final class RecordingStream implements TsSink, Fmp4Sink {
+
+    /* Owner */
+    private final GroupCommitWriter writer;
+
+    /* File */
+    private final Path path;
+    final FileChannel channel;
+
+    /* Set when the I/O thread closed the file */
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile boolean closing;
+
+    /* First I/O error */
+    private volatile IOException failure;
+
+    /* Statistics, written by the I/O thread */
+    private volatile long bytes, slices, writes, latency, maxLatency;
+
+    RecordingStream(GroupCommitWriter writer, Path path, FileChannel channel) {
+        this.writer = writer;
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * Queue bytes for writing. The buffer is copied and may be reused after
+     * the call returns.
+     *
+     * @param data Bytes between position and limit
+     * @throws IOException on a previous write error or if closed
+     */
+    public void write(ByteBuffer data) throws IOException {
+        IOException failure = this.failure;
+        if (failure != null) {
+            throw new IOException("Recording " + path + " failed", failure);
+        }
+        if (closing) {
+            throw new IOException("Recording " + path + " closed");
+        }
+        if (data.hasRemaining()) {
+            writer.enqueue(this, data);
+        }
+    }
+
+    /**
+     * Queue bytes for writing.
+     *
+     * @param data Bytes
+     * @throws IOException on a previous write error or if closed
+     */
+    public void write(byte[] data) throws IOException {
+        write(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void writeInit(ByteBuffer segment) throws IOException {
+        write(segment);
+    }
+
+    @Override
+    public void writeFragment(ByteBuffer fragment, long decodeTime, long duration,
+                              boolean independent) throws IOException {
+        write(fragment);
+    }
+
+    /**
+     * Write the queued bytes, sync and close the file. Waits for the I/O
+     * thread.
+     *
+     * @throws IOException on a write error
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closing) {
+            closing = true;
+            writer.enqueueClose(this);
+        }
+        try {
+            closed.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted closing " + path, ex);
+        }
+        if (failure != null) {
+            throw new IOException("Recording " + path + " failed", failure);
+        }
+    }
+
+    void written(int length, long nanos) {
+        bytes += length;
+        slices++;
+        latency += nanos;
+        if (nanos > maxLatency) {
+            maxLatency = nanos;
+        }
+    }
+
+    void committed(int calls) {
+        writes += calls;
+    }
+
+    void fail(IOException ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+    }
+
+    void closed() {
+        closed.countDown();
+    }
+
+    IOException getFailure() {
+        return failure;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Get number of bytes written.
+     *
+     * @return Bytes count
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get number of write system calls issued for this stream.
+     *
+     * @return Writes count
+     */
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * Get average bytes per write system call.
+     *
+     * @return Bytes per write
+     */
+    public long getBytesPerWrite() {
+        long count = writes;
+        return count == 0 ? 0 : bytes / count;
+    }
+
+    /**
+     * Get average time from queueing to written.
+     *
+     * @return Latency (ns)
+     */
+    public long getLatency() {
+        long count = slices;
+        return count == 0 ? 0 : latency / count;
+    }
+
+    /**
+     * Get max time from queueing to written.
+     *
+     * @return Latency (ns)
+     */
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d bytes, %d bytes/write, latency %d/%d us", path, bytes,
+                getBytesPerWrite(), getLatency() / 1000, maxLatency / 1000);
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import ws.gmax.sdp.MediaDescription;
+import ws.gmax.trace.DropEvent;
+
+import java.util.Arrays;
+
+/**
+ * AAC depacketizer for mpeg4-generic payloads (RFC 3640, AAC-hbr/AAC-lbr).
+ * <p>
+ * The AU-header section is decoded in place and every access unit is
+ * delivered as a view over the receive buffer, no bytes are copied except
+ * for access units fragmented over several packets.
+ * <p>
+ * Interleaving is not supported: a fmtp with max-displacement is rejected
+ * and packets carrying non consecutive AU indexes are dropped, since their
+ * access units would be delivered out of presentation order.
+ *
+ * @author Marius
+ */
+public class AacDepacketizer {
+
+    //    The RTP payload has the following format:
+    //
+    //    +---------+-----------+-----------+---------------+
+    //    | RTP     | AU Header | Auxiliary | Access Unit   |
+    //    | Header  | Section   | Section   | Data Section  |
+    //    +---------+-----------+-----------+---------------+
+    //
+    //    AU Header Section:
+    //    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+- .. -+-+-+-+-+-+-+-+-+-+
+    //    |AU-headers-length|AU-header|AU-header|      |AU-header|padding|
+    //    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+- .. -+-+-+-+-+-+-+-+-+-+
+
+    /* Sampling frequencies by index */
+    private static final int[] FREQUENCIES = {
+            96000, 88200, 64000, 48000, 44100, 32000,
+            24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    /* AU-header fields sizes in bits */
+    private final int sizeLength;
+    private final int indexLength;
+    private final int indexDeltaLength;
+    private final int ctsDeltaLength;
+    private final int dtsDeltaLength;
+    private final int randomAccessIndication;
+    private final int streamStateIndication;
+    private final int auxiliaryDataSizeLength;
+
+    /* Access unit duration in RTP clock ticks */
+    private final int duration;
+
+    /* Audio object type, sampling frequency index and channels from config */
+    private final int objectType;
+    private final int frequencyIndex;
+    private final int channels;
+
+    /* Reusable frame view */
+    private final AacFrame frame;
+
+    /* Frames receiver */
+    private AacFrameListener listener;
+
+    /* Stream name used by flight recorder events */
+    private String stream = "AAC";
+
+    /* Reassembly buffer for fragmented access units */
+    private byte[] fragment = new byte[0];
+    private int fragmentLength;
+    private int fragmentSize;
+    private long fragmentTimestamp = -1;
+
+    /* Statistics */
+    private long frames, dropped;
+
+    /**
+     * Constructor.
+     *
+     * @param sizeLength       AU-size field bits
+     * @param indexLength      AU-Index field bits
+     * @param indexDeltaLength AU-Index-delta field bits
+     * @param config           AudioSpecificConfig bytes
+     */
+    public AacDepacketizer(int sizeLength, int indexLength, int indexDeltaLength,
+                           byte[] config) {
+        this(sizeLength, indexLength, indexDeltaLength, 0, 0, 0, 0, 0, 0, 0, config);
+    }
+
+    private AacDepacketizer(int sizeLength, int indexLength, int indexDeltaLength,
+                            int ctsDeltaLength, int dtsDeltaLength,
+                            int randomAccessIndication, int streamStateIndication,
+                            int auxiliaryDataSizeLength, int constantDuration,
+                            int maxDisplacement, byte[] config) {
+        if (maxDisplacement > 0) {
+            throw new RuntimeException("Interleaved AAC not supported.");
+        }
+        if (sizeLength <= 0) {
+            throw new RuntimeException("Missing AAC sizeLength.");
+        }
+        if (config == null || config.length < 2) {
+            throw new RuntimeException("Missing AAC config.");
+        }
+        this.sizeLength = sizeLength;
+        this.indexLength = indexLength;
+        this.indexDeltaLength = indexDeltaLength;
+        this.ctsDeltaLength = ctsDeltaLength;
+        this.dtsDeltaLength = dtsDeltaLength;
+        this.randomAccessIndication = randomAccessIndication;
+        this.streamStateIndication = streamStateIndication;
+        this.auxiliaryDataSizeLength = auxiliaryDataSizeLength;
+        // AudioSpecificConfig: objectType(5) frequencyIndex(4) [frequency(24)] channels(4)
+        this.objectType = readBits(config, 0, 5);
+        int index = readBits(config, 5, 4);
+        int channelsPos = 9;
+        if (index == 0x0F) {
+            index = nearestIndex(readBits(config, 9, 24));
+            channelsPos += 24;
+        }
+        this.frequencyIndex = index;
+        this.channels = config.length * 8 >= channelsPos + 4
+                ? readBits(config, channelsPos, 4) : 0;
+        this.duration = constantDuration > 0 ? constantDuration : 1024;
+        this.frame = new AacFrame(objectType, frequencyIndex, channels);
+    }
+
+    /**
+     * Build a depacketizer configured from the SDP fmtp parameters
+     * (sizeLength, indexLength, indexDeltaLength, config, ...).
+     *
+     * @param media Media description
+     * @return Depacketizer
+     */
+    public static AacDepacketizer fromSdp(MediaDescription media) {
+        String config = media.getFmtpParameter("config");
+        return new AacDepacketizer(
+                media.getFmtpParameter("sizeLength", 0),
+                media.getFmtpParameter("indexLength", 0),
+                media.getFmtpParameter("indexDeltaLength", 0),
+                media.getFmtpParameter("CTSDeltaLength", 0),
+                media.getFmtpParameter("DTSDeltaLength", 0),
+                media.getFmtpParameter("randomAccessIndication", 0),
+                media.getFmtpParameter("streamStateIndication", 0),
+                media.getFmtpParameter("auxiliaryDataSizeLength", 0),
+                media.getFmtpParameter("constantDuration", 0),
+                media.getFmtpParameter("max-displacement", 0),
+                config == null ? null : hex(config));
+    }
+
+    /**
+     * Decode a hex string.
+     *
+     * @param text Hex digits
+     * @return Bytes
+     */
+    static byte[] hex(String text) {
+        text = text.trim();
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(text.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Find the sampling frequency index closest to an explicit frequency.
+     */
+    private static int nearestIndex(int frequency) {
+        int best = 0;
+        for (int i = 1; i < FREQUENCIES.length; i++) {
+            if (Math.abs(FREQUENCIES[i] - frequency) < Math.abs(FREQUENCIES[best] - frequency)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Read a big endian bit field.
+     *
+     * @param buf Bytes
+     * @param pos Bit position from the start of buf
+     * @param n   Number of bits (up to 32)
+     * @return Field value
+     */
+    private static int readBits(byte[] buf, int pos, int n) {
+        int value = 0;
+        for (int i = 0; i < n; i++, pos++) {
+            value = (value << 1) | ((buf[pos >>> 3] >>> (7 - (pos & 7))) & 1);
+        }
+        return value;
+    }
+
+    public void setListener(AacFrameListener listener) {
+        this.listener = listener;
+    }
+
+    public void setStream(String stream) {
+        this.stream = stream;
+    }
+
+    public int getSampleRate() {
+        return frequencyIndex < FREQUENCIES.length ? FREQUENCIES[frequencyIndex] : 0;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getObjectType() {
+        return objectType;
+    }
+
+    /**
+     * Get access unit duration.
+     *
+     * @return Duration in RTP clock ticks
+     */
+    public int getDuration() {
+        return duration;
+    }
+
+    /**
+     * Process a RTP packet decoded with <code>RtpDecoder.parse</code>.
+     *
+     * @param packet Decoded packet
+     */
+    public void depacketize(RtpDecoder packet) {
+        depacketize(packet.getPacket(), packet.getPayloadOffset(),
+                packet.getPayloadLength(), packet.getTimestamp(), packet.isMarker());
+    }
+
+    /**
+     * Count a dropped frame.
+     */
+    private void drop() {
+        dropped++;
+        DropEvent.emit(stream, DropEvent.INCOMPLETE, 1);
+    }
+
+    /**
+     * Process a RTP payload.
+     *
+     * @param buf       Packet bytes
+     * @param off       Payload offset
+     * @param len       Payload length
+     * @param timestamp RTP timestamp
+     * @param marker    RTP marker bit
+     */
+    public void depacketize(byte[] buf, int off, int len, long timestamp, boolean marker) {
+        if (len < 2) {
+            drop();
+            return;
+        }
+        int end = off + len;
+        int headersBits = ((buf[off] & 0xFF) << 8) | (buf[off + 1] & 0xFF);
+        int headersPos = (off + 2) * 8;
+        int data = off + 2 + (headersBits + 7) / 8;
+        if (auxiliaryDataSizeLength > 0 && data < end) {
+            int auxBits = readBits(buf, data * 8, auxiliaryDataSizeLength);
+            data += (auxiliaryDataSizeLength + auxBits + 7) / 8;
+        }
+        if (data > end) {
+            drop();
+            return;
+        }
+
+        int headersEnd = headersPos + headersBits;
+        if (isInterleaved(buf, headersPos, headersEnd)) {
+            drop();
+            return;
+        }
+        int pos = headersPos;
+        int index = 0;
+        while (pos + sizeLength <= headersEnd) {
+            int size = readBits(buf, pos, sizeLength);
+            pos += sizeLength + (index == 0 ? indexLength : indexDeltaLength);
+            pos = skipOptional(buf, pos);
+            long ts = (timestamp + (long) index * duration) & 0xFFFFFFFFL;
+
+            int available = end - data;
+            if (size > available || fragmentTimestamp == timestamp) {
+                // fragmented access unit, a single AU-header per packet
+                fragment(buf, data, available, size, timestamp, marker);
+                return;
+            }
+            if (fragmentTimestamp != -1) {
+                // the last fragment of the previous access unit was lost
+                drop();
+                fragmentTimestamp = -1;
+            }
+            emit(buf, data, size, ts);
+            data += size;
+            index++;
+        }
+    }
+
+    /**
+     * Check the AU-Index of the first AU-header and the AU-Index-delta of the
+     * others, all 0 unless the access units are interleaved.
+     */
+    private boolean isInterleaved(byte[] buf, int pos, int headersEnd) {
+        boolean start = true;
+        while (pos + sizeLength <= headersEnd) {
+            pos += sizeLength;
+            int length = start ? indexLength : indexDeltaLength;
+            if (pos + length > headersEnd) {
+                return false;
+            }
+            if (readBits(buf, pos, length) != 0) {
+                return true;
+            }
+            pos = skipOptional(buf, pos + length);
+            start = false;
+        }
+        return false;
+    }
+
+    /**
+     * Skip CTS, DTS, random access and stream state fields.
+     */
+    private int skipOptional(byte[] buf, int pos) {
+        if (ctsDeltaLength > 0) {
+            boolean flag = readBits(buf, pos, 1) != 0;
+            pos += 1 + (flag ? ctsDeltaLength : 0);
+        }
+        if (dtsDeltaLength > 0) {
+            boolean flag = readBits(buf, pos, 1) != 0;
+            pos += 1 + (flag ? dtsDeltaLength : 0);
+        }
+        pos += randomAccessIndication > 0 ? 1 : 0;
+        pos += streamStateIndication;
+        return pos;
+    }
+
+    /**
+     * Collect the fragments of an access unit larger than a packet.
+     */
+    private void fragment(byte[] buf, int data, int available, int size,
+                          long timestamp, boolean marker) {
+        if (fragmentTimestamp != timestamp) {
+            if (fragmentTimestamp != -1) {
+                drop();
+            }
+            fragmentTimestamp = timestamp;
+            fragmentLength = 0;
+            fragmentSize = size;
+            if (fragment.length < size) {
+                fragment = Arrays.copyOf(fragment, size);
+            }
+        }
+        int count = Math.min(available, fragmentSize - fragmentLength);
+        System.arraycopy(buf, data, fragment, fragmentLength, count);
+        fragmentLength += count;
+        if (marker) {
+            if (fragmentLength == fragmentSize) {
+                emit(fragment, 0, fragmentLength, timestamp);
+            } else {
+                drop();
+            }
+            fragmentTimestamp = -1;
+        }
+    }
+
+    /**
+     * Deliver an access unit.
+     */
+    private void emit(byte[] buf, int off, int len, long timestamp) {
+        frames++;
+        if (listener != null) {
+            frame.set(buf, off, len, timestamp);
+            listener.onAacFrame(frame);
+        }
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A raw AAC access unit. The frame is a view over the receive buffer and is
+ * valid only during the <code>AacFrameListener</code> callback.
+ *
+ * @author Marius
+ */
+public final class AacFrame {
+
+    /* ADTS header size without CRC */
+    public static final int ADTS_HEADER_SIZE = 7;
+
+    /* Reusable ADTS header */
+    private final byte[] adts = new byte[ADTS_HEADER_SIZE];
+
+    /* Audio object type (2 = AAC LC) */
+    private final int objectType;
+
+    /* Sampling frequency index */
+    private final int frequencyIndex;
+
+    /* Channel configuration */
+    private final int channels;
+
+    /* Frame bytes */
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    /* RTP timestamp of this access unit */
+    private long timestamp;
+
+    AacFrame(int objectType, int frequencyIndex, int channels) {
+        this.objectType = objectType;
+        this.frequencyIndex = frequencyIndex;
+        this.channels = channels;
+    }
+
+    /**
+     * Build an empty frame with the same audio configuration.
+     *
+     * @return New frame
+     */
+    AacFrame copyConfig() {
+        return new AacFrame(objectType, frequencyIndex, channels);
+    }
+
+    void set(byte[] buffer, int offset, int length, long timestamp) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.timestamp = timestamp;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Get RTP timestamp.
+     *
+     * @return Unsigned 32 bits timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get a view of the raw access unit bytes.
+     *
+     * @return Bytes view
+     */
+    public ByteBuffer data() {
+        return ByteBuffer.wrap(buffer, offset, length);
+    }
+
+    /**
+     * Build the ADTS header of this frame. The returned array is reused for
+     * every frame.
+     *
+     * @return ADTS header bytes
+     */
+    public byte[] adtsHeader() {
+        int size = length + ADTS_HEADER_SIZE;
+        int profile = (objectType - 1) & 0x03;
+        adts[0] = (byte) 0xFF;
+        adts[1] = (byte) 0xF1;
+        adts[2] = (byte) ((profile << 6) | ((frequencyIndex & 0x0F) << 2) | ((channels >> 2) & 0x01));
+        adts[3] = (byte) (((channels & 0x03) << 6) | ((size >> 11) & 0x03));
+        adts[4] = (byte) ((size >> 3) & 0xFF);
+        adts[5] = (byte) (((size & 0x07) << 5) | 0x1F);
+        adts[6] = (byte) 0xFC;
+        return adts;
+    }
+}
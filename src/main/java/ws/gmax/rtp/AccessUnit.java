@@ -0,0 +1,365 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import ws.gmax.buffer.Chunk;
+import ws.gmax.buffer.MemoryAccount;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A complete coded picture (access unit) in Annex B byte stream format.
+ * <p>
+ * Access units are pooled and reference counted. A listener receiving an
+ * access unit may keep it after the callback returns by calling
+ * <code>retain()</code> and must then call <code>release()</code> when done.
+ * <p>
+ * The bytes are held off-heap in a chunk of the pool slab allocator, charged
+ * to the stream account, while the access unit is in use.
+ *
+ * @author Marius
+ */
+public class AccessUnit {
+
+    /* Annex B start code */
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    /* Initial number of indexed NAL units */
+    private static final int NAL_INDEX_SIZE = 16;
+
+    /* Owner pool */
+    private final AccessUnitPool pool;
+
+    /* Reference count */
+    private final AtomicInteger refs = new AtomicInteger();
+
+    /* Initial capacity in bytes */
+    private final int capacity;
+
+    /* Off-heap storage, null while idle in the pool */
+    private Chunk chunk;
+
+    /* Stream account charged with the storage */
+    private MemoryAccount account;
+
+    /* Access unit bytes, position is the write cursor */
+    private ByteBuffer data;
+
+    /* NAL unit offsets (after start code) */
+    private int[] nalOffsets = new int[NAL_INDEX_SIZE];
+
+    /* NAL unit lengths (without start code) */
+    private int[] nalLengths = new int[NAL_INDEX_SIZE];
+
+    /* Number of NAL units */
+    private int nalCount;
+
+    /* Codec */
+    private Codec codec;
+
+    /* RTP timestamp */
+    private long timestamp;
+
+    /* Random access point */
+    private boolean keyframe;
+
+    /**
+     * Constructor.
+     *
+     * @param pool     Owner pool
+     * @param capacity Initial capacity in bytes
+     */
+    AccessUnit(AccessUnitPool pool, int capacity) {
+        this.pool = pool;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Prepare a recycled access unit for reuse.
+     *
+     * @param codec     Codec
+     * @param timestamp RTP timestamp
+     * @param account   Stream account, may be null
+     */
+    void reset(Codec codec, long timestamp, MemoryAccount account) {
+        this.codec = codec;
+        this.timestamp = timestamp;
+        this.account = account;
+        this.keyframe = false;
+        this.nalCount = 0;
+        chunk = pool.allocator().allocate(capacity, account);
+        data = chunk.buffer();
+        refs.set(1);
+    }
+
+    /**
+     * Replace the storage by a larger chunk holding the bytes written so far.
+     *
+     * @param size  Min capacity
+     * @param shift Offset the current bytes are moved to
+     */
+    private void grow(int size, int shift) {
+        Chunk grown = pool.allocator().allocate(size, account);
+        ByteBuffer bytes = grown.buffer();
+        data.flip();
+        bytes.position(shift);
+        bytes.put(data);
+        chunk.release();
+        chunk = grown;
+        data = bytes;
+    }
+
+    /**
+     * Make sure there is room for more bytes.
+     *
+     * @param len Bytes to be written
+     */
+    private void ensure(int len) {
+        if (data.remaining() < len) {
+            grow(Math.max(data.capacity() * 2, data.position() + len), 0);
+        }
+    }
+
+    /**
+     * Start a new NAL unit by writing a start code.
+     */
+    void startNal() {
+        ensure(START_CODE.length);
+        data.put(START_CODE);
+        if (nalCount == nalOffsets.length) {
+            nalOffsets = Arrays.copyOf(nalOffsets, nalCount * 2);
+            nalLengths = Arrays.copyOf(nalLengths, nalCount * 2);
+        }
+        nalOffsets[nalCount] = data.position();
+    }
+
+    /**
+     * Append bytes to the current NAL unit.
+     *
+     * @param src Source bytes
+     * @param off Source offset
+     * @param len Bytes count
+     */
+    void append(byte[] src, int off, int len) {
+        ensure(len);
+        data.put(src, off, len);
+    }
+
+    /**
+     * Append a byte to the current NAL unit.
+     *
+     * @param b Byte value
+     */
+    void append(int b) {
+        ensure(1);
+        data.put((byte) b);
+    }
+
+    /**
+     * Complete the current NAL unit.
+     */
+    void endNal() {
+        nalLengths[nalCount] = data.position() - nalOffsets[nalCount];
+        nalCount++;
+    }
+
+    /**
+     * Append a complete NAL unit.
+     *
+     * @param src Source bytes
+     * @param off Source offset
+     * @param len Bytes count
+     */
+    void appendNal(byte[] src, int off, int len) {
+        startNal();
+        append(src, off, len);
+        endNal();
+    }
+
+    /**
+     * Insert NAL units (parameter sets) in front of the access unit.
+     *
+     * @param nals NAL units
+     */
+    void prependNals(List<byte[]> nals) {
+        if (nals.isEmpty()) {
+            return;
+        }
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += START_CODE.length + nal.length;
+        }
+        int length = data.position();
+        grow(length + size, size);
+        int count = nalCount + nals.size();
+        if (count > nalOffsets.length) {
+            nalOffsets = Arrays.copyOf(nalOffsets, count * 2);
+            nalLengths = Arrays.copyOf(nalLengths, count * 2);
+        }
+        System.arraycopy(nalOffsets, 0, nalOffsets, nals.size(), nalCount);
+        System.arraycopy(nalLengths, 0, nalLengths, nals.size(), nalCount);
+        for (int i = nals.size(); i < count; i++) {
+            nalOffsets[i] += size;
+        }
+        data.position(0);
+        for (int i = 0; i < nals.size(); i++) {
+            byte[] nal = nals.get(i);
+            data.put(START_CODE);
+            nalOffsets[i] = data.position();
+            nalLengths[i] = nal.length;
+            data.put(nal);
+        }
+        nalCount = count;
+        data.position(length + size);
+    }
+
+    /**
+     * Check that the access unit has NAL units and no NAL unit is left
+     * open by a missing end fragment.
+     *
+     * @return <code>true</code> if complete
+     */
+    boolean isComplete() {
+        return nalCount > 0
+                && nalOffsets[nalCount - 1] + nalLengths[nalCount - 1] == data.position();
+    }
+
+    void setKeyframe(boolean keyframe) {
+        this.keyframe = keyframe;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Get RTP timestamp.
+     *
+     * @return Unsigned 32 bits timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Check if the access unit is a random access point (IDR/IRAP).
+     *
+     * @return <code>true</code> if keyframe
+     */
+    public boolean isKeyframe() {
+        return keyframe;
+    }
+
+    /**
+     * Get size in bytes.
+     *
+     * @return Access unit size
+     */
+    public int length() {
+        return data.position();
+    }
+
+    public int getNalCount() {
+        return nalCount;
+    }
+
+    /**
+     * Get offset of a NAL unit header in the access unit.
+     *
+     * @param index NAL index
+     * @return Offset in bytes
+     */
+    public int getNalOffset(int index) {
+        return nalOffsets[index];
+    }
+
+    /**
+     * Get size of a NAL unit without start code.
+     *
+     * @param index NAL index
+     * @return Size in bytes
+     */
+    public int getNalLength(int index) {
+        return nalLengths[index];
+    }
+
+    /**
+     * Get a byte of the access unit.
+     *
+     * @param index Byte offset
+     * @return Byte value
+     */
+    public byte get(int index) {
+        return data.get(index);
+    }
+
+    /**
+     * Get a read only view of the access unit bytes. Position is 0 and limit
+     * is the access unit size.
+     *
+     * @return Bytes view
+     */
+    public ByteBuffer data() {
+        ByteBuffer view = data.asReadOnlyBuffer();
+        view.flip();
+        return view;
+    }
+
+    /**
+     * Get a view of a NAL unit without start code.
+     *
+     * @param index NAL index
+     * @return Bytes view
+     */
+    public ByteBuffer nal(int index) {
+        ByteBuffer view = data.asReadOnlyBuffer();
+        view.limit(nalOffsets[index] + nalLengths[index]);
+        view.position(nalOffsets[index]);
+        return view;
+    }
+
+    /**
+     * Keep the access unit after the listener callback returns.
+     *
+     * @return This object
+     */
+    public AccessUnit retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Release a reference, the access unit returns to its pool when no
+     * references are left.
+     */
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            chunk.release();
+            chunk = null;
+            data = null;
+            account = null;
+            pool.recycle(this);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+/**
+ * Receives complete access units from a depacketizer.
+ *
+ * @author Marius
+ */
+public interface AccessUnitListener {
+
+    /**
+     * Called for every complete access unit. The access unit is released
+     * when the call returns unless the listener retains it.
+     *
+     * @param unit Access unit
+     */
+    void onAccessUnit(AccessUnit unit);
+}
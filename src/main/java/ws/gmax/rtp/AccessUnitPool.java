@@ -0,0 +1,123 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import ws.gmax.buffer.MemoryAccount;
+import ws.gmax.buffer.SlabAllocator;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of reusable access units. A pool may be shared by many streams.
+ * <p>
+ * Access unit bytes are allocated off-heap from a slab allocator while the
+ * unit is in use, idle units hold no storage. Units start small and double
+ * through the allocator size classes, so a small frame holds a small chunk.
+ *
+ * @author Marius
+ */
+public class AccessUnitPool {
+
+    /* Default initial access unit capacity, the smallest useful size class */
+    private static final int DEFAULT_CAPACITY = 4 * 1024;
+
+    /* Default max number of idle access units */
+    private static final int DEFAULT_POOL_SIZE = 64;
+
+    /* Idle access units */
+    private final BlockingQueue<AccessUnit> idle;
+
+    /* Initial capacity of new access units */
+    private final int capacity;
+
+    /* Storage allocator */
+    private final SlabAllocator allocator;
+
+    /**
+     * Build a pool with default settings using the shared slab allocator.
+     */
+    public AccessUnitPool() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor using the shared slab allocator.
+     *
+     * @param poolSize Max number of idle access units kept
+     * @param capacity Initial capacity of new access units
+     */
+    public AccessUnitPool(int poolSize, int capacity) {
+        this(poolSize, capacity, SlabAllocator.shared());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param poolSize  Max number of idle access units kept
+     * @param capacity  Initial capacity of new access units
+     * @param allocator Storage allocator
+     */
+    public AccessUnitPool(int poolSize, int capacity, SlabAllocator allocator) {
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+        this.capacity = capacity;
+        this.allocator = allocator;
+    }
+
+    /**
+     * Get an access unit from the pool or create a new one.
+     *
+     * @param codec     Codec
+     * @param timestamp RTP timestamp
+     * @param account   Stream account charged with the storage, may be null
+     * @return Access unit with one reference
+     */
+    AccessUnit acquire(Codec codec, long timestamp, MemoryAccount account) {
+        AccessUnit unit = idle.poll();
+        if (unit == null) {
+            unit = new AccessUnit(this, capacity);
+        }
+        unit.reset(codec, timestamp, account);
+        return unit;
+    }
+
+    /**
+     * Return an access unit to the pool. Dropped if the pool is full.
+     *
+     * @param unit Access unit
+     */
+    void recycle(AccessUnit unit) {
+        idle.offer(unit);
+    }
+
+    SlabAllocator allocator() {
+        return allocator;
+    }
+
+    /**
+     * Get number of idle access units.
+     *
+     * @return Idle count
+     */
+    public int idle() {
+        return idle.size();
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import ws.gmax.buffer.Chunk;
+import ws.gmax.buffer.SlabAllocator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Audio/video synchronization stage.
+ * <p>
+ * Access units and audio frames arriving from independent player threads are
+ * mapped to wallclock time by the RTP clock of their stream and released to a
+ * <code>SyncListener</code> in presentation order. A unit is held only until
+ * the other stream has delivered something later, or for at most the max
+ * delay when the other stream lags, so the buffer is no larger than the skew
+ * between the streams. A stream silent for longer than the max delay does not
+ * hold the other one back.
+ * <p>
+ * Until both clocks are mapped by a sender report the streams have no common
+ * time line, units are released as they arrive, timed by a local mapping of
+ * each stream anchored to its first arrival. Once both are synchronized the
+ * time line is rebased once on the sender report mapping, continuing from the
+ * last released time, and units are interleaved from then on.
+ * <p>
+ * Audio frames are copied off-heap while they wait.
+ *
+ * @author Marius
+ */
+public class AvSync implements AccessUnitListener, AacFrameListener {
+
+    /* Default max delay in milliseconds */
+    public static final long DEFAULT_MAX_DELAY = 500;
+
+    /**
+     * Access unit or audio frame waiting for release.
+     */
+    private static final class Pending {
+
+        AccessUnit unit;
+        Chunk chunk;
+        int length;
+        long timestamp;
+        long wallclock;
+        long arrival;
+    }
+
+    /**
+     * Mapping of a stream to local time used before sender reports.
+     */
+    private static final class Anchor {
+
+        long extended = -1;
+        long wallclock;
+
+        long map(RtpClock clock, long timestamp) {
+            long ext = clock.unwrap(timestamp);
+            if (extended == -1) {
+                extended = ext;
+                wallclock = System.currentTimeMillis() * 1000L;
+            }
+            return wallclock + (ext - extended) * 1_000_000L / clock.getClockRate();
+        }
+    }
+
+    /* Stream clocks */
+    private final RtpClock videoClock, audioClock;
+
+    /* Receiver */
+    private final SyncListener listener;
+
+    /* Max delay in nanoseconds */
+    private final long maxDelay;
+
+    /* Audio frames storage */
+    private final SlabAllocator allocator;
+
+    /* Waiting units */
+    private final ArrayDeque<Pending> video = new ArrayDeque<>();
+    private final ArrayDeque<Pending> audio = new ArrayDeque<>();
+
+    /* Last arrival per stream, 0 if never seen */
+    private long videoSeen, audioSeen;
+
+    /* Released audio frame, configured from the first received frame */
+    private AacFrame frame;
+
+    /* Reusable audio bytes */
+    private byte[] scratch = new byte[2048];
+
+    /* Local mappings used until both clocks are synchronized */
+    private final Anchor videoAnchor = new Anchor(), audioAnchor = new Anchor();
+
+    /* Both clocks mapped by sender reports */
+    private boolean synced;
+
+    /* Time line to rebase on the sender report mapping at the next release */
+    private boolean rebase;
+
+    /* Wallclock of the time line origin, -1 before the first release */
+    private long origin = -1;
+
+    /* Latest released time since origin in microseconds */
+    private long last;
+
+    /* Playout delay in microseconds, smoothed and max */
+    private long delay, maxPlayoutDelay;
+
+    /* Statistics */
+    private long released;
+
+    /**
+     * Constructor using the default max delay.
+     *
+     * @param videoClock Video RTP clock
+     * @param audioClock Audio RTP clock
+     * @param listener   Receiver
+     */
+    public AvSync(RtpClock videoClock, RtpClock audioClock, SyncListener listener) {
+        this(videoClock, audioClock, listener, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param videoClock Video RTP clock
+     * @param audioClock Audio RTP clock
+     * @param listener   Receiver
+     * @param maxDelay   Max time a unit waits for the other stream, milliseconds
+     */
+    public AvSync(RtpClock videoClock, RtpClock audioClock, SyncListener listener,
+                  long maxDelay) {
+        this.videoClock = videoClock;
+        this.audioClock = audioClock;
+        this.listener = listener;
+        this.maxDelay = maxDelay * 1_000_000L;
+        this.allocator = SlabAllocator.shared();
+    }
+
+    /**
+     * Queue a video access unit.
+     *
+     * @param unit Access unit
+     */
+    @Override
+    public synchronized void onAccessUnit(AccessUnit unit) {
+        Pending p = new Pending();
+        p.unit = unit.retain();
+        p.timestamp = unit.getTimestamp();
+        p.wallclock = synced ? videoClock.toWallclock(p.timestamp)
+                : videoAnchor.map(videoClock, p.timestamp);
+        p.arrival = System.nanoTime();
+        videoSeen = p.arrival;
+        video.add(p);
+        drain(p.arrival);
+    }
+
+    /**
+     * Queue an audio frame.
+     *
+     * @param frame AAC frame
+     */
+    @Override
+    public synchronized void onAacFrame(AacFrame frame) {
+        if (this.frame == null) {
+            this.frame = frame.copyConfig();
+        }
+        Pending p = new Pending();
+        p.length = frame.getLength();
+        p.chunk = allocator.allocate(p.length);
+        p.chunk.buffer().put(frame.getBuffer(), frame.getOffset(), p.length);
+        p.timestamp = frame.getTimestamp();
+        p.wallclock = synced ? audioClock.toWallclock(p.timestamp)
+                : audioAnchor.map(audioClock, p.timestamp);
+        p.arrival = System.nanoTime();
+        audioSeen = p.arrival;
+        audio.add(p);
+        drain(p.arrival);
+    }
+
+    /**
+     * Release the units which cannot be overtaken by the other stream.
+     *
+     * @param now Current time
+     */
+    private void drain(long now) {
+        if (!synced) {
+            if (!videoClock.isSynchronized() || !audioClock.isSynchronized()) {
+                while (!video.isEmpty()) {
+                    release(video, now);
+                }
+                while (!audio.isEmpty()) {
+                    release(audio, now);
+                }
+                return;
+            }
+            synced = true;
+            rebase = origin != -1;
+            for (Pending p : video) {
+                p.wallclock = videoClock.toWallclock(p.timestamp);
+            }
+            for (Pending p : audio) {
+                p.wallclock = audioClock.toWallclock(p.timestamp);
+            }
+        }
+        while (true) {
+            Pending v = video.peek();
+            Pending a = audio.peek();
+            if (v != null && a != null) {
+                release(v.wallclock <= a.wallclock ? video : audio, now);
+            } else if (v != null && (now - v.arrival >= maxDelay || now - audioSeen >= maxDelay)) {
+                release(video, now);
+            } else if (a != null && (now - a.arrival >= maxDelay || now - videoSeen >= maxDelay)) {
+                release(audio, now);
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Release the head of a queue.
+     *
+     * @param queue Queue
+     * @param now   Current time
+     */
+    private void release(ArrayDeque<Pending> queue, long now) {
+        Pending p = queue.poll();
+        if (origin == -1) {
+            origin = p.wallclock;
+        } else if (rebase) {
+            origin = p.wallclock - last;
+            rebase = false;
+        }
+        long offset = Math.max(0, p.wallclock - origin);
+        last = Math.max(last, offset);
+        long pts = offset * 9 / 100;
+        long playout = (now - p.arrival) / 1000;
+        delay += (playout - delay) / 16;
+        maxPlayoutDelay = Math.max(maxPlayoutDelay, playout);
+        released++;
+        try {
+            if (p.unit != null) {
+                listener.onAccessUnit(p.unit, pts);
+            } else {
+                if (scratch.length < p.length) {
+                    scratch = new byte[p.length];
+                }
+                ByteBuffer bytes = p.chunk.buffer();
+                bytes.flip();
+                bytes.get(scratch, 0, p.length);
+                frame.set(scratch, 0, p.length, p.timestamp);
+                listener.onAacFrame(frame, pts);
+            }
+        } finally {
+            if (p.unit != null) {
+                p.unit.release();
+            } else {
+                p.chunk.release();
+            }
+        }
+    }
+
+    /**
+     * Release all waiting units.
+     */
+    public synchronized void flush() {
+        long now = System.nanoTime();
+        while (!video.isEmpty() || !audio.isEmpty()) {
+            Pending v = video.peek();
+            Pending a = audio.peek();
+            release(a == null || (v != null && v.wallclock <= a.wallclock) ? video : audio, now);
+        }
+    }
+
+    /**
+     * Get the smoothed time units wait in the stage.
+     *
+     * @return Playout delay in microseconds
+     */
+    public synchronized long getPlayoutDelay() {
+        return delay;
+    }
+
+    /**
+     * Get the longest time a unit waited in the stage.
+     *
+     * @return Max playout delay in microseconds
+     */
+    public synchronized long getMaxPlayoutDelay() {
+        return maxPlayoutDelay;
+    }
+
+    /**
+     * Get number of units waiting.
+     *
+     * @return Waiting units
+     */
+    public synchronized int getPending() {
+        return video.size() + audio.size();
+    }
+
+    public synchronized long getReleased() {
+        return released;
+    }
+}
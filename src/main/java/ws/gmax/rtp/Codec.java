@@ -0,0 +1,66 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+/**
+ * Media codecs handled by the depacketizers.
+ *
+ * @author Marius
+ */
+public enum Codec {
+
+    /* H.264/AVC video (RFC 6184) */
+    H264("H264"),
+
+    /* H.265/HEVC video (RFC 7798) */
+    H265("H265"),
+
+    /* AAC audio (RFC 3640) */
+    AAC("mpeg4-generic");
+
+    /* SDP encoding name */
+    private final String encoding;
+
+    Codec(String encoding) {
+        this.encoding = encoding;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Find codec by SDP encoding name.
+     *
+     * @param encoding Encoding name from rtpmap
+     * @return Codec or <code>null</code> if not supported
+     */
+    public static Codec of(String encoding) {
+        if (encoding != null) {
+            for (Codec codec : values()) {
+                if (codec.encoding.equalsIgnoreCase(encoding)) {
+                    return codec;
+                }
+            }
+        }
+        return null;
+    }
+}
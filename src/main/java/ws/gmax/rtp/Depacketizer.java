@@ -0,0 +1,338 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import ws.gmax.buffer.MemoryAccount;
+import ws.gmax.sdp.MediaDescription;
+import ws.gmax.trace.DecodeEvent;
+import ws.gmax.trace.DepacketizeEvent;
+import ws.gmax.trace.DropEvent;
+
+/**
+ * Base class of video depacketizers. Rebuilds access units from RTP packets
+ * using the timestamp and marker bit to find frame boundaries. Access units
+ * with missing packets are dropped. A packet far behind or ahead of the
+ * expected sequence number starts a new sequence, as after a sender restart
+ * or a new PLAY, the access unit in progress is then dropped.
+ *
+ * @author Marius
+ */
+public abstract class Depacketizer {
+
+    /* Max packets behind the expected one still taken as late */
+    private static final int MAX_MISORDER = 100;
+
+    /* Max packets ahead of the expected one taken as a loss */
+    private static final int MAX_DROPOUT = 3000;
+
+    /* Access units pool */
+    private final AccessUnitPool pool;
+
+    /* Codec */
+    private final Codec codec;
+
+    /* Access units receiver */
+    private AccessUnitListener listener;
+
+    /* Stream account charged with the access units storage */
+    private MemoryAccount account;
+
+    /* Packet filter, null to process every packet */
+    private PacketFilter filter;
+
+    /* Access unit in progress */
+    protected AccessUnit current;
+
+    /* Current access unit is incomplete */
+    private boolean corrupted;
+
+    /* Packets lost before the next processed packet */
+    private boolean gapPending;
+
+    /* Next expected sequence number, -1 before the first packet */
+    private int expected = -1;
+
+    /* Arrival of the first packet of the current access unit (ns) */
+    private long assemblyStart;
+
+    /* Statistics */
+    private long accessUnits, dropped, lost, filtered, resyncs;
+
+    /**
+     * Constructor.
+     *
+     * @param codec Codec
+     * @param pool  Access units pool
+     */
+    protected Depacketizer(Codec codec, AccessUnitPool pool) {
+        this.codec = codec;
+        this.pool = pool;
+    }
+
+    /**
+     * Build a depacketizer for the codec announced in the SDP.
+     *
+     * @param media Media description
+     * @param pool  Access units pool
+     * @return Depacketizer or <code>null</code> if the codec is not supported
+     */
+    public static Depacketizer fromSdp(MediaDescription media, AccessUnitPool pool) {
+        Codec codec = Codec.of(media.getEncoding());
+        if (codec == Codec.H264) {
+            return H264Depacketizer.fromSdp(media, pool);
+        } else if (codec == Codec.H265) {
+            return HevcDepacketizer.fromSdp(media, pool);
+        }
+        return null;
+    }
+
+    public void setListener(AccessUnitListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the stream name used by flight recorder events, the name of the
+     * memory account or the codec.
+     *
+     * @return Stream name
+     */
+    private String getStream() {
+        return account != null ? account.getName() : codec.name();
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public MemoryAccount getMemoryAccount() {
+        return account;
+    }
+
+    public void setMemoryAccount(MemoryAccount account) {
+        this.account = account;
+    }
+
+    public PacketFilter getPacketFilter() {
+        return filter;
+    }
+
+    public void setPacketFilter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Process a RTP packet decoded with <code>RtpDecoder.parse</code>.
+     *
+     * @param packet Decoded packet
+     */
+    public void depacketize(RtpDecoder packet) {
+        int seq = packet.getSequenceNumber();
+        long timestamp = packet.getTimestamp();
+        int delta = (expected == -1) ? 0 : (seq - expected) & 0xFFFF;
+        if (delta >= 0x10000 - MAX_MISORDER) {
+            // late or duplicated packet
+            return;
+        }
+        boolean gap = delta != 0;
+        if (delta > MAX_DROPOUT) {
+            // new sequence, nothing known about the packets in between
+            resyncs++;
+        } else if (gap) {
+            lost += delta;
+            DropEvent.emit(getStream(), DropEvent.LOSS, delta);
+        }
+        expected = (seq + 1) & 0xFFFF;
+
+        if (current != null && current.getTimestamp() != timestamp) {
+            // the previous access unit missed its marker packet
+            if (gap) {
+                corrupted = true;
+            }
+            flush();
+        } else if (current != null && gap) {
+            corrupted = true;
+        }
+        if (gap) {
+            // the lost packets may have started the next access unit
+            gapPending = true;
+        }
+        if (filter != null && !filter.accept(packet, classify(packet.getPacket(),
+                packet.getPayloadOffset(), packet.getPayloadLength()))) {
+            filtered++;
+            DropEvent.emit(getStream(), DropEvent.FILTER, 1);
+            return;
+        }
+        if (current == null) {
+            current = pool.acquire(codec, timestamp, account);
+            assemblyStart = System.nanoTime();
+            corrupted = gapPending;
+        }
+        gapPending = false;
+
+        process(packet.getPacket(), packet.getPayloadOffset(),
+                packet.getPayloadLength());
+
+        if (packet.isMarker()) {
+            flush();
+        }
+    }
+
+    /**
+     * Process a RTP payload and append its NAL units to the current access
+     * unit.
+     *
+     * @param buf Packet bytes
+     * @param off Payload offset
+     * @param len Payload length
+     */
+    protected abstract void process(byte[] buf, int off, int len);
+
+    /**
+     * Classify a RTP payload from its NAL unit headers, used by packet
+     * filters.
+     *
+     * @param buf Packet bytes
+     * @param off Payload offset
+     * @param len Payload length
+     * @return <code>PacketFilter</code> priority
+     */
+    protected abstract int classify(byte[] buf, int off, int len);
+
+    /**
+     * Called on a complete access unit before it is delivered, used to set
+     * the keyframe flag and insert out of band parameter sets.
+     *
+     * @param unit Access unit
+     */
+    protected abstract void complete(AccessUnit unit);
+
+    /**
+     * Mark the current access unit as incomplete.
+     */
+    protected void corrupt() {
+        corrupted = true;
+    }
+
+    /**
+     * Deliver the current access unit and start a new one.
+     */
+    protected void flush() {
+        if (current == null) {
+            return;
+        }
+        try {
+            if (!corrupted && current.isComplete()) {
+                complete(current);
+                accessUnits++;
+                DepacketizeEvent event = new DepacketizeEvent();
+                if (event.shouldCommit()) {
+                    event.stream = getStream();
+                    event.codec = codec.name();
+                    event.size = current.length();
+                    event.nals = current.getNalCount();
+                    event.keyframe = current.isKeyframe();
+                    event.assembly = System.nanoTime() - assemblyStart;
+                    event.commit();
+                }
+                if (listener != null) {
+                    DecodeEvent decode = new DecodeEvent();
+                    decode.begin();
+                    listener.onAccessUnit(current);
+                    if (decode.shouldCommit()) {
+                        decode.stream = getStream();
+                        decode.codec = codec.name();
+                        decode.timestamp = current.getTimestamp();
+                        decode.commit();
+                    }
+                }
+            } else if (current.length() > 0 || corrupted) {
+                dropped++;
+                DropEvent.emit(getStream(), DropEvent.INCOMPLETE, 1);
+            }
+        } finally {
+            current.release();
+            current = null;
+            corrupted = false;
+            reset();
+        }
+    }
+
+    /**
+     * Keep an in band parameter set, copying it only when changed.
+     *
+     * @param known Last known parameter set or <code>null</code>
+     * @param unit  Access unit
+     * @param index NAL index of the parameter set
+     * @return Parameter set bytes
+     */
+    protected static byte[] keep(byte[] known, AccessUnit unit, int index) {
+        int offset = unit.getNalOffset(index);
+        int length = unit.getNalLength(index);
+        if (known != null && known.length == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = known[i] == unit.get(offset + i);
+            }
+            if (same) {
+                return known;
+            }
+        }
+        byte[] nal = new byte[length];
+        unit.nal(index).get(nal);
+        return nal;
+    }
+
+    /**
+     * Reset per access unit state.
+     */
+    protected void reset() {
+    }
+
+    public long getAccessUnits() {
+        return accessUnits;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * Get number of packets dropped by the packet filter.
+     *
+     * @return Filtered packets
+     */
+    public long getFiltered() {
+        return filtered;
+    }
+
+    /**
+     * Get number of sequence restarts.
+     *
+     * @return Resynchronizations count
+     */
+    public long getResyncs() {
+        return resyncs;
+    }
+}
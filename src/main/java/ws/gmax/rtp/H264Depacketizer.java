@@ -0,0 +1,269 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import ws.gmax.sdp.MediaDescription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H.264/AVC depacketizer (RFC 6184), non interleaved mode.
+ * <p>
+ * Handles single NAL unit packets, STAP-A aggregation packets and FU-A
+ * fragmentation units. Parameter sets (SPS/PPS) from the SDP
+ * sprop-parameter-sets are inserted in front of IDR access units which do
+ * not carry them in band.
+ *
+ * @author Marius
+ */
+public class H264Depacketizer extends Depacketizer {
+
+    //    The NAL unit header has the following format:
+    //
+    //    +---------------+
+    //    |0|1|2|3|4|5|6|7|
+    //    +-+-+-+-+-+-+-+-+
+    //    |F|NRI|  Type   |
+    //    +---------------+
+
+    /* NAL unit types */
+    static final int IDR = 5;
+    static final int SPS = 7;
+    static final int PPS = 8;
+
+    /* Payload structures */
+    private static final int STAP_A = 24;
+    private static final int FU_A = 28;
+
+    /* Last known parameter sets, from SDP or in band */
+    private byte[] sps, pps;
+
+    /* Fragmentation unit in progress */
+    private boolean fragment;
+
+    /**
+     * Constructor.
+     *
+     * @param pool Access units pool
+     */
+    public H264Depacketizer(AccessUnitPool pool) {
+        super(Codec.H264, pool);
+    }
+
+    /**
+     * Build a depacketizer configured from the SDP media description.
+     *
+     * @param media Media description
+     * @param pool  Access units pool
+     * @return Depacketizer
+     */
+    public static H264Depacketizer fromSdp(MediaDescription media, AccessUnitPool pool) {
+        H264Depacketizer depacketizer = new H264Depacketizer(pool);
+        for (byte[] nal : media.getParameterSets()) {
+            if (nal.length > 0) {
+                int type = nalType(nal[0]);
+                if (type == SPS) {
+                    depacketizer.sps = nal;
+                } else if (type == PPS) {
+                    depacketizer.pps = nal;
+                }
+            }
+        }
+        return depacketizer;
+    }
+
+    /**
+     * Set out of band parameter sets.
+     *
+     * @param sps Sequence parameter set
+     * @param pps Picture parameter set
+     */
+    public void setParameterSets(byte[] sps, byte[] pps) {
+        this.sps = sps;
+        this.pps = pps;
+    }
+
+    /**
+     * Get last known parameter sets.
+     *
+     * @return SPS and PPS, missing ones are omitted
+     */
+    public List<byte[]> getParameterSets() {
+        List<byte[]> nals = new ArrayList<>(2);
+        if (sps != null) {
+            nals.add(sps);
+        }
+        if (pps != null) {
+            nals.add(pps);
+        }
+        return nals;
+    }
+
+    /**
+     * Get NAL unit type.
+     *
+     * @param header NAL unit header
+     * @return NAL unit type
+     */
+    public static int nalType(byte header) {
+        return header & 0x1F;
+    }
+
+    @Override
+    protected void process(byte[] buf, int off, int len) {
+        if (len < 1) {
+            corrupt();
+            return;
+        }
+        int type = nalType(buf[off]);
+        if (type >= 1 && type <= 23) {
+            if (fragment) {
+                corrupt();
+                fragment = false;
+            }
+            current.appendNal(buf, off, len);
+        } else if (type == STAP_A) {
+            aggregation(buf, off, len);
+        } else if (type == FU_A) {
+            fragmentation(buf, off, len);
+        } else {
+            // STAP-B, MTAP and FU-B are only used in interleaved mode
+            corrupt();
+        }
+    }
+
+    @Override
+    protected int classify(byte[] buf, int off, int len) {
+        if (len < 1) {
+            return PacketFilter.REFERENCE;
+        }
+        int type = nalType(buf[off]);
+        if (type == STAP_A) {
+            int priority = PacketFilter.DISCARDABLE;
+            int end = off + len;
+            for (int pos = off + 1; pos + 2 < end; ) {
+                int size = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+                priority = Math.max(priority, priority(buf[pos + 2], nalType(buf[pos + 2])));
+                pos += 2 + size;
+            }
+            return priority;
+        } else if (type == FU_A) {
+            return len < 2 ? PacketFilter.REFERENCE : priority(buf[off], nalType(buf[off + 1]));
+        }
+        return priority(buf[off], type);
+    }
+
+    /**
+     * Get the priority of a NAL unit.
+     *
+     * @param header NAL unit header, for nal_ref_idc
+     * @param type   NAL unit type
+     * @return <code>PacketFilter</code> priority
+     */
+    private static int priority(byte header, int type) {
+        if (type == IDR || type == SPS || type == PPS) {
+            return PacketFilter.KEYFRAME;
+        }
+        return (header & 0x60) == 0 ? PacketFilter.DISCARDABLE : PacketFilter.REFERENCE;
+    }
+
+    /**
+     * STAP-A: STAP-A NAL HDR (size NALU)*
+     */
+    private void aggregation(byte[] buf, int off, int len) {
+        int pos = off + 1;
+        int end = off + len;
+        while (pos + 2 <= end) {
+            int size = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+            pos += 2;
+            if (size == 0 || pos + size > end) {
+                corrupt();
+                return;
+            }
+            current.appendNal(buf, pos, size);
+            pos += size;
+        }
+    }
+
+    /**
+     * FU-A: FU indicator, FU header, data
+     */
+    private void fragmentation(byte[] buf, int off, int len) {
+        if (len < 2) {
+            corrupt();
+            return;
+        }
+        int fuHeader = buf[off + 1] & 0xFF;
+        boolean start = (fuHeader & 0x80) != 0;
+        boolean end = (fuHeader & 0x40) != 0;
+        if (start) {
+            if (fragment) {
+                corrupt();
+            }
+            current.startNal();
+            current.append((buf[off] & 0xE0) | (fuHeader & 0x1F));
+            fragment = true;
+        } else if (!fragment) {
+            corrupt();
+            return;
+        }
+        current.append(buf, off + 2, len - 2);
+        if (end) {
+            current.endNal();
+            fragment = false;
+        }
+    }
+
+    @Override
+    protected void complete(AccessUnit unit) {
+        boolean idr = false;
+        boolean hasSps = false, hasPps = false;
+        for (int i = 0; i < unit.getNalCount(); i++) {
+            int type = nalType(unit.get(unit.getNalOffset(i)));
+            if (type == IDR) {
+                idr = true;
+            } else if (type == SPS) {
+                hasSps = true;
+                sps = keep(sps, unit, i);
+            } else if (type == PPS) {
+                hasPps = true;
+                pps = keep(pps, unit, i);
+            }
+        }
+        unit.setKeyframe(idr);
+        if (idr && !(hasSps && hasPps)) {
+            List<byte[]> missing = new ArrayList<>(2);
+            if (!hasSps && sps != null) {
+                missing.add(sps);
+            }
+            if (!hasPps && pps != null) {
+                missing.add(pps);
+            }
+            unit.prependNals(missing);
+        }
+    }
+
+    @Override
+    protected void reset() {
+        fragment = false;
+    }
+}
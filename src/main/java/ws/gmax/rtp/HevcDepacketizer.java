@@ -0,0 +1,379 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import ws.gmax.sdp.MediaDescription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H.265/HEVC depacketizer (RFC 7798).
+ * <p>
+ * Handles single NAL unit packets, aggregation packets (AP), fragmentation
+ * units (FU) and PACI packets carrying any of them. Parameter sets
+ * (VPS/SPS/PPS) announced in the SDP are inserted in front of IRAP access
+ * units which do not carry them in band.
+ *
+ * @author Marius
+ */
+public class HevcDepacketizer extends Depacketizer {
+
+    //    The NAL unit header has the following format:
+    //
+    //    +---------------+---------------+
+    //    |0|1|2|3|4|5|6|7|0|1|2|3|4|5|6|7|
+    //    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //    |F|   Type    |  LayerId  | TID |
+    //    +-------------+-----------------+
+
+    /* NAL unit header size */
+    private static final int NAL_HEADER_SIZE = 2;
+
+    /* IRAP NAL unit types range */
+    static final int BLA_W_LP = 16;
+    static final int RSV_IRAP_VCL23 = 23;
+
+    /* Parameter sets NAL unit types */
+    static final int VPS = 32;
+    static final int SPS = 33;
+    static final int PPS = 34;
+
+    /* SEI NAL unit types */
+    private static final int SEI_PREFIX = 39;
+    private static final int SEI_SUFFIX = 40;
+
+    /* Payload structures */
+    private static final int AP = 48;
+    private static final int FU = 49;
+    private static final int PACI = 50;
+
+    /* Decoding order number fields present (sprop-max-don-diff > 0) */
+    private final boolean donl;
+
+    /* Last known parameter sets, from SDP or in band */
+    private byte[] vps, sps, pps;
+
+    /* Fragmentation unit in progress */
+    private boolean fragment;
+
+    /* Payload of a PACI packet with its restored payload header */
+    private byte[] paci = new byte[1500];
+
+    /**
+     * Constructor.
+     *
+     * @param pool Access units pool
+     * @param donl DONL/DOND fields present
+     */
+    public HevcDepacketizer(AccessUnitPool pool, boolean donl) {
+        super(Codec.H265, pool);
+        this.donl = donl;
+    }
+
+    /**
+     * Build a depacketizer configured from the SDP media description.
+     *
+     * @param media Media description
+     * @param pool  Access units pool
+     * @return Depacketizer
+     */
+    public static HevcDepacketizer fromSdp(MediaDescription media, AccessUnitPool pool) {
+        boolean donl = media.getFmtpParameter("sprop-max-don-diff", 0) > 0;
+        HevcDepacketizer depacketizer = new HevcDepacketizer(pool, donl);
+        depacketizer.setParameterSets(first(media.getParameterSets("sprop-vps")),
+                first(media.getParameterSets("sprop-sps")),
+                first(media.getParameterSets("sprop-pps")));
+        return depacketizer;
+    }
+
+    private static byte[] first(List<byte[]> nals) {
+        return nals.isEmpty() ? null : nals.get(0);
+    }
+
+    /**
+     * Set out of band parameter sets.
+     *
+     * @param vps Video parameter set
+     * @param sps Sequence parameter set
+     * @param pps Picture parameter set
+     */
+    public void setParameterSets(byte[] vps, byte[] sps, byte[] pps) {
+        this.vps = vps;
+        this.sps = sps;
+        this.pps = pps;
+    }
+
+    /**
+     * Get last known parameter sets.
+     *
+     * @return VPS, SPS and PPS, missing ones are omitted
+     */
+    public List<byte[]> getParameterSets() {
+        List<byte[]> nals = new ArrayList<>(3);
+        if (vps != null) {
+            nals.add(vps);
+        }
+        if (sps != null) {
+            nals.add(sps);
+        }
+        if (pps != null) {
+            nals.add(pps);
+        }
+        return nals;
+    }
+
+    /**
+     * Get NAL unit type.
+     *
+     * @param header First byte of the NAL unit header
+     * @return NAL unit type
+     */
+    public static int nalType(byte header) {
+        return (header >> 1) & 0x3F;
+    }
+
+    /**
+     * Check for an IRAP (random access) NAL unit type.
+     *
+     * @param type NAL unit type
+     * @return <code>true</code> if IRAP
+     */
+    public static boolean isIrap(int type) {
+        return type >= BLA_W_LP && type <= RSV_IRAP_VCL23;
+    }
+
+    @Override
+    protected void process(byte[] buf, int off, int len) {
+        if (len < NAL_HEADER_SIZE) {
+            corrupt();
+            return;
+        }
+        int type = nalType(buf[off]);
+        switch (type) {
+            case AP:
+                aggregation(buf, off, len);
+                break;
+            case FU:
+                fragmentation(buf, off, len);
+                break;
+            case PACI:
+                paci(buf, off, len);
+                break;
+            default:
+                single(buf, off, len);
+                break;
+        }
+    }
+
+    @Override
+    protected int classify(byte[] buf, int off, int len) {
+        if (len < NAL_HEADER_SIZE + 1) {
+            return PacketFilter.REFERENCE;
+        }
+        int type = nalType(buf[off]);
+        switch (type) {
+            case AP:
+                int priority = PacketFilter.DISCARDABLE;
+                int end = off + len;
+                for (int pos = off + NAL_HEADER_SIZE + (donl ? 2 : 0); pos + 2 < end; ) {
+                    int size = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+                    priority = Math.max(priority, priority(nalType(buf[pos + 2])));
+                    pos += 2 + size + (donl ? 1 : 0);
+                }
+                return priority;
+            case FU:
+                return priority(buf[off + NAL_HEADER_SIZE] & 0x3F);
+            case PACI:
+                return priority((buf[off + NAL_HEADER_SIZE] >> 1) & 0x3F);
+            default:
+                return priority(type);
+        }
+    }
+
+    /**
+     * Get the priority of a NAL unit type. Sub-layer non-reference pictures
+     * (even types up to 14) and SEI are discardable.
+     *
+     * @param type NAL unit type
+     * @return <code>PacketFilter</code> priority
+     */
+    private static int priority(int type) {
+        if (isIrap(type) || type == VPS || type == SPS || type == PPS) {
+            return PacketFilter.KEYFRAME;
+        }
+        if ((type <= 14 && (type & 1) == 0) || type == SEI_PREFIX || type == SEI_SUFFIX) {
+            return PacketFilter.DISCARDABLE;
+        }
+        return PacketFilter.REFERENCE;
+    }
+
+    /**
+     * Single NAL unit packet.
+     */
+    private void single(byte[] buf, int off, int len) {
+        if (fragment) {
+            corrupt();
+            fragment = false;
+        }
+        if (donl) {
+            if (len < NAL_HEADER_SIZE + 2) {
+                corrupt();
+                return;
+            }
+            current.startNal();
+            current.append(buf, off, NAL_HEADER_SIZE);
+            current.append(buf, off + NAL_HEADER_SIZE + 2, len - NAL_HEADER_SIZE - 2);
+            current.endNal();
+        } else {
+            current.appendNal(buf, off, len);
+        }
+    }
+
+    /**
+     * PACI packet: PayloadHdr A|cType|PHSsize|F0..2|Y PHES payload. The
+     * extensions are skipped, the payload is processed as the packet of type
+     * cType with the PayloadHdr and the F bit taken from A.
+     */
+    private void paci(byte[] buf, int off, int len) {
+        if (len < NAL_HEADER_SIZE + 2) {
+            corrupt();
+            return;
+        }
+        int cType = (buf[off + 2] >> 1) & 0x3F;
+        int phsSize = ((buf[off + 2] & 0x01) << 4) | ((buf[off + 3] & 0xF0) >> 4);
+        int pos = off + NAL_HEADER_SIZE + 2 + phsSize;
+        int size = off + len - pos;
+        if (size < 0 || cType == PACI) {
+            corrupt();
+            return;
+        }
+        if (paci.length < NAL_HEADER_SIZE + size) {
+            paci = new byte[NAL_HEADER_SIZE + size];
+        }
+        paci[0] = (byte) ((buf[off + 2] & 0x80) | (cType << 1) | (buf[off] & 0x01));
+        paci[1] = buf[off + 1];
+        System.arraycopy(buf, pos, paci, NAL_HEADER_SIZE, size);
+        process(paci, 0, NAL_HEADER_SIZE + size);
+    }
+
+    /**
+     * Aggregation packet: [DONL] (size NALU [DOND])*
+     */
+    private void aggregation(byte[] buf, int off, int len) {
+        int pos = off + NAL_HEADER_SIZE + (donl ? 2 : 0);
+        int end = off + len;
+        while (pos + 2 <= end) {
+            int size = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+            pos += 2;
+            if (size < NAL_HEADER_SIZE || pos + size > end) {
+                corrupt();
+                return;
+            }
+            current.appendNal(buf, pos, size);
+            pos += size;
+            if (donl) {
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Fragmentation unit: PayloadHdr FuHeader [DONL] data
+     */
+    private void fragmentation(byte[] buf, int off, int len) {
+        if (len < NAL_HEADER_SIZE + 1) {
+            corrupt();
+            return;
+        }
+        int fuHeader = buf[off + NAL_HEADER_SIZE] & 0xFF;
+        boolean start = (fuHeader & 0x80) != 0;
+        boolean end = (fuHeader & 0x40) != 0;
+        int pos = off + NAL_HEADER_SIZE + 1;
+        if (start) {
+            if (fragment) {
+                // previous fragment never ended
+                corrupt();
+            }
+            if (donl) {
+                pos += 2;
+            }
+            current.startNal();
+            current.append((buf[off] & 0x81) | ((fuHeader & 0x3F) << 1));
+            current.append(buf[off + 1]);
+            fragment = true;
+        } else if (!fragment) {
+            // missed the start fragment
+            corrupt();
+            return;
+        }
+        int size = off + len - pos;
+        if (size < 0) {
+            corrupt();
+            return;
+        }
+        current.append(buf, pos, size);
+        if (end) {
+            current.endNal();
+            fragment = false;
+        }
+    }
+
+    @Override
+    protected void complete(AccessUnit unit) {
+        boolean irap = false;
+        boolean hasVps = false, hasSps = false, hasPps = false;
+        for (int i = 0; i < unit.getNalCount(); i++) {
+            int type = nalType(unit.get(unit.getNalOffset(i)));
+            if (isIrap(type)) {
+                irap = true;
+            } else if (type == VPS) {
+                hasVps = true;
+                vps = keep(vps, unit, i);
+            } else if (type == SPS) {
+                hasSps = true;
+                sps = keep(sps, unit, i);
+            } else if (type == PPS) {
+                hasPps = true;
+                pps = keep(pps, unit, i);
+            }
+        }
+        unit.setKeyframe(irap);
+        if (irap && !(hasVps && hasSps && hasPps)) {
+            List<byte[]> missing = new ArrayList<>(3);
+            if (!hasVps && vps != null) {
+                missing.add(vps);
+            }
+            if (!hasSps && sps != null) {
+                missing.add(sps);
+            }
+            if (!hasPps && pps != null) {
+                missing.add(pps);
+            }
+            unit.prependNals(missing);
+        }
+    }
+
+    @Override
+    protected void reset() {
+        fragment = false;
+    }
+}
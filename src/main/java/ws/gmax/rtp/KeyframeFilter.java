@@ -0,0 +1,92 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+/**
+ * Keyframe only ingest. Packets of non random access pictures are dropped on
+ * their payload header, keyframes are let through at a max rate, so a stream
+ * feeding thumbnails or analytics costs little more than receiving it.
+ *
+ * @author Marius
+ */
+public class KeyframeFilter implements PacketFilter {
+
+    /* Video RTP clock rate */
+    private static final long CLOCK = 90000;
+
+    /* Min RTP timestamp distance between keyframes */
+    private final long interval;
+
+    /* Timestamp of the last accepted keyframe, -1 before the first one */
+    private long accepted = -1;
+
+    /* Statistics */
+    private long keyframes, skipped;
+
+    /**
+     * Constructor.
+     *
+     * @param maxRate Max keyframes per second, 0 or less for every keyframe
+     */
+    public KeyframeFilter(double maxRate) {
+        this.interval = maxRate > 0 ? (long) (CLOCK / maxRate) : 0;
+    }
+
+    @Override
+    public boolean accept(RtpDecoder packet, int priority) {
+        if (priority != KEYFRAME) {
+            return false;
+        }
+        long timestamp = packet.getTimestamp();
+        if (timestamp == accepted) {
+            return true;
+        }
+        if (accepted == -1 || ((timestamp - accepted) & 0xFFFFFFFFL) >= interval) {
+            accepted = timestamp;
+            keyframes++;
+            return true;
+        }
+        if (((timestamp - accepted) & 0xFFFFFFFFL) >= 0x80000000L) {
+            // packet of an older picture
+            return false;
+        }
+        skipped++;
+        return false;
+    }
+
+    /**
+     * Get number of keyframes let through.
+     *
+     * @return Keyframes count
+     */
+    public long getKeyframes() {
+        return keyframes;
+    }
+
+    /**
+     * Get number of keyframe packets dropped by the rate limit.
+     *
+     * @return Skipped packets
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overload controller shedding non-reference pictures stream by stream.
+ * <p>
+ * The load is the highest of the receive thread busy ratio of the
+ * registered players (time spent handling packets over elapsed time, near 1
+ * when the consumer can no longer keep up with the socket) and of any
+ * added gauge, such as the depth of a consumer queue. Above the high water
+ * mark one more stream starts shedding, lowest priority first, below the
+ * low water mark the last one stops. A shedding stream drops the packets
+ * its depacketizer classifies as <code>DISCARDABLE</code>, so whole
+ * non-reference pictures are lost and the other pictures still decode.
+ *
+ * @author Marius
+ */
+public final class LoadShedder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadShedder.class);
+
+    /* Defaults */
+    public static final double DEFAULT_HIGH_WATER = 0.85;
+    public static final double DEFAULT_LOW_WATER = 0.6;
+    public static final long DEFAULT_PERIOD = 500;
+
+    /**
+     * Load source, 0 idle, 1 saturated.
+     */
+    public interface Gauge {
+
+        double getLoad();
+    }
+
+    /**
+     * Packet filter of a stream under control.
+     */
+    public static final class Stream implements PacketFilter {
+
+        private final String name;
+        private final int priority;
+        private final Rtp player;
+
+        /* Set by the controller */
+        private volatile boolean shedding;
+
+        /* Decision latched per picture, used by the receive thread only */
+        private long timestamp = -1, shedTimestamp = -1;
+        private boolean active;
+
+        /* Busy time at the last update */
+        private long busy;
+
+        /* Statistics */
+        private volatile long shed, packets;
+
+        private Stream(String name, int priority, Rtp player) {
+            this.name = name;
+            this.priority = priority;
+            this.player = player;
+        }
+
+        @Override
+        public boolean accept(RtpDecoder packet, int priority) {
+            long ts = packet.getTimestamp();
+            if (ts != timestamp) {
+                // a picture is shed entirely or not at all
+                timestamp = ts;
+                active = shedding;
+            }
+            if (!active || priority != DISCARDABLE) {
+                return true;
+            }
+            packets++;
+            if (ts != shedTimestamp) {
+                shedTimestamp = ts;
+                shed++;
+            }
+            return false;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public boolean isShedding() {
+            return shedding;
+        }
+
+        /**
+         * Get number of pictures shed.
+         *
+         * @return Shed pictures
+         */
+        public long getShed() {
+            return shed;
+        }
+
+        /**
+         * Get number of packets shed.
+         *
+         * @return Shed packets
+         */
+        public long getShedPackets() {
+            return packets;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s(priority=%d, shedding=%b, shed=%d)", name, priority,
+                    shedding, shed);
+        }
+    }
+
+    /* Hysteresis */
+    private final double highWater;
+    private final double lowWater;
+
+    /* Streams, lowest priority first */
+    private final List<Stream> streams = new ArrayList<>();
+
+    /* Extra load sources */
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    /* Number of shedding streams */
+    private int level;
+
+    /* Last sampled load and time */
+    private double load;
+    private long sampled = System.nanoTime();
+
+    /* Periodic update */
+    private ScheduledExecutorService timer;
+
+    public LoadShedder() {
+        this(DEFAULT_HIGH_WATER, DEFAULT_LOW_WATER);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param highWater Load starting to shed one more stream
+     * @param lowWater  Load stopping to shed one stream
+     */
+    public LoadShedder(double highWater, double lowWater) {
+        if (lowWater >= highWater) {
+            throw new IllegalArgumentException("Low water must be below high water");
+        }
+        this.highWater = highWater;
+        this.lowWater = lowWater;
+    }
+
+    /**
+     * Put a player under control. The stream filter is chained before the
+     * packet filter already set on the player, a packet is processed only
+     * if both accept it.
+     *
+     * @param player   Media player
+     * @param priority Stream priority, lower priorities are shed first
+     * @return Stream filter
+     */
+    public Stream register(RtpMediaPlayer player, int priority) {
+        Stream stream = register("port " + player.getPort(), priority, player);
+        PacketFilter filter = player.getPacketFilter();
+        if (filter == null) {
+            player.setPacketFilter(stream);
+        } else {
+            player.setPacketFilter((packet, p) -> stream.accept(packet, p)
+                    && filter.accept(packet, p));
+        }
+        return stream;
+    }
+
+    /**
+     * Put a stream under control, the returned filter must be set on its
+     * depacketizer.
+     *
+     * @param name     Stream name
+     * @param priority Stream priority, lower priorities are shed first
+     * @return Stream filter
+     */
+    public Stream register(String name, int priority) {
+        return register(name, priority, null);
+    }
+
+    private synchronized Stream register(String name, int priority, Rtp player) {
+        Stream stream = new Stream(name, priority, player);
+        if (player != null) {
+            stream.busy = player.getBusyNanos();
+        }
+        streams.add(stream);
+        streams.sort(Comparator.comparingInt(Stream::getPriority));
+        apply();
+        return stream;
+    }
+
+    /**
+     * Remove a stream from control.
+     *
+     * @param stream Stream filter
+     */
+    public synchronized void unregister(Stream stream) {
+        if (streams.remove(stream)) {
+            stream.shedding = false;
+            level = Math.min(level, streams.size());
+            apply();
+        }
+    }
+
+    /**
+     * Add a load source.
+     *
+     * @param gauge Load gauge
+     */
+    public synchronized void addGauge(Gauge gauge) {
+        gauges.add(gauge);
+    }
+
+    /**
+     * Sample the load and adjust the number of shedding streams by one.
+     */
+    public synchronized void update() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - sampled);
+        sampled = now;
+        double max = 0;
+        for (Stream stream : streams) {
+            if (stream.player != null) {
+                long busy = stream.player.getBusyNanos();
+                max = Math.max(max, (double) (busy - stream.busy) / elapsed);
+                stream.busy = busy;
+            }
+        }
+        for (Gauge gauge : gauges) {
+            max = Math.max(max, gauge.getLoad());
+        }
+        load = max;
+        int previous = level;
+        if (load > highWater && level < streams.size()) {
+            level++;
+        } else if (load < lowWater && level > 0) {
+            level--;
+        }
+        if (level != previous) {
+            apply();
+            LOGGER.info("Load {}: shedding {} of {} streams", String.format("%.2f", load),
+                    level, streams.size());
+        }
+    }
+
+    private void apply() {
+        for (int i = 0; i < streams.size(); i++) {
+            streams.get(i).shedding = i < level;
+        }
+    }
+
+    /**
+     * Update periodically on a daemon thread.
+     *
+     * @param period Update period (ms)
+     */
+    public synchronized void start(long period) {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "load-shedder");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleAtFixedRate(this::update, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop periodic updates and shedding.
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.shutdown();
+            timer = null;
+        }
+        level = 0;
+        apply();
+    }
+
+    /**
+     * Get number of shedding streams.
+     *
+     * @return Shedding streams
+     */
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    /**
+     * Get the last sampled load.
+     *
+     * @return Load, 1 when saturated
+     */
+    public synchronized double getLoad() {
+        return load;
+    }
+
+    /**
+     * Get the controlled streams, lowest priority first.
+     *
+     * @return Streams
+     */
+    public synchronized List<Stream> getStreams() {
+        return new ArrayList<>(streams);
+    }
+
+    /**
+     * Get number of pictures shed by all streams.
+     *
+     * @return Shed pictures
+     */
+    public synchronized long getShed() {
+        long total = 0;
+        for (Stream stream : streams) {
+            total += stream.shed;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("load=%.2f level=%d/%d %s", load, level, streams.size(), streams);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map with primitive long keys, no boxing on lookups.
+ * Linear probing, removal shifts the following entries back so no
+ * tombstones are left. Not thread safe.
+ *
+ * @param <V> Value type
+ * @author Marius
+ */
+final class LongMap<V> {
+
+    /* Max load factor */
+    private static final float LOAD = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    LongMap() {
+        this(16);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Expected number of entries
+     */
+    LongMap(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(4, (int) (capacity / LOAD)) - 1) << 1;
+        keys = new long[slots];
+        values = new Object[slots];
+        mask = slots - 1;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Get a value.
+     *
+     * @param key Key
+     * @return Value or <code>null</code> if not found
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put a value.
+     *
+     * @param key   Key
+     * @param value Value, not null
+     * @return Previous value or <code>null</code>
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * LOAD) {
+            resize();
+        }
+        return null;
+    }
+
+    /**
+     * Remove a value.
+     *
+     * @param key Key
+     * @return Removed value or <code>null</code> if not found
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V removed = (V) values[i];
+                shift(i);
+                size--;
+                return removed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Move back the entries following a removed slot.
+     */
+    private void shift(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) {
+                break;
+            }
+            int home = slot(keys[i]);
+            // move if the home slot is not cyclically in (gap, i]
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                while (values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Multicast group membership shared by all local players receiving the same
+ * group and port. One socket joins the group and one thread receives the
+ * datagrams, every subscriber gets each packet in turn, so the network carries
+ * a single copy of the stream whatever the number of local consumers.
+ *
+ * @author Marius
+ */
+final class MulticastGroup implements Runnable {
+
+    /* Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MulticastGroup.class);
+
+    /* Max packet size */
+    private static final int PACKET_SIZE = 8192;
+
+    /* Active memberships by group:port@interface */
+    private static final Map<String, MulticastGroup> GROUPS = new HashMap<>();
+
+    /* Registry key */
+    private final String key;
+
+    /* Group address */
+    private final InetSocketAddress group;
+
+    /* Network interface, null for the system default */
+    private final NetworkInterface nif;
+
+    /* Multicast socket */
+    private final MulticastSocket socket;
+
+    /* RTCP group, packets go to onReceiveRtcp */
+    private final boolean rtcp;
+
+    /* Subscribers, copy on write */
+    private volatile Rtp[] subscribers = new Rtp[0];
+
+    private MulticastGroup(String key, InetSocketAddress group,
+                           NetworkInterface nif, int ttl, boolean rtcp) throws IOException {
+        this.key = key;
+        this.group = group;
+        this.nif = nif;
+        this.rtcp = rtcp;
+        socket = bind(group);
+        if (ttl > 0) {
+            socket.setTimeToLive(ttl);
+        }
+        socket.joinGroup(new InetSocketAddress(group.getAddress(), 0), nif);
+    }
+
+    /**
+     * Open the group socket bound to the group address, so the kernel only
+     * passes datagrams sent to this group. A wildcard socket would also get
+     * the traffic of any other group joined on the same port (IP_MULTICAST_ALL
+     * on Linux). Platforms that refuse binding a multicast address fall back
+     * to the wildcard address.
+     *
+     * @param group Group address and port
+     * @return Multicast socket
+     * @throws IOException On error
+     */
+    private static MulticastSocket bind(InetSocketAddress group) throws IOException {
+        try {
+            return new MulticastSocket(group);
+        } catch (SocketException ex) {
+            LOGGER.warn("Cannot bind multicast group {}, using the wildcard address: {}",
+                    group, ex.getMessage());
+            return new MulticastSocket(group.getPort());
+        }
+    }
+
+    /**
+     * Subscribe a player to a multicast group, joining the group if this is
+     * the first local subscriber.
+     *
+     * @param host  Local interface name or address, null for default
+     * @param group Group address
+     * @param port  Group RTP port
+     * @param ttl   Time to live, -1 for default
+     * @param rtp   Subscriber
+     * @param rtcp  RTCP port of the group
+     * @return Group membership
+     * @throws IOException On error
+     */
+    static MulticastGroup join(String host, String group, int port, int ttl,
+                               Rtp rtp, boolean rtcp) throws IOException {
+        InetAddress address = InetAddress.getByName(group);
+        if (!address.isMulticastAddress()) {
+            throw new IOException("Not a multicast address: " + group);
+        }
+        NetworkInterface nif = null;
+        if (host != null) {
+            InetAddress local = InetAddress.getByName(host);
+            if (!local.isAnyLocalAddress()) {
+                nif = NetworkInterface.getByInetAddress(local);
+            }
+        }
+        String key = address.getHostAddress() + ":" + port + "@"
+                + (nif == null ? "*" : nif.getName());
+        synchronized (GROUPS) {
+            MulticastGroup membership = GROUPS.get(key);
+            if (membership == null) {
+                membership = new MulticastGroup(key,
+                        new InetSocketAddress(address, port), nif, ttl, rtcp);
+                GROUPS.put(key, membership);
+                Thread thread = new Thread(membership, "multicast-" + key);
+                thread.setDaemon(true);
+                thread.start();
+                LOGGER.info("Joined multicast group {}", key);
+            }
+            membership.add(rtp);
+            return membership;
+        }
+    }
+
+    /**
+     * Unsubscribe a player, leaving the group when it was the last local
+     * subscriber.
+     *
+     * @param rtp Subscriber
+     */
+    void leave(Rtp rtp) {
+        synchronized (GROUPS) {
+            remove(rtp);
+            if (subscribers.length == 0 && GROUPS.remove(key) != null) {
+                try {
+                    socket.leaveGroup(new InetSocketAddress(group.getAddress(), 0), nif);
+                } catch (IOException ex) {
+                    LOGGER.warn("Leave multicast group {}: {}", key, ex.getMessage());
+                }
+                socket.close();
+                LOGGER.info("Left multicast group {}", key);
+            }
+        }
+    }
+
+    private void add(Rtp rtp) {
+        Rtp[] current = subscribers;
+        Rtp[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = rtp;
+        subscribers = next;
+    }
+
+    private void remove(Rtp rtp) {
+        Rtp[] current = subscribers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == rtp) {
+                Rtp[] next = new Rtp[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, next.length - i);
+                subscribers = next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Receive datagrams and dispatch them to every subscriber.
+     */
+    @Override
+    public void run() {
+        DatagramPacket packet = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+        while (!socket.isClosed()) {
+            try {
+                socket.receive(packet);
+                for (Rtp rtp : subscribers) {
+                    if (rtcp) {
+                        rtp.tap(packet, group.getAddress(), group.getPort());
+                        rtp.onReceiveRtcp(packet.getData(), packet.getLength());
+                    } else {
+                        rtp.deliver(packet, group.getAddress(), group.getPort());
+                    }
+                }
+            } catch (IOException ex) {
+                if (!socket.isClosed()) {
+                    LOGGER.error("Error", ex);
+                }
+                break;
+            } catch (RuntimeException ex) {
+                LOGGER.error("Error", ex);
+            }
+        }
+    }
+}
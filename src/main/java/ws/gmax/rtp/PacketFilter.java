@@ -0,0 +1,48 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+/**
+ * Decides which RTP packets a depacketizer processes. Called with the packet
+ * header decoded and the payload classified from its NAL unit headers only,
+ * before any payload byte is copied.
+ *
+ * @author Marius
+ */
+public interface PacketFilter {
+
+    /* Packet priorities */
+    int DISCARDABLE = 0;
+    int REFERENCE = 1;
+    int KEYFRAME = 2;
+
+    /**
+     * Check a packet.
+     *
+     * @param packet   Decoded packet header
+     * @param priority Payload priority: <code>KEYFRAME</code> for random
+     *                 access pictures and parameter sets,
+     *                 <code>DISCARDABLE</code> for pictures no other picture
+     *                 refers to, <code>REFERENCE</code> otherwise
+     * @return <code>true</code> to process the packet <code>false</code> to drop it
+     */
+    boolean accept(RtpDecoder packet, int priority);
+}
@@ -0,0 +1,203 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 (RFC 6184) and H.265 (RFC 7798) packetizer.
+ * <p>
+ * Annex B access units are split in NAL units, each sent as a single NAL
+ * unit packet or fragmented in FU-A / FU packets when larger than the
+ * payload size. The marker bit is set on the last packet of the access
+ * unit. The packet buffer is reused between calls.
+ *
+ * @author Marius
+ */
+public final class Packetizer {
+
+    /**
+     * Destination of packets.
+     */
+    public interface Sender {
+
+        /**
+         * Send a packet, the buffer is reused after the call returns.
+         *
+         * @param packet RTP packet
+         * @param length Packet length
+         * @throws IOException on error
+         */
+        void send(byte[] packet, int length) throws IOException;
+    }
+
+    /* RTP header size */
+    private static final int HEADER = 12;
+
+    /* Default max payload size */
+    public static final int DEFAULT_PAYLOAD_SIZE = 1400;
+
+    private final Codec codec;
+    private final int payloadType;
+    private final long ssrc;
+    private final int payloadSize;
+
+    /* Packet buffer */
+    private final byte[] packet;
+
+    /* Next sequence number */
+    private int sequence;
+
+    /**
+     * Constructor.
+     *
+     * @param codec       H264 or H265
+     * @param payloadType RTP payload type
+     * @param ssrc        Synchronization source
+     * @param sequence    Initial sequence number
+     */
+    public Packetizer(Codec codec, int payloadType, long ssrc, int sequence) {
+        this(codec, payloadType, ssrc, sequence, DEFAULT_PAYLOAD_SIZE);
+    }
+
+    public Packetizer(Codec codec, int payloadType, long ssrc, int sequence, int payloadSize) {
+        if (codec != Codec.H264 && codec != Codec.H265) {
+            throw new IllegalArgumentException("Unsupported codec: " + codec);
+        }
+        this.codec = codec;
+        this.payloadType = payloadType;
+        this.ssrc = ssrc;
+        this.sequence = sequence & 0xFFFF;
+        this.payloadSize = payloadSize;
+        this.packet = new byte[HEADER + payloadSize];
+    }
+
+    /**
+     * Get the sequence number of the next packet.
+     *
+     * @return Sequence number
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Find the next start code.
+     *
+     * @param data Annex B bytes
+     * @param from Search start
+     * @param end  Search end
+     * @return Offset of the start code or <code>end</code> if none
+     */
+    private static int startCode(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i > from && data.get(i - 1) == 0 ? i - 1 : i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Packetize an access unit.
+     *
+     * @param data      Annex B bytes between position and limit
+     * @param timestamp RTP timestamp
+     * @param sender    Packets destination
+     * @throws IOException on error sending
+     */
+    public void packetize(ByteBuffer data, long timestamp, Sender sender) throws IOException {
+        int end = data.limit();
+        int nal = startCode(data, data.position(), end);
+        while (nal < end) {
+            nal += data.get(nal + 2) == 1 ? 3 : 4;
+            int next = startCode(data, nal, end);
+            int length = next - nal;
+            if (length > 0) {
+                send(data, nal, length, timestamp, next == end, sender);
+            }
+            nal = next;
+        }
+    }
+
+    private void header(long timestamp, boolean marker) {
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) ((marker ? 0x80 : 0) | payloadType);
+        packet[2] = (byte) (sequence >> 8);
+        packet[3] = (byte) sequence;
+        packet[4] = (byte) (timestamp >> 24);
+        packet[5] = (byte) (timestamp >> 16);
+        packet[6] = (byte) (timestamp >> 8);
+        packet[7] = (byte) timestamp;
+        packet[8] = (byte) (ssrc >> 24);
+        packet[9] = (byte) (ssrc >> 16);
+        packet[10] = (byte) (ssrc >> 8);
+        packet[11] = (byte) ssrc;
+        sequence = (sequence + 1) & 0xFFFF;
+    }
+
+    private void copy(ByteBuffer data, int from, int to, int length) {
+        ByteBuffer src = data.duplicate();
+        src.position(from);
+        src.get(packet, to, length);
+    }
+
+    /**
+     * Send a NAL unit in one packet or in fragments.
+     */
+    private void send(ByteBuffer data, int nal, int length, long timestamp, boolean last,
+                      Sender sender) throws IOException {
+        if (length <= payloadSize) {
+            header(timestamp, last);
+            copy(data, nal, HEADER, length);
+            sender.send(packet, HEADER + length);
+            return;
+        }
+        boolean hevc = codec == Codec.H265;
+        int nalHeader = hevc ? 2 : 1;
+        int fuHeader = hevc ? 3 : 2;
+        byte b0 = data.get(nal);
+        int type = hevc ? (b0 >> 1) & 0x3F : b0 & 0x1F;
+        int offset = nal + nalHeader;
+        int remaining = length - nalHeader;
+        boolean start = true;
+        while (remaining > 0) {
+            int size = Math.min(remaining, payloadSize - fuHeader);
+            boolean end = size == remaining;
+            header(timestamp, last && end);
+            int flags = (start ? 0x80 : 0) | (end ? 0x40 : 0);
+            if (hevc) {
+                packet[HEADER] = (byte) ((b0 & 0x81) | (49 << 1));
+                packet[HEADER + 1] = data.get(nal + 1);
+                packet[HEADER + 2] = (byte) (flags | type);
+            } else {
+                packet[HEADER] = (byte) ((b0 & 0xE0) | 28);
+                packet[HEADER + 1] = (byte) (flags | type);
+            }
+            copy(data, offset, HEADER + fuHeader, size);
+            sender.send(packet, HEADER + fuHeader + size);
+            offset += size;
+            remaining -= size;
+            start = false;
+        }
+    }
+}
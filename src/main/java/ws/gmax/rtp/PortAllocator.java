@@ -0,0 +1,258 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import java.net.BindException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+
+/**
+ * Allocator of RTP/RTCP port pairs (even RTP port, RTCP port + 1) from a
+ * configured range. Pairs in use are tracked by a bitmap, a released pair is
+ * kept in quarantine for a while so late packets of the old session are not
+ * received by the next one. Pairs found busy by another process are
+ * quarantined as well and the next pair is tried.
+ * <p>
+ * Both sockets are bound by <code>allocate</code>, before SETUP announces the
+ * ports to the server. A single allocator is meant to be shared by all the
+ * sessions of a process.
+ *
+ * @author Marius
+ */
+public final class PortAllocator {
+
+    /* Default quarantine of released pairs in milliseconds */
+    public static final long DEFAULT_QUARANTINE = 2000;
+
+    /* First RTP port (even) */
+    private final int first;
+
+    /* Number of pairs in range */
+    private final int pairs;
+
+    /* Quarantine in milliseconds */
+    private final long quarantine;
+
+    /* Bitmap of pairs in use or in quarantine */
+    private final long[] used;
+
+    /* Release time of quarantined pairs */
+    private final long[] released;
+
+    /* Quarantined pairs in release order */
+    private final ArrayDeque<Integer> quarantined = new ArrayDeque<>();
+
+    /* Next pair to try, pairs are handed out round robin */
+    private int cursor;
+
+    /* Pairs handed out */
+    private int allocated;
+
+    /* Failed allocations, pairs busy outside of the allocator */
+    private long exhausted, collisions;
+
+    /**
+     * Build an allocator with the default quarantine.
+     *
+     * @param min Lowest port of the range
+     * @param max Highest port of the range
+     */
+    public PortAllocator(int min, int max) {
+        this(min, max, DEFAULT_QUARANTINE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param min        Lowest port of the range
+     * @param max        Highest port of the range
+     * @param quarantine Quarantine of released pairs in milliseconds
+     */
+    public PortAllocator(int min, int max, long quarantine) {
+        if (min < 1 || max > 0xFFFF || quarantine < 0) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid port range %d-%d", min, max));
+        }
+        this.first = (min + 1) & ~1;
+        this.pairs = (max - first + 1) / 2;
+        if (pairs <= 0) {
+            throw new IllegalArgumentException(
+                    String.format("No port pair in range %d-%d", min, max));
+        }
+        this.quarantine = quarantine;
+        this.used = new long[(pairs + 63) >>> 6];
+        this.released = new long[pairs];
+        // bits past the last pair are never free
+        if ((pairs & 63) != 0) {
+            used[used.length - 1] = -1L << (pairs & 63);
+        }
+    }
+
+    /**
+     * Allocate a port pair and bind both sockets.
+     *
+     * @param host Local name or address to bind, <code>null</code> for any
+     * @return Port pair
+     * @throws BindException        If no pair of the range can be bound
+     * @throws UnknownHostException If the host cannot be resolved
+     */
+    public PortPair allocate(String host) throws BindException, UnknownHostException {
+        InetAddress address = host == null ? null : InetAddress.getByName(host);
+        for (int attempt = 0; attempt < pairs; attempt++) {
+            int index = reserve();
+            if (index == -1) {
+                break;
+            }
+            int port = first + 2 * index;
+            DatagramSocket rtp = null;
+            try {
+                rtp = new DatagramSocket(new InetSocketAddress(address, port));
+                DatagramSocket rtcp = new DatagramSocket(new InetSocketAddress(address, port + 1));
+                return new PortPair(this, index, port, rtp, rtcp);
+            } catch (SocketException ex) {
+                if (rtp != null) {
+                    rtp.close();
+                }
+                synchronized (this) {
+                    collisions++;
+                }
+                release(index);
+            }
+        }
+        synchronized (this) {
+            exhausted++;
+        }
+        throw new BindException(String.format("No free RTP/RTCP port pair in %d-%d",
+                first, first + 2 * pairs - 1));
+    }
+
+    /**
+     * Reserve the next free pair.
+     *
+     * @return Pair index or -1 if all pairs are in use
+     */
+    private synchronized int reserve() {
+        expire(System.currentTimeMillis());
+        int index = nextFree(cursor);
+        if (index == -1 && cursor > 0) {
+            index = nextFree(0);
+        }
+        if (index != -1) {
+            used[index >>> 6] |= 1L << index;
+            cursor = index + 1 == pairs ? 0 : index + 1;
+            allocated++;
+        }
+        return index;
+    }
+
+    /**
+     * Find the first free pair at or after a given index.
+     *
+     * @param from Start index
+     * @return Pair index or -1
+     */
+    private int nextFree(int from) {
+        int word = from >>> 6;
+        long free = ~used[word] & (-1L << from);
+        while (free == 0) {
+            if (++word == used.length) {
+                return -1;
+            }
+            free = ~used[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(free);
+    }
+
+    /**
+     * Return a pair, it stays in quarantine before being reused.
+     *
+     * @param index Pair index
+     */
+    synchronized void release(int index) {
+        allocated--;
+        released[index] = System.currentTimeMillis();
+        quarantined.add(index);
+        expire(released[index]);
+    }
+
+    /**
+     * Free the pairs whose quarantine elapsed.
+     *
+     * @param now Current time
+     */
+    private void expire(long now) {
+        Integer index;
+        while ((index = quarantined.peek()) != null
+                && now - released[index] >= quarantine) {
+            quarantined.poll();
+            used[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    /**
+     * Get number of pairs in range.
+     *
+     * @return Pairs count
+     */
+    public int getPairs() {
+        return pairs;
+    }
+
+    /**
+     * Get number of pairs handed out and not yet released.
+     *
+     * @return Allocated pairs
+     */
+    public synchronized int getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * Get number of released pairs waiting for reuse.
+     *
+     * @return Quarantined pairs
+     */
+    public synchronized int getQuarantined() {
+        return quarantined.size();
+    }
+
+    /**
+     * Get number of allocations failed for lack of free pairs.
+     *
+     * @return Exhaustion count
+     */
+    public synchronized long getExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Get number of pairs found busy by another process.
+     *
+     * @return Collisions count
+     */
+    public synchronized long getCollisions() {
+        return collisions;
+    }
+}
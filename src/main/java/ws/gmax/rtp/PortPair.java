@@ -0,0 +1,90 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import java.io.Closeable;
+import java.net.DatagramSocket;
+
+/**
+ * RTP/RTCP port pair handed out by a <code>PortAllocator</code> with both
+ * sockets already bound. Closing the pair closes the sockets and returns the
+ * ports to the allocator.
+ *
+ * @author Marius
+ */
+public final class PortPair implements Closeable {
+
+    /* Owner */
+    private final PortAllocator allocator;
+
+    /* Pair index in the allocator */
+    private final int index;
+
+    /* RTP port, RTCP is port + 1 */
+    private final int port;
+
+    /* Bound sockets */
+    private final DatagramSocket rtp, rtcp;
+
+    /* Returned to the allocator */
+    private boolean closed;
+
+    PortPair(PortAllocator allocator, int index, int port,
+             DatagramSocket rtp, DatagramSocket rtcp) {
+        this.allocator = allocator;
+        this.index = index;
+        this.port = port;
+        this.rtp = rtp;
+        this.rtcp = rtcp;
+    }
+
+    public int getRtpPort() {
+        return port;
+    }
+
+    public int getRtcpPort() {
+        return port + 1;
+    }
+
+    public DatagramSocket getRtpSocket() {
+        return rtp;
+    }
+
+    public DatagramSocket getRtcpSocket() {
+        return rtcp;
+    }
+
+    /**
+     * Close both sockets and release the ports. Closing twice has no effect.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        rtp.close();
+        rtcp.close();
+        allocator.release(index);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+/**
+ * RTCP feedback messages (RFC 4585).
+ *
+ * @author Marius
+ */
+final class RtcpFeedback {
+
+    /* Packet types */
+    private static final int RR = 201;
+    private static final int RTPFB = 205;
+
+    /* Generic NACK feedback message type */
+    private static final int NACK = 1;
+
+    /* Max lost packets reported by one message */
+    static final int MAX_NACKS = 64;
+
+    private RtcpFeedback() {
+    }
+
+    /**
+     * Get the buffer size needed by a NACK message.
+     *
+     * @param count Lost packets count
+     * @return Size in bytes
+     */
+    static int size(int count) {
+        return 8 + 12 + 4 * Math.min(count, MAX_NACKS);
+    }
+
+    /**
+     * Build a compound packet, an empty receiver report followed by a
+     * Generic NACK. Consecutive losses are packed into PID/BLP pairs.
+     *
+     * @param out        Output buffer of <code>size(count)</code> bytes
+     * @param senderSsrc SSRC of the receiver
+     * @param mediaSsrc  SSRC of the media source
+     * @param seqs       Lost sequence numbers in ascending order
+     * @param offset     Offset of the first reported loss
+     * @param count      Lost packets count, at most <code>MAX_NACKS</code> are reported
+     * @return Packet length
+     */
+    static int nack(byte[] out, int senderSsrc, int mediaSsrc, int[] seqs,
+                    int offset, int count) {
+        count = Math.min(count, MAX_NACKS);
+        out[0] = (byte) 0x80;
+        out[1] = (byte) RR;
+        out[2] = 0;
+        out[3] = 1;
+        int32(out, 4, senderSsrc);
+        int start = 8;
+        out[start] = (byte) (0x80 | NACK);
+        out[start + 1] = (byte) RTPFB;
+        int32(out, start + 4, senderSsrc);
+        int32(out, start + 8, mediaSsrc);
+        int pos = start + 12;
+        int i = offset;
+        count += offset;
+        while (i < count) {
+            int pid = seqs[i++];
+            int blp = 0;
+            while (i < count) {
+                int delta = (seqs[i] - pid) & 0xFFFF;
+                if (delta == 0 || delta > 16) {
+                    break;
+                }
+                blp |= 1 << (delta - 1);
+                i++;
+            }
+            out[pos] = (byte) (pid >> 8);
+            out[pos + 1] = (byte) pid;
+            out[pos + 2] = (byte) (blp >> 8);
+            out[pos + 3] = (byte) blp;
+            pos += 4;
+        }
+        int words = (pos - start) / 4 - 1;
+        out[start + 2] = (byte) (words >> 8);
+        out[start + 3] = (byte) words;
+        return pos;
+    }
+
+    private static void int32(byte[] buf, int off, int value) {
+        buf[off] = (byte) (value >> 24);
+        buf[off + 1] = (byte) (value >> 16);
+        buf[off + 2] = (byte) (value >> 8);
+        buf[off + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+/**
+ * RTCP sender report (RFC 3550 section 6.4.1). Maps a RTP timestamp of the
+ * sender to its NTP wallclock. The report is reused for every packet.
+ *
+ * @author Marius
+ */
+public final class RtcpSenderReport {
+
+    /* Packet type */
+    private static final int SR = 200;
+
+    /* Seconds from the NTP epoch (1900) to the Unix epoch (1970) */
+    private static final long NTP_EPOCH = 2208988800L;
+
+    /* Sender SSRC */
+    private int ssrc;
+
+    /* 64 bits NTP timestamp */
+    private long ntp;
+
+    /* RTP timestamp matching the NTP timestamp */
+    private long rtpTimestamp;
+
+    /* Sender counters */
+    private long packetCount, octetCount;
+
+    /**
+     * Find the sender report of a compound RTCP packet.
+     *
+     * @param buf Packet bytes
+     * @param off Packet offset
+     * @param len Packet length
+     * @return <code>true</code> if a sender report was decoded
+     */
+    public boolean parse(byte[] buf, int off, int len) {
+        int end = off + len;
+        while (off + 4 <= end) {
+            if ((buf[off] & 0xC0) != 0x80) {
+                return false;
+            }
+            int type = buf[off + 1] & 0xFF;
+            int size = (((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF)) * 4 + 4;
+            if (off + size > end) {
+                return false;
+            }
+            if (type == SR && size >= 28) {
+                ssrc = int32(buf, off + 4);
+                ntp = ((long) int32(buf, off + 8) << 32) | (int32(buf, off + 12) & 0xFFFFFFFFL);
+                rtpTimestamp = int32(buf, off + 16) & 0xFFFFFFFFL;
+                packetCount = int32(buf, off + 20) & 0xFFFFFFFFL;
+                octetCount = int32(buf, off + 24) & 0xFFFFFFFFL;
+                return true;
+            }
+            off += size;
+        }
+        return false;
+    }
+
+    private static int int32(byte[] buf, int off) {
+        return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16)
+                | ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    public long getNtp() {
+        return ntp;
+    }
+
+    public long getRtpTimestamp() {
+        return rtpTimestamp;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    public long getOctetCount() {
+        return octetCount;
+    }
+
+    /**
+     * Get the NTP timestamp as Unix time.
+     *
+     * @return Microseconds since 1970
+     */
+    public long getWallclock() {
+        long seconds = ntp >>> 32;
+        long fraction = ntp & 0xFFFFFFFFL;
+        return (seconds - NTP_EPOCH) * 1_000_000L + ((fraction * 1_000_000L) >>> 32);
+    }
+}
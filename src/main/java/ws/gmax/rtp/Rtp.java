@@ -20,6 +20,9 @@
  */
 package ws.gmax.rtp;
 
+import ws.gmax.pcap.PcapCapture;
+import ws.gmax.trace.RtpReceiveEvent;
+
 import java.io.IOException;
 import java.net.*;
 
@@ -33,17 +36,67 @@ abstract class Rtp {
     /* Max packet size */
     private static final int PACKET_SIZE = 8192;
 
+    /* Packets per flight recorder receive event */
+    private static final int RECEIVE_BATCH = 256;
+
     /* UDP socket */
-    private DatagramSocket socket;
+    private volatile DatagramSocket socket;
 
     /* UDP datagram packet */
     private DatagramPacket packet;
 
+    /* RTCP socket, null if RTCP is not received */
+    private volatile DatagramSocket rtcpSocket;
+
+    /* RTCP datagram packet */
+    private DatagramPacket rtcpPacket;
+
+    /* Server RTCP address, null if feedback is not sent */
+    private volatile InetSocketAddress rtcpPeer;
+
     /* Client name or IP address */
     private final String host;
 
-    /* Client port number */
-    public final int port;
+    /* Client port number, -1 until allocated */
+    private int port;
+
+    /* Port allocator, null for a fixed port */
+    private final PortAllocator allocator;
+
+    /* Allocated port pair */
+    private PortPair pair;
+
+    /* Multicast group address, null for unicast */
+    private String group;
+
+    /* Multicast group RTP and RTCP ports */
+    private int groupPort, groupRtcpPort;
+
+    /* Multicast time to live */
+    private int ttl = -1;
+
+    /* Shared group memberships while receiving multicast */
+    private MulticastGroup membership, rtcpMembership;
+
+    /* Shared port number, -1 for a port of its own */
+    private int sharedPort = -1;
+
+    /* Shared port while bound to it */
+    private SharedPort shared;
+
+    /* Expected server address and SSRC on a shared port, -1 to learn it */
+    private InetAddress source;
+    private long ssrc = -1;
+
+    /* Capture tap, null when capture is off */
+    private volatile PcapCapture capture;
+
+    /* Current receive batch, used by the receive thread only */
+    private int batchPackets;
+    private long batchBytes, batchStart;
+
+    /* Time spent handling received packets (ns), receive thread only */
+    private volatile long busyNanos;
 
     /**
      * Constructor. Build a RtpPlayer instance.
@@ -54,6 +107,20 @@ abstract class Rtp {
     Rtp(String host, int port) {
         this.host = host;
         this.port = port;
+        this.allocator = null;
+    }
+
+    /**
+     * Constructor. The RTP/RTCP port pair is taken from an allocator when the
+     * player is bound.
+     *
+     * @param host      Client name or IP address.
+     * @param allocator Port pair allocator.
+     */
+    Rtp(String host, PortAllocator allocator) {
+        this.host = host;
+        this.port = -1;
+        this.allocator = allocator;
     }
 
     /**
@@ -64,42 +131,358 @@ abstract class Rtp {
      */
     public abstract void onReceiveData(final byte[] buffer, final int len);
 
+    /**
+     * Called on receive RTCP data.
+     *
+     * @param buffer Data bytes.
+     * @param len    Data size.
+     */
+    public void onReceiveRtcp(final byte[] buffer, final int len) {
+    }
+
     /**
      * Read data from UDP socket and fire <code>onReceiveData</code> event.
      *
      * @throws IOException On I/O errors
      */
     void receive() throws IOException {
-        if (packet != null) {
-            socket.receive(packet);
-            onReceiveData(packet.getData(), packet.getLength());
+        DatagramSocket socket = this.socket;
+        if (socket == null) {
+            throw new SocketException("Socket closed");
+        }
+        socket.receive(packet);
+        tap(packet, socket.getLocalAddress(), socket.getLocalPort());
+        if (batchPackets++ == 0) {
+            batchStart = System.nanoTime();
+        }
+        batchBytes += packet.getLength();
+        if (batchPackets == RECEIVE_BATCH) {
+            RtpReceiveEvent event = new RtpReceiveEvent();
+            if (event.shouldCommit()) {
+                event.port = socket.getLocalPort();
+                event.packets = batchPackets;
+                event.bytes = batchBytes;
+                event.interval = System.nanoTime() - batchStart;
+                event.commit();
+            }
+            batchPackets = 0;
+            batchBytes = 0;
         }
+        timed(packet);
     }
 
     /**
-     * Prepare UDP datagram.
+     * Hand a packet received on a shared port or multicast group to the
+     * player.
+     *
+     * @param packet      Datagram
+     * @param destination Local address
+     * @param port        Local port
+     */
+    void deliver(DatagramPacket packet, InetAddress destination, int port) {
+        tap(packet, destination, port);
+        timed(packet);
+    }
+
+    private void timed(DatagramPacket packet) {
+        long start = System.nanoTime();
+        onReceiveData(packet.getData(), packet.getLength());
+        busyNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Get the time the receive thread spent handling packets. Compared to
+     * the elapsed time it tells how close the consumer is to falling behind
+     * the socket.
+     *
+     * @return Busy time (ns)
+     */
+    long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * Read data from RTCP socket and fire <code>onReceiveRtcp</code> event.
+     *
+     * @throws IOException On I/O errors
+     */
+    void receiveRtcp() throws IOException {
+        DatagramSocket socket = this.rtcpSocket;
+        if (socket == null) {
+            throw new SocketException("Socket closed");
+        }
+        socket.receive(rtcpPacket);
+        tap(rtcpPacket, socket.getLocalAddress(), socket.getLocalPort());
+        onReceiveRtcp(rtcpPacket.getData(), rtcpPacket.getLength());
+    }
+
+    /**
+     * Pass a received datagram to the capture tap, if any.
+     *
+     * @param packet      Received datagram
+     * @param destination Local or group address
+     * @param port        Local or group port
+     */
+    void tap(DatagramPacket packet, InetAddress destination, int port) {
+        PcapCapture capture = this.capture;
+        if (capture != null) {
+            capture.offer(packet, destination, port);
+        }
+    }
+
+    /**
+     * Replace the capture tap.
+     *
+     * @param capture Capture tap, <code>null</code> to turn capture off
+     * @return Previous capture tap
+     */
+    PcapCapture setCapture(PcapCapture capture) {
+        PcapCapture previous = this.capture;
+        this.capture = capture;
+        return previous;
+    }
+
+    /**
+     * Bind the UDP socket, allocating a port pair if an allocator is used.
+     * Called by the RTSP session before SETUP so the announced client ports
+     * are known to be free. Binding twice has no effect.
      *
-     * @throws SocketException      On error
-     * @throws UnknownHostException On error
+     * @throws IOException On error or if the allocator is exhausted
      */
-    void openUdp() throws SocketException, UnknownHostException {
-        if (host == null) {
-            socket = new DatagramSocket(port);
+    public synchronized void bind() throws IOException {
+        if (socket != null || shared != null) {
+            return;
+        }
+        if (sharedPort > 0) {
+            shared = SharedPort.open(host, sharedPort);
+            port = sharedPort;
+            return;
+        }
+        if (allocator != null) {
+            pair = allocator.allocate(host);
+            port = pair.getRtpPort();
+            socket = pair.getRtpSocket();
+            rtcpSocket = pair.getRtcpSocket();
         } else {
-            InetAddress address = InetAddress.getByName(host);
+            InetAddress address = host == null ? null : InetAddress.getByName(host);
             socket = new DatagramSocket(port, address);
+            try {
+                rtcpSocket = new DatagramSocket(port + 1, address);
+            } catch (SocketException ex) {
+                // RTCP is optional with fixed ports
+                rtcpSocket = null;
+            }
         }
 
         packet = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+        rtcpPacket = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
     }
 
     /**
-     * Close UDP socket.
+     * Prepare UDP datagram.
+     *
+     * @throws IOException On error
      */
-    void closeUdp() {
-        if (socket != null) {
+    void openUdp() throws IOException {
+        bind();
+    }
+
+    /**
+     * Close UDP socket. An allocated port pair is returned to the allocator.
+     */
+    synchronized void closeUdp() {
+        if (shared != null) {
+            shared.unsubscribe(this);
+            shared.release();
+            shared = null;
+            port = -1;
+        } else if (pair != null) {
+            pair.close();
+            pair = null;
+            port = -1;
+        } else if (socket != null) {
             socket.close();
-            socket = null;
+            if (rtcpSocket != null) {
+                rtcpSocket.close();
+            }
         }
+        socket = null;
+        rtcpSocket = null;
+    }
+
+    /**
+     * Send a RTCP packet to the server from the client RTCP port.
+     *
+     * @param buffer Data bytes.
+     * @param len    Data size.
+     * @return <code>true</code> if sent, <code>false</code> if there is no
+     * RTCP socket or server address
+     * @throws IOException On I/O errors
+     */
+    boolean sendRtcp(byte[] buffer, int len) throws IOException {
+        SharedPort shared = this.shared;
+        DatagramSocket socket = shared != null ? shared.getRtcpSocket() : this.rtcpSocket;
+        InetSocketAddress peer = this.rtcpPeer;
+        if (socket == null || peer == null) {
+            return false;
+        }
+        socket.send(new DatagramPacket(buffer, len, peer));
+        return true;
+    }
+
+    /**
+     * Set the server RTCP address feedback is sent to. Set by the RTSP
+     * session from the server_port of the unicast transport.
+     *
+     * @param peer Server RTCP address, <code>null</code> to disable feedback
+     */
+    public void setRtcpPeer(InetSocketAddress peer) {
+        this.rtcpPeer = peer;
+    }
+
+    /**
+     * Check if RTCP is received on the unicast client port + 1.
+     *
+     * @return <code>true</code> if a RTCP socket is bound
+     */
+    boolean hasRtcp() {
+        return rtcpSocket != null;
+    }
+
+    /**
+     * Get the client RTP port.
+     *
+     * @return Port number, -1 if not allocated yet
+     */
+    public synchronized int getPort() {
+        return port;
+    }
+
+    /**
+     * Receive on a port shared with other players instead of a port pair of
+     * its own. Set before binding.
+     *
+     * @param port Shared RTP port, RTCP uses the next one, -1 to disable
+     */
+    public synchronized void setSharedPort(int port) {
+        this.sharedPort = port;
+    }
+
+    /**
+     * Check if the player receives on a shared port.
+     *
+     * @return <code>true</code> if a shared port is set
+     */
+    public synchronized boolean isShared() {
+        return sharedPort > 0;
+    }
+
+    /**
+     * Set the expected sender of the stream, used to route packets of a
+     * shared port.
+     *
+     * @param source Server address, null for any
+     * @param ssrc   SSRC announced by the server, -1 to learn it
+     */
+    public synchronized void setSource(InetAddress source, long ssrc) {
+        this.source = source;
+        this.ssrc = ssrc;
+    }
+
+    /**
+     * Start routing packets of the shared port to the player. The RTX SSRC
+     * is taken from the FID group of the media SSRC, or of the only group
+     * when the media SSRC is not known.
+     *
+     * @param payloadTypes    Media payload types expected while learning
+     *                        the SSRC
+     * @param rtxPayloadTypes RTX payload types expected while learning the
+     *                        SSRC
+     * @param fid             Media and RTX SSRC pairs of a=ssrc-group:FID
+     * @throws IOException on error binding the shared port
+     */
+    synchronized void joinShared(int[] payloadTypes, int[] rtxPayloadTypes, long[] fid)
+            throws IOException {
+        bind();
+        long media = ssrc;
+        long rtx = -1;
+        for (int i = 0; i + 1 < fid.length; i += 2) {
+            if (media == fid[i] || (media == -1 && fid.length == 2)) {
+                media = fid[i];
+                rtx = fid[i + 1];
+            }
+        }
+        shared.subscribe(this, source, media, rtx, payloadTypes, rtxPayloadTypes);
+    }
+
+    /**
+     * Subscribe to the shared membership of the multicast group. Packets are
+     * delivered to <code>onReceiveData</code> by the group receive thread,
+     * timed like unicast packets.
+     *
+     * @throws IOException On error
+     */
+    void joinGroup() throws IOException {
+        if (membership == null) {
+            membership = MulticastGroup.join(host, group, groupPort, ttl, this, false);
+            try {
+                rtcpMembership = MulticastGroup.join(host, group, groupRtcpPort,
+                        ttl, this, true);
+            } catch (IOException ex) {
+                // RTCP is optional
+                rtcpMembership = null;
+            }
+        }
+    }
+
+    /**
+     * Unsubscribe from the multicast group.
+     */
+    void leaveGroup() {
+        if (membership != null) {
+            membership.leave(this);
+            membership = null;
+        }
+        if (rtcpMembership != null) {
+            rtcpMembership.leave(this);
+            rtcpMembership = null;
+        }
+    }
+
+    /**
+     * Receive from a multicast group instead of the unicast client port. Set
+     * by the RTSP session when the server accepted a multicast transport.
+     *
+     * @param group Group address, <code>null</code> to switch back to unicast
+     * @param port  Group RTP port
+     * @param ttl   Time to live, -1 if unknown
+     */
+    public void setMulticast(String group, int port, int ttl) {
+        setMulticast(group, port, -1, ttl);
+    }
+
+    /**
+     * Receive from a multicast group instead of the unicast client port.
+     *
+     * @param group    Group address, <code>null</code> to switch back to
+     *                 unicast
+     * @param port     Group RTP port
+     * @param rtcpPort Group RTCP port, -1 for the next port
+     * @param ttl      Time to live, -1 if unknown
+     */
+    public void setMulticast(String group, int port, int rtcpPort, int ttl) {
+        this.group = group;
+        this.groupPort = port;
+        this.groupRtcpPort = rtcpPort != -1 ? rtcpPort : port + 1;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Check if the player receives from a multicast group.
+     *
+     * @return <code>true</code> for multicast <code>false</code> for unicast
+     */
+    public boolean isMulticast() {
+        return group != null;
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+/**
+ * Maps the RTP timestamps of a stream to wallclock time.
+ * <p>
+ * Timestamps are extended to 64 bits and mapped through the last RTCP sender
+ * report, so streams of the same sender share a time line. Until the first
+ * report the first timestamp is anchored to the local arrival time.
+ *
+ * @author Marius
+ */
+public class RtpClock {
+
+    /* Default clock rate */
+    private static final int DEFAULT_CLOCK_RATE = 90000;
+
+    /* RTP clock rate */
+    private int clockRate = DEFAULT_CLOCK_RATE;
+
+    /* Timestamp extension */
+    private final RtpTimestampUnwrapper unwrapper = new RtpTimestampUnwrapper();
+
+    /* Reference extended RTP timestamp, -1 before the first mapping */
+    private long reference = -1;
+
+    /* Wallclock of the reference timestamp in microseconds */
+    private long wallclock;
+
+    /* Mapped by a sender report */
+    private boolean synchronizedClock;
+
+    /* Sender reports received */
+    private long reports;
+
+    /**
+     * Set the RTP clock rate and forget the current mapping.
+     *
+     * @param clockRate Clock rate, the default 90 kHz is kept if not positive
+     */
+    public synchronized void setClockRate(int clockRate) {
+        this.clockRate = clockRate > 0 ? clockRate : DEFAULT_CLOCK_RATE;
+        unwrapper.reset();
+        reference = -1;
+        synchronizedClock = false;
+    }
+
+    public synchronized int getClockRate() {
+        return clockRate;
+    }
+
+    /**
+     * Update the mapping from a sender report.
+     *
+     * @param report Sender report
+     */
+    public synchronized void onSenderReport(RtcpSenderReport report) {
+        reference = unwrapper.unwrap(report.getRtpTimestamp());
+        wallclock = report.getWallclock();
+        synchronizedClock = true;
+        reports++;
+    }
+
+    /**
+     * Extend a RTP timestamp to 64 bits.
+     *
+     * @param timestamp Unsigned 32 bits RTP timestamp
+     * @return Extended timestamp
+     */
+    public synchronized long unwrap(long timestamp) {
+        return unwrapper.unwrap(timestamp);
+    }
+
+    /**
+     * Map a RTP timestamp to wallclock time.
+     *
+     * @param timestamp Unsigned 32 bits RTP timestamp
+     * @return Microseconds since 1970
+     */
+    public synchronized long toWallclock(long timestamp) {
+        long extended = unwrapper.unwrap(timestamp);
+        if (reference == -1) {
+            reference = extended;
+            wallclock = System.currentTimeMillis() * 1000L;
+        }
+        return wallclock + (extended - reference) * 1_000_000L / clockRate;
+    }
+
+    /**
+     * Check if the mapping comes from a sender report.
+     *
+     * @return <code>true</code> if mapped by RTCP <code>false</code> if by arrival time
+     */
+    public synchronized boolean isSynchronized() {
+        return synchronizedClock;
+    }
+
+    public synchronized long getReports() {
+        return reports;
+    }
+}
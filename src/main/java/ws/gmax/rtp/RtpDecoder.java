@@ -223,6 +223,12 @@ public class RtpDecoder {
     /* Payload offset or header size */
     private int offset;
 
+    /* Payload size without padding */
+    private int length;
+
+    /* Packet bytes of the last parsed packet */
+    private byte[] packet;
+
     /* RTP header bytes */
     public byte[] header;
 
@@ -230,7 +236,7 @@ public class RtpDecoder {
     public byte[] payload;
 
     /* Byte order */
-    private final ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+    private final ByteOrder order = ByteOrder.BIG_ENDIAN;
 
     /**
      * Decode RTP packet.
@@ -240,6 +246,25 @@ public class RtpDecoder {
      * @return Decoded RTP packet.
      */
     RtpDecoder decode(byte[] packet, int len) {
+        parse(packet, len);
+        // split packet into header and payload
+        header = Arrays.copyOf(packet, offset);
+        payload = Arrays.copyOfRange(packet, offset, offset + length);
+        //
+        return this;
+    }
+
+    /**
+     * Decode RTP header only. The payload is not copied, it stays in the
+     * packet buffer at <code>getPayloadOffset()</code> and is valid until the
+     * buffer is reused by the next receive.
+     *
+     * @param packet RTP packet bytes
+     * @param len    RTP packet size
+     * @return Decoded RTP packet.
+     */
+    RtpDecoder parse(byte[] packet, int len) {
+        this.packet = packet;
         // decode first byte
         V = (packet[0] & 0b11000000) >>> 6;
         P = (packet[0] & 0b00100000) != 0;
@@ -248,14 +273,14 @@ public class RtpDecoder {
         offset = RTP_HEADER_SIZE + CC * 4;
         // check for header extension
         if (X) {
-            int extension = 4 + converter(packet, offset + 2, 2).getShort();
+            int extension = 4 + 4 * (converter(packet, offset + 2, 2).getShort() & 0xFFFF);
             offset += extension;
         }
         // decode second byte
         M = (packet[1] & 0b10000000) != 0;
         PT = packet[1] & 0b01111111;
         // decode the rest
-        SEQN = converter(packet, 2, 2).getShort();
+        SEQN = converter(packet, 2, 2).getShort() & 0xFFFF;
         TS = converter(packet, 4, 4).getInt();
         SSRC = converter(packet, 8, 4).getInt();
         // build the list of CSRC
@@ -265,15 +290,64 @@ public class RtpDecoder {
                 CSRC[i] = converter(packet, k, 4).getInt();
             }
         }
-        // check for padding   
-        int padding = P ? packet[len - 1] : 0;
-        // split packet into header and payload
-        header = Arrays.copyOf(packet, offset);
-        payload = Arrays.copyOf(packet, len - padding - offset);
+        // check for padding
+        int padding = P ? packet[len - 1] & 0xFF : 0;
+        length = Math.max(0, len - padding - offset);
         //
         return this;
     }
 
+    public int getVersion() {
+        return V;
+    }
+
+    public boolean isMarker() {
+        return M;
+    }
+
+    public int getPayloadType() {
+        return PT;
+    }
+
+    /**
+     * Get sequence number.
+     *
+     * @return Unsigned 16 bits sequence number
+     */
+    public int getSequenceNumber() {
+        return SEQN;
+    }
+
+    /**
+     * Get timestamp.
+     *
+     * @return Unsigned 32 bits timestamp
+     */
+    public long getTimestamp() {
+        return TS & 0xFFFFFFFFL;
+    }
+
+    public int getSsrc() {
+        return SSRC;
+    }
+
+    /**
+     * Get packet buffer holding the payload.
+     *
+     * @return Packet bytes
+     */
+    public byte[] getPacket() {
+        return packet;
+    }
+
+    public int getPayloadOffset() {
+        return offset;
+    }
+
+    public int getPayloadLength() {
+        return length;
+    }
+
     /**
      * Bytes converter.
      *
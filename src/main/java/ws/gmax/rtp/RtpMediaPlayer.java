@@ -0,0 +1,416 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.buffer.MemoryAccount;
+import ws.gmax.sdp.MediaDescription;
+import ws.gmax.sdp.RtpMap;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RTP player depacketizing H.264, H.265 and AAC streams. The depacketizer is
+ * selected from the media description negotiated by RTSP, access units are
+ * delivered to the registered listeners on the player thread.
+ * <p>
+ * When the media advertises AVPF with NACK feedback, packets go through a
+ * reorder buffer and every detected loss is requested again from the server
+ * with a RFC 4585 Generic NACK. Retransmissions are merged back into the
+ * reorder buffer, either as original packets or as RFC 4588 RTX packets.
+ *
+ * @author Marius
+ */
+public class RtpMediaPlayer extends RtpPlayer {
+
+    /* Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RtpMediaPlayer.class);
+
+    /* Reorder window in packets */
+    private static final int REORDER_CAPACITY = 512;
+
+    /* Max wait for a retransmission in milliseconds */
+    private static final long REORDER_TIMEOUT = 150;
+
+    /* Reorder buffers expiry period in milliseconds */
+    private static final long EXPIRY_PERIOD = 50;
+
+    /* Expires the reorder buffers of all players while no packet arrives */
+    private static final ScheduledExecutorService EXPIRY =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "reorder-expiry");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /* Access units pool */
+    private final AccessUnitPool pool;
+
+    /* Off-heap memory held by the stream */
+    private MemoryAccount account;
+
+    /* Video depacketizer */
+    private Depacketizer depacketizer;
+
+    /* Audio depacketizer */
+    private AacDepacketizer aacDepacketizer;
+
+    /* Video access units receiver */
+    private AccessUnitListener accessUnitListener;
+
+    /* Audio frames receiver */
+    private AacFrameListener aacFrameListener;
+
+    /* Video packet filter, null to process every packet */
+    private PacketFilter packetFilter;
+
+    /* Reorder buffer, null if NACK feedback is not used */
+    private RtpReorderBuffer reorder;
+
+    /* Periodic expiry of the reorder buffer, null if not started */
+    private ScheduledFuture<?> expiry;
+
+    /* RTX payload type, -1 if none */
+    private int rtxPayloadType = -1;
+
+    /* Media payload type */
+    private int payloadType;
+
+    /* Receiver SSRC sent in feedback */
+    private final int ssrc = ThreadLocalRandom.current().nextInt();
+
+    /* Media source SSRC, from the last packet */
+    private int mediaSsrc;
+
+    /* Reusable NACK and RTX buffers */
+    private final byte[] nack = new byte[RtcpFeedback.size(RtcpFeedback.MAX_NACKS)];
+    private byte[] rtx = new byte[2048];
+
+    /* Statistics */
+    private long nacks, retransmissions;
+
+    /**
+     * Constructor.
+     *
+     * @param host Client name or IP address.
+     * @param port Client port number.
+     * @param pool Access units pool.
+     */
+    public RtpMediaPlayer(String host, int port, AccessUnitPool pool) {
+        super(host, port);
+        this.pool = pool;
+    }
+
+    /**
+     * Constructor using allocated ports.
+     *
+     * @param host      Client name or IP address.
+     * @param allocator Port pair allocator.
+     * @param pool      Access units pool.
+     */
+    public RtpMediaPlayer(String host, PortAllocator allocator, AccessUnitPool pool) {
+        super(host, allocator);
+        this.pool = pool;
+    }
+
+    public void setAccessUnitListener(AccessUnitListener listener) {
+        this.accessUnitListener = listener;
+        if (depacketizer != null) {
+            depacketizer.setListener(listener);
+        }
+    }
+
+    public void setAacFrameListener(AacFrameListener listener) {
+        this.aacFrameListener = listener;
+        if (aacDepacketizer != null) {
+            aacDepacketizer.setListener(listener);
+        }
+    }
+
+    /**
+     * Select the depacketizer of the negotiated codec.
+     *
+     * @param media Media description
+     */
+    @Override
+    public void setMediaDescription(MediaDescription media) {
+        super.setMediaDescription(media);
+        payloadType = media.getPayloadType();
+        rtxPayloadType = rtxPayloadType(media);
+        if (isNackSupported(media)) {
+            reorder = new RtpReorderBuffer(REORDER_CAPACITY, REORDER_TIMEOUT, this::deliver);
+            reorder.setLossListener(this::onLoss);
+        } else {
+            reorder = null;
+        }
+        if (Codec.of(media.getEncoding()) == Codec.AAC) {
+            aacDepacketizer = AacDepacketizer.fromSdp(media);
+            aacDepacketizer.setStream(media.getMedia() + ":" + getPort());
+            aacDepacketizer.setListener(aacFrameListener);
+        } else {
+            depacketizer = Depacketizer.fromSdp(media, pool);
+            if (depacketizer != null) {
+                if (account == null) {
+                    account = new MemoryAccount(media.getMedia() + ":" + getPort());
+                }
+                depacketizer.setMemoryAccount(account);
+                depacketizer.setPacketFilter(packetFilter);
+                depacketizer.setListener(accessUnitListener);
+            }
+        }
+    }
+
+    /**
+     * Filter video packets before depacketization, a
+     * <code>KeyframeFilter</code> turns the player into a keyframe only
+     * ingest.
+     *
+     * @param filter Packet filter, <code>null</code> to process every packet
+     */
+    public void setPacketFilter(PacketFilter filter) {
+        this.packetFilter = filter;
+        if (depacketizer != null) {
+            depacketizer.setPacketFilter(filter);
+        }
+    }
+
+    public PacketFilter getPacketFilter() {
+        return packetFilter;
+    }
+
+    /**
+     * Get the off-heap memory account of the stream.
+     *
+     * @return Account or <code>null</code> before the video media is set
+     */
+    public MemoryAccount getMemoryAccount() {
+        return account;
+    }
+
+    /**
+     * Charge the stream memory to a given account, must be called before
+     * the media description is set.
+     *
+     * @param account Account
+     */
+    public void setMemoryAccount(MemoryAccount account) {
+        this.account = account;
+    }
+
+    /**
+     * Get the video depacketizer.
+     *
+     * @return Depacketizer or <code>null</code> for audio or unsupported codecs
+     */
+    public Depacketizer getDepacketizer() {
+        return depacketizer;
+    }
+
+    /**
+     * Get the audio depacketizer.
+     *
+     * @return Depacketizer or <code>null</code> for video or unsupported codecs
+     */
+    public AacDepacketizer getAacDepacketizer() {
+        return aacDepacketizer;
+    }
+
+    /**
+     * Check if the server accepts NACK feedback (RTP/AVPF profile or a
+     * rtcp-fb nack attribute).
+     *
+     * @param media Media description
+     * @return <code>true</code> if NACKs can be sent
+     */
+    static boolean isNackSupported(MediaDescription media) {
+        if (media.getProtocol().toUpperCase().contains("AVPF")) {
+            return true;
+        }
+        String pt = String.valueOf(media.getPayloadType());
+        for (String value : media.getAttributes("rtcp-fb")) {
+            String[] parts = value.trim().split("\\s+");
+            if (parts.length == 2 && "nack".equalsIgnoreCase(parts[1])
+                    && ("*".equals(parts[0]) || pt.equals(parts[0]))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the RTX payload type associated with the media payload type.
+     *
+     * @param media Media description
+     * @return RTX payload type or -1
+     */
+    private static int rtxPayloadType(MediaDescription media) {
+        String apt = String.valueOf(media.getPayloadType());
+        for (int pt : media.getPayloadTypes()) {
+            RtpMap map = media.getRtpMap(pt);
+            if (map != null && "rtx".equalsIgnoreCase(map.getEncoding())
+                    && apt.equals(media.getFmtp(pt).get("apt"))) {
+                return pt;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Request lost packets with a Generic NACK.
+     *
+     * @param seqs  Lost sequence numbers
+     * @param count Lost packets count
+     */
+    private void onLoss(int[] seqs, int count) {
+        for (int i = 0; i < count; i += RtcpFeedback.MAX_NACKS) {
+            int len = RtcpFeedback.nack(nack, ssrc, mediaSsrc, seqs, i, count - i);
+            try {
+                if (sendRtcp(nack, len)) {
+                    nacks++;
+                }
+            } catch (IOException ex) {
+                LOGGER.warn("NACK: {}", ex.getMessage());
+                record("NACK failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Restore the original packet of a RTX retransmission: the original
+     * sequence number (OSN) prefixing the payload replaces the sequence
+     * number and the media payload type replaces the RTX one.
+     *
+     * @param buffer RTX packet
+     * @param len    Packet length
+     * @return Restored packet length, -1 if invalid
+     */
+    private int unwrapRtx(byte[] buffer, int len) {
+        RtpDecoder packet = parse(buffer, len);
+        int off = packet.getPayloadOffset();
+        if (packet.getPayloadLength() < 2) {
+            return -1;
+        }
+        if (rtx.length < len) {
+            rtx = new byte[len];
+        }
+        System.arraycopy(buffer, 0, rtx, 0, off);
+        System.arraycopy(buffer, off + 2, rtx, off, len - off - 2);
+        rtx[1] = (byte) ((buffer[1] & 0x80) | payloadType);
+        rtx[2] = buffer[off];
+        rtx[3] = buffer[off + 1];
+        return len - 2;
+    }
+
+    /**
+     * Depacketize a packet in sequence order.
+     *
+     * @param buffer Packet bytes
+     * @param len    Packet length
+     */
+    private void deliver(byte[] buffer, int len) {
+        if (depacketizer != null) {
+            depacketizer.depacketize(parse(buffer, len));
+        } else if (aacDepacketizer != null) {
+            aacDepacketizer.depacketize(parse(buffer, len));
+        }
+    }
+
+    /**
+     * Get number of NACK messages sent.
+     *
+     * @return NACKs count
+     */
+    public long getNacks() {
+        return nacks;
+    }
+
+    /**
+     * Get number of RTX retransmissions received.
+     *
+     * @return Retransmissions count
+     */
+    public long getRetransmissions() {
+        return retransmissions;
+    }
+
+    /**
+     * Get the reorder buffer.
+     *
+     * @return Reorder buffer or <code>null</code> if NACK feedback is not used
+     */
+    public RtpReorderBuffer getReorderBuffer() {
+        return reorder;
+    }
+
+    /**
+     * Start the player and the periodic expiry of its reorder buffer.
+     */
+    @Override
+    public synchronized void start() {
+        super.start();
+        RtpReorderBuffer buffer = reorder;
+        if (buffer != null && expiry == null) {
+            expiry = EXPIRY.scheduleAtFixedRate(buffer::poll, EXPIRY_PERIOD, EXPIRY_PERIOD,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        super.stop();
+    }
+
+    @Override
+    public void onReceiveData(byte[] buffer, int len) {
+        if (reorder != null) {
+            if (len < 12) {
+                return;
+            }
+            if ((buffer[1] & 0x7F) == rtxPayloadType) {
+                len = unwrapRtx(buffer, len);
+                if (len > 0) {
+                    retransmissions++;
+                    reorder.push(rtx, len);
+                }
+                return;
+            }
+            mediaSsrc = ((buffer[8] & 0xFF) << 24) | ((buffer[9] & 0xFF) << 16)
+                    | ((buffer[10] & 0xFF) << 8) | (buffer[11] & 0xFF);
+            reorder.push(buffer, len);
+            return;
+        }
+        if (depacketizer != null) {
+            depacketizer.depacketize(parse(buffer, len));
+        } else if (aacDepacketizer != null) {
+            aacDepacketizer.depacketize(parse(buffer, len));
+        }
+    }
+}
@@ -22,7 +22,15 @@ package ws.gmax.rtp;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ws.gmax.pcap.PcapCapture;
+import ws.gmax.sdp.MediaDescription;
+import ws.gmax.sdp.RtpMap;
+import ws.gmax.trace.EventRing;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * An abstract class implementing an RTP (UDP) client.
@@ -37,6 +45,24 @@ public abstract class RtpPlayer extends Rtp implements Runnable {
     /* Exit run loop condition */
     private volatile boolean terminated = false;
 
+    /* Reusable header decoder, used by one thread at a time */
+    private final RtpDecoder parser = new RtpDecoder();
+
+    /* Media description negotiated by RTSP */
+    private MediaDescription media;
+
+    /* Stream clock, mapped by RTCP sender reports */
+    private final RtpClock clock = new RtpClock();
+
+    /* Reusable sender report */
+    private final RtcpSenderReport report = new RtcpSenderReport();
+
+    /* Session event ring, null if not attached to a session */
+    private volatile EventRing events;
+
+    /* Player capturing packets, one stream at a time */
+    private static final AtomicReference<RtpPlayer> CAPTURING = new AtomicReference<>();
+
     /**
      * Constructor. Build a RtpPlayer instance.
      *
@@ -47,19 +73,106 @@ public abstract class RtpPlayer extends Rtp implements Runnable {
         super(host, port);
     }
 
+    /**
+     * Constructor. Build a RtpPlayer instance using allocated ports.
+     *
+     * @param host      Client name or IP address.
+     * @param allocator Port pair allocator.
+     */
+    public RtpPlayer(final String host, final PortAllocator allocator) {
+        super(host, allocator);
+    }
+
     /**
      * Stop player thread.
      */
     public void stop() {
         terminated = true;
-        // closeUdp();
+        record("stop port " + getPort());
+        stopCapture();
+        leaveGroup();
+        closeUdp();
     }
 
     /**
-     * Start player thread.
+     * Start player thread. A multicast player joins the shared group
+     * membership instead and needs no thread of its own, neither does a
+     * player receiving on a shared port.
      */
     public void start() {
-        new Thread(this).start();
+        if (isMulticast()) {
+            try {
+                joinGroup();
+                record("joined multicast group");
+            } catch (IOException ex) {
+                LOGGER.error("Error", ex);
+                record("join failed: " + ex);
+            }
+        } else if (isShared()) {
+            try {
+                joinShared(payloadTypes(false), payloadTypes(true), fid());
+                record("joined shared port " + getPort());
+            } catch (IOException ex) {
+                LOGGER.error("Error", ex);
+                record("join failed: " + ex);
+            }
+        } else {
+            record("start port " + getPort());
+            new Thread(this).start();
+            if (hasRtcp()) {
+                new Thread(this::runRtcp).start();
+            }
+        }
+    }
+
+    /**
+     * Get the media or RTX payload types of the media description.
+     *
+     * @param rtx <code>true</code> for RTX payload types
+     * @return Payload types, empty if unknown
+     */
+    private int[] payloadTypes(boolean rtx) {
+        MediaDescription media = this.media;
+        if (media == null) {
+            return new int[0];
+        }
+        int[] types = new int[media.getPayloadTypes().size()];
+        int count = 0;
+        for (int pt : media.getPayloadTypes()) {
+            RtpMap map = media.getRtpMap(pt);
+            if (rtx == (map != null && "rtx".equalsIgnoreCase(map.getEncoding()))) {
+                types[count++] = pt;
+            }
+        }
+        return Arrays.copyOf(types, count);
+    }
+
+    /**
+     * Get the SSRC pairs of a=ssrc-group:FID (RFC 5576), media then RTX.
+     *
+     * @return SSRC pairs, empty if none
+     */
+    private long[] fid() {
+        MediaDescription media = this.media;
+        if (media == null) {
+            return new long[0];
+        }
+        long[] pairs = new long[0];
+        for (String group : media.getAttributes("ssrc-group")) {
+            String[] parts = group.trim().split("\\s+");
+            if (parts.length == 3 && "FID".equals(parts[0])) {
+                try {
+                    long ssrc = Long.parseLong(parts[1]);
+                    long rtx = Long.parseLong(parts[2]);
+                    pairs = Arrays.copyOf(pairs, pairs.length + 2);
+                    pairs[pairs.length - 2] = ssrc;
+                    pairs[pairs.length - 1] = rtx;
+                } catch (NumberFormatException ex) {
+                    // ignore the group
+                }
+            }
+        }
+        return pairs;
     }
 
     /**
@@ -73,12 +186,50 @@ public abstract class RtpPlayer extends Rtp implements Runnable {
                 receive();
             }
         } catch (Exception ex) {
-            LOGGER.error("Error", ex);
+            if (!terminated) {
+                LOGGER.error("Error", ex);
+                record("receive failed: " + ex);
+                EventRing ring = events;
+                if (ring != null) {
+                    ring.dump(LOGGER, "Player on port " + getPort() + " failed");
+                }
+            }
         } finally {
             closeUdp();
         }
     }
 
+    /**
+     * Read RTCP packets until the player is stopped.
+     */
+    private void runRtcp() {
+        try {
+            while (!terminated) {
+                receiveRtcp();
+            }
+        } catch (Exception ex) {
+            if (!terminated) {
+                LOGGER.error("Error", ex);
+                record("RTCP receive failed: " + ex);
+            }
+        }
+    }
+
+    /**
+     * Map the stream clock from RTCP sender reports.
+     *
+     * @param buffer Data bytes.
+     * @param len    Data size.
+     */
+    @Override
+    public void onReceiveRtcp(byte[] buffer, int len) {
+        synchronized (report) {
+            if (report.parse(buffer, 0, len)) {
+                clock.onSenderReport(report);
+            }
+        }
+    }
+
     /**
      * Decode RTP packet.
      *
@@ -89,4 +240,118 @@ public abstract class RtpPlayer extends Rtp implements Runnable {
     protected RtpDecoder decode(byte[] packet, int len) {
         return new RtpDecoder().decode(packet, len);
     }
+
+    /**
+     * Decode RTP header without copying the payload. The returned decoder is
+     * reused for every packet.
+     *
+     * @param packet RTP packet bytes.
+     * @param len    Size of packets.
+     * @return Decoded packet.
+     */
+    protected RtpDecoder parse(byte[] packet, int len) {
+        return parser.parse(packet, len);
+    }
+
+    /**
+     * Called by the RTSP session with the media description of the stream
+     * before the player is started.
+     *
+     * @param media Media description
+     */
+    public void setMediaDescription(MediaDescription media) {
+        this.media = media;
+        clock.setClockRate(media.getClockRate());
+    }
+
+    public MediaDescription getMediaDescription() {
+        return media;
+    }
+
+    /**
+     * Get the stream clock mapping RTP timestamps to wallclock time.
+     *
+     * @return Stream clock
+     */
+    public RtpClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Attach the player to the event ring of its session. Player start, stop
+     * and errors are recorded, the ring is dumped when receiving fails.
+     *
+     * @param events Session event ring, <code>null</code> to detach
+     */
+    public void setEventRing(EventRing events) {
+        this.events = events;
+    }
+
+    /**
+     * Record an event in the session event ring, if attached.
+     *
+     * @param event Event text
+     */
+    protected void record(String event) {
+        EventRing ring = events;
+        if (ring != null) {
+            ring.record(event);
+        }
+    }
+
+    /**
+     * Start capturing received RTP and RTCP datagrams to rotating pcap files
+     * named after the client port. Capture runs on one stream at a time, a
+     * capture running on another player is stopped.
+     *
+     * @param directory Output directory
+     */
+    public void startCapture(Path directory) {
+        startCapture(new PcapCapture(directory, "rtp-" + getPort()));
+    }
+
+    /**
+     * Start capturing received datagrams with a configured capture tap.
+     *
+     * @param capture Capture tap
+     */
+    public void startCapture(PcapCapture capture) {
+        RtpPlayer previous = CAPTURING.getAndSet(this);
+        if (previous != null && previous != this) {
+            PcapCapture running = previous.setCapture(null);
+            if (running != null) {
+                running.close();
+            }
+        }
+        capture.start();
+        PcapCapture running = setCapture(capture);
+        if (running != null) {
+            running.close();
+        }
+        LOGGER.info("Capturing port {}", getPort());
+        record("capture started");
+    }
+
+    /**
+     * Stop capturing, buffered datagrams are written before the file is
+     * closed.
+     */
+    public void stopCapture() {
+        CAPTURING.compareAndSet(this, null);
+        PcapCapture capture = setCapture(null);
+        if (capture != null) {
+            capture.close();
+            LOGGER.info("Captured port {}: {} datagrams, {} dropped", getPort(),
+                    capture.getCaptured(), capture.getDropped());
+        }
+    }
+
+    /**
+     * Check if this player is capturing.
+     *
+     * @return <code>true</code> if capturing
+     */
+    public boolean isCapturing() {
+        return CAPTURING.get() == this;
+    }
 }
@@ -0,0 +1,344 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+/**
+ * Restores the sequence order of RTP packets.
+ * <p>
+ * In order packets are handed over without a copy. Packets arriving after a
+ * gap are copied into a window of slots until the missing ones arrive, late
+ * or retransmitted, or until the oldest gap waits longer than the timeout;
+ * the missing packets are then skipped and the depacketizer sees the loss.
+ * Newly detected gaps are reported to a loss listener, used to send NACKs.
+ * <p>
+ * As in RFC 3550 A.1 a packet far outside the window, behind by more than
+ * the misorder limit or ahead by more than the dropout limit, is dropped
+ * unless the next packet follows it, the sender then restarted its sequence
+ * and the buffer is flushed and resynchronized. Waiting packets are also
+ * released by <code>poll</code>, so they do not wait for the next arrival.
+ *
+ * @author Marius
+ */
+public class RtpReorderBuffer {
+
+    /**
+     * Receives packets in sequence order.
+     */
+    public interface Handler {
+
+        /**
+         * Called for every packet in order. The bytes are valid only during
+         * the call.
+         *
+         * @param buf Packet bytes
+         * @param len Packet length
+         */
+        void onPacket(byte[] buf, int len);
+    }
+
+    /**
+     * Receives newly detected losses.
+     */
+    public interface LossListener {
+
+        /**
+         * Called when a gap is detected.
+         *
+         * @param seqs  Missing sequence numbers in ascending order
+         * @param count Missing packets count
+         */
+        void onLoss(int[] seqs, int count);
+    }
+
+    /* Max packets behind the expected one still taken as late */
+    private static final int MAX_MISORDER = 100;
+
+    /* Max packets ahead of the expected one taken as a loss */
+    private static final int MAX_DROPOUT = 3000;
+
+    /* Packets receiver */
+    private final Handler handler;
+
+    /* Losses receiver */
+    private LossListener lossListener;
+
+    /* Window size (power of two) and mask */
+    private final int capacity, mask;
+
+    /* Max wait for a missing packet in nanoseconds */
+    private final long timeout;
+
+    /* Slots by sequence number, length 0 if empty */
+    private final byte[][] slots;
+    private final int[] lengths;
+
+    /* Time a missing packet was detected */
+    private final long[] missingSince;
+
+    /* Reusable losses list */
+    private final int[] losses;
+
+    /* Next sequence number to deliver, -1 before the first packet */
+    private int expected = -1;
+
+    /* Sequence number following the highest received */
+    private int highest;
+
+    /* Buffered packets */
+    private int buffered;
+
+    /* Sequence number following a packet outside the window, -1 if none */
+    private int badSeq = -1;
+
+    /* Statistics */
+    private long reordered, recovered, skipped, late, resyncs;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Window size in packets, rounded up to a power of two
+     * @param timeout  Max wait for a missing packet in milliseconds
+     * @param handler  Packets receiver
+     */
+    public RtpReorderBuffer(int capacity, long timeout, Handler handler) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.timeout = timeout * 1_000_000L;
+        this.handler = handler;
+        this.slots = new byte[this.capacity][];
+        this.lengths = new int[this.capacity];
+        this.missingSince = new long[this.capacity];
+        this.losses = new int[this.capacity];
+    }
+
+    public void setLossListener(LossListener lossListener) {
+        this.lossListener = lossListener;
+    }
+
+    /**
+     * Push a RTP packet.
+     *
+     * @param buf Packet bytes
+     * @param len Packet length
+     */
+    public void push(byte[] buf, int len) {
+        if (len < 12) {
+            return;
+        }
+        push(buf, len, ((buf[2] & 0xFF) << 8) | (buf[3] & 0xFF));
+    }
+
+    /**
+     * Push a RTP packet.
+     *
+     * @param buf Packet bytes
+     * @param len Packet length
+     * @param seq Sequence number
+     */
+    public synchronized void push(byte[] buf, int len, int seq) {
+        long now = System.nanoTime();
+        if (expected == -1) {
+            expected = seq;
+            highest = seq;
+        }
+        int delta = (seq - expected) & 0xFFFF;
+        if (delta > MAX_DROPOUT && delta < 0x10000 - MAX_MISORDER) {
+            if (seq != badSeq) {
+                // wait for the next packet to tell a jump from a stray one
+                badSeq = (seq + 1) & 0xFFFF;
+                late++;
+                return;
+            }
+            // sequence restarted
+            flush();
+            expected = seq;
+            highest = seq;
+            delta = 0;
+            resyncs++;
+        }
+        badSeq = -1;
+        if (delta >= 0x8000) {
+            // already delivered or skipped
+            late++;
+            return;
+        }
+        if (delta == 0 && buffered == 0) {
+            handler.onPacket(buf, len);
+            expected = (seq + 1) & 0xFFFF;
+            highest = expected;
+            return;
+        }
+        if (delta >= capacity) {
+            // too far ahead, give up the oldest gaps
+            while (((seq - expected) & 0xFFFF) >= capacity) {
+                advance();
+            }
+        }
+        int slot = seq & mask;
+        if (lengths[slot] != 0) {
+            // duplicated
+            return;
+        }
+        store(slot, buf, len);
+        int ahead = (seq - highest) & 0xFFFF;
+        if (ahead < 0x8000) {
+            int count = 0;
+            for (int s = highest; s != seq; s = (s + 1) & 0xFFFF) {
+                missingSince[s & mask] = now;
+                losses[count++] = s;
+            }
+            highest = (seq + 1) & 0xFFFF;
+            if (count > 0 && lossListener != null) {
+                lossListener.onLoss(losses, count);
+            }
+            if (count > 0) {
+                reordered++;
+            }
+        } else {
+            recovered++;
+        }
+        release();
+        expire(now);
+    }
+
+    private void store(int slot, byte[] buf, int len) {
+        byte[] bytes = slots[slot];
+        if (bytes == null || bytes.length < len) {
+            bytes = new byte[Math.max(len, 1500)];
+            slots[slot] = bytes;
+        }
+        System.arraycopy(buf, 0, bytes, 0, len);
+        lengths[slot] = len;
+        buffered++;
+    }
+
+    /**
+     * Deliver the consecutive packets at the head of the window.
+     */
+    private void release() {
+        int slot;
+        while (buffered > 0 && lengths[slot = expected & mask] != 0) {
+            deliver(slot);
+            expected = (expected + 1) & 0xFFFF;
+        }
+    }
+
+    private void deliver(int slot) {
+        int len = lengths[slot];
+        lengths[slot] = 0;
+        buffered--;
+        handler.onPacket(slots[slot], len);
+    }
+
+    /**
+     * Deliver or skip the head of the window.
+     */
+    private void advance() {
+        int slot = expected & mask;
+        if (lengths[slot] != 0) {
+            deliver(slot);
+        } else if (expected != highest) {
+            skipped++;
+        }
+        expected = (expected + 1) & 0xFFFF;
+        if (((highest - expected) & 0xFFFF) >= 0x8000) {
+            highest = expected;
+        }
+    }
+
+    /**
+     * Skip missing packets waiting longer than the timeout.
+     *
+     * @param now Current time
+     */
+    private void expire(long now) {
+        while (buffered > 0 && lengths[expected & mask] == 0
+                && now - missingSince[expected & mask] >= timeout) {
+            advance();
+            release();
+        }
+    }
+
+    /**
+     * Release the packets waiting for missing ones longer than the timeout,
+     * called periodically when no packet arrives.
+     */
+    public synchronized void poll() {
+        expire(System.nanoTime());
+    }
+
+    /**
+     * Deliver all buffered packets, skipping the missing ones.
+     */
+    public synchronized void flush() {
+        while (buffered > 0) {
+            advance();
+        }
+        if (expected != -1) {
+            highest = expected;
+        }
+    }
+
+    /**
+     * Get number of gaps detected.
+     *
+     * @return Gaps count
+     */
+    public long getReordered() {
+        return reordered;
+    }
+
+    /**
+     * Get number of missing packets received late or retransmitted.
+     *
+     * @return Recovered packets
+     */
+    public long getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Get number of missing packets given up.
+     *
+     * @return Skipped packets
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Get number of packets received after being skipped or delivered.
+     *
+     * @return Late packets
+     */
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * Get number of sequence restarts.
+     *
+     * @return Resynchronizations count
+     */
+    public long getResyncs() {
+        return resyncs;
+    }
+}
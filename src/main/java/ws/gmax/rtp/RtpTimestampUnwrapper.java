@@ -0,0 +1,62 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+/**
+ * Extends 32 bits RTP timestamps to a 64 bits monotonic time line.
+ * <p>
+ * Timestamps may go backwards by less than 2^31 ticks (B-frames, reordered
+ * packets) without being taken as a wrap around.
+ *
+ * @author Marius
+ */
+public class RtpTimestampUnwrapper {
+
+    /* Highest extended timestamp seen, -1 before the first timestamp */
+    private long highest = -1;
+
+    /**
+     * Extend a timestamp.
+     *
+     * @param timestamp Unsigned 32 bits RTP timestamp
+     * @return Extended timestamp
+     */
+    public long unwrap(long timestamp) {
+        if (highest == -1) {
+            // start one cycle ahead so early backward steps stay positive
+            highest = timestamp + (1L << 32);
+            return highest;
+        }
+        int delta = (int) (timestamp - highest);
+        long extended = highest + delta;
+        if (delta > 0) {
+            highest = extended;
+        }
+        return extended;
+    }
+
+    /**
+     * Forget the time line, the next timestamp starts a new one.
+     */
+    public void reset() {
+        highest = -1;
+    }
+}
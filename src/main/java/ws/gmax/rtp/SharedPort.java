@@ -0,0 +1,449 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UDP port pair shared by many unicast players. One socket and one thread
+ * receive the RTP datagrams of every stream, another pair serves RTCP,
+ * and each datagram is routed to its player by source address and SSRC
+ * through a primitive keyed map.
+ * <p>
+ * The SSRC of a player is taken from the SETUP response when the server
+ * announces it, otherwise it is learned from the first packet of the
+ * server with an expected payload type and an unknown SSRC. RFC 4588
+ * retransmissions use a SSRC of their own, routed to the same player, taken
+ * from the a=ssrc-group:FID attribute or learned from the RTX payload type.
+ * A packet that could belong to more than one waiting player is dropped
+ * rather than guessed, such streams need an announced SSRC.
+ * <p>
+ * A SSRC is learned again when its stream says BYE or stays silent for the
+ * relearn period, so a new SSRC after an encoder restart or a new PLAY
+ * reaches the player, the RTX SSRC is then learned again as well.
+ *
+ * @author Marius
+ */
+final class SharedPort {
+
+    /* Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedPort.class);
+
+    /* Max packet size */
+    private static final int PACKET_SIZE = 8192;
+
+    /* Silence after which the SSRC of a stream may be learned again (ns) */
+    private static final long RELEARN = 2000000000L;
+
+    /* RTCP BYE packet type */
+    private static final int RTCP_BYE = 203;
+
+    /* Open ports by host:port */
+    private static final Map<String, SharedPort> PORTS = new HashMap<>();
+
+    /**
+     * Player subscription.
+     */
+    private static final class Route {
+
+        final Rtp rtp;
+        final int source;
+        final int[] payloadTypes;
+        final int[] rtxPayloadTypes;
+        long key = -1;
+        long rtxKey = -1;
+        long seen = System.nanoTime();
+        boolean warned;
+
+        Route(Rtp rtp, int source, int[] payloadTypes, int[] rtxPayloadTypes) {
+            this.rtp = rtp;
+            this.source = source;
+            this.payloadTypes = payloadTypes;
+            this.rtxPayloadTypes = rtxPayloadTypes;
+        }
+
+        /**
+         * Check if a packet of an unknown SSRC may be the media stream.
+         */
+        boolean accepts(int payloadType, long now) {
+            if ((key != -1 && now - seen < RELEARN)
+                    || contains(rtxPayloadTypes, payloadType)) {
+                return false;
+            }
+            return payloadTypes == null || payloadTypes.length == 0
+                    || contains(payloadTypes, payloadType);
+        }
+
+        /**
+         * Check if a packet of an unknown SSRC may be the RTX stream.
+         */
+        boolean acceptsRtx(int payloadType) {
+            return rtxKey == -1 && contains(rtxPayloadTypes, payloadType);
+        }
+
+        private static boolean contains(int[] types, int payloadType) {
+            if (types != null) {
+                for (int pt : types) {
+                    if (pt == payloadType) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /* Registry key */
+    private final String key;
+
+    /* Sockets */
+    private final DatagramSocket socket;
+    private final DatagramSocket rtcpSocket;
+
+    /* Routes by source and SSRC */
+    private final LongMap<Route> routes = new LongMap<>(1024);
+
+    /* Routes by source, searched to learn a SSRC */
+    private final LongMap<List<Route>> sources = new LongMap<>();
+
+    /* Routes by player */
+    private final Map<Rtp, Route> subscribers = new IdentityHashMap<>();
+
+    /* Players using the port */
+    private int references;
+
+    /* Datagrams without a route */
+    private final AtomicLong unrouted = new AtomicLong();
+
+    private SharedPort(String key, InetAddress address, int port) throws IOException {
+        this.key = key;
+        socket = new DatagramSocket(port, address);
+        try {
+            rtcpSocket = new DatagramSocket(port + 1, address);
+        } catch (SocketException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Open a shared port, or get it if already open.
+     *
+     * @param host Local name or address, null for any
+     * @param port RTP port, RTCP uses the next one
+     * @return Shared port, release it when done
+     * @throws IOException on error binding the sockets
+     */
+    static SharedPort open(String host, int port) throws IOException {
+        InetAddress address = host == null ? null : InetAddress.getByName(host);
+        String key = (address == null ? "*" : address.getHostAddress()) + ":" + port;
+        synchronized (PORTS) {
+            SharedPort shared = PORTS.get(key);
+            if (shared == null) {
+                shared = new SharedPort(key, address, port);
+                PORTS.put(key, shared);
+                Thread thread = new Thread(shared::run, "shared-rtp-" + key);
+                thread.setDaemon(true);
+                thread.start();
+                Thread rtcp = new Thread(shared::runRtcp, "shared-rtcp-" + key);
+                rtcp.setDaemon(true);
+                rtcp.start();
+                LOGGER.info("Opened shared port {}", key);
+            }
+            shared.references++;
+            return shared;
+        }
+    }
+
+    /**
+     * Release the port, closing it when no player uses it.
+     */
+    void release() {
+        synchronized (PORTS) {
+            if (--references == 0 && PORTS.remove(key) != null) {
+                socket.close();
+                rtcpSocket.close();
+                LOGGER.info("Closed shared port {}", key);
+            }
+        }
+    }
+
+    /**
+     * Hash a source address in 32 bits.
+     *
+     * @param address Source address, null for any
+     * @return IPv4 address or IPv6 address hash, 0 for any
+     */
+    private static int source(InetAddress address) {
+        if (address == null) {
+            return 0;
+        }
+        byte[] bytes = address.getAddress();
+        if (bytes.length == 4) {
+            return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16)
+                    | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        }
+        return Arrays.hashCode(bytes);
+    }
+
+    private static long key(int source, long ssrc) {
+        return ((long) source << 32) | (ssrc & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Route the streams of a player to it.
+     *
+     * @param rtp             Player
+     * @param source          Server address, null for any
+     * @param ssrc            SSRC, -1 to learn it
+     * @param rtxSsrc         RTX SSRC, -1 to learn it
+     * @param payloadTypes    Media payload types expected while learning
+     * @param rtxPayloadTypes RTX payload types expected while learning
+     */
+    synchronized void subscribe(Rtp rtp, InetAddress source, long ssrc, long rtxSsrc,
+                                int[] payloadTypes, int[] rtxPayloadTypes) {
+        unsubscribe(rtp);
+        Route route = new Route(rtp, source(source), payloadTypes, rtxPayloadTypes);
+        subscribers.put(rtp, route);
+        if (source != null) {
+            if (ssrc >= 0) {
+                route.key = key(route.source, ssrc);
+                routes.put(route.key, route);
+            }
+            if (rtxSsrc >= 0) {
+                route.rtxKey = key(route.source, rtxSsrc);
+                routes.put(route.rtxKey, route);
+            }
+        }
+        List<Route> from = sources.get(route.source);
+        if (from == null) {
+            from = new ArrayList<>(1);
+            sources.put(route.source, from);
+        }
+        from.add(route);
+    }
+
+    /**
+     * Stop routing to a player.
+     *
+     * @param rtp Player
+     */
+    synchronized void unsubscribe(Rtp rtp) {
+        Route route = subscribers.remove(rtp);
+        if (route == null) {
+            return;
+        }
+        forget(route);
+        List<Route> from = sources.get(route.source);
+        if (from != null) {
+            from.remove(route);
+            if (from.isEmpty()) {
+                sources.remove(route.source);
+            }
+        }
+    }
+
+    /**
+     * Drop the SSRCs of a route, to be learned again.
+     *
+     * @param route Route
+     */
+    private void forget(Route route) {
+        if (route.key != -1) {
+            routes.remove(route.key);
+            route.key = -1;
+        }
+        if (route.rtxKey != -1) {
+            routes.remove(route.rtxKey);
+            route.rtxKey = -1;
+        }
+    }
+
+    /**
+     * Find the player of a datagram.
+     *
+     * @param packet Datagram
+     * @param rtcp   RTCP datagram, SSRC of the sender at offset 4
+     * @return Player or <code>null</code> if not routed
+     */
+    private synchronized Rtp route(DatagramPacket packet, boolean rtcp) {
+        byte[] b = packet.getData();
+        int offset = rtcp ? 4 : 8;
+        if (packet.getLength() < offset + 4) {
+            return null;
+        }
+        long ssrc = ((b[offset] & 0xFFL) << 24) | ((b[offset + 1] & 0xFF) << 16)
+                | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+        int source = source(packet.getAddress());
+        long key = key(source, ssrc);
+        Route route = routes.get(key);
+        if (rtcp) {
+            if (route != null && key == route.key && isBye(b, packet.getLength())) {
+                LOGGER.debug("BYE of SSRC {} on {}", Long.toHexString(ssrc), this.key);
+                forget(route);
+            }
+        } else if (route == null) {
+            route = learn(source, b[1] & 0x7F, ssrc, key);
+        } else if (key == route.key) {
+            route.seen = System.nanoTime();
+        }
+        return route == null ? null : route.rtp;
+    }
+
+    /**
+     * Check if a compound RTCP packet holds a BYE.
+     *
+     * @param b   Packet bytes
+     * @param len Packet length
+     * @return <code>true</code> if a BYE is found
+     */
+    private static boolean isBye(byte[] b, int len) {
+        int offset = 0;
+        while (offset + 4 <= len) {
+            if ((b[offset + 1] & 0xFF) == RTCP_BYE) {
+                return true;
+            }
+            offset += ((((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF)) + 1) * 4;
+        }
+        return false;
+    }
+
+    /**
+     * Assign an unknown SSRC to the only route waiting for its payload type,
+     * on the source or on any source. A route silent for the relearn period
+     * waits again, its previous SSRCs are dropped when it learns the new
+     * one.
+     *
+     * @param source      Source address hash
+     * @param payloadType Payload type of the packet
+     * @param ssrc        SSRC of the packet
+     * @param key         Route key of the packet
+     * @return Route or <code>null</code> if none or more than one is waiting
+     */
+    private Route learn(int source, int payloadType, long ssrc, long key) {
+        long now = System.nanoTime();
+        Route found = null;
+        boolean rtx = false;
+        int candidates = 0;
+        for (int from : source == 0 ? new int[]{0} : new int[]{source, 0}) {
+            List<Route> waiting = sources.get(from);
+            if (waiting != null) {
+                for (Route route : waiting) {
+                    boolean media = route.accepts(payloadType, now);
+                    if (media || route.acceptsRtx(payloadType)) {
+                        candidates++;
+                        if (found == null) {
+                            found = route;
+                            rtx = !media;
+                        } else if (!route.warned || !found.warned) {
+                            route.warned = found.warned = true;
+                            LOGGER.warn("SSRC {} payload type {} on {} matches several streams"
+                                    + " of the same server, dropped until announced",
+                                    Long.toHexString(ssrc), payloadType, this.key);
+                        }
+                    }
+                }
+            }
+        }
+        if (candidates != 1) {
+            return null;
+        }
+        if (rtx) {
+            found.rtxKey = key;
+        } else {
+            // a new media SSRC comes with a new RTX SSRC
+            forget(found);
+            found.key = key;
+            found.seen = now;
+        }
+        routes.put(key, found);
+        LOGGER.debug("Learned {}SSRC {} on {}", rtx ? "RTX " : "", Long.toHexString(ssrc),
+                this.key);
+        return found;
+    }
+
+    DatagramSocket getRtcpSocket() {
+        return rtcpSocket;
+    }
+
+    /**
+     * Get number of datagrams dropped for lack of a route.
+     *
+     * @return Unrouted datagrams
+     */
+    long getUnrouted() {
+        return unrouted.get();
+    }
+
+    synchronized int getStreams() {
+        return subscribers.size();
+    }
+
+    private void run() {
+        receive(socket, false);
+    }
+
+    private void runRtcp() {
+        receive(rtcpSocket, true);
+    }
+
+    /**
+     * Receive datagrams and dispatch them to their player.
+     */
+    private void receive(DatagramSocket socket, boolean rtcp) {
+        DatagramPacket packet = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+        while (!socket.isClosed()) {
+            try {
+                socket.receive(packet);
+                Rtp rtp = route(packet, rtcp);
+                if (rtp == null) {
+                    unrouted.incrementAndGet();
+                } else if (rtcp) {
+                    rtp.tap(packet, socket.getLocalAddress(), socket.getLocalPort());
+                    rtp.onReceiveRtcp(packet.getData(), packet.getLength());
+                } else {
+                    rtp.deliver(packet, socket.getLocalAddress(), socket.getLocalPort());
+                }
+            } catch (IOException ex) {
+                if (!socket.isClosed()) {
+                    LOGGER.error("Error", ex);
+                }
+                break;
+            } catch (RuntimeException ex) {
+                LOGGER.error("Error", ex);
+            }
+        }
+    }
+}
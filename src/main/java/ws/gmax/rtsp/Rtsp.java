@@ -20,8 +20,14 @@
  */
 package ws.gmax.rtsp;
 
+import ws.gmax.trace.EventRing;
+import ws.gmax.trace.RtspExchangeEvent;
+
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * RTSP client
@@ -42,6 +48,9 @@ class Rtsp {
     /* Network socket */
     private Socket socket;
 
+    /* Server connector */
+    private RtspConnector connector = RtspConnector.shared();
+
     /* Request object */
     private RtspRequest request;
 
@@ -51,6 +60,12 @@ class Rtsp {
     /* RTSP base uri */
     String rtspUri;
 
+    /* Recent session events */
+    private final EventRing events = new EventRing();
+
+    /* Status of the last response, -1 if none */
+    private int status = -1;
+
     Rtsp() {
     }
 
@@ -62,7 +77,7 @@ class Rtsp {
      * @throws IOException on error
      */
     void connect(String host, int port) throws IOException {
-        socket = new Socket(host, port);
+        socket = connector.connect(host, port);
         socket.setKeepAlive(true);
         socket.setReuseAddress(true);
         socket.setSoTimeout(TIMEOUT);
@@ -73,6 +88,15 @@ class Rtsp {
         rtspUri = String.format("rtsp://%s:%d", host, port);
     }
 
+    /**
+     * Set the connector used to resolve and connect to the server.
+     *
+     * @param connector Server connector
+     */
+    public void setConnector(RtspConnector connector) {
+        this.connector = connector;
+    }
+
     /**
      * Connect to server using default RTSP port.
      *
@@ -104,6 +128,77 @@ class Rtsp {
         return (socket != null) && socket.isConnected();
     }
 
+    /**
+     * Get the address of the connected server.
+     *
+     * @return Server address or <code>null</code> if not connected
+     */
+    InetAddress getServerAddress() {
+        return socket == null ? null : socket.getInetAddress();
+    }
+
+    /**
+     * Submit a request and read its response, recording the round trip as a
+     * flight recorder event and in the session event ring.
+     *
+     * @param req  Request part
+     * @param hdr  Request headers
+     * @param body Request body or <code>null</code>
+     * @return Response code
+     * @throws Exception on error
+     */
+    int exchange(StringBuilder req, Map<String, String> hdr, String body) throws Exception {
+        String line = req.toString();
+        RtspExchangeEvent event = new RtspExchangeEvent();
+        event.begin();
+        long start = System.nanoTime();
+        int code = -1;
+        try {
+            request.doRequest(req, hdr, body);
+            code = response.doResponse();
+            return code;
+        } finally {
+            status = code;
+            events.record(String.format("%s CSeq %s -> %d (%d ms)", line, hdr.get("CSeq"),
+                    code, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            if (event.shouldCommit()) {
+                event.request = line;
+                event.status = code;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Submit a request without body and read its response.
+     *
+     * @param req Request part
+     * @param hdr Request headers
+     * @return Response code
+     * @throws Exception on error
+     */
+    int exchange(StringBuilder req, Map<String, String> hdr) throws Exception {
+        return exchange(req, hdr, null);
+    }
+
+    /**
+     * Get the status of the last response.
+     *
+     * @return RTSP status, -1 if no response
+     */
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * Get the ring of recent session events.
+     *
+     * @return Event ring
+     */
+    public EventRing getEvents() {
+        return events;
+    }
+
     RtspRequest getReqest() {
         return request;
     }
@@ -0,0 +1,357 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtsp;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RTSP server connector with a DNS cache, a connect deadline and parallel
+ * address attempts.
+ * <p>
+ * Resolved addresses are cached for a bounded time in a bounded LRU cache, a
+ * stale entry is still used when the resolver fails or is slow. Lookups run
+ * on a connect thread and count against the deadline. Addresses are tried
+ * IPv6 and IPv4 interleaved (RFC 8305 happy eyeballs): a new attempt starts
+ * when the previous one fails or after the attempt delay, the first
+ * connected socket wins and the others are closed. The whole connect is
+ * bounded by the deadline instead of the kernel SYN retries.
+ *
+ * @author Marius
+ */
+public final class RtspConnector {
+
+    /* Defaults (ms) */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_DNS_TTL = 60000;
+    public static final int DEFAULT_ATTEMPT_DELAY = 250;
+
+    /* Max cached host names */
+    private static final int CACHE_SIZE = 256;
+
+    /* Shared instance */
+    private static final RtspConnector SHARED = new RtspConnector(
+            DEFAULT_CONNECT_TIMEOUT, DEFAULT_DNS_TTL, DEFAULT_ATTEMPT_DELAY);
+
+    /* Connect attempt threads */
+    private static final ExecutorService ATTEMPTS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "rtsp-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Cached resolution.
+     */
+    private static class Resolution {
+
+        final InetAddress[] addresses;
+        final long expires;
+
+        Resolution(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    /* Connect deadline, DNS cache time and delay between attempts (ms) */
+    private final int connectTimeout;
+    private final int dnsTtl;
+    private final int attemptDelay;
+
+    /* Resolutions by host name, least recently used evicted first */
+    private final Map<String, Resolution> cache =
+            new LinkedHashMap<String, Resolution>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    /* Statistics */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param connectTimeout Connect deadline (ms)
+     * @param dnsTtl         DNS cache time (ms), 0 to resolve every time
+     * @param attemptDelay   Delay before trying the next address (ms)
+     */
+    public RtspConnector(int connectTimeout, int dnsTtl, int attemptDelay) {
+        if (connectTimeout <= 0 || dnsTtl < 0 || attemptDelay <= 0) {
+            throw new IllegalArgumentException("Invalid connector timeouts");
+        }
+        this.connectTimeout = connectTimeout;
+        this.dnsTtl = dnsTtl;
+        this.attemptDelay = attemptDelay;
+    }
+
+    /**
+     * Get the shared connector instance.
+     *
+     * @return Shared connector
+     */
+    public static RtspConnector shared() {
+        return SHARED;
+    }
+
+    /**
+     * Resolve a host name through the cache, waiting at most the connect
+     * timeout for the resolver.
+     *
+     * @param host Host name or address
+     * @return Addresses
+     * @throws UnknownHostException if not resolved in time and not cached
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        return resolve(host, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout));
+    }
+
+    /**
+     * Resolve a host name through the cache before a deadline. A lookup
+     * still running at the deadline completes in the background and fills
+     * the cache for the next connect.
+     *
+     * @param host     Host name or address
+     * @param deadline Deadline (System.nanoTime)
+     * @return Addresses
+     * @throws UnknownHostException if not resolved in time and not cached
+     */
+    private InetAddress[] resolve(String host, long deadline) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Resolution cached;
+        synchronized (cache) {
+            cached = cache.get(host);
+        }
+        if (cached != null && cached.expires > now) {
+            hits.incrementAndGet();
+            return cached.addresses;
+        }
+        lookups.incrementAndGet();
+        Future<InetAddress[]> lookup = ATTEMPTS.submit(() -> {
+            InetAddress[] addresses = InetAddress.getAllByName(host);
+            synchronized (cache) {
+                cache.put(host, new Resolution(addresses,
+                        System.currentTimeMillis() + dnsTtl));
+            }
+            return addresses;
+        });
+        try {
+            return lookup.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException | TimeoutException ex) {
+            if (cached != null) {
+                // stale answer is better than none
+                return cached.addresses;
+            }
+            if (ex instanceof TimeoutException) {
+                timeouts.incrementAndGet();
+                throw new UnknownHostException("Resolve " + host + " timed out");
+            }
+            if (ex.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) ex.getCause();
+            }
+            UnknownHostException failure = new UnknownHostException(host);
+            failure.initCause(ex.getCause());
+            throw failure;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            lookup.cancel(true);
+            throw new UnknownHostException("Resolve " + host + " interrupted");
+        }
+    }
+
+    /**
+     * Order addresses alternating families, starting with IPv6.
+     *
+     * @param addresses Resolved addresses
+     * @return Ordered addresses
+     */
+    private static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> v6 = new ArrayList<>();
+        List<InetAddress> v4 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            (address instanceof Inet6Address ? v6 : v4).add(address);
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+            if (i < v6.size()) {
+                ordered.add(v6.get(i));
+            }
+            if (i < v4.size()) {
+                ordered.add(v4.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Connect to a server.
+     *
+     * @param host Server name or address
+     * @param port Server port
+     * @return Connected socket
+     * @throws IOException if no address connected before the deadline
+     */
+    public Socket connect(String host, int port) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+        List<InetAddress> addresses = interleave(resolve(host, deadline));
+        BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        List<Socket> sockets = new ArrayList<>();
+        int started = 0;
+        int failed = 0;
+        IOException failure = null;
+        Socket winner = null;
+        try {
+            while (winner == null) {
+                if (started < addresses.size()) {
+                    attempt(addresses.get(started++), port, deadline, sockets, results);
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new SocketTimeoutException(String.format(
+                            "Connect to %s:%d timed out after %d ms", host, port, connectTimeout));
+                }
+                long wait = started < addresses.size()
+                        ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(attemptDelay))
+                        : remaining;
+                Object result = results.poll(wait, TimeUnit.NANOSECONDS);
+                if (result instanceof Socket) {
+                    winner = (Socket) result;
+                } else if (result instanceof IOException) {
+                    failure = (IOException) result;
+                    if (++failed == addresses.size()) {
+                        throw failure;
+                    }
+                }
+            }
+            return winner;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Connect to " + host + " interrupted", ex);
+        } finally {
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    if (socket != winner) {
+                        close(socket);
+                    }
+                }
+                sockets.clear();
+            }
+        }
+    }
+
+    /**
+     * Start a connect attempt.
+     */
+    private static void attempt(InetAddress address, int port, long deadline,
+                                List<Socket> sockets, BlockingQueue<Object> results) {
+        Socket socket = new Socket();
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        ATTEMPTS.execute(() -> {
+            try {
+                int timeout = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(
+                        deadline - System.nanoTime()));
+                socket.connect(new InetSocketAddress(address, port), timeout);
+                results.add(socket);
+            } catch (IOException ex) {
+                close(socket);
+                results.add(ex);
+            }
+        });
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+    }
+
+    /**
+     * Remove a host from the DNS cache.
+     *
+     * @param host Host name
+     */
+    public void invalidate(String host) {
+        synchronized (cache) {
+            cache.remove(host);
+        }
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Get number of resolutions answered by the cache.
+     *
+     * @return Cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get number of resolver lookups.
+     *
+     * @return Lookups
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * Get number of resolutions and connects that missed the deadline.
+     *
+     * @return Timeouts
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+}
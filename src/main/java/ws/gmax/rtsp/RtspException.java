@@ -0,0 +1,121 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtsp;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Session failure with a structured reason, reported by the asynchronous
+ * session API.
+ *
+ * @author Marius
+ */
+public class RtspException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Failure reason.
+     */
+    public enum Reason {
+        /* Credentials missing or refused (401, 403) */
+        AUTH,
+        /* No answer in time (socket timeout, 408, 504) */
+        TIMEOUT,
+        /* No transport accepted by the server (461) */
+        UNSUPPORTED_TRANSPORT,
+        /* Request refused with another status */
+        REFUSED,
+        /* Server unreachable or connection lost */
+        NETWORK,
+        /* Malformed response or unexpected error */
+        PROTOCOL
+    }
+
+    private final Reason reason;
+
+    /* RTSP status, -1 if no response */
+    private final int status;
+
+    public RtspException(Reason reason, int status, String message, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+        this.status = status;
+    }
+
+    /**
+     * Build the failure of a request refused by the server.
+     *
+     * @param status RTSP status
+     * @param uri    Presentation URI
+     * @return Exception
+     */
+    static RtspException of(int status, String uri) {
+        Reason reason;
+        switch (status) {
+            case 401:
+            case 403:
+                reason = Reason.AUTH;
+                break;
+            case 408:
+            case 504:
+                reason = Reason.TIMEOUT;
+                break;
+            case 461:
+                reason = Reason.UNSUPPORTED_TRANSPORT;
+                break;
+            default:
+                reason = Reason.REFUSED;
+                break;
+        }
+        return new RtspException(reason, status, uri + ": " + reason + " (" + status + ")", null);
+    }
+
+    /**
+     * Build the failure of an exception thrown by a session.
+     *
+     * @param ex  Exception
+     * @param uri Presentation URI
+     * @return Exception
+     */
+    static RtspException of(Throwable ex, String uri) {
+        if (ex instanceof RtspException) {
+            return (RtspException) ex;
+        }
+        Reason reason = ex instanceof SocketTimeoutException ? Reason.TIMEOUT
+                : ex instanceof IOException ? Reason.NETWORK : Reason.PROTOCOL;
+        return new RtspException(reason, -1, uri + ": " + reason + " (" + ex + ")", ex);
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Get the RTSP status of the failed request.
+     *
+     * @return RTSP status, -1 if no response
+     */
+    public int getStatus() {
+        return status;
+    }
+}
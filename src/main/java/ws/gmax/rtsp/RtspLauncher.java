@@ -0,0 +1,204 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtsp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run RTSP handshakes and teardowns asynchronously with bounded
+ * concurrency.
+ * <p>
+ * Any number of sessions may be submitted from one thread, at most
+ * <code>concurrency</code> handshakes run at the same time and the others
+ * wait in submission order. A failed start completes its future with a
+ * <code>RtspException</code> and the session is closed. So is a session
+ * whose future is cancelled, waiting or in the middle of the handshake.
+ *
+ * @author Marius
+ */
+public final class RtspLauncher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RtspLauncher.class);
+
+    /* Default concurrent handshakes */
+    public static final int DEFAULT_CONCURRENCY = 32;
+
+    /* Shared instance */
+    private static final RtspLauncher SHARED = new RtspLauncher(DEFAULT_CONCURRENCY);
+
+    /* Handshake threads */
+    private final ThreadPoolExecutor executor;
+
+    /* Statistics */
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param concurrency Max concurrent handshakes
+     */
+    public RtspLauncher(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Invalid concurrency: " + concurrency);
+        }
+        AtomicInteger threads = new AtomicInteger();
+        executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "rtsp-launcher-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get the shared launcher instance.
+     *
+     * @return Shared launcher
+     */
+    public static RtspLauncher shared() {
+        return SHARED;
+    }
+
+    /**
+     * Start playing a session.
+     *
+     * @param session RTSP session
+     * @param uri     Presentation URI
+     * @return Future completed with the playing session, cancelling it
+     * closes the session
+     */
+    public CompletableFuture<RtspSession> play(RtspSession session, String uri) {
+        CompletableFuture<RtspSession> future = new CompletableFuture<>();
+        future.whenComplete((result, ex) -> {
+            if (future.isCancelled()) {
+                session.abort();
+            }
+        });
+        submit(future, () -> {
+            try {
+                session.start(uri);
+            } catch (RtspException ex) {
+                failed.incrementAndGet();
+                LOGGER.warn("{}", ex.getMessage());
+                session.abort();
+                future.completeExceptionally(ex);
+                return;
+            } catch (RuntimeException ex) {
+                failed.incrementAndGet();
+                LOGGER.error("Error", ex);
+                session.abort();
+                future.completeExceptionally(ex);
+                return;
+            }
+            started.incrementAndGet();
+            if (!future.complete(session)) {
+                // cancelled during the handshake, nobody owns the session
+                session.abort();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Stop a session.
+     *
+     * @param session RTSP session
+     * @return Future completed when the session is closed
+     */
+    public CompletableFuture<Void> stop(RtspSession session) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        submit(future, () -> {
+            try {
+                session.stop();
+                future.complete(null);
+            } catch (Exception ex) {
+                session.abort();
+                future.completeExceptionally(RtspException.of(ex, session.rtspUri));
+            }
+        });
+        return future;
+    }
+
+    private void submit(CompletableFuture<?> future, Runnable task) {
+        try {
+            executor.execute(() -> {
+                if (future.isDone()) {
+                    // cancelled while waiting
+                    return;
+                }
+                active.incrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                } finally {
+                    active.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Get number of handshakes running.
+     *
+     * @return Running handshakes
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * Get number of handshakes waiting for a slot.
+     *
+     * @return Queued handshakes
+     */
+    public int getPending() {
+        return executor.getQueue().size();
+    }
+
+    public int getStarted() {
+        return started.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Stop accepting sessions, queued handshakes still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -20,6 +20,8 @@
  */
 package ws.gmax.rtsp;
 
+import ws.gmax.sdp.MediaDescription;
+
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -36,6 +38,9 @@ class RtspProtocol extends Rtsp {
     /* Unauthorized code */
     static final int RTSP_UNAUTHORIZED = 401;
 
+    /* Unsupported transport code */
+    static final int RTSP_UNSUPPORTED_TRANSPORT = 461;
+
     /* SDP */
     private final Sdp sdp;
 
@@ -45,6 +50,15 @@ class RtspProtocol extends Rtsp {
     /* Session ID */
     private String session;
 
+    /* Content base returned by DESCRIBE */
+    private String contentBase;
+
+    /* Transport returned by the last SETUP */
+    private RtspTransport transport;
+
+    /* Control URL of the last accepted SETUP */
+    private String setupUrl;
+
     /* Sequence generator */
     private final RtspSequenceGenerator seq;
 
@@ -104,10 +118,10 @@ class RtspProtocol extends Rtsp {
             hdr.put("CSeq", seq.value());
             hdr.put("Authorization", token);
         }
-        getReqest().doRequest(req, hdr);
-        int code = getResponse().doResponse();
+        int code = exchange(req, hdr);
         if (RTSP_OK == code) {
-            sdp.setSdp(getResponse().response.body);
+            contentBase = getResponse().response.headers.get("Content-Base");
+            sdp.setSdp(rtspUri + stream, getResponse().response.body);
         }
         return code;
     }
@@ -126,8 +140,7 @@ class RtspProtocol extends Rtsp {
         req.append("OPTIONS ").append(rtspUri).
                 append(stream);
         hdr.put("CSeq", seq.next());
-        getReqest().doRequest(req, hdr);
-        return getResponse().doResponse();
+        return exchange(req, hdr);
     }
 
     /**
@@ -142,24 +155,52 @@ class RtspProtocol extends Rtsp {
      * the server's chosen ports. Each media stream must be configured using
      * SETUP before an aggregate play request may be sent.
      *
-     * @param control Stream control
-     * @param port    Client port
+     * @param url  Stream control URL
+     * @param port Client port
+     * @return Response code
+     * @throws Exception on error
+     */
+    int setup(String url, int port) throws Exception {
+        return setup(url, port, false, "RTP/AVP");
+    }
+
+    /**
+     * SETUP (C->S) requesting unicast or multicast delivery. For multicast
+     * the server chooses the group, ports and ttl returned in the Transport
+     * header of the response. SETUP of the URL accepted last is sent in its
+     * session, changing the transport of the track instead of opening a new
+     * session.
+     *
+     * @param url       Stream control URL
+     * @param port      Client port, used for unicast
+     * @param multicast Request multicast delivery
+     * @param profile   RTP profile of the media (RTP/AVP, RTP/AVPF)
      * @return Response code
      * @throws Exception on error
      */
-    int setup(String control, int port) throws Exception {
+    int setup(String url, int port, boolean multicast, String profile) throws Exception {
         StringBuilder req = new StringBuilder();
         Map<String, String> hdr = new LinkedHashMap<>();
-        req.append("SETUP ").append(rtspUri).
-                append(stream).
-                append(control);
+        req.append("SETUP ").append(url);
         hdr.put("CSeq", seq.next());
-        hdr.put("Transport", String.format("RTP/AVP;unicast;client_port=%d-%d",
-                port, port + 1));
-        getReqest().doRequest(req, hdr);
-        int code = getResponse().doResponse();
+        if (session != null && url.equals(setupUrl)) {
+            hdr.put("Session", session);
+        }
+        if (multicast) {
+            hdr.put("Transport", profile + ";multicast");
+        } else {
+            hdr.put("Transport", String.format("%s;unicast;client_port=%d-%d",
+                    profile, port, port + 1));
+        }
+        int code = exchange(req, hdr);
+        transport = null;
         if (RTSP_OK == code) {
             session = getResponse().getSession();
+            setupUrl = url;
+            String value = getResponse().getTransport();
+            if (value != null) {
+                transport = new RtspTransport().split(value);
+            }
         }
         return code;
     }
@@ -185,8 +226,7 @@ class RtspProtocol extends Rtsp {
                 append(stream);
         hdr.put("CSeq", seq.next());
         hdr.put("Session", session);
-        getReqest().doRequest(req, hdr);
-        return getResponse().doResponse();
+        return exchange(req, hdr);
     }
 
     /**
@@ -209,8 +249,7 @@ class RtspProtocol extends Rtsp {
                 append(stream);
         hdr.put("CSeq", seq.next());
         hdr.put("Session", session);
-        getReqest().doRequest(req, hdr);
-        return getResponse().doResponse();
+        return exchange(req, hdr);
     }
 
     /**
@@ -230,8 +269,7 @@ class RtspProtocol extends Rtsp {
                 append(stream);
         hdr.put("CSeq", seq.next());
         hdr.put("Session", session);
-        getReqest().doRequest(req, hdr);
-        return getResponse().doResponse();
+        return exchange(req, hdr);
     }
 
     /**
@@ -255,8 +293,7 @@ class RtspProtocol extends Rtsp {
         hdr.put("CSeq", seq.next());
         hdr.put("Content-Type", "text/parameters");
         hdr.put("Content-Length", String.valueOf(body.length()));
-        getReqest().doRequest(req, hdr, body);
-        return getResponse().doResponse();
+        return exchange(req, hdr, body);
     }
 
     /**
@@ -282,8 +319,7 @@ class RtspProtocol extends Rtsp {
         hdr.put("Session", session);
         hdr.put("Content-Type", "text/parameters");
         hdr.put("Content-Length", String.valueOf(body.length()));
-        getReqest().doRequest(req, hdr, body);
-        return getResponse().doResponse();
+        return exchange(req, hdr, body);
     }
 
     /**
@@ -312,8 +348,7 @@ class RtspProtocol extends Rtsp {
         hdr.put("Session", session);
         hdr.put("Content-Type", "application/sdp");
         hdr.put("Content-Length", String.valueOf(sdp.length()));
-        getReqest().doRequest(req, hdr, sdp);
-        return getResponse().doResponse();
+        return exchange(req, hdr, sdp);
     }
 
     /**
@@ -340,8 +375,7 @@ class RtspProtocol extends Rtsp {
                 append(stream);
         hdr.put("CSeq", seq.next());
         hdr.put("Session", session);
-        getReqest().doRequest(req, hdr);
-        return getResponse().doResponse();
+        return exchange(req, hdr);
     }
 
     /**
@@ -372,11 +406,39 @@ class RtspProtocol extends Rtsp {
         if (range != null) {
             hdr.put("Range", "clock=" + range);
         }
-        getReqest().doRequest(req, hdr);
-        return getResponse().doResponse();
+        return exchange(req, hdr);
+    }
+
+    /**
+     * Resolve the control URL of a media stream. Absolute controls are used
+     * as is, relative ones are resolved against the Content-Base returned by
+     * DESCRIBE or the presentation URI.
+     *
+     * @param media Media description
+     * @return Stream control URL
+     */
+    String controlUrl(MediaDescription media) {
+        String base = (contentBase != null) ? contentBase : rtspUri + stream;
+        String control = media.getControl();
+        if (control == null || control.isEmpty() || "*".equals(control)) {
+            return base;
+        }
+        if (control.regionMatches(true, 0, "rtsp://", 0, 7)) {
+            return control;
+        }
+        return base.endsWith("/") ? base + control : base + "/" + control;
     }
 
     Sdp getSdp() {
         return sdp;
     }
+
+    /**
+     * Get the transport negotiated by the last SETUP.
+     *
+     * @return Transport or <code>null</code> if missing
+     */
+    RtspTransport getTransport() {
+        return transport;
+    }
 }
@@ -62,7 +62,7 @@ class RtspRequest {
     private void doRequest(String command) throws Exception {
         out.write(command.getBytes());
         out.flush();
-        LOGGER.info(command);
+        LOGGER.debug(command);
     }
 
     /**
@@ -99,7 +99,7 @@ class RtspResponse {
         response = new Response();
         int count = inp.read(buffer);
         String text = (count > 0) ? new String(buffer, 0, count) : null;
-        LOGGER.info(text);
+        LOGGER.debug(text);
         process(text);
         return response.code;
     }
@@ -143,6 +143,15 @@ class RtspResponse {
         return response.headers.get("Session");
     }
 
+    /**
+     * Get Transport header.
+     *
+     * @return Transport header value or <code>null</code> if not found.
+     */
+    String getTransport() {
+        return response.headers.get("Transport");
+    }
+
     /**
      * Process RTSP response.
      *
@@ -20,7 +20,15 @@
  */
 package ws.gmax.rtsp;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ws.gmax.rtp.RtpPlayer;
+import ws.gmax.sdp.MediaDescription;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * RtspSession
@@ -29,6 +37,9 @@ import ws.gmax.rtp.RtpPlayer;
  */
 public class RtspSession extends RtspProtocol {
 
+    /* Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RtspSession.class);
+
     /* Video player */
     private final RtpPlayer videoPlayer;
 
@@ -38,6 +49,12 @@ public class RtspSession extends RtspProtocol {
     /* Username and password if authentication is required */
     private String username, password;
 
+    /* Request multicast delivery */
+    private boolean multicast;
+
+    /* Status of the last refused SETUP, 0 if none */
+    private int setupStatus;
+
     /**
      * Build a RTSP session.
      *
@@ -50,27 +67,106 @@ public class RtspSession extends RtspProtocol {
     }
 
     /**
-     * If have video track start video player
+     * Setup a track and start its player. When multicast is enabled it is
+     * requested first, a server answering 461 (Unsupported Transport) is
+     * asked again for unicast, as is a server answering the multicast request
+     * with a unicast transport, since it was not given a client port. Unicast
+     * ports are bound before SETUP and released if the server refuses the
+     * track.
      *
+     * @param player RTP player
+     * @param media  Track media description
      * @throws Exception on error
      */
-    private void startVideoPlayer() throws Exception {
-        int code = setup("/" + getSdp().getVideoTrack() + " ", videoPlayer.port);
+    private void startPlayer(RtpPlayer player, MediaDescription media) throws Exception {
+        String url = controlUrl(media);
+        String profile = media.getProtocol().startsWith("RTP/") ? media.getProtocol() : "RTP/AVP";
+        int code = multicast ? setup(url, -1, true, profile) : RTSP_UNSUPPORTED_TRANSPORT;
+        if (RTSP_OK == code && (getTransport() == null || !getTransport().multicast)) {
+            LOGGER.info("Multicast not granted for {}, setup unicast", url);
+            code = RTSP_UNSUPPORTED_TRANSPORT;
+        }
+        if (RTSP_UNSUPPORTED_TRANSPORT == code) {
+            player.bind();
+            code = setup(url, player.getPort(), false, profile);
+        }
         if (RTSP_OK == code) {
-            videoPlayer.start();
+            RtspTransport transport = getTransport();
+            if (transport != null && transport.multicast) {
+                String group = transport.destination != null
+                        ? transport.destination : address(media.getConnection());
+                int port = transport.port != -1 ? transport.port : media.getPort();
+                int rtcpPort = transport.port != -1 ? transport.rtcpPort : -1;
+                player.setMulticast(group, port, rtcpPort, transport.ttl);
+            } else {
+                player.setMulticast(null, 0, -1);
+                InetAddress source = source(transport);
+                player.setSource(source, ssrc(transport));
+                if (transport != null && transport.serverRtcpPort != -1) {
+                    player.setRtcpPeer(new InetSocketAddress(source, transport.serverRtcpPort));
+                }
+            }
+            player.setMediaDescription(media);
+            player.setEventRing(getEvents());
+            player.start();
+        } else {
+            setupStatus = code;
+            player.stop();
         }
     }
 
     /**
-     * If have audio track start video player
+     * Get the sender of the media, the Transport source when the server
+     * announces one (relays, load balanced servers), otherwise the server.
      *
-     * @throws Exception on error
+     * @param transport SETUP transport
+     * @return Sender address
      */
-    private void startAudioPlayer() throws Exception {
-        int code = setup("/" + getSdp().getAudioTrack() + " ", audioPlayer.port);
-        if (RTSP_OK == code) {
-            audioPlayer.start();
+    private InetAddress source(RtspTransport transport) {
+        if (transport != null && transport.source != null && !transport.source.isEmpty()) {
+            try {
+                return InetAddress.getByName(transport.source);
+            } catch (UnknownHostException ex) {
+                LOGGER.warn("Unknown transport source {}, using the server address",
+                        transport.source);
+            }
         }
+        return getServerAddress();
+    }
+
+    /**
+     * Get the SSRC announced in a Transport header.
+     *
+     * @param transport SETUP transport
+     * @return SSRC or -1 if missing or invalid
+     */
+    private static long ssrc(RtspTransport transport) {
+        if (transport != null && transport.ssrc != null) {
+            try {
+                return Long.parseLong(transport.ssrc.trim(), 16) & 0xFFFFFFFFL;
+            } catch (NumberFormatException ex) {
+                // learn it
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the address of SDP connection data (IN IP4 232.0.1.1/16).
+     *
+     * @param connection Connection data
+     * @return Address or <code>null</code> if missing
+     */
+    private static String address(String connection) {
+        if (connection == null) {
+            return null;
+        }
+        String[] parts = connection.trim().split("\\s+");
+        if (parts.length < 3) {
+            return null;
+        }
+        int slash = parts[2].indexOf('/');
+        return slash == -1 ? parts[2] : parts[2].substring(0, slash);
     }
 
     /**
@@ -90,22 +186,32 @@ public class RtspSession extends RtspProtocol {
     }
 
     /**
-     * Start playing
+     * Start playing. The session event ring is dumped if the session fails.
      *
      * @return <code>true</code> on success <code>false</code> otherwise.
      * @throws Exception on error
      */
     private boolean playRtp() throws Exception {
-        options();
-        if (RTSP_OK == open()) {
-            if (getSdp().hasVideo()) {
-                startVideoPlayer();
+        setupStatus = 0;
+        try {
+            options();
+            if (RTSP_OK == open()) {
+                if (getSdp().hasVideo()) {
+                    startPlayer(videoPlayer, getSdp().getVideo());
+                }
+                if (getSdp().hasAudio()) {
+                    startPlayer(audioPlayer, getSdp().getAudio());
+                }
+                if (RTSP_OK == play()) {
+                    return true;
+                }
             }
-            if (getSdp().hasAudio()) {
-                startAudioPlayer();
-            }
-            return RTSP_OK == play();
+        } catch (Exception ex) {
+            getEvents().record("failed: " + ex);
+            getEvents().dump(LOGGER, "Session " + rtspUri + " failed");
+            throw ex;
         }
+        getEvents().dump(LOGGER, "Session " + rtspUri + " refused");
         return false;
     }
 
@@ -148,6 +254,66 @@ public class RtspSession extends RtspProtocol {
         return play(url.host, url.port == -1 ? DEFAULT_RTSP_PORT : url.port, url.path);
     }
 
+    /**
+     * Play, reporting a failure with its reason. Used by the asynchronous
+     * API.
+     *
+     * @param uri URI string
+     * @throws RtspException if the session could not be started
+     */
+    void start(String uri) throws RtspException {
+        boolean playing;
+        try {
+            playing = play(uri);
+        } catch (Exception ex) {
+            throw RtspException.of(ex, uri);
+        }
+        if (!playing) {
+            // a refused SETUP explains the following PLAY failure
+            int status = RTSP_UNSUPPORTED_TRANSPORT == setupStatus ? setupStatus : getStatus();
+            throw RtspException.of(status, uri);
+        }
+    }
+
+    /**
+     * Start playing without blocking the caller. The handshake runs on the
+     * shared launcher with bounded concurrency.
+     *
+     * @param uri URI string
+     * @return Future completed with this session, or exceptionally with a
+     * <code>RtspException</code>
+     */
+    public CompletableFuture<RtspSession> playAsync(String uri) {
+        return RtspLauncher.shared().play(this, uri);
+    }
+
+    /**
+     * Stop playing and close the session without blocking the caller.
+     *
+     * @return Future completed when TEARDOWN is answered
+     */
+    public CompletableFuture<Void> stopAsync() {
+        return RtspLauncher.shared().stop(this);
+    }
+
+    /**
+     * Stop the players and close the connection without TEARDOWN, after a
+     * failure.
+     */
+    void abort() {
+        if (videoPlayer != null) {
+            videoPlayer.stop();
+        }
+        if (audioPlayer != null) {
+            audioPlayer.stop();
+        }
+        try {
+            disconnect();
+        } catch (Exception ex) {
+            LOGGER.debug("Disconnect failed", ex);
+        }
+    }
+
     /**
      * Stop playing and close session.
      *
@@ -166,6 +332,20 @@ public class RtspSession extends RtspProtocol {
         disconnect();
     }
 
+    public boolean isMulticast() {
+        return multicast;
+    }
+
+    /**
+     * Request multicast delivery. Players of the same group share a single
+     * membership, servers without multicast support fall back to unicast.
+     *
+     * @param multicast <code>true</code> to request multicast
+     */
+    public void setMulticast(boolean multicast) {
+        this.multicast = multicast;
+    }
+
     public String getPassword() {
         return password;
     }
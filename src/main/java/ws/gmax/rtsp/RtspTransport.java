@@ -0,0 +1,129 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtsp;
+
+/**
+ * Transport header returned by SETUP.
+ * <p>
+ * RTP/AVP;multicast;destination=232.0.1.1;port=5000-5001;ttl=16
+ * RTP/AVP;unicast;client_port=6970-6971;server_port=6970-6971;ssrc=1A2B3C4D
+ *
+ * @author Marius
+ */
+class RtspTransport {
+
+    /* Transport protocol (RTP/AVP, RTP/AVP/UDP, RTP/AVPF) */
+    String protocol;
+
+    /* Multicast delivery */
+    boolean multicast;
+
+    /* Multicast group or unicast destination */
+    String destination;
+
+    /* Sender address */
+    String source;
+
+    /* Multicast RTP/RTCP ports, -1 if missing */
+    int port = -1, rtcpPort = -1;
+
+    /* Client RTP/RTCP ports */
+    int clientPort = -1, clientRtcpPort = -1;
+
+    /* Server RTP/RTCP ports */
+    int serverPort = -1, serverRtcpPort = -1;
+
+    /* Multicast time to live, -1 if missing */
+    int ttl = -1;
+
+    /* Synchronization source, null if missing */
+    String ssrc;
+
+    /**
+     * Parse a Transport header. Only the first transport of a list is used.
+     *
+     * @param header Header value
+     * @return This object
+     */
+    RtspTransport split(String header) {
+        int comma = header.indexOf(',');
+        String spec = comma == -1 ? header : header.substring(0, comma);
+        String[] params = spec.split(";");
+        protocol = params[0].trim();
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            int eq = param.indexOf('=');
+            String name = (eq == -1 ? param : param.substring(0, eq)).toLowerCase();
+            String value = eq == -1 ? "" : param.substring(eq + 1).trim();
+            switch (name) {
+                case "multicast":
+                    multicast = true;
+                    break;
+                case "unicast":
+                    multicast = false;
+                    break;
+                case "destination":
+                    destination = value;
+                    break;
+                case "source":
+                    source = value;
+                    break;
+                case "port":
+                    int[] ports = ports(value);
+                    port = ports[0];
+                    rtcpPort = ports[1];
+                    break;
+                case "client_port":
+                    ports = ports(value);
+                    clientPort = ports[0];
+                    clientRtcpPort = ports[1];
+                    break;
+                case "server_port":
+                    ports = ports(value);
+                    serverPort = ports[0];
+                    serverRtcpPort = ports[1];
+                    break;
+                case "ttl":
+                    ttl = Integer.parseInt(value);
+                    break;
+                case "ssrc":
+                    ssrc = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Parse a port range (5000-5001 or 5000).
+     *
+     * @param value Port range
+     * @return RTP and RTCP ports
+     */
+    private static int[] ports(String value) {
+        int dash = value.indexOf('-');
+        int first = Integer.parseInt(dash == -1 ? value : value.substring(0, dash));
+        int second = dash == -1 ? first + 1 : Integer.parseInt(value.substring(dash + 1));
+        return new int[]{first, second};
+    }
+}
@@ -20,6 +20,11 @@
  */
 package ws.gmax.rtsp;
 
+import ws.gmax.sdp.MediaDescription;
+import ws.gmax.sdp.SdpCache;
+import ws.gmax.sdp.SdpParser;
+import ws.gmax.sdp.SessionDescription;
+
 /**
  * Sdp document storage
  *
@@ -52,21 +57,39 @@ package ws.gmax.rtsp;
  */
 class Sdp {
 
-    /* Stream control pattern */
-    private static final String CONTROL = "a=control:";
+    /* Video media type */
+    private static final String VIDEO = "video";
+
+    /* Audio media type */
+    private static final String AUDIO = "audio";
 
-    /* SDP document text */
-    private String sdp;
+    /* Parsed SDP document */
+    private SessionDescription description;
 
     Sdp() {
     }
 
     String getSdp() {
-        return sdp;
+        return description == null ? null : description.getText();
     }
 
     void setSdp(String sdp) {
-        this.sdp = sdp;
+        description = (sdp == null) ? null : SdpParser.parse(sdp);
+    }
+
+    /**
+     * Set SDP document, reusing the cached model if the URI was already
+     * described with the same document.
+     *
+     * @param uri Presentation URI
+     * @param sdp SDP document text
+     */
+    void setSdp(String uri, String sdp) {
+        description = (sdp == null) ? null : SdpCache.shared().get(uri, sdp);
+    }
+
+    SessionDescription getDescription() {
+        return description;
     }
 
     /**
@@ -75,7 +98,7 @@ class Sdp {
      * @return <code>true</code> if has video stream <code>false</code> if not
      */
     boolean hasVideo() {
-        return (sdp != null && sdp.contains("m=video "));
+        return description != null && description.hasMedia(VIDEO);
     }
 
     /**
@@ -84,44 +107,32 @@ class Sdp {
      * @return <code>true</code> if has audio stream <code>false</code> if not
      */
     boolean hasAudio() {
-        return (sdp != null && sdp.contains("m=audio "));
+        return description != null && description.hasMedia(AUDIO);
+    }
+
+    MediaDescription getVideo() {
+        return description == null ? null : description.getMedia(VIDEO);
+    }
+
+    MediaDescription getAudio() {
+        return description == null ? null : description.getMedia(AUDIO);
     }
 
     String getVideoTrack() {
-        return getTrack("m=video ");
+        return getTrack(getVideo());
     }
 
     String getAudioTrack() {
-        return getTrack("m=audio ");
+        return getTrack(getAudio());
     }
 
     /**
      * Get stream control ID
      *
-     * @param stream Stream start (m=video or m=audio)
+     * @param media Media description
      * @return Stream control
      */
-    private String getTrack(String stream) {
-        if (sdp == null) {
-            return null;
-        }
-
-        int beg = sdp.indexOf(stream);
-        if (beg == -1) {
-            return null;
-        }
-
-        beg = sdp.indexOf(CONTROL, beg);
-        if (beg == -1) {
-            return null;
-        }
-        beg += CONTROL.length();
-
-        int end = sdp.indexOf("\r\n", beg);
-        if (end == -1) {
-            return null;
-        }
-
-        return sdp.substring(beg, end);
+    private String getTrack(MediaDescription media) {
+        return media == null ? null : media.getControl();
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtsp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.PriorityQueue;
+
+/**
+ * One thread running timed tasks of all playback sessions.
+ * <p>
+ * Tasks are kept in a queue ordered by due time, the thread sleeps until
+ * the earliest one is due, runs it and queues it again at the time it
+ * returns.
+ *
+ * @author Marius
+ */
+final class Pacer implements Closeable, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Pacer.class);
+
+    /* Returned by tasks to stop */
+    static final long STOP = Long.MIN_VALUE;
+
+    /**
+     * Paced task.
+     */
+    interface Task {
+
+        /**
+         * Run the task.
+         *
+         * @param now Current time (ns)
+         * @return Next due time (ns) or <code>STOP</code>
+         */
+        long run(long now);
+    }
+
+    private static final class Entry {
+
+        final Task task;
+        final long due;
+
+        Entry(Task task, long due) {
+            this.task = task;
+            this.due = due;
+        }
+    }
+
+    /* Tasks by due time */
+    private final PriorityQueue<Entry> queue =
+            new PriorityQueue<>((a, b) -> Long.signum(a.due - b.due));
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    Pacer(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a task.
+     *
+     * @param task Task
+     * @param due  Due time (ns)
+     */
+    synchronized void schedule(Task task, long due) {
+        queue.add(new Entry(task, due));
+        if (queue.peek().task == task) {
+            notifyAll();
+        }
+    }
+
+    synchronized int getTasks() {
+        return queue.size();
+    }
+
+    /**
+     * Wait for the earliest task to be due.
+     *
+     * @return Task entry or <code>null</code> if closed
+     * @throws InterruptedException if interrupted
+     */
+    private synchronized Entry next() throws InterruptedException {
+        while (running) {
+            Entry entry = queue.peek();
+            if (entry == null) {
+                wait();
+                continue;
+            }
+            long delay = entry.due - System.nanoTime();
+            if (delay <= 0) {
+                return queue.poll();
+            }
+            wait(delay / 1000000, (int) (delay % 1000000));
+        }
+        return null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Entry entry;
+            while ((entry = next()) != null) {
+                long due;
+                try {
+                    due = entry.task.run(System.nanoTime());
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Error", ex);
+                    due = STOP;
+                }
+                if (due != STOP) {
+                    schedule(entry.task, due);
+                }
+            }
+        } catch (InterruptedException ex) {
+            // closed
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        queue.clear();
+        notifyAll();
+    }
+}
@@ -0,0 +1,690 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtsp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.record.DvrRing;
+import ws.gmax.rtp.Codec;
+import ws.gmax.rtp.PortAllocator;
+import ws.gmax.rtp.PortPair;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RTSP server playing recordings.
+ * <p>
+ * Recordings are DVR rings published by name as rtsp://host:port/name.
+ * DESCRIBE builds the SDP from the codec and parameter sets of the oldest
+ * keyframe, PLAY accepts npt ranges relative to the oldest keyframe and
+ * absolute clock ranges. RTP is sent over UDP from one server port pair, all
+ * sessions are paced by a single thread which also sends their RTCP sender
+ * reports. Malformed requests are answered 400. Sessions end with TEARDOWN
+ * or when their control connection closes.
+ *
+ * @author Marius
+ */
+public final class RtspServer implements Closeable, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RtspServer.class);
+
+    /* Track control */
+    private static final String TRACK = "track1";
+
+    /* Session timeout announced (s) */
+    private static final int TIMEOUT = 60;
+
+    /* Max request line or header length */
+    private static final int MAX_LINE = 4096;
+
+    /* Status of malformed requests */
+    private static final String BAD_REQUEST = "400 Bad Request\r\n";
+
+    /* Supported methods */
+    private static final String PUBLIC =
+            "OPTIONS, DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN, GET_PARAMETER";
+
+    /**
+     * Parsed request.
+     */
+    private static final class Request {
+
+        String method;
+        String uri;
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /* Control socket */
+    private final ServerSocket server;
+
+    /* RTP and RTCP sockets of all sessions */
+    private final PortPair ports;
+
+    /* Recordings by name */
+    private final Map<String, DvrRing> recordings = new ConcurrentHashMap<>();
+
+    /* Sessions by id */
+    private final Map<String, ServerSession> sessions = new ConcurrentHashMap<>();
+
+    /* Pacing thread */
+    private final Pacer pacer = new Pacer("rtsp-pacer");
+
+    /* Control connection threads */
+    private final ExecutorService executor;
+
+    private Thread acceptor;
+
+    /**
+     * Constructor.
+     *
+     * @param address   Control address, port 0 for any
+     * @param allocator Allocator of the RTP port pair
+     * @throws IOException on error
+     */
+    public RtspServer(InetSocketAddress address, PortAllocator allocator) throws IOException {
+        server = new ServerSocket();
+        server.bind(address);
+        ports = allocator.allocate(address.getAddress().getHostAddress());
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "rtsp-server-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Publish a recording.
+     *
+     * @param name Recording name
+     * @param ring DVR ring
+     */
+    public void addRecording(String name, DvrRing ring) {
+        recordings.put(name, ring);
+    }
+
+    public void removeRecording(String name) {
+        recordings.remove(name);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public int getSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * Start accepting connections.
+     */
+    public synchronized void start() {
+        if (acceptor == null) {
+            acceptor = new Thread(this, "rtsp-server-accept-" + getPort());
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                executor.execute(() -> serve(socket));
+            } catch (IOException ex) {
+                if (!server.isClosed()) {
+                    LOGGER.error("Error", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serve a control connection, its sessions are closed with it.
+     *
+     * @param socket Client socket
+     */
+    private void serve(Socket socket) {
+        List<String> owned = new ArrayList<>();
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            Request request;
+            while (true) {
+                try {
+                    request = readRequest(in);
+                } catch (ProtocolException ex) {
+                    // the request cannot be skipped, answer and close
+                    LOGGER.debug("Bad request: {}", ex.getMessage());
+                    write(out, new StringBuilder(BAD_REQUEST), null, null);
+                    break;
+                }
+                if (request == null) {
+                    break;
+                }
+                StringBuilder response = new StringBuilder(256);
+                String body;
+                try {
+                    body = handle(request, socket, owned, response);
+                } catch (RuntimeException ex) {
+                    LOGGER.debug("Bad {} request {}", request.method, request.uri, ex);
+                    response.setLength(0);
+                    response.append(BAD_REQUEST);
+                    body = null;
+                }
+                write(out, response, request.headers.get("CSeq"), body);
+            }
+        } catch (IOException ex) {
+            LOGGER.debug("Connection closed: {}", ex.getMessage());
+        } finally {
+            for (String id : owned) {
+                ServerSession session = sessions.remove(id);
+                if (session != null) {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a response.
+     *
+     * @param out      Control connection
+     * @param response Status line and headers
+     * @param cseq     Request sequence number or <code>null</code>
+     * @param body     Response body or <code>null</code>
+     */
+    private static void write(OutputStream out, StringBuilder response, String cseq,
+                              String body) throws IOException {
+        out.write(("RTSP/1.0 " + response + "CSeq: " + (cseq == null ? "0" : cseq)
+                + "\r\nServer: torrent\r\n"
+                + (body == null ? "\r\n" : "Content-Length: "
+                + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body))
+                .getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Read a line terminated by CRLF or LF.
+     *
+     * @return Line or <code>null</code> at end of stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                if (line.length() == MAX_LINE) {
+                    throw new IOException("Line too long");
+                }
+                line.append((char) c);
+            }
+        }
+        return c == -1 && line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * Read a header line of a request.
+     *
+     * @param in Input
+     * @return Header line, empty at the end of the headers
+     * @throws EOFException if the stream ends
+     */
+    private static String header(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            throw new EOFException("End of stream in request headers");
+        }
+        return line;
+    }
+
+    /**
+     * Read a request, skipping interleaved data and the body.
+     *
+     * @return Request or <code>null</code> at end of stream
+     * @throws ProtocolException on a malformed request line or Content-Length
+     * @throws EOFException      if the stream ends within the headers
+     */
+    private static Request readRequest(InputStream in) throws IOException {
+        String line;
+        do {
+            in.mark(4);
+            int c = in.read();
+            if (c == -1) {
+                return null;
+            }
+            if (c == '$') {
+                in.read();
+                int length = (in.read() << 8) | in.read();
+                if (length < 0 || in.skip(length) < 0) {
+                    return null;
+                }
+                line = "";
+                continue;
+            }
+            in.reset();
+            line = readLine(in);
+            if (line == null) {
+                return null;
+            }
+        } while (line.isEmpty());
+        String[] parts = line.split(" ");
+        if (parts.length != 3) {
+            throw new ProtocolException("Invalid request: " + line);
+        }
+        Request request = new Request();
+        request.method = parts[0];
+        request.uri = parts[1];
+        while (!(line = header(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        String length = request.headers.get("Content-Length");
+        if (length != null) {
+            long skip;
+            try {
+                skip = Long.parseLong(length.trim());
+            } catch (NumberFormatException ex) {
+                skip = -1;
+            }
+            if (skip < 0) {
+                throw new ProtocolException("Invalid Content-Length: " + length);
+            }
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0) {
+                    return null;
+                }
+                skip -= skipped;
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Get the recording name of a request URI.
+     *
+     * @param uri Request URI
+     * @return Name without the track control and query
+     */
+    private static String name(String uri) {
+        String path = uri;
+        if (path.startsWith("rtsp://")) {
+            int slash = path.indexOf('/', 7);
+            path = slash == -1 ? "" : path.substring(slash);
+        }
+        int query = path.indexOf('?');
+        if (query != -1) {
+            path = path.substring(0, query);
+        }
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (path.endsWith("/" + TRACK)) {
+            path = path.substring(0, path.length() - TRACK.length() - 1);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Handle a request.
+     *
+     * @param request  Request
+     * @param socket   Control socket
+     * @param owned    Sessions of the connection
+     * @param response Status line and headers, filled in
+     * @return Response body or <code>null</code>
+     */
+    private String handle(Request request, Socket socket, List<String> owned,
+                          StringBuilder response) {
+        String sessionId = request.headers.get("Session");
+        if (sessionId != null && sessionId.indexOf(';') != -1) {
+            sessionId = sessionId.substring(0, sessionId.indexOf(';'));
+        }
+        ServerSession session = sessionId == null ? null : sessions.get(sessionId.trim());
+        switch (request.method) {
+            case "OPTIONS":
+                response.append("200 OK\r\nPublic: ").append(PUBLIC).append("\r\n");
+                return null;
+            case "DESCRIBE":
+                return describe(request, response);
+            case "SETUP":
+                setup(request, socket, owned, response);
+                return null;
+            case "PLAY":
+                if (session == null) {
+                    response.append("454 Session Not Found\r\n");
+                } else {
+                    play(request, session, response);
+                }
+                return null;
+            case "PAUSE":
+                if (session == null) {
+                    response.append("454 Session Not Found\r\n");
+                } else {
+                    session.pause();
+                    response.append("200 OK\r\nSession: ").append(session.getId()).append("\r\n");
+                }
+                return null;
+            case "TEARDOWN":
+                if (session == null) {
+                    response.append("454 Session Not Found\r\n");
+                } else {
+                    sessions.remove(session.getId());
+                    owned.remove(session.getId());
+                    session.close();
+                    response.append("200 OK\r\n");
+                }
+                return null;
+            case "GET_PARAMETER":
+                response.append("200 OK\r\n");
+                if (session != null) {
+                    response.append("Session: ").append(session.getId()).append("\r\n");
+                }
+                return null;
+            default:
+                response.append("405 Method Not Allowed\r\nAllow: ").append(PUBLIC).append("\r\n");
+                return null;
+        }
+    }
+
+    /**
+     * Build the SDP of a recording.
+     */
+    private String describe(Request request, StringBuilder response) {
+        String name = name(request.uri);
+        DvrRing ring = recordings.get(name);
+        Stream stream = ring == null ? null : Stream.probe(ring);
+        if (stream == null) {
+            response.append("404 Not Found\r\n");
+            return null;
+        }
+        String base = request.uri.endsWith("/") ? request.uri : request.uri + '/';
+        response.append("200 OK\r\nContent-Base: ").append(base)
+                .append("\r\nContent-Type: application/sdp\r\n");
+        String host = hostAddress();
+        return "v=0\r\n"
+                + "o=- " + System.currentTimeMillis() + " 1 IN IP4 " + host + "\r\n"
+                + "s=" + name + "\r\n"
+                + "c=IN IP4 0.0.0.0\r\n"
+                + "t=0 0\r\n"
+                + "a=control:*\r\n"
+                + "a=range:npt=0-\r\n"
+                + "m=video 0 RTP/AVP " + ServerSession.PAYLOAD_TYPE + "\r\n"
+                + "a=rtpmap:" + ServerSession.PAYLOAD_TYPE + ' ' + stream.codec.getEncoding()
+                + "/90000\r\n"
+                + "a=fmtp:" + ServerSession.PAYLOAD_TYPE + ' ' + stream.fmtp + "\r\n"
+                + "a=control:" + TRACK + "\r\n";
+    }
+
+    private String hostAddress() {
+        return server.getInetAddress().isAnyLocalAddress() ? "0.0.0.0"
+                : server.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Create a session, only unicast UDP is supported.
+     */
+    private void setup(Request request, Socket socket, List<String> owned,
+                       StringBuilder response) {
+        String name = name(request.uri);
+        DvrRing ring = recordings.get(name);
+        Stream stream = ring == null ? null : Stream.probe(ring);
+        if (stream == null) {
+            response.append("404 Not Found\r\n");
+            return;
+        }
+        String transport = request.headers.get("Transport");
+        int clientPort = -1;
+        int clientRtcpPort = -1;
+        if (transport != null && transport.startsWith("RTP/AVP") && !transport.contains("TCP")
+                && !transport.contains("multicast")) {
+            for (String param : transport.split(";")) {
+                if (param.startsWith("client_port=")) {
+                    String value = param.substring(12);
+                    int dash = value.indexOf('-');
+                    try {
+                        clientPort = Integer.parseInt(dash == -1 ? value : value.substring(0, dash));
+                        clientRtcpPort = dash == -1 ? clientPort + 1
+                                : Integer.parseInt(value.substring(dash + 1));
+                    } catch (NumberFormatException ex) {
+                        // invalid
+                    }
+                }
+            }
+        }
+        if (clientPort <= 0 || clientPort > 0xFFFF || clientRtcpPort <= 0
+                || clientRtcpPort > 0xFFFF) {
+            response.append("461 Unsupported Transport\r\n");
+            return;
+        }
+        byte[] random = new byte[8];
+        ThreadLocalRandom.current().nextBytes(random);
+        StringBuilder id = new StringBuilder(16);
+        for (byte b : random) {
+            id.append(String.format("%02X", b));
+        }
+        ServerSession session = new ServerSession(id.toString(), name, ring, stream.codec,
+                ports.getRtpSocket(), new InetSocketAddress(socket.getInetAddress(), clientPort),
+                ports.getRtcpSocket(), new InetSocketAddress(socket.getInetAddress(),
+                clientRtcpPort));
+        sessions.put(session.getId(), session);
+        owned.add(session.getId());
+        response.append("200 OK\r\nTransport: RTP/AVP;unicast;client_port=").append(clientPort)
+                .append('-').append(clientRtcpPort).append(";server_port=")
+                .append(ports.getRtpPort()).append('-').append(ports.getRtcpPort())
+                .append(String.format(";ssrc=%08X", session.getSsrc()))
+                .append("\r\nSession: ").append(session.getId()).append(";timeout=")
+                .append(TIMEOUT).append("\r\n");
+    }
+
+    /**
+     * Start or resume a session at the requested range.
+     */
+    private void play(Request request, ServerSession session, StringBuilder response) {
+        DvrRing ring = recordings.get(session.getName());
+        if (ring == null) {
+            response.append("404 Not Found\r\n");
+            return;
+        }
+        long oldest = ring.seek(Long.MIN_VALUE);
+        DvrRing.Frame frame = new DvrRing.Frame();
+        if (oldest < 0 || !ring.readFrame(oldest, frame)) {
+            response.append("404 Not Found\r\n");
+            return;
+        }
+        long origin = frame.wallclock;
+        long start = -1;
+        String range = request.headers.get("Range");
+        if (range != null) {
+            try {
+                long wallclock = parseRange(range.trim(), origin);
+                if (wallclock != Long.MIN_VALUE) {
+                    start = ring.seek(wallclock);
+                }
+            } catch (ParseException | NumberFormatException ex) {
+                response.append("457 Invalid Range\r\n");
+                return;
+            }
+        }
+        long pts = session.play(start, pacer);
+        long position = start >= 0 ? start : oldest;
+        double npt = ring.readFrame(position, frame) ? (frame.wallclock - origin) / 1000.0 : 0;
+        response.append("200 OK\r\nSession: ").append(session.getId())
+                .append(String.format(Locale.US, "\r\nRange: npt=%.3f-", npt))
+                .append("\r\nRTP-Info: url=").append(request.uri.endsWith("/") ? request.uri
+                : request.uri + '/').append(TRACK).append(";seq=").append(session.getSequence())
+                .append(";rtptime=").append(session.getRtpTime(pts)).append("\r\n");
+    }
+
+    /**
+     * Parse a PLAY range.
+     *
+     * @param range  npt=start- or clock=start-
+     * @param origin Wallclock of the oldest keyframe (ms)
+     * @return Wallclock to play from or <code>Long.MIN_VALUE</code> to resume
+     */
+    private static long parseRange(String range, long origin) throws ParseException {
+        int dash = range.indexOf('-');
+        String start = dash == -1 ? range : range.substring(0, dash);
+        if (start.startsWith("npt=")) {
+            String value = start.substring(4).trim();
+            return value.isEmpty() || "now".equals(value) ? Long.MIN_VALUE
+                    : origin + (long) (Double.parseDouble(value) * 1000);
+        }
+        if (start.startsWith("clock=")) {
+            String value = start.substring(6).trim();
+            int dot = value.indexOf('.');
+            if (dot != -1) {
+                value = value.substring(0, dot) + 'Z';
+            }
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format.parse(value).getTime();
+        }
+        throw new ParseException(range, 0);
+    }
+
+    /**
+     * Stream parameters probed from the oldest keyframe of a recording.
+     */
+    private static final class Stream {
+
+        Codec codec;
+        String fmtp;
+
+        static Stream probe(DvrRing ring) {
+            DvrRing.Frame frame = new DvrRing.Frame();
+            long position = ring.seek(Long.MIN_VALUE);
+            if (position < 0 || !ring.readFrame(position, frame)
+                    || (frame.codec != Codec.H264 && frame.codec != Codec.H265)) {
+                return null;
+            }
+            ByteBuffer data = ByteBuffer.allocate(frame.length);
+            ring.read(position + DvrRing.RECORD_HEADER, data);
+            data.flip();
+            boolean hevc = frame.codec == Codec.H265;
+            byte[] vps = null, sps = null, pps = null;
+            for (byte[] nal : nals(data)) {
+                if (nal.length == 0) {
+                    continue;
+                }
+                int type = hevc ? (nal[0] >> 1) & 0x3F : nal[0] & 0x1F;
+                if (hevc && type == 32) {
+                    vps = nal;
+                } else if (type == (hevc ? 33 : 7)) {
+                    sps = nal;
+                } else if (type == (hevc ? 34 : 8)) {
+                    pps = nal;
+                }
+            }
+            Stream stream = new Stream();
+            stream.codec = frame.codec;
+            Base64.Encoder base64 = Base64.getEncoder();
+            if (hevc) {
+                stream.fmtp = (vps == null ? "" : "sprop-vps=" + base64.encodeToString(vps) + ';')
+                        + (sps == null ? "" : "sprop-sps=" + base64.encodeToString(sps) + ';')
+                        + (pps == null ? "" : "sprop-pps=" + base64.encodeToString(pps));
+            } else {
+                stream.fmtp = "packetization-mode=1"
+                        + (sps == null || sps.length < 4 ? "" : String.format(
+                        ";profile-level-id=%02X%02X%02X", sps[1], sps[2], sps[3]))
+                        + (sps == null || pps == null ? "" : ";sprop-parameter-sets="
+                        + base64.encodeToString(sps) + ',' + base64.encodeToString(pps));
+            }
+            return stream;
+        }
+
+        /**
+         * Split Annex B bytes in NAL units.
+         */
+        private static List<byte[]> nals(ByteBuffer data) {
+            List<byte[]> nals = new ArrayList<>();
+            int end = data.limit();
+            int start = -1;
+            for (int i = 0; i + 2 < end; i++) {
+                if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                    if (start >= 0) {
+                        nals.add(copy(data, start, i > start && data.get(i - 1) == 0 ? i - 1 : i));
+                    }
+                    start = i + 3;
+                    i += 2;
+                }
+            }
+            if (start >= 0 && start < end) {
+                nals.add(copy(data, start, end));
+            }
+            return nals;
+        }
+
+        private static byte[] copy(ByteBuffer data, int from, int to) {
+            byte[] nal = new byte[to - from];
+            ByteBuffer src = data.duplicate();
+            src.position(from);
+            src.get(nal);
+            return nal;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (ServerSession session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
+        pacer.close();
+        executor.shutdownNow();
+        ports.close();
+    }
+}
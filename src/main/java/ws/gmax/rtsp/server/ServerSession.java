@@ -0,0 +1,274 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.rtsp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.record.DvrRing;
+import ws.gmax.rtp.Codec;
+import ws.gmax.rtp.Packetizer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Playback session of a recording, sending RTP over UDP.
+ * <p>
+ * Records are read from the DVR ring and sent when due, the due time of a
+ * record is its presentation time relative to the first record played.
+ * When the play position reaches the head of the ring the session waits
+ * for new records, when it falls behind the tail it restarts from the
+ * oldest keyframe. A RTCP sender report maps the RTP timestamps to the
+ * wallclock at the start of playback and every report interval after.
+ *
+ * @author Marius
+ */
+final class ServerSession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServerSession.class);
+
+    /* RTP payload type */
+    static final int PAYLOAD_TYPE = 96;
+
+    /* Poll period at the head of the ring (ns) */
+    private static final long IDLE = 20000000L;
+
+    /* Max lateness before the timeline is restarted (ns) */
+    private static final long LATE = 500000000L;
+
+    /* Max records sent in one run */
+    private static final int BURST = 8;
+
+    /* Sender report interval (ns) */
+    private static final long REPORT_INTERVAL = 5000000000L;
+
+    /* Seconds from 1900 (NTP) to 1970 */
+    private static final long NTP_EPOCH = 2208988800L;
+
+    /* Session */
+    private final String id;
+    private final String name;
+    private final DvrRing ring;
+    private final Codec codec;
+
+    /* Transport */
+    private final DatagramSocket socket;
+    private final DatagramPacket datagram = new DatagramPacket(new byte[0], 0);
+    private final Packetizer packetizer;
+    private final long ssrc;
+    private final long rtpBase;
+    private final DatagramSocket rtcpSocket;
+    private final DatagramPacket report = new DatagramPacket(new byte[28], 28);
+    private long reported;
+    private boolean reportDue = true;
+
+    /* Playback state */
+    private final DvrRing.Frame frame = new DvrRing.Frame();
+    private byte[] buffer = new byte[256 * 1024];
+    private long position = -1;
+    private long basePts, baseNanos;
+    private boolean rebase;
+    private int generation;
+    private boolean playing;
+
+    /* Statistics */
+    private long frames, packets, octets, reports;
+
+    ServerSession(String id, String name, DvrRing ring, Codec codec, DatagramSocket socket,
+                  InetSocketAddress peer, DatagramSocket rtcpSocket,
+                  InetSocketAddress rtcpPeer) {
+        this.id = id;
+        this.name = name;
+        this.ring = ring;
+        this.codec = codec;
+        this.socket = socket;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        this.ssrc = random.nextLong() & 0xFFFFFFFFL;
+        this.rtpBase = random.nextLong() & 0xFFFFFFFFL;
+        this.packetizer = new Packetizer(codec, PAYLOAD_TYPE, ssrc, random.nextInt(0x10000));
+        datagram.setSocketAddress(peer);
+        this.rtcpSocket = rtcpSocket;
+        report.setSocketAddress(rtcpPeer);
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getSsrc() {
+        return ssrc;
+    }
+
+    /**
+     * Start or resume playing.
+     *
+     * @param start Keyframe position to play from, -1 to resume
+     * @param pacer Pacing thread
+     * @return Presentation time of the first record
+     */
+    synchronized long play(long start, Pacer pacer) {
+        if (start >= 0 || position < 0) {
+            position = start >= 0 ? start : ring.seek(Long.MIN_VALUE);
+        }
+        rebase = true;
+        playing = true;
+        final int current = ++generation;
+        pacer.schedule(now -> step(current, now), System.nanoTime());
+        return ring.readFrame(position, frame) ? frame.pts : 0;
+    }
+
+    /**
+     * Get the RTP timestamp of a presentation time.
+     *
+     * @param pts Presentation time (90 kHz)
+     * @return RTP timestamp
+     */
+    long getRtpTime(long pts) {
+        return (rtpBase + pts) & 0xFFFFFFFFL;
+    }
+
+    int getSequence() {
+        return packetizer.getSequence();
+    }
+
+    synchronized void pause() {
+        playing = false;
+        generation++;
+    }
+
+    /**
+     * Send the records due.
+     *
+     * @param current Generation of the play request
+     * @param now     Current time (ns)
+     * @return Next due time or <code>Pacer.STOP</code>
+     */
+    private synchronized long step(int current, long now) {
+        if (current != generation || !playing) {
+            return Pacer.STOP;
+        }
+        for (int i = 0; i < BURST; i++) {
+            if (position < ring.getTail()) {
+                position = ring.seek(Long.MIN_VALUE);
+                rebase = true;
+            }
+            if (position < 0 || !ring.readFrame(position, frame)) {
+                return now + IDLE;
+            }
+            long due = baseNanos + (frame.pts - basePts) * 100000 / 9;
+            if (rebase || now - due > LATE) {
+                basePts = frame.pts;
+                baseNanos = now;
+                due = now;
+                rebase = false;
+                reportDue = true;
+            }
+            if (due - now > 0) {
+                return due;
+            }
+            if (buffer.length < frame.length) {
+                buffer = new byte[Math.max(frame.length, buffer.length * 2)];
+            }
+            ByteBuffer payload = ByteBuffer.wrap(buffer, 0, frame.length);
+            ring.read(position + DvrRing.RECORD_HEADER, payload);
+            payload.flip();
+            if (position < ring.getTail()) {
+                // overwritten while reading
+                continue;
+            }
+            try {
+                packetizer.packetize(payload, getRtpTime(frame.pts), (packet, length) -> {
+                    datagram.setData(packet, 0, length);
+                    socket.send(datagram);
+                    packets++;
+                    octets += length - 12;
+                });
+            } catch (IOException ex) {
+                LOGGER.error("Error sending {}", name, ex);
+                playing = false;
+                return Pacer.STOP;
+            }
+            frames++;
+            position = frame.next();
+            if (reportDue || now - reported >= REPORT_INTERVAL) {
+                sendReport(now);
+            }
+        }
+        return now;
+    }
+
+    /**
+     * Send a sender report mapping the current playback time to the
+     * wallclock. Errors are logged only, RTCP is best effort.
+     *
+     * @param now Current time (ns)
+     */
+    private void sendReport(long now) {
+        long rtpTime = getRtpTime(basePts + (now - baseNanos) * 9 / 100000);
+        long millis = System.currentTimeMillis();
+        long fraction = ((millis % 1000) << 32) / 1000;
+        ByteBuffer b = ByteBuffer.wrap(report.getData());
+        b.put((byte) 0x80).put((byte) 200).putShort((short) 6)
+                .putInt((int) ssrc)
+                .putInt((int) (millis / 1000 + NTP_EPOCH)).putInt((int) fraction)
+                .putInt((int) rtpTime)
+                .putInt((int) packets).putInt((int) octets);
+        try {
+            rtcpSocket.send(report);
+            reports++;
+        } catch (IOException ex) {
+            LOGGER.debug("Sender report of {} failed: {}", name, ex.getMessage());
+        }
+        reported = now;
+        reportDue = false;
+    }
+
+    synchronized void close() {
+        playing = false;
+        generation++;
+        LOGGER.debug("Session {} of {} closed: {} frames, {} packets, {} reports", id, name,
+                frames, packets, reports);
+    }
+
+    synchronized long getFrames() {
+        return frames;
+    }
+
+    synchronized long getPackets() {
+        return packets;
+    }
+
+    synchronized long getReports() {
+        return reports;
+    }
+
+    Codec getCodec() {
+        return codec;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.sdp;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable media description (m= section of a SDP document).
+ * <p>
+ * m=video 0 RTP/AVP 96
+ * c=IN IP4 0.0.0.0
+ * a=rtpmap:96 H264/90000
+ * a=fmtp:96 packetization-mode=1;sprop-parameter-sets=Z0KAKNoCwPRA,aM48gA==
+ * a=control:track1
+ *
+ * @author Marius
+ */
+public final class MediaDescription {
+
+    /* Media type (video, audio, application) */
+    private final String media;
+
+    /* Media port */
+    private final int port;
+
+    /* Transport protocol (RTP/AVP, RTP/AVPF, ...) */
+    private final String protocol;
+
+    /* Payload types in preference order */
+    private final List<Integer> payloadTypes;
+
+    /* Stream control */
+    private final String control;
+
+    /* Media range */
+    private final Range range;
+
+    /* Connection data */
+    private final String connection;
+
+    /* Payload mappings by payload type */
+    private final Map<Integer, RtpMap> rtpMaps;
+
+    /* Format parameters by payload type */
+    private final Map<Integer, Map<String, String>> fmtps;
+
+    /* All attributes by name */
+    private final Map<String, List<String>> attributes;
+
+    /* Parameter set parameters of the preferred payload type */
+    private static final String[] PARAMETER_SETS = {
+            "sprop-parameter-sets", "sprop-vps", "sprop-sps", "sprop-pps"};
+
+    /* Decoded parameter sets by parameter name */
+    private final Map<String, List<byte[]>> parameterSets = new HashMap<>();
+
+    MediaDescription(String media, int port, String protocol,
+                     List<Integer> payloadTypes, String control, Range range,
+                     String connection, Map<Integer, RtpMap> rtpMaps,
+                     Map<Integer, Map<String, String>> fmtps,
+                     Map<String, List<String>> attributes) {
+        this.media = media;
+        this.port = port;
+        this.protocol = protocol;
+        this.payloadTypes = payloadTypes;
+        this.control = control;
+        this.range = range;
+        this.connection = connection;
+        this.rtpMaps = rtpMaps;
+        this.fmtps = fmtps;
+        this.attributes = attributes;
+        for (String name : PARAMETER_SETS) {
+            parameterSets.put(name, decodeParameterSets(name));
+        }
+    }
+
+    public String getMedia() {
+        return media;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public List<Integer> getPayloadTypes() {
+        return payloadTypes;
+    }
+
+    /**
+     * Get the preferred (first) payload type.
+     *
+     * @return Payload type or -1 if none
+     */
+    public int getPayloadType() {
+        return payloadTypes.isEmpty() ? -1 : payloadTypes.get(0);
+    }
+
+    public String getControl() {
+        return control;
+    }
+
+    public Range getRange() {
+        return range;
+    }
+
+    public String getConnection() {
+        return connection;
+    }
+
+    /**
+     * Get payload mapping. Static payload types are resolved even without a
+     * rtpmap attribute.
+     *
+     * @param payloadType RTP payload type
+     * @return Payload mapping or <code>null</code> if unknown
+     */
+    public RtpMap getRtpMap(int payloadType) {
+        RtpMap map = rtpMaps.get(payloadType);
+        return map != null ? map : RtpMap.ofStatic(payloadType);
+    }
+
+    /**
+     * Get payload mapping of the preferred payload type.
+     *
+     * @return Payload mapping or <code>null</code> if unknown
+     */
+    public RtpMap getRtpMap() {
+        return getRtpMap(getPayloadType());
+    }
+
+    /**
+     * Get encoding name of the preferred payload type.
+     *
+     * @return Encoding name or <code>null</code> if unknown
+     */
+    public String getEncoding() {
+        RtpMap map = getRtpMap();
+        return map == null ? null : map.getEncoding();
+    }
+
+    /**
+     * Get RTP clock rate of the preferred payload type.
+     *
+     * @return Clock rate or 0 if unknown
+     */
+    public int getClockRate() {
+        RtpMap map = getRtpMap();
+        return map == null ? 0 : map.getClockRate();
+    }
+
+    /**
+     * Get format parameters. Parameter names are case insensitive.
+     *
+     * @param payloadType RTP payload type
+     * @return Format parameters, empty if not present
+     */
+    public Map<String, String> getFmtp(int payloadType) {
+        Map<String, String> fmtp = fmtps.get(payloadType);
+        return fmtp != null ? fmtp : Collections.<String, String>emptyMap();
+    }
+
+    /**
+     * Get format parameters of the preferred payload type.
+     *
+     * @return Format parameters, empty if not present
+     */
+    public Map<String, String> getFmtp() {
+        return getFmtp(getPayloadType());
+    }
+
+    /**
+     * Get a format parameter of the preferred payload type.
+     *
+     * @param name Parameter name
+     * @return Parameter value or <code>null</code> if not present
+     */
+    public String getFmtpParameter(String name) {
+        return getFmtp().get(name);
+    }
+
+    /**
+     * Get an integer format parameter of the preferred payload type.
+     *
+     * @param name         Parameter name
+     * @param defaultValue Value returned if missing or invalid
+     * @return Parameter value
+     */
+    public int getFmtpParameter(String name, int defaultValue) {
+        String value = getFmtpParameter(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException ex) {
+                // use default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Get a base64 list parameter (sprop-parameter-sets, sprop-vps,
+     * sprop-sps, sprop-pps), decoded once when the description is parsed.
+     *
+     * @param name Parameter name
+     * @return Decoded NAL units, empty if not present
+     */
+    public List<byte[]> getParameterSets(String name) {
+        List<byte[]> sets = parameterSets.get(name);
+        return sets != null ? sets : decodeParameterSets(name);
+    }
+
+    /**
+     * Decode a base64 list parameter. Invalid entries are skipped.
+     *
+     * @param name Parameter name
+     * @return Decoded NAL units, empty if not present
+     */
+    private List<byte[]> decodeParameterSets(String name) {
+        String value = getFmtpParameter(name);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        List<byte[]> sets = new ArrayList<>();
+        for (String item : value.split(",")) {
+            item = item.trim();
+            if (!item.isEmpty()) {
+                try {
+                    sets.add(Base64.getDecoder().decode(item));
+                } catch (IllegalArgumentException ex) {
+                    // skip invalid entry
+                }
+            }
+        }
+        return Collections.unmodifiableList(sets);
+    }
+
+    /**
+     * Decode H.264 sprop-parameter-sets (SPS and PPS).
+     *
+     * @return Decoded NAL units, empty if not present
+     */
+    public List<byte[]> getParameterSets() {
+        return getParameterSets("sprop-parameter-sets");
+    }
+
+    /**
+     * Get the first value of an attribute.
+     *
+     * @param name Attribute name
+     * @return Attribute value or <code>null</code> if not present
+     */
+    public String getAttribute(String name) {
+        List<String> values = attributes.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Get all values of an attribute.
+     *
+     * @param name Attribute name
+     * @return Attribute values, empty if not present
+     */
+    public List<String> getAttributes(String name) {
+        List<String> values = attributes.get(name);
+        return values != null ? values : Collections.<String>emptyList();
+    }
+
+    /**
+     * Check if a flag attribute (a=recvonly) or valued attribute is present.
+     *
+     * @param name Attribute name
+     * @return <code>true</code> if present <code>false</code> if not
+     */
+    public boolean hasAttribute(String name) {
+        return attributes.containsKey(name);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("m=%s %d %s %s", media, port, protocol, payloadTypes);
+    }
+}
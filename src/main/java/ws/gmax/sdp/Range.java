@@ -0,0 +1,125 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.sdp;
+
+/**
+ * Presentation range (a=range:npt=0-30.5).
+ * <p>
+ * Only the npt unit is decoded into seconds, other units (clock, smpte) are
+ * kept as raw text.
+ *
+ * @author Marius
+ */
+public final class Range {
+
+    /* Range unit (npt, clock, smpte) */
+    private final String unit;
+
+    /* Raw range value without unit */
+    private final String value;
+
+    /* Start in seconds, NaN when unknown or "now" */
+    private final double start;
+
+    /* End in seconds, NaN when open */
+    private final double end;
+
+    private Range(String unit, String value, double start, double end) {
+        this.unit = unit;
+        this.value = value;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parse the value of a range attribute.
+     *
+     * @param text Attribute value (npt=0-)
+     * @return Range
+     */
+    static Range parse(String text) {
+        int eq = text.indexOf('=');
+        String unit = eq == -1 ? "npt" : text.substring(0, eq).trim();
+        String value = text.substring(eq + 1).trim();
+        double start = Double.NaN;
+        double end = Double.NaN;
+        if ("npt".equalsIgnoreCase(unit)) {
+            int dash = value.indexOf('-');
+            String from = dash == -1 ? value : value.substring(0, dash);
+            String to = dash == -1 ? "" : value.substring(dash + 1);
+            start = npt(from);
+            end = npt(to);
+        }
+        return new Range(unit, value, start, end);
+    }
+
+    /**
+     * Decode a npt time (seconds or hh:mm:ss.fraction).
+     *
+     * @param time Time text
+     * @return Seconds or NaN
+     */
+    private static double npt(String time) {
+        time = time.trim();
+        if (time.isEmpty() || "now".equalsIgnoreCase(time)) {
+            return Double.NaN;
+        }
+        try {
+            double seconds = 0;
+            for (String part : time.split(":")) {
+                seconds = seconds * 60 + Double.parseDouble(part);
+            }
+            return seconds;
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public double getStart() {
+        return start;
+    }
+
+    public double getEnd() {
+        return end;
+    }
+
+    /**
+     * Check if the range is open ended (live stream).
+     *
+     * @return <code>true</code> if open <code>false</code> if not
+     */
+    public boolean isOpen() {
+        return Double.isNaN(end);
+    }
+
+    @Override
+    public String toString() {
+        return unit + "=" + value;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.sdp;
+
+/**
+ * Payload type mapping (a=rtpmap:96 H264/90000).
+ *
+ * @author Marius
+ */
+public final class RtpMap {
+
+    /* RTP payload type */
+    private final int payloadType;
+
+    /* Encoding name (H264, H265, mpeg4-generic, ...) */
+    private final String encoding;
+
+    /* RTP clock rate */
+    private final int clockRate;
+
+    /* Audio channels, 1 when not specified */
+    private final int channels;
+
+    /**
+     * Constructor.
+     *
+     * @param payloadType RTP payload type
+     * @param encoding    Encoding name
+     * @param clockRate   RTP clock rate
+     * @param channels    Audio channels
+     */
+    public RtpMap(int payloadType, String encoding, int clockRate, int channels) {
+        this.payloadType = payloadType;
+        this.encoding = encoding;
+        this.clockRate = clockRate;
+        this.channels = channels;
+    }
+
+    /**
+     * Parse the value of a rtpmap attribute.
+     *
+     * @param value Attribute value (96 H264/90000)
+     * @return Payload mapping
+     * @throws IllegalArgumentException if malformed
+     */
+    static RtpMap parse(String value) {
+        int space = value.indexOf(' ');
+        if (space == -1) {
+            throw new IllegalArgumentException("Invalid rtpmap: " + value);
+        }
+        int payloadType = Integer.parseInt(value.substring(0, space).trim());
+        String[] parts = value.substring(space + 1).trim().split("/");
+        int clockRate = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 0;
+        int channels = parts.length > 2 ? Integer.parseInt(parts[2].trim()) : 1;
+        return new RtpMap(payloadType, parts[0].trim(), clockRate, channels);
+    }
+
+    /**
+     * Static payload types defined by RFC 3551.
+     *
+     * @param payloadType RTP payload type
+     * @return Payload mapping or <code>null</code> for dynamic types
+     */
+    static RtpMap ofStatic(int payloadType) {
+        switch (payloadType) {
+            case 0:
+                return new RtpMap(payloadType, "PCMU", 8000, 1);
+            case 3:
+                return new RtpMap(payloadType, "GSM", 8000, 1);
+            case 8:
+                return new RtpMap(payloadType, "PCMA", 8000, 1);
+            case 9:
+                return new RtpMap(payloadType, "G722", 8000, 1);
+            case 14:
+                return new RtpMap(payloadType, "MPA", 90000, 1);
+            case 26:
+                return new RtpMap(payloadType, "JPEG", 90000, 1);
+            case 32:
+                return new RtpMap(payloadType, "MPV", 90000, 1);
+            case 33:
+                return new RtpMap(payloadType, "MP2T", 90000, 1);
+            default:
+                return null;
+        }
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public int getClockRate() {
+        return clockRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public String toString() {
+        return channels > 1
+                ? String.format("%d %s/%d/%d", payloadType, encoding, clockRate, channels)
+                : String.format("%d %s/%d", payloadType, encoding, clockRate);
+    }
+}
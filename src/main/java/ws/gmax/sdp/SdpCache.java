@@ -0,0 +1,109 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.sdp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of parsed session descriptions by presentation URI.
+ * <p>
+ * A cached model is reused only when the SDP text is unchanged, so a camera
+ * reconfigured between reconnects is parsed again.
+ *
+ * @author Marius
+ */
+public final class SdpCache {
+
+    /* Default cache capacity */
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /* Shared instance */
+    private static final SdpCache SHARED = new SdpCache(DEFAULT_CAPACITY);
+
+    /* LRU map URI -> session description */
+    private final Map<String, SessionDescription> cache;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Max number of cached URIs
+     */
+    public SdpCache(final int capacity) {
+        cache = new LinkedHashMap<String, SessionDescription>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SessionDescription> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the shared cache instance.
+     *
+     * @return Shared cache
+     */
+    public static SdpCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Get the parsed model of a SDP document, parsing it only if the URI is
+     * not cached or its document changed.
+     *
+     * @param uri  Presentation URI
+     * @param text SDP document text
+     * @return Session description
+     */
+    public SessionDescription get(String uri, String text) {
+        synchronized (cache) {
+            SessionDescription sd = cache.get(uri);
+            if (sd != null && sd.getText().equals(text)) {
+                return sd;
+            }
+        }
+        SessionDescription sd = SdpParser.parse(text);
+        synchronized (cache) {
+            cache.put(uri, sd);
+        }
+        return sd;
+    }
+
+    /**
+     * Remove a cached URI.
+     *
+     * @param uri Presentation URI
+     */
+    public void invalidate(String uri) {
+        synchronized (cache) {
+            cache.remove(uri);
+        }
+    }
+
+    /**
+     * Remove all cached entries.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.sdp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SDP (RFC 4566) parser. Builds an immutable <code>SessionDescription</code>
+ * in a single pass. Lines may be terminated by CRLF or LF only, unknown lines
+ * are ignored. A malformed m=, rtpmap or fmtp line is logged and skipped, a
+ * malformed m= line with its whole section, so a media the client does not
+ * use cannot fail the session.
+ *
+ * @author Marius
+ */
+public final class SdpParser {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SdpParser.class);
+
+    private SdpParser() {
+    }
+
+    /**
+     * Mutable attributes holder used while parsing a section.
+     */
+    private static class Section {
+
+        String connection;
+        String control;
+        Range range;
+        final Map<String, List<String>> attributes = new LinkedHashMap<>();
+
+        void attribute(String line) {
+            int colon = line.indexOf(':');
+            String name = colon == -1 ? line : line.substring(0, colon);
+            String value = colon == -1 ? "" : line.substring(colon + 1).trim();
+            List<String> values = attributes.get(name);
+            if (values == null) {
+                values = new ArrayList<>(1);
+                attributes.put(name, values);
+            }
+            values.add(value);
+            if ("control".equals(name)) {
+                control = value;
+            } else if ("range".equals(name)) {
+                range = Range.parse(value);
+            }
+        }
+
+        Map<String, List<String>> frozenAttributes() {
+            Map<String, List<String>> frozen = new LinkedHashMap<>();
+            attributes.forEach((key, value) ->
+                    frozen.put(key, Collections.unmodifiableList(value)));
+            return Collections.unmodifiableMap(frozen);
+        }
+    }
+
+    /**
+     * Mutable media holder used while parsing a m= section.
+     */
+    private static class Media extends Section {
+
+        String media;
+        int port;
+        String protocol;
+        final List<Integer> payloadTypes = new ArrayList<>();
+
+        /**
+         * Parse a media line.
+         *
+         * @param line Media line value
+         * @throws IllegalArgumentException if malformed
+         */
+        Media(String line) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 3) {
+                throw new IllegalArgumentException("Invalid SDP media: " + line);
+            }
+            media = parts[0];
+            String ports = parts[1];
+            int slash = ports.indexOf('/');
+            port = Integer.parseInt(slash == -1 ? ports : ports.substring(0, slash));
+            protocol = parts[2];
+            for (int i = 3; i < parts.length; i++) {
+                try {
+                    payloadTypes.add(Integer.parseInt(parts[i]));
+                } catch (NumberFormatException ex) {
+                    // non RTP format
+                }
+            }
+        }
+
+        MediaDescription build(String sessionConnection) {
+            Map<Integer, RtpMap> rtpMaps = new LinkedHashMap<>();
+            for (String value : attributes.getOrDefault("rtpmap",
+                    Collections.<String>emptyList())) {
+                try {
+                    RtpMap map = RtpMap.parse(value);
+                    rtpMaps.put(map.getPayloadType(), map);
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.warn("Skipped SDP rtpmap of {}: {}", media, value);
+                }
+            }
+            Map<Integer, Map<String, String>> fmtps = new LinkedHashMap<>();
+            for (String value : attributes.getOrDefault("fmtp",
+                    Collections.<String>emptyList())) {
+                int space = value.indexOf(' ');
+                if (space != -1) {
+                    try {
+                        int payloadType = Integer.parseInt(value.substring(0, space).trim());
+                        fmtps.put(payloadType, parseFmtp(value.substring(space + 1)));
+                    } catch (NumberFormatException ex) {
+                        LOGGER.warn("Skipped SDP fmtp of {}: {}", media, value);
+                    }
+                }
+            }
+            return new MediaDescription(media, port, protocol,
+                    Collections.unmodifiableList(payloadTypes), control, range,
+                    connection != null ? connection : sessionConnection,
+                    Collections.unmodifiableMap(rtpMaps),
+                    Collections.unmodifiableMap(fmtps),
+                    frozenAttributes());
+        }
+    }
+
+    /**
+     * Parse format parameters (packetization-mode=1;profile-level-id=428028).
+     *
+     * @param text Parameters text
+     * @return Case insensitive parameters map
+     */
+    private static Map<String, String> parseFmtp(String text) {
+        Map<String, String> params = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (String param : text.split(";")) {
+            param = param.trim();
+            if (!param.isEmpty()) {
+                int eq = param.indexOf('=');
+                if (eq == -1) {
+                    params.put(param, "");
+                } else {
+                    params.put(param.substring(0, eq).trim(),
+                            param.substring(eq + 1).trim());
+                }
+            }
+        }
+        return Collections.unmodifiableMap(params);
+    }
+
+    /**
+     * Parse a SDP document.
+     *
+     * @param text SDP document text
+     * @return Session description
+     */
+    public static SessionDescription parse(String text) {
+        if (text == null) {
+            throw new RuntimeException("Missing SDP document.");
+        }
+        String origin = null;
+        String name = null;
+        Section session = new Section();
+        List<Media> media = new ArrayList<>();
+        Section current = session;
+
+        int pos = 0;
+        int length = text.length();
+        while (pos < length) {
+            int end = text.indexOf('\n', pos);
+            if (end == -1) {
+                end = length;
+            }
+            String line = text.substring(pos, end).trim();
+            pos = end + 1;
+            if (line.length() < 2 || line.charAt(1) != '=') {
+                continue;
+            }
+            String value = line.substring(2);
+            switch (line.charAt(0)) {
+                case 'o':
+                    origin = value;
+                    break;
+                case 's':
+                    name = value;
+                    break;
+                case 'c':
+                    current.connection = value;
+                    break;
+                case 'm':
+                    try {
+                        Media md = new Media(value);
+                        media.add(md);
+                        current = md;
+                    } catch (IllegalArgumentException ex) {
+                        LOGGER.warn("Skipped SDP media section: {}", value);
+                        // collect its attributes out of the description
+                        current = new Section();
+                    }
+                    break;
+                case 'a':
+                    current.attribute(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        List<MediaDescription> descriptions = new ArrayList<>(media.size());
+        for (Media md : media) {
+            descriptions.add(md.build(session.connection));
+        }
+        return new SessionDescription(text, origin, name, session.connection,
+                session.control, session.range, session.frozenAttributes(),
+                Collections.unmodifiableList(descriptions));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.sdp;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable session description built once by <code>SdpParser</code>.
+ *
+ * @author Marius
+ */
+public final class SessionDescription {
+
+    /* SDP document text */
+    private final String text;
+
+    /* Origin (o=) */
+    private final String origin;
+
+    /* Session name (s=) */
+    private final String name;
+
+    /* Session level connection data (c=) */
+    private final String connection;
+
+    /* Aggregate control */
+    private final String control;
+
+    /* Session range */
+    private final Range range;
+
+    /* Session level attributes by name */
+    private final Map<String, List<String>> attributes;
+
+    /* Media descriptions in document order */
+    private final List<MediaDescription> media;
+
+    SessionDescription(String text, String origin, String name,
+                       String connection, String control, Range range,
+                       Map<String, List<String>> attributes,
+                       List<MediaDescription> media) {
+        this.text = text;
+        this.origin = origin;
+        this.name = name;
+        this.connection = connection;
+        this.control = control;
+        this.range = range;
+        this.attributes = attributes;
+        this.media = media;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getConnection() {
+        return connection;
+    }
+
+    public String getControl() {
+        return control;
+    }
+
+    public Range getRange() {
+        return range;
+    }
+
+    public List<MediaDescription> getMediaDescriptions() {
+        return media;
+    }
+
+    /**
+     * Get the first media description of a given type.
+     *
+     * @param type Media type (video, audio)
+     * @return Media description or <code>null</code> if not found
+     */
+    public MediaDescription getMedia(String type) {
+        for (MediaDescription md : media) {
+            if (md.getMedia().equalsIgnoreCase(type)) {
+                return md;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if a media type is present.
+     *
+     * @param type Media type (video, audio)
+     * @return <code>true</code> if present <code>false</code> if not
+     */
+    public boolean hasMedia(String type) {
+        return getMedia(type) != null;
+    }
+
+    /**
+     * Get the first value of a session level attribute.
+     *
+     * @param name Attribute name
+     * @return Attribute value or <code>null</code> if not present
+     */
+    public String getAttribute(String name) {
+        List<String> values = attributes.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Get all values of a session level attribute.
+     *
+     * @param name Attribute name
+     * @return Attribute values, empty if not present
+     */
+    public List<String> getAttributes(String name) {
+        List<String> values = attributes.get(name);
+        return values != null ? values : Collections.<String>emptyList();
+    }
+}
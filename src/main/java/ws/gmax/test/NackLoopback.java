@@ -0,0 +1,236 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.rtp.AccessUnitPool;
+import ws.gmax.rtp.PortAllocator;
+import ws.gmax.rtp.RtpMediaPlayer;
+import ws.gmax.rtp.RtpReorderBuffer;
+import ws.gmax.sdp.MediaDescription;
+import ws.gmax.sdp.SdpParser;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NACK retransmission sample.
+ * <p>
+ * A loopback server sends a synthetic H.264 stream fragmented in FU-A
+ * packets, dropping packets at random, and retransmits the packets
+ * requested by Generic NACKs. The stream is played once as RTP/AVP and once
+ * as RTP/AVPF and the ratio of complete frames is compared.
+ *
+ * @author Marius
+ */
+public class NackLoopback {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NackLoopback.class);
+
+    /* Stream shape */
+    private static final int FRAMES = 600;
+    private static final int FRAGMENTS = 8;
+    private static final int FRAGMENT_SIZE = 1000;
+    private static final int GOP = 30;
+
+    /* Packet loss ratio */
+    private static final double LOSS = 0.02;
+
+    /* Session description, profile and feedback attribute are filled in */
+    private static final String SDP = "v=0\r\n"
+            + "o=- 0 0 IN IP4 127.0.0.1\r\n"
+            + "s=NACK loopback\r\n"
+            + "t=0 0\r\n"
+            + "m=video 0 %s 96\r\n"
+            + "c=IN IP4 127.0.0.1\r\n"
+            + "a=rtpmap:96 H264/90000\r\n"
+            + "a=fmtp:96 packetization-mode=1\r\n"
+            + "%s";
+
+    /**
+     * Loopback server keeping a history of sent packets.
+     */
+    private static class Server implements Runnable {
+
+        final DatagramSocket rtp = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final DatagramSocket rtcp = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final byte[][] history = new byte[1024][];
+        final InetSocketAddress client;
+        final AtomicInteger retransmitted = new AtomicInteger();
+
+        Server(InetSocketAddress client) throws IOException {
+            this.client = client;
+        }
+
+        void send(byte[] packet, boolean drop) throws IOException {
+            int seq = ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+            synchronized (history) {
+                history[seq & 1023] = packet;
+            }
+            if (!drop) {
+                rtp.send(new DatagramPacket(packet, packet.length, client));
+            }
+        }
+
+        void resend(int seq) throws IOException {
+            byte[] packet;
+            synchronized (history) {
+                packet = history[seq & 1023];
+            }
+            if (packet != null && (((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF)) == seq) {
+                rtp.send(new DatagramPacket(packet, packet.length, client));
+                retransmitted.incrementAndGet();
+            }
+        }
+
+        /**
+         * Honor Generic NACKs (RTPFB, FMT 1) of compound RTCP packets.
+         */
+        @Override
+        public void run() {
+            byte[] buf = new byte[1500];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while (!rtcp.isClosed()) {
+                try {
+                    rtcp.receive(packet);
+                    int off = 0;
+                    int end = packet.getLength();
+                    while (off + 4 <= end) {
+                        int size = (((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF)) * 4 + 4;
+                        if ((buf[off + 1] & 0xFF) == 205 && (buf[off] & 0x1F) == 1) {
+                            for (int fci = off + 12; fci + 4 <= off + size; fci += 4) {
+                                int pid = ((buf[fci] & 0xFF) << 8) | (buf[fci + 1] & 0xFF);
+                                int blp = ((buf[fci + 2] & 0xFF) << 8) | (buf[fci + 3] & 0xFF);
+                                resend(pid);
+                                for (int bit = 0; bit < 16; bit++) {
+                                    if ((blp & (1 << bit)) != 0) {
+                                        resend((pid + bit + 1) & 0xFFFF);
+                                    }
+                                }
+                            }
+                        }
+                        off += size;
+                    }
+                } catch (IOException ex) {
+                    // closed
+                }
+            }
+        }
+
+        void close() {
+            rtp.close();
+            rtcp.close();
+        }
+    }
+
+    /**
+     * Build a RTP packet.
+     *
+     * @param seq       Sequence number
+     * @param timestamp RTP timestamp
+     * @param marker    Last packet of the frame
+     * @param payload   Payload bytes
+     * @return Packet bytes
+     */
+    private static byte[] packet(int seq, long timestamp, boolean marker, byte[] payload) {
+        byte[] packet = new byte[12 + payload.length];
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) ((marker ? 0x80 : 0) | 96);
+        packet[2] = (byte) (seq >> 8);
+        packet[3] = (byte) seq;
+        packet[4] = (byte) (timestamp >> 24);
+        packet[5] = (byte) (timestamp >> 16);
+        packet[6] = (byte) (timestamp >> 8);
+        packet[7] = (byte) timestamp;
+        packet[8] = 0x12;
+        packet[9] = 0x34;
+        packet[10] = 0x56;
+        packet[11] = 0x78;
+        System.arraycopy(payload, 0, packet, 12, payload.length);
+        return packet;
+    }
+
+    /**
+     * Play the lossy stream.
+     *
+     * @param nack Advertise AVPF and NACK feedback
+     * @return Complete frames received
+     * @throws Exception on error
+     */
+    private static int play(boolean nack) throws Exception {
+        AtomicInteger frames = new AtomicInteger();
+        RtpMediaPlayer player = new RtpMediaPlayer("127.0.0.1",
+                new PortAllocator(20000, 20999), new AccessUnitPool());
+        player.setAccessUnitListener(unit -> frames.incrementAndGet());
+        player.bind();
+        MediaDescription media = SdpParser.parse(String.format(SDP,
+                nack ? "RTP/AVPF" : "RTP/AVP", nack ? "a=rtcp-fb:96 nack\r\n" : ""))
+                .getMedia("video");
+        player.setMediaDescription(media);
+
+        Server server = new Server(new InetSocketAddress("127.0.0.1", player.getPort()));
+        new Thread(server).start();
+        player.setRtcpPeer((InetSocketAddress) server.rtcp.getLocalSocketAddress());
+        player.start();
+
+        Random random = new Random(1);
+        byte[] payload = new byte[FRAGMENT_SIZE + 2];
+        int seq = 0;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            int type = frame % GOP == 0 ? 5 : 1;
+            for (int i = 0; i < FRAGMENTS; i++) {
+                payload[0] = (byte) (0x60 | 28);
+                payload[1] = (byte) ((i == 0 ? 0x80 : 0) | (i == FRAGMENTS - 1 ? 0x40 : 0) | type);
+                server.send(packet(seq, frame * 3000L, i == FRAGMENTS - 1, payload.clone()),
+                        random.nextDouble() < LOSS);
+                seq = (seq + 1) & 0xFFFF;
+            }
+            Thread.sleep(5);
+        }
+        Thread.sleep(500);
+        player.stop();
+        server.close();
+
+        RtpReorderBuffer reorder = player.getReorderBuffer();
+        if (reorder != null) {
+            LOGGER.info("NACKs={} retransmitted={} recovered={} skipped={}", player.getNacks(),
+                    server.retransmitted.get(), reorder.getRecovered(), reorder.getSkipped());
+        }
+        return frames.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int plain = play(false);
+        int recovered = play(true);
+        LOGGER.info("RTP/AVP  frames: {}/{} ({}%)", plain, FRAMES, plain * 100 / FRAMES);
+        LOGGER.info("RTP/AVPF frames: {}/{} ({}%)", recovered, FRAMES, recovered * 100 / FRAMES);
+        if (plain < FRAMES) {
+            LOGGER.info("Recovered frame ratio: {}%",
+                    (recovered - plain) * 100 / (FRAMES - plain));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.pcap.PcapReplay;
+import ws.gmax.rtp.AccessUnitPool;
+import ws.gmax.rtp.PortAllocator;
+import ws.gmax.rtp.RtpMediaPlayer;
+import ws.gmax.sdp.SdpParser;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Capture replay benchmark.
+ * <p>
+ * Usage: PcapBench capture.pcap session.sdp port [fast|realtime]
+ * <p>
+ * Replays the RTP flow of a port into a media player and reports the
+ * number of access units and the packet rate of the receive path.
+ *
+ * @author Marius
+ */
+public class PcapBench {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PcapBench.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            LOGGER.error("Usage: PcapBench capture.pcap session.sdp port [fast|realtime]");
+            return;
+        }
+        Path sdp = Paths.get(args[1]);
+        AtomicInteger units = new AtomicInteger();
+        RtpMediaPlayer player = new RtpMediaPlayer("127.0.0.1",
+                new PortAllocator(9000, 9999), new AccessUnitPool());
+        player.setAccessUnitListener(unit -> units.incrementAndGet());
+        player.setMediaDescription(SdpParser.parse(new String(Files.readAllBytes(sdp),
+                StandardCharsets.UTF_8)).getMediaDescriptions().get(0));
+
+        PcapReplay replay = new PcapReplay(Paths.get(args[0]), player);
+        replay.setPort(Integer.parseInt(args[2]));
+        if (args.length > 3 && "realtime".equalsIgnoreCase(args[3])) {
+            replay.setPacing(PcapReplay.Pacing.REALTIME);
+        }
+        replay.replay();
+        LOGGER.info("Access units: {}, packets/s: {}", units.get(), replay.getPacketRate());
+    }
+}
@@ -22,7 +22,18 @@ package ws.gmax.test;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ws.gmax.record.GroupCommitWriter;
+import ws.gmax.record.RecordingStream;
+import ws.gmax.rtp.AacDepacketizer;
+import ws.gmax.rtp.AacFrame;
+import ws.gmax.rtp.Codec;
+import ws.gmax.rtp.PortAllocator;
 import ws.gmax.rtp.RtpPlayer;
+import ws.gmax.sdp.MediaDescription;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 
 /**
  * RtpAudioPlayer
@@ -34,14 +45,80 @@ class RtpAudioPlayer extends RtpPlayer {
     /* Logger */
     private static final Logger LOGGER = LoggerFactory.getLogger(RtpAudioPlayer.class);
 
+    /* AAC depacketizer, null if the codec is not supported */
+    private AacDepacketizer depacketizer;
+
+    /* Recording writer */
+    private final GroupCommitWriter recorder;
+
+    /* ADTS storage */
+    private RecordingStream out;
+
+    /* Set by stop, nothing is written after */
+    private boolean stopped;
+
     /**
      * Constructor
      *
-     * @param host Client host
-     * @param port Client port
+     * @param host      Client host
+     * @param allocator Port pair allocator
+     * @param recorder  Recording writer
      */
-    RtpAudioPlayer(String host, int port) {
-        super(host, port);
+    RtpAudioPlayer(String host, PortAllocator allocator, GroupCommitWriter recorder) {
+        super(host, allocator);
+        this.recorder = recorder;
+    }
+
+    /**
+     * Select a depacketizer for the negotiated codec.
+     *
+     * @param media Media description
+     */
+    @Override
+    public void setMediaDescription(MediaDescription media) {
+        super.setMediaDescription(media);
+        if (Codec.of(media.getEncoding()) == Codec.AAC) {
+            try {
+                out = recorder.open(Paths.get("audio.aac"));
+                depacketizer = AacDepacketizer.fromSdp(media);
+                depacketizer.setListener(this::write);
+            } catch (IOException ex) {
+                LOGGER.error("Error", ex);
+            }
+        }
+    }
+
+    /**
+     * Write an ADTS framed access unit.
+     *
+     * @param frame AAC frame
+     */
+    private void write(AacFrame frame) {
+        try {
+            out.write(frame.adtsHeader());
+            out.write(ByteBuffer.wrap(frame.getBuffer(), frame.getOffset(), frame.getLength()));
+        } catch (IOException ex) {
+            LOGGER.error("Error", ex);
+        }
+    }
+
+    /**
+     * Stop player and close the recording, under the lock of
+     * <code>onReceiveData</code>.
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        synchronized (this) {
+            stopped = true;
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    LOGGER.error("Error", ex);
+                }
+            }
+        }
     }
 
     /**
@@ -51,7 +128,10 @@ class RtpAudioPlayer extends RtpPlayer {
      * @param len    Data length
      */
     @Override
-    public void onReceiveData(byte[] buffer, int len) {
-        LOGGER.info("audio: {}", len);
+    public synchronized void onReceiveData(byte[] buffer, int len) {
+        LOGGER.debug("audio: {}", len);
+        if (!stopped && depacketizer != null) {
+            depacketizer.depacketize(parse(buffer, len));
+        }
     }
 }
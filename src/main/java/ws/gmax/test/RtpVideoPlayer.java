@@ -22,12 +22,18 @@ package ws.gmax.test;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ws.gmax.mp4.Fmp4Muxer;
+import ws.gmax.record.GroupCommitWriter;
+import ws.gmax.record.RecordingStream;
+import ws.gmax.rtp.AccessUnitPool;
+import ws.gmax.rtp.Depacketizer;
+import ws.gmax.rtp.PortAllocator;
 import ws.gmax.rtp.RtpDecoder;
 import ws.gmax.rtp.RtpPlayer;
+import ws.gmax.sdp.MediaDescription;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
 
 /**
  * RtpVideoPlayer
@@ -39,20 +45,80 @@ class RtpVideoPlayer extends RtpPlayer {
     /* Logger */
     private static final Logger LOGGER = LoggerFactory.getLogger(RtpVideoPlayer.class);
 
-    /* Storage */
-    final private FileOutputStream out, hdr;
+    /* Recording writer */
+    private final GroupCommitWriter recorder;
+
+    /* Raw payload and header storage, opened when no depacketizer is used */
+    private RecordingStream out, hdr;
+
+    /* Access units pool */
+    private final AccessUnitPool pool = new AccessUnitPool();
+
+    /* Depacketizer, null if the codec is not supported */
+    private Depacketizer depacketizer;
+
+    /* Fragmented MP4 recorder */
+    private Fmp4Muxer muxer;
+
+    /* Set by stop, nothing is written after */
+    private boolean stopped;
 
     /**
      * Constructor
      *
-     * @param host name or address
-     * @param port number
-     * @throws java.io.FileNotFoundException on error creating output files.
+     * @param host      name or address
+     * @param allocator Port pair allocator
+     * @param recorder  Recording writer
      */
-    RtpVideoPlayer(String host, int port) throws FileNotFoundException {
-        super(host, port);
-        out = new FileOutputStream("video.bin");
-        hdr = new FileOutputStream("video.hdr");
+    RtpVideoPlayer(String host, PortAllocator allocator, GroupCommitWriter recorder) {
+        super(host, allocator);
+        this.recorder = recorder;
+    }
+
+    /**
+     * Select a depacketizer for the negotiated codec and record its access
+     * units to video.mp4.
+     *
+     * @param media Media description
+     */
+    @Override
+    public void setMediaDescription(MediaDescription media) {
+        super.setMediaDescription(media);
+        depacketizer = Depacketizer.fromSdp(media, pool);
+        if (depacketizer != null) {
+            try {
+                muxer = new Fmp4Muxer(recorder.open(Paths.get("video.mp4")));
+                depacketizer.setListener(muxer);
+            } catch (IOException ex) {
+                LOGGER.error("Error", ex);
+                depacketizer = null;
+            }
+        }
+    }
+
+    /**
+     * Stop player and complete the recording. The recording is closed under
+     * the lock of <code>onReceiveData</code>, once the packet being handled
+     * is written, later packets are ignored.
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        synchronized (this) {
+            stopped = true;
+            try {
+                if (muxer != null) {
+                    muxer.close();
+                }
+                if (out != null) {
+                    out.close();
+                    hdr.close();
+                    LOGGER.info("{}", out);
+                }
+            } catch (IOException ex) {
+                LOGGER.error("Error", ex);
+            }
+        }
     }
 
     /**
@@ -62,16 +128,25 @@ class RtpVideoPlayer extends RtpPlayer {
      * @param len    Data length
      */
     @Override
-    public void onReceiveData(byte[] packet, int len) {
+    public synchronized void onReceiveData(byte[] packet, int len) {
+        if (stopped) {
+            return;
+        }
         try {
-            LOGGER.info("video: {}", len);
+            LOGGER.debug("video: {}", len);
+            if (depacketizer != null) {
+                depacketizer.depacketize(parse(packet, len));
+                return;
+            }
+            if (out == null) {
+                out = recorder.open(Paths.get("video.bin"));
+                hdr = recorder.open(Paths.get("video.hdr"));
+            }
             RtpDecoder decoder = decode(packet, len);
             //
             out.write(decoder.payload);
-            out.flush();
             //
             hdr.write(decoder.header);
-            hdr.flush();
         } catch (IOException ex) {
             LOGGER.error("Error", ex);
         }
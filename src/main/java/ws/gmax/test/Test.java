@@ -22,6 +22,8 @@ package ws.gmax.test;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ws.gmax.record.GroupCommitWriter;
+import ws.gmax.rtp.PortAllocator;
 import ws.gmax.rtsp.RtspSession;
 
 //    Jul 24, 2016 10:10:58 PM ws.gmax.rtsp.RtspRequest doRequest
@@ -92,13 +94,18 @@ public class Test {
 
     public static void main(String[] args) throws Exception {
         LOGGER.info("Starting...");
-        RtpVideoPlayer videoPlayer = new RtpVideoPlayer("0.0.0.0", 9000);
-        RtpAudioPlayer audioPlayer = new RtpAudioPlayer("0.0.0.0", 9002);
+        PortAllocator allocator = new PortAllocator(9000, 9999);
+        GroupCommitWriter recorder = new GroupCommitWriter();
+        RtpVideoPlayer videoPlayer = new RtpVideoPlayer("0.0.0.0", allocator, recorder);
+        RtpAudioPlayer audioPlayer = new RtpAudioPlayer("0.0.0.0", allocator, recorder);
         RtspSession session = new RtspSession(videoPlayer, audioPlayer);
         session.setUsername("admin");
         session.setPassword("admin");
         session.play("rtsp://wowzaec2demo.streamlock.net/vod/mp4:BigBuckBunny_115k.mp4");
         Thread.sleep(5000);
         session.stop();
+        recorder.close();
+        LOGGER.info("Recorded {} bytes, {} bytes/write", recorder.getBytes(),
+                recorder.getBytesPerWrite());
     }
 }
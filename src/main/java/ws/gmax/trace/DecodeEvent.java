@@ -0,0 +1,49 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Access unit handled by the listener (decoder, muxer) of a depacketizer.
+ * The event duration is the time spent in the listener.
+ *
+ * @author Marius
+ */
+@Name("ws.gmax.Decode")
+@Label("Decode")
+@Category({"RTSP Torrent", "RTP"})
+@Description("Access unit handled by the depacketizer listener")
+public final class DecodeEvent extends jdk.jfr.Event {
+
+    @Label("Stream")
+    public String stream;
+
+    @Label("Codec")
+    public String codec;
+
+    @Label("Timestamp")
+    @Description("RTP timestamp of the access unit")
+    public long timestamp;
+}
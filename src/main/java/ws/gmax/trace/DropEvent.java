@@ -0,0 +1,69 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Packets or access units lost or dropped on the receive path.
+ *
+ * @author Marius
+ */
+@Name("ws.gmax.Drop")
+@Label("Drop")
+@Category({"RTSP Torrent", "RTP"})
+@Description("Packets or access units lost or dropped on the receive path")
+public final class DropEvent extends jdk.jfr.Event {
+
+    /* Reasons */
+    public static final String LOSS = "loss";
+    public static final String INCOMPLETE = "incomplete";
+    public static final String FILTER = "filter";
+
+    @Label("Stream")
+    public String stream;
+
+    @Label("Reason")
+    public String reason;
+
+    @Label("Count")
+    public int count;
+
+    /**
+     * Commit a drop event if enabled.
+     *
+     * @param stream Stream name
+     * @param reason Drop reason
+     * @param count  Dropped packets or access units
+     */
+    public static void emit(String stream, String reason, int count) {
+        DropEvent event = new DropEvent();
+        if (event.shouldCommit()) {
+            event.stream = stream;
+            event.reason = reason;
+            event.count = count;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.trace;
+
+import org.slf4j.Logger;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Small in memory ring of the recent events of a session, dumped to the
+ * log when the session fails. Only control events are recorded (RTSP
+ * exchanges, player start and stop, errors), never per packet events.
+ *
+ * @author Marius
+ */
+public final class EventRing {
+
+    /* Default number of kept events */
+    public static final int DEFAULT_CAPACITY = 128;
+
+    /* Event times and texts */
+    private final long[] times;
+    private final String[] events;
+
+    /* Next slot and number of recorded events */
+    private int next;
+    private long count;
+
+    public EventRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Number of kept events
+     */
+    public EventRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid ring capacity: " + capacity);
+        }
+        times = new long[capacity];
+        events = new String[capacity];
+    }
+
+    /**
+     * Record an event, the oldest event is overwritten when full.
+     *
+     * @param event Event text
+     */
+    public synchronized void record(String event) {
+        times[next] = System.currentTimeMillis();
+        events[next] = event;
+        next = (next + 1) % events.length;
+        count++;
+    }
+
+    /**
+     * Get the kept events, oldest first.
+     *
+     * @return Event lines prefixed by their time
+     */
+    public synchronized List<String> snapshot() {
+        int size = (int) Math.min(count, events.length);
+        List<String> lines = new ArrayList<>(size);
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        for (int i = 0; i < size; i++) {
+            int index = (next - size + i + events.length) % events.length;
+            lines.add(format.format(new Date(times[index])) + " " + events[index]);
+        }
+        return lines;
+    }
+
+    /**
+     * Log the kept events.
+     *
+     * @param logger Logger
+     * @param reason Failure reason
+     */
+    public void dump(Logger logger, String reason) {
+        List<String> lines = snapshot();
+        logger.warn("{}, last {} events:", reason, lines.size());
+        for (String line : lines) {
+            logger.warn("  {}", line);
+        }
+    }
+
+    /**
+     * Get number of events recorded since created.
+     *
+     * @return Events count
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Batch of RTP datagrams received on a client port.
+ *
+ * @author Marius
+ */
+@Name("ws.gmax.RtpReceive")
+@Label("RTP Receive")
+@Category({"RTSP Torrent", "RTP"})
+@Description("Batch of RTP datagrams received on a client port")
+public final class RtpReceiveEvent extends jdk.jfr.Event {
+
+    @Label("Port")
+    public int port;
+
+    @Label("Packets")
+    public int packets;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Interval")
+    @Description("Time taken to receive the batch")
+    @Timespan(Timespan.NANOSECONDS)
+    public long interval;
+}
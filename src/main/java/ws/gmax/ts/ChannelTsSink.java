@@ -0,0 +1,85 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.ts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * TS sink writing to a channel: a file, a named pipe or a process pipe.
+ *
+ * @author Marius
+ */
+public class ChannelTsSink implements TsSink {
+
+    /* Output channel */
+    private final WritableByteChannel channel;
+
+    /**
+     * Constructor.
+     *
+     * @param channel Output channel
+     */
+    public ChannelTsSink(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Create a sink writing to a file. Existing files are truncated, named
+     * pipes (FIFO) are opened for writing.
+     *
+     * @param path File path
+     * @return TS sink
+     * @throws IOException on error
+     */
+    public static ChannelTsSink file(Path path) throws IOException {
+        return new ChannelTsSink(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Create a sink writing to an output stream (process stdin, stdout).
+     *
+     * @param out Output stream
+     * @return TS sink
+     */
+    public static ChannelTsSink pipe(OutputStream out) {
+        return new ChannelTsSink(Channels.newChannel(out));
+    }
+
+    @Override
+    public void write(ByteBuffer packets) throws IOException {
+        while (packets.hasRemaining()) {
+            channel.write(packets);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
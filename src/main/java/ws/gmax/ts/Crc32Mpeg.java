@@ -0,0 +1,61 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.ts;
+
+/**
+ * CRC-32/MPEG-2 used by PSI sections.
+ *
+ * @author Marius
+ */
+final class Crc32Mpeg {
+
+    /* Lookup table for polynomial 0x04C11DB7 */
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private Crc32Mpeg() {
+    }
+
+    /**
+     * Compute CRC.
+     *
+     * @param data Bytes
+     * @param off  Offset
+     * @param len  Length
+     * @return CRC value
+     */
+    static int compute(byte[] data, int off, int len) {
+        int crc = 0xFFFFFFFF;
+        for (int i = off; i < off + len; i++) {
+            crc = (crc << 8) ^ TABLE[((crc >>> 24) ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,594 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.ts;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.gmax.rtp.AacFrame;
+import ws.gmax.rtp.AacFrameListener;
+import ws.gmax.rtp.AccessUnit;
+import ws.gmax.rtp.AccessUnitListener;
+import ws.gmax.rtp.Codec;
+import ws.gmax.rtp.RtpTimestampUnwrapper;
+import ws.gmax.rtp.SyncListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental MPEG-TS muxer (ISO/IEC 13818-1) for one program with a video
+ * (H.264 or H.265) and an audio (AAC) elementary stream.
+ * <p>
+ * Access units are packetized into PES packets and 188 bytes TS packets
+ * written into a reusable buffer. PAT/PMT are repeated before every keyframe
+ * and at least twice a second, PCR is derived from the RTP timestamps of the
+ * PCR stream. When fed by an <code>AvSync</code> stage both streams are
+ * stamped on the wallclock time line of the RTCP sender reports instead.
+ *
+ * @author Marius
+ */
+public class TsMuxer implements AccessUnitListener, AacFrameListener, SyncListener {
+
+    /* Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TsMuxer.class);
+
+    /* TS packet size */
+    public static final int PACKET_SIZE = 188;
+
+    /* TS packet header size */
+    private static final int HEADER_SIZE = 4;
+
+    /* Sync byte */
+    private static final int SYNC = 0x47;
+
+    /* PIDs */
+    private static final int PAT_PID = 0x0000;
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x0100;
+    private static final int AUDIO_PID = 0x0101;
+
+    /* Program number */
+    private static final int PROGRAM = 1;
+
+    /* Stream types */
+    private static final int STREAM_TYPE_H264 = 0x1B;
+    private static final int STREAM_TYPE_H265 = 0x24;
+    private static final int STREAM_TYPE_AAC = 0x0F;
+
+    /* System clock */
+    private static final int CLOCK = 90000;
+
+    /* PAT/PMT max interval (500 ms) */
+    private static final long PSI_INTERVAL = CLOCK / 2;
+
+    /* PCR runs ahead of the presentation time (200 ms) */
+    private static final long PCR_DELAY = CLOCK / 5;
+
+    /* 33 bits PTS/PCR base mask */
+    private static final long MASK_33 = 0x1FFFFFFFFL;
+
+    /* Default buffer size in packets */
+    private static final int DEFAULT_PACKETS = 64;
+
+    /* Access unit delimiters */
+    private static final byte[] AUD_H264 = {0, 0, 0, 1, 0x09, (byte) 0xF0};
+    private static final byte[] AUD_H265 = {0, 0, 0, 1, 0x46, 0x01, 0x50};
+
+    /**
+     * Elementary stream state.
+     */
+    private static class Track {
+
+        final int pid;
+        final int streamId;
+        final int streamType;
+        final int clockRate;
+        final RtpTimestampUnwrapper unwrapper = new RtpTimestampUnwrapper();
+        long first = -1;
+        long base;
+        int cc;
+
+        Track(int pid, int streamId, int streamType, int clockRate) {
+            this.pid = pid;
+            this.streamId = streamId;
+            this.streamType = streamType;
+            this.clockRate = clockRate;
+        }
+    }
+
+    /* Output sink */
+    private final TsSink sink;
+
+    /* Reusable output buffer */
+    private final ByteBuffer out;
+
+    /* Video and audio tracks, null if missing */
+    private final Track video, audio;
+
+    /* Track carrying the PCR */
+    private final Track pcrTrack;
+
+    /* Precomputed PAT and PMT packets */
+    private final byte[] pat, pmt;
+    private int patCc, pmtCc;
+
+    /* Reusable PES header */
+    private final byte[] pes = new byte[32];
+
+    /* PTS of the last PAT/PMT, -1 before the first one */
+    private long lastPsi = -1;
+
+    /* Last PCR, kept monotonic */
+    private long lastPcr = -1;
+
+    /* Muxer start time, aligns tracks starting at different times */
+    private final long start = System.nanoTime();
+
+    /* Flush to the sink after each access unit */
+    private boolean autoFlush = true;
+
+    /* Statistics */
+    private long packets;
+
+    /**
+     * Constructor.
+     *
+     * @param sink           TS sink
+     * @param videoCodec     Video codec (H264, H265) or <code>null</code>
+     * @param audioClockRate AAC RTP clock rate or 0 if there is no audio
+     */
+    public TsMuxer(TsSink sink, Codec videoCodec, int audioClockRate) {
+        this(sink, videoCodec, audioClockRate, DEFAULT_PACKETS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sink           TS sink
+     * @param videoCodec     Video codec (H264, H265) or <code>null</code>
+     * @param audioClockRate AAC RTP clock rate or 0 if there is no audio
+     * @param bufferPackets  Output buffer size in TS packets
+     */
+    public TsMuxer(TsSink sink, Codec videoCodec, int audioClockRate, int bufferPackets) {
+        if (videoCodec == null && audioClockRate <= 0) {
+            throw new RuntimeException("No elementary stream.");
+        }
+        if (videoCodec == Codec.AAC) {
+            throw new RuntimeException("Unsupported video codec: " + videoCodec);
+        }
+        this.sink = sink;
+        this.out = ByteBuffer.allocateDirect(Math.max(1, bufferPackets) * PACKET_SIZE);
+        this.video = videoCodec == null ? null : new Track(VIDEO_PID, 0xE0,
+                videoCodec == Codec.H265 ? STREAM_TYPE_H265 : STREAM_TYPE_H264, CLOCK);
+        this.audio = audioClockRate <= 0 ? null : new Track(AUDIO_PID, 0xC0,
+                STREAM_TYPE_AAC, audioClockRate);
+        this.pcrTrack = video != null ? video : audio;
+        this.pat = buildPat();
+        this.pmt = buildPmt();
+    }
+
+    public void setAutoFlush(boolean autoFlush) {
+        this.autoFlush = autoFlush;
+    }
+
+    /**
+     * Access unit listener, errors are logged.
+     *
+     * @param unit Access unit
+     */
+    @Override
+    public void onAccessUnit(AccessUnit unit) {
+        try {
+            writeVideo(unit);
+        } catch (IOException ex) {
+            LOGGER.error("Error", ex);
+        }
+    }
+
+    /**
+     * AAC frame listener, errors are logged.
+     *
+     * @param frame AAC frame
+     */
+    @Override
+    public void onAacFrame(AacFrame frame) {
+        try {
+            writeAudio(frame);
+        } catch (IOException ex) {
+            LOGGER.error("Error", ex);
+        }
+    }
+
+    /**
+     * Synchronized access unit listener, errors are logged.
+     *
+     * @param unit Access unit
+     * @param pts  90 kHz presentation time on the common time line
+     */
+    @Override
+    public void onAccessUnit(AccessUnit unit, long pts) {
+        try {
+            writeVideo(unit, PCR_DELAY + pts);
+        } catch (IOException ex) {
+            LOGGER.error("Error", ex);
+        }
+    }
+
+    /**
+     * Synchronized AAC frame listener, errors are logged.
+     *
+     * @param frame AAC frame
+     * @param pts   90 kHz presentation time on the common time line
+     */
+    @Override
+    public void onAacFrame(AacFrame frame, long pts) {
+        try {
+            writeAudio(frame, PCR_DELAY + pts);
+        } catch (IOException ex) {
+            LOGGER.error("Error", ex);
+        }
+    }
+
+    /**
+     * Convert a RTP timestamp to a 90 kHz presentation time.
+     *
+     * @param track     Track
+     * @param timestamp RTP timestamp
+     * @return PTS
+     */
+    private long pts(Track track, long timestamp) {
+        long extended = track.unwrapper.unwrap(timestamp);
+        if (track.first == -1) {
+            track.first = extended;
+            track.base = PCR_DELAY + (System.nanoTime() - start) * CLOCK / 1_000_000_000L;
+        }
+        return track.base + (extended - track.first) * CLOCK / track.clockRate;
+    }
+
+    /**
+     * Mux a video access unit.
+     *
+     * @param unit Access unit
+     * @throws IOException on error
+     */
+    public synchronized void writeVideo(AccessUnit unit) throws IOException {
+        if (video == null) {
+            return;
+        }
+        long pts = pts(video, unit.getTimestamp());
+        writeVideo(unit, pts);
+    }
+
+    /**
+     * Mux a video access unit with an explicit presentation time.
+     *
+     * @param unit Access unit
+     * @param pts  90 kHz presentation time
+     * @throws IOException on error
+     */
+    public synchronized void writeVideo(AccessUnit unit, long pts) throws IOException {
+        if (video == null) {
+            return;
+        }
+        psi(pts, unit.isKeyframe());
+        byte[] aud = unit.getCodec() == Codec.H265 ? AUD_H265 : AUD_H264;
+        int len = pesHeader(video, pts, 0);
+        System.arraycopy(aud, 0, pes, len, aud.length);
+        len += aud.length;
+        writePes(video, len, unit.data(), pcr(video, pts), unit.isKeyframe());
+        if (autoFlush) {
+            flush();
+        }
+    }
+
+    /**
+     * Mux an AAC frame as ADTS.
+     *
+     * @param frame AAC frame
+     * @throws IOException on error
+     */
+    public synchronized void writeAudio(AacFrame frame) throws IOException {
+        if (audio == null) {
+            return;
+        }
+        writeAudio(frame, pts(audio, frame.getTimestamp()));
+    }
+
+    /**
+     * Mux an AAC frame as ADTS with an explicit presentation time.
+     *
+     * @param frame AAC frame
+     * @param pts   90 kHz presentation time
+     * @throws IOException on error
+     */
+    public synchronized void writeAudio(AacFrame frame, long pts) throws IOException {
+        if (audio == null) {
+            return;
+        }
+        if (video == null) {
+            psi(pts, false);
+        }
+        byte[] adts = frame.adtsHeader();
+        int len = pesHeader(audio, pts, adts.length + frame.getLength());
+        System.arraycopy(adts, 0, pes, len, adts.length);
+        len += adts.length;
+        writePes(audio, len, frame.data(), pcr(audio, pts), false);
+        if (autoFlush) {
+            flush();
+        }
+    }
+
+    /**
+     * Compute the PCR to insert with a PES of a track.
+     *
+     * @return PCR or -1 if the track does not carry the PCR
+     */
+    private long pcr(Track track, long pts) {
+        if (track != pcrTrack) {
+            return -1;
+        }
+        long pcr = Math.max(0, pts - PCR_DELAY);
+        if (pcr < lastPcr) {
+            pcr = lastPcr;
+        }
+        lastPcr = pcr;
+        return pcr;
+    }
+
+    /**
+     * Write PAT and PMT if a keyframe starts or the interval elapsed.
+     */
+    private void psi(long pts, boolean keyframe) throws IOException {
+        if (lastPsi == -1 || keyframe || pts - lastPsi >= PSI_INTERVAL || pts < lastPsi) {
+            pat[3] = (byte) ((pat[3] & 0xF0) | (patCc++ & 0x0F));
+            pmt[3] = (byte) ((pmt[3] & 0xF0) | (pmtCc++ & 0x0F));
+            room();
+            out.put(pat);
+            room();
+            out.put(pmt);
+            packets += 2;
+            lastPsi = pts;
+        }
+    }
+
+    /**
+     * Build a PES header into the reusable header buffer.
+     *
+     * @param track   Track
+     * @param pts     Presentation time
+     * @param payload Payload size, 0 for unbounded video PES
+     * @return Header size
+     */
+    private int pesHeader(Track track, long pts, int payload) {
+        int length = payload == 0 ? 0 : payload + 8;
+        if (length > 0xFFFF) {
+            length = 0;
+        }
+        pes[0] = 0;
+        pes[1] = 0;
+        pes[2] = 1;
+        pes[3] = (byte) track.streamId;
+        pes[4] = (byte) (length >> 8);
+        pes[5] = (byte) length;
+        pes[6] = (byte) 0x80;
+        pes[7] = (byte) 0x80;
+        pes[8] = 5;
+        pts &= MASK_33;
+        pes[9] = (byte) (0x21 | ((pts >> 29) & 0x0E));
+        pes[10] = (byte) (pts >> 22);
+        pes[11] = (byte) (((pts >> 14) & 0xFE) | 0x01);
+        pes[12] = (byte) (pts >> 7);
+        pes[13] = (byte) (((pts << 1) & 0xFE) | 0x01);
+        return 14;
+    }
+
+    /**
+     * Split a PES packet (header in <code>pes</code> followed by body) into
+     * TS packets.
+     *
+     * @param track        Track
+     * @param headerLength PES header size
+     * @param body         PES payload
+     * @param pcr          PCR or -1
+     * @param randomAccess Set the random access indicator
+     */
+    private void writePes(Track track, int headerLength, ByteBuffer body,
+                          long pcr, boolean randomAccess) throws IOException {
+        int header = 0;
+        int remaining = headerLength + body.remaining();
+        boolean first = true;
+        while (remaining > 0) {
+            room();
+            boolean adaptation = first && (pcr >= 0 || randomAccess);
+            int afLength = adaptation ? 1 + (pcr >= 0 ? 6 : 0) : -1;
+            int space = PACKET_SIZE - HEADER_SIZE - (afLength >= 0 ? afLength + 1 : 0);
+            int n = Math.min(space, remaining);
+            if (n < space) {
+                int stuffing = space - n;
+                afLength = afLength < 0 ? stuffing - 1 : afLength + stuffing;
+            }
+            out.put((byte) SYNC);
+            out.put((byte) ((first ? 0x40 : 0) | (track.pid >> 8)));
+            out.put((byte) track.pid);
+            out.put((byte) ((afLength >= 0 ? 0x30 : 0x10) | (track.cc++ & 0x0F)));
+            if (afLength >= 0) {
+                out.put((byte) afLength);
+                int written = 0;
+                if (afLength > 0) {
+                    int flags = 0;
+                    if (first && randomAccess) {
+                        flags |= 0x40;
+                    }
+                    if (first && pcr >= 0) {
+                        flags |= 0x10;
+                    }
+                    out.put((byte) flags);
+                    written++;
+                    if ((flags & 0x10) != 0) {
+                        long base = pcr & MASK_33;
+                        out.put((byte) (base >> 25));
+                        out.put((byte) (base >> 17));
+                        out.put((byte) (base >> 9));
+                        out.put((byte) (base >> 1));
+                        out.put((byte) (((base & 1) << 7) | 0x7E));
+                        out.put((byte) 0);
+                        written += 6;
+                    }
+                }
+                for (; written < afLength; written++) {
+                    out.put((byte) 0xFF);
+                }
+            }
+            int count = n;
+            if (header < headerLength) {
+                int h = Math.min(count, headerLength - header);
+                out.put(pes, header, h);
+                header += h;
+                count -= h;
+            }
+            if (count > 0) {
+                int limit = body.limit();
+                body.limit(body.position() + count);
+                out.put(body);
+                body.limit(limit);
+            }
+            remaining -= n;
+            first = false;
+            packets++;
+        }
+    }
+
+    /**
+     * Make room for a TS packet in the output buffer.
+     */
+    private void room() throws IOException {
+        if (out.remaining() < PACKET_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Write buffered packets to the sink.
+     *
+     * @throws IOException on error
+     */
+    public synchronized void flush() throws IOException {
+        if (out.position() > 0) {
+            out.flip();
+            try {
+                sink.write(out);
+            } finally {
+                out.clear();
+            }
+        }
+    }
+
+    /**
+     * Flush and close the sink.
+     *
+     * @throws IOException on error
+     */
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * Get number of TS packets produced.
+     *
+     * @return Packets count
+     */
+    public long getPackets() {
+        return packets;
+    }
+
+    /**
+     * Build the PAT packet.
+     */
+    private byte[] buildPat() {
+        byte[] section = new byte[]{
+                0x00,                                   // table_id
+                (byte) 0xB0, 0x0D,                      // section length 13
+                0x00, 0x01,                             // transport_stream_id
+                (byte) 0xC1, 0x00, 0x00,                // version 0, current, section 0/0
+                0x00, PROGRAM,                          // program_number
+                (byte) (0xE0 | (PMT_PID >> 8)), (byte) PMT_PID
+        };
+        return psiPacket(PAT_PID, section);
+    }
+
+    /**
+     * Build the PMT packet.
+     */
+    private byte[] buildPmt() {
+        int streams = (video != null ? 1 : 0) + (audio != null ? 1 : 0);
+        int sectionLength = 13 + 5 * streams;
+        byte[] section = new byte[12 + 5 * streams];
+        int i = 0;
+        section[i++] = 0x02;                            // table_id
+        section[i++] = (byte) (0xB0 | (sectionLength >> 8));
+        section[i++] = (byte) sectionLength;
+        section[i++] = 0x00;
+        section[i++] = PROGRAM;
+        section[i++] = (byte) 0xC1;
+        section[i++] = 0x00;
+        section[i++] = 0x00;
+        section[i++] = (byte) (0xE0 | (pcrTrack.pid >> 8));
+        section[i++] = (byte) pcrTrack.pid;
+        section[i++] = (byte) 0xF0;                     // program_info_length 0
+        section[i++] = 0x00;
+        for (Track track : new Track[]{video, audio}) {
+            if (track != null) {
+                section[i++] = (byte) track.streamType;
+                section[i++] = (byte) (0xE0 | (track.pid >> 8));
+                section[i++] = (byte) track.pid;
+                section[i++] = (byte) 0xF0;             // ES_info_length 0
+                section[i++] = 0x00;
+            }
+        }
+        return psiPacket(PMT_PID, section);
+    }
+
+    /**
+     * Wrap a PSI section (without CRC) into a TS packet.
+     */
+    private static byte[] psiPacket(int pid, byte[] section) {
+        byte[] packet = new byte[PACKET_SIZE];
+        Arrays.fill(packet, (byte) 0xFF);
+        packet[0] = SYNC;
+        packet[1] = (byte) (0x40 | (pid >> 8));
+        packet[2] = (byte) pid;
+        packet[3] = 0x10;
+        packet[4] = 0x00;                               // pointer field
+        System.arraycopy(section, 0, packet, 5, section.length);
+        int crc = Crc32Mpeg.compute(section, 0, section.length);
+        int pos = 5 + section.length;
+        packet[pos] = (byte) (crc >> 24);
+        packet[pos + 1] = (byte) (crc >> 16);
+        packet[pos + 2] = (byte) (crc >> 8);
+        packet[pos + 3] = (byte) crc;
+        return packet;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * RTSP/RTP torrent
+ * Copyright (c) 2016 Marius Gligor
+ *
+ * Author: Marius Gligor <marius.gligor@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111, USA.
+ */
+package ws.gmax.ts;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * TS sink sending 7 packets per UDP datagram (1316 bytes), unicast or
+ * multicast.
+ *
+ * @author Marius
+ */
+public class UdpTsSink implements TsSink {
+
+    /* TS packets per datagram */
+    private static final int PACKETS_PER_DATAGRAM = 7;
+
+    /* Datagram payload size */
+    private static final int DATAGRAM_SIZE = PACKETS_PER_DATAGRAM * TsMuxer.PACKET_SIZE;
+
+    /* UDP channel connected to the destination */
+    private final DatagramChannel channel;
+
+    /**
+     * Constructor.
+     *
+     * @param destination Destination address
+     * @throws IOException on error
+     */
+    public UdpTsSink(InetSocketAddress destination) throws IOException {
+        this(destination, 1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param destination Destination address
+     * @param ttl         Multicast time to live
+     * @throws IOException on error
+     */
+    public UdpTsSink(InetSocketAddress destination, int ttl) throws IOException {
+        channel = DatagramChannel.open();
+        if (destination.getAddress().isMulticastAddress()) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+        }
+        channel.connect(destination);
+    }
+
+    @Override
+    public void write(ByteBuffer packets) throws IOException {
+        int limit = packets.limit();
+        try {
+            while (packets.position() < limit) {
+                packets.limit(Math.min(packets.position() + DATAGRAM_SIZE, limit));
+                channel.write(packets);
+            }
+        } finally {
+            packets.limit(limit);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}